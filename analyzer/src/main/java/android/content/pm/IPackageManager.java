@@ -13,4 +13,8 @@ public interface IPackageManager extends IInterface {
     }
 
     ApplicationInfo getApplicationInfo(String packageName, int flags, int userId) throws RemoteException;
+
+    ParceledListSlice<PackageInfo> getInstalledPackages(int flags, int userId) throws RemoteException;
+
+    ChangedPackages getChangedPackages(int sequenceNumber, int userId) throws RemoteException;
 }
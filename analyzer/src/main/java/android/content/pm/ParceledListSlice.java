@@ -0,0 +1,9 @@
+package android.content.pm;
+
+import java.util.List;
+
+public class ParceledListSlice<T> {
+    public List<T> getList() {
+        throw new RuntimeException("Stub!");
+    }
+}
@@ -83,6 +83,8 @@ public class AndroidManifestParser {
         private int mCurrentLevel = 0;
         private int mValidLevel = 0;
         private Activity mCurrentActivity = null;
+        private Component.Builder mCurrentComponent = null;
+        private ManifestData.IntentFilter.Builder mCurrentIntentFilter = null;
         private Locator mLocator;
 
         /**
@@ -220,12 +222,45 @@ public class AndroidManifestParser {
                                 }
 
                                 mManifestData.mFeatures.add(feature);
+                            } else if (AndroidManifest.NODE_USES_PERMISSION.equals(localName)
+                                    || AndroidManifest.NODE_USES_PERMISSION_SDK_23.equals(
+                                            localName)) {
+                                value =
+                                        getAttributeValue(
+                                                attributes,
+                                                AndroidManifest.ATTRIBUTE_NAME,
+                                                true /* hasNamespace */);
+                                if (value != null) {
+                                    mManifestData.mUsesPermissions.add(
+                                            ManifestData.intern(value));
+                                }
+                            } else if (AndroidManifest.NODE_PERMISSION.equals(localName)) {
+                                value =
+                                        getAttributeValue(
+                                                attributes,
+                                                AndroidManifest.ATTRIBUTE_NAME,
+                                                true /* hasNamespace */);
+                                if (value != null) {
+                                    mManifestData.mPermissions.add(
+                                            new ManifestData.Permission(
+                                                    value,
+                                                    getAttributeValue(
+                                                            attributes,
+                                                            AndroidManifest
+                                                                    .ATTRIBUTE_PROTECTION_LEVEL,
+                                                            true /* hasNamespace */),
+                                                    getAttributeValue(
+                                                            attributes,
+                                                            AndroidManifest
+                                                                    .ATTRIBUTE_PERMISSION_GROUP,
+                                                            true /* hasNamespace */)));
+                                }
                             }
                             break;
                         case LEVEL_INSIDE_APPLICATION:
                             if (AndroidManifest.NODE_ACTIVITY.equals(localName)
                                     || AndroidManifest.NODE_ACTIVITY_ALIAS.equals(localName)) {
-                                processActivityNode(attributes);
+                                processActivityNode(attributes, localName);
                                 mValidLevel++;
                             } else if (AndroidManifest.NODE_SERVICE.equals(localName)) {
                                 processNode(attributes, SdkConstants.CLASS_SERVICE, localName);
@@ -265,17 +300,45 @@ public class AndroidManifestParser {
 
                                     mManifestData.mLibraries.add(library);
                                 }
+                            } else if (AndroidManifest.NODE_METADATA.equals(localName)) {
+                                MetaData metaData = processMetaDataNode(attributes);
+                                if (metaData != null) {
+                                    mManifestData.mMetaData.add(metaData);
+                                }
                             }
                             break;
                         case LEVEL_INSIDE_APP_COMPONENT:
-                            // only process this level if we are in an activity
-                            if (mCurrentActivity != null &&
-                                    AndroidManifest.NODE_INTENT.equals(localName)) {
-                                mCurrentActivity.resetIntentFilter();
-                                mValidLevel++;
+                            // only process this level if we are in a named component
+                            if (AndroidManifest.NODE_INTENT.equals(localName)) {
+                                if (mCurrentActivity != null) {
+                                    mCurrentActivity.resetIntentFilter();
+                                }
+                                if (mCurrentComponent != null) {
+                                    mCurrentIntentFilter =
+                                            new ManifestData.IntentFilter.Builder(
+                                                    parseInt(
+                                                            getAttributeValue(
+                                                                    attributes,
+                                                                    AndroidManifest
+                                                                            .ATTRIBUTE_PRIORITY,
+                                                                    true /* hasNamespace */),
+                                                            0));
+                                }
+                                if (mCurrentActivity != null || mCurrentComponent != null) {
+                                    mValidLevel++;
+                                }
+                            } else if (mCurrentComponent != null
+                                    && AndroidManifest.NODE_METADATA.equals(localName)) {
+                                MetaData metaData = processMetaDataNode(attributes);
+                                if (metaData != null) {
+                                    mCurrentComponent.addMetaData(metaData);
+                                }
                             }
                             break;
                         case LEVEL_INSIDE_INTENT_FILTER:
+                            if (mCurrentIntentFilter != null) {
+                                processIntentFilterChild(attributes, localName);
+                            }
                             if (mCurrentActivity != null) {
                                 if (AndroidManifest.NODE_ACTION.equals(localName)) {
                                     // get the name attribute
@@ -332,8 +395,17 @@ public class AndroidManifestParser {
                     switch (mValidLevel) {
                         case LEVEL_INSIDE_APPLICATION:
                             mCurrentActivity = null;
+                            if (mCurrentComponent != null) {
+                                mManifestData.mComponents.add(mCurrentComponent.build());
+                                mCurrentComponent = null;
+                            }
                             break;
                         case LEVEL_INSIDE_APP_COMPONENT:
+                            // also reached at the end of a <meta-data>, which has no filter
+                            if (mCurrentIntentFilter != null) {
+                                mCurrentComponent.addIntentFilter(mCurrentIntentFilter.build());
+                                mCurrentIntentFilter = null;
+                            }
                             // if we found both a main action and a launcher category, this is our
                             // launcher activity!
                             if (mManifestData.mLauncherActivity == null &&
@@ -353,6 +425,15 @@ public class AndroidManifestParser {
             }
         }
 
+        @Override
+        public void endDocument() throws SAXException {
+            if (mManifestData != null) {
+                mManifestData.mComponents.trimToSize();
+                mManifestData.mUsesPermissions.trimToSize();
+            }
+            super.endDocument();
+        }
+
         /* (non-Javadoc)
          * @see org.xml.sax.helpers.DefaultHandler#error(org.xml.sax.SAXParseException)
          */
@@ -431,14 +512,22 @@ public class AndroidManifestParser {
                                 null,
                                 AndroidManifest.ATTRIBUTE_BACKUP_AGENT));
             }
+
+            mManifestData.mApplicationPermission =
+                    ManifestData.intern(
+                            getAttributeValue(
+                                    attributes,
+                                    AndroidManifest.ATTRIBUTE_PERMISSION,
+                                    true /* hasNamespace */));
         }
 
         /**
          * Processes the activity node.
          *
          * @param attributes the attributes for the activity node.
+         * @param localName the tag of the node, activity or activity-alias
          */
-        private void processActivityNode(Attributes attributes) {
+        private void processActivityNode(Attributes attributes, String localName) {
             // lets get the activity name, and add it to the list
             String activityName = getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_NAME,
                     true /* hasNamespace */);
@@ -452,6 +541,7 @@ public class AndroidManifestParser {
                         exportedStr.toLowerCase(Locale.US).equals("true"); //$NON-NLS-1$
                 mCurrentActivity = new Activity(activityName, exported);
                 mManifestData.mActivities.add(mCurrentActivity);
+                startComponent(attributes, localName, activityName);
 
                 if (mErrorHandler != null) {
                     mErrorHandler.checkClass(mLocator, activityName, SdkConstants.CLASS_ACTIVITY,
@@ -493,6 +583,7 @@ public class AndroidManifestParser {
                     true /* hasNamespace */);
             if (serviceName != null) {
                 serviceName = combinePackageAndClassName(mManifestData.mPackage, serviceName);
+                startComponent(attributes, localName, serviceName);
 
                 if (mErrorHandler != null) {
                     mErrorHandler.checkClass(mLocator, serviceName, superClassName,
@@ -516,6 +607,122 @@ public class AndroidManifestParser {
             }
         }
 
+        /**
+         * Starts the {@link Component} of an activity, alias, service, receiver or provider node.
+         * It is added to the manifest data when the node ends.
+         *
+         * @param attributes the attributes for the node.
+         * @param localName the tag of the node.
+         * @param className the fully qualified name of the component.
+         */
+        private void startComponent(Attributes attributes, String localName, String className) {
+            ComponentType type = ComponentType.fromTag(localName);
+            if (type == null) {
+                mCurrentComponent = null;
+                return;
+            }
+            String exported =
+                    getAttributeValue(
+                            attributes, AndroidManifest.ATTRIBUTE_EXPORTED, true /* hasNamespace */);
+            String enabled =
+                    getAttributeValue(
+                            attributes, AndroidManifest.ATTRIBUTE_ENABLED, true /* hasNamespace */);
+            String targetActivity =
+                    getAttributeValue(
+                            attributes,
+                            AndroidManifest.ATTRIBUTE_TARGET_ACTIVITY,
+                            true /* hasNamespace */);
+            mCurrentComponent =
+                    new Component.Builder(type, className)
+                            .setExported(
+                                    exported != null
+                                            ? exported.toLowerCase(Locale.US).equals("true")
+                                            : null)
+                            .setEnabled(
+                                    enabled == null
+                                            || !enabled.toLowerCase(Locale.US).equals("false"))
+                            .setPermissions(
+                                    getAttributeValue(
+                                            attributes,
+                                            AndroidManifest.ATTRIBUTE_PERMISSION,
+                                            true /* hasNamespace */),
+                                    getAttributeValue(
+                                            attributes,
+                                            AndroidManifest.ATTRIBUTE_READ_PERMISSION,
+                                            true /* hasNamespace */),
+                                    getAttributeValue(
+                                            attributes,
+                                            AndroidManifest.ATTRIBUTE_WRITE_PERMISSION,
+                                            true /* hasNamespace */))
+                            .setTargetActivity(
+                                    targetActivity != null
+                                            ? combinePackageAndClassName(
+                                                    mManifestData.mPackage, targetActivity)
+                                            : null)
+                            .setAuthorities(
+                                    getAttributeValue(
+                                            attributes,
+                                            AndroidManifest.ATTRIBUTE_AUTHORITIES,
+                                            true /* hasNamespace */));
+        }
+
+        /**
+         * Processes the action, category and data nodes of an intent filter.
+         *
+         * @param attributes the attributes for the node.
+         * @param localName the tag of the node.
+         */
+        private void processIntentFilterChild(Attributes attributes, String localName) {
+            if (AndroidManifest.NODE_ACTION.equals(localName)
+                    || AndroidManifest.NODE_CATEGORY.equals(localName)) {
+                String value =
+                        getAttributeValue(
+                                attributes, AndroidManifest.ATTRIBUTE_NAME, true /* hasNamespace */);
+                if (value == null) {
+                    return;
+                }
+                if (AndroidManifest.NODE_ACTION.equals(localName)) {
+                    mCurrentIntentFilter.addAction(value);
+                } else {
+                    mCurrentIntentFilter.addCategory(value);
+                }
+            } else if (AndroidManifest.NODE_DATA.equals(localName)) {
+                mCurrentIntentFilter.addData(
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_SCHEME, true),
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_HOST, true),
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_PORT, true),
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_PATH, true),
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_PATH_PREFIX, true),
+                        getAttributeValue(
+                                attributes, AndroidManifest.ATTRIBUTE_PATH_PATTERN, true),
+                        getAttributeValue(attributes, AndroidManifest.ATTRIBUTE_MIME_TYPE, true));
+            }
+        }
+
+        /**
+         * Processes a meta-data node.
+         *
+         * @param attributes the attributes for the meta-data node.
+         * @return the meta-data, or null if the node has no name.
+         */
+        @Nullable
+        private MetaData processMetaDataNode(Attributes attributes) {
+            String name =
+                    getAttributeValue(
+                            attributes, AndroidManifest.ATTRIBUTE_NAME, true /* hasNamespace */);
+            if (name == null) {
+                return null;
+            }
+            return new MetaData(
+                    name,
+                    getAttributeValue(
+                            attributes, AndroidManifest.ATTRIBUTE_VALUE, true /* hasNamespace */),
+                    getAttributeValue(
+                            attributes,
+                            AndroidManifest.ATTRIBUTE_RESOURCE,
+                            true /* hasNamespace */));
+        }
+
         /**
          * Processes the instrumentation node.
          * @param attributes the attributes for the instrumentation node.
@@ -642,6 +849,23 @@ public class AndroidManifestParser {
             return null;
         }
 
+        /**
+         * Parses an integer attribute value.
+         *
+         * @param value the value of the attribute, possibly null.
+         * @param defaultValue the value returned when the attribute is missing or malformed.
+         */
+        private static int parseInt(@Nullable String value, int defaultValue) {
+            if (value != null) {
+                try {
+                    return Integer.decode(value);
+                } catch (NumberFormatException e) {
+                    // ignore
+                }
+            }
+            return defaultValue;
+        }
+
         /**
          * Combines a java package, with a class value from the manifest to make a fully qualified
          * class name
@@ -686,6 +910,15 @@ public class AndroidManifestParser {
         configureSaxFactory(sParserFactory, true, false);
     }
 
+    /**
+     * The parser of each thread, kept between documents: creating a parser, and configuring it off
+     * Dalvik, costs more than parsing a typical manifest. A parser is only put back once it
+     * finished its document, so one that failed is dropped.
+     */
+    private static final ThreadLocal<SAXParser> sThreadParser = new ThreadLocal<>();
+
+    /** Handlers of an idle parser, so that it does not keep the last document's data alive */
+    private static final DefaultHandler sNoHandler = new DefaultHandler();
 
     /**
      * Parses the Android Manifest from an {@link InputStream}, and returns a {@link ManifestData}
@@ -697,13 +930,27 @@ public class AndroidManifestParser {
     public static ManifestData parse(InputStream manifestFileStream)
             throws ParserConfigurationException, SAXException, IOException {
         if (manifestFileStream != null) {
-            SAXParser parser = createSaxParser(sParserFactory);
+            SAXParser parser = sThreadParser.get();
+            if (parser == null) {
+                parser = createSaxParser(sParserFactory);
+            } else {
+                // taken, in case a handler parses another document on this thread
+                sThreadParser.remove();
+            }
 
             ManifestData data = new ManifestData();
 
             ManifestHandler manifestHandler = new ManifestHandler(data, null);
             parser.parse(new InputSource(manifestFileStream), manifestHandler);
 
+            // SAXParser.reset() would also revert the features set by createSaxParser
+            XMLReader reader = parser.getXMLReader();
+            reader.setContentHandler(sNoHandler);
+            reader.setErrorHandler(sNoHandler);
+            reader.setEntityResolver(sNoHandler);
+            reader.setDTDHandler(sNoHandler);
+            sThreadParser.set(parser);
+
             return data;
         }
 
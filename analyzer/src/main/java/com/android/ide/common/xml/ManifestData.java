@@ -21,7 +21,11 @@ import com.android.annotations.Nullable;
 import com.android.resources.Keyboard;
 import com.android.resources.Navigation;
 import com.android.resources.TouchScreen;
+import com.android.utils.StringTable;
+import com.android.xml.AndroidManifest;
+import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -74,6 +78,17 @@ public final class ManifestData {
     /** List of all feature in use declared by the manifest */
     final ArrayList<UsesFeature> mFeatures = new ArrayList<UsesFeature>();
 
+    /** List of all activities, aliases, services, receivers and providers */
+    final ArrayList<Component> mComponents = new ArrayList<Component>();
+    /** List of all permissions requested by the manifest */
+    final ArrayList<String> mUsesPermissions = new ArrayList<String>();
+    /** List of all permissions defined by the manifest */
+    final ArrayList<Permission> mPermissions = new ArrayList<Permission>();
+    /** List of the meta-data of the application */
+    final ArrayList<MetaData> mMetaData = new ArrayList<MetaData>();
+    /** Permission of the application, the default of its components. */
+    String mApplicationPermission;
+
     SupportsScreens mSupportsScreensFromManifest;
     SupportsScreens mSupportsScreensValues;
     UsesConfiguration mUsesConfiguration;
@@ -186,6 +201,458 @@ public final class ManifestData {
         }
     }
 
+    /** The kinds of application components, by manifest element */
+    public enum ComponentType {
+        ACTIVITY(AndroidManifest.NODE_ACTIVITY),
+        ACTIVITY_ALIAS(AndroidManifest.NODE_ACTIVITY_ALIAS),
+        SERVICE(AndroidManifest.NODE_SERVICE),
+        RECEIVER(AndroidManifest.NODE_RECEIVER),
+        PROVIDER(AndroidManifest.NODE_PROVIDER);
+
+        @NonNull private final String tag;
+
+        ComponentType(@NonNull String tag) {
+            this.tag = tag;
+        }
+
+        /** Returns the name of the manifest element declaring this kind of component */
+        @NonNull
+        public String getTag() {
+            return tag;
+        }
+
+        @Nullable
+        public static ComponentType fromTag(@NonNull String tag) {
+            for (ComponentType type : values()) {
+                if (type.tag.equals(tag)) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * An activity, activity alias, service, receiver or provider, with its intent filters,
+     * permissions and meta-data. Immutable.
+     */
+    public static final class Component {
+        /** The first API level where providers are not exported by default */
+        private static final int PROVIDER_NOT_EXPORTED_SDK = 17;
+
+        @NonNull private final ComponentType type;
+        @NonNull private final String name;
+        @Nullable private final Boolean exported;
+        private final boolean enabled;
+        @Nullable private final String permission;
+        @Nullable private final String readPermission;
+        @Nullable private final String writePermission;
+        @Nullable private final String targetActivity;
+        @NonNull private final ImmutableList<String> authorities;
+        @NonNull private final ImmutableList<IntentFilter> intentFilters;
+        @NonNull private final ImmutableList<MetaData> metaData;
+
+        private Component(@NonNull Builder builder) {
+            type = builder.type;
+            name = builder.name;
+            exported = builder.exported;
+            enabled = builder.enabled;
+            permission = builder.permission;
+            readPermission = builder.readPermission;
+            writePermission = builder.writePermission;
+            targetActivity = builder.targetActivity;
+            authorities = builder.authorities;
+            intentFilters = ImmutableList.copyOf(builder.intentFilters);
+            metaData = ImmutableList.copyOf(builder.metaData);
+        }
+
+        @NonNull
+        public ComponentType getType() {
+            return type;
+        }
+
+        /** Returns the fully qualified class name */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the value of {@code android:exported}, or null if it is not set */
+        @Nullable
+        public Boolean getExported() {
+            return exported;
+        }
+
+        /**
+         * Returns whether other apps can start, bind to or query this component, given the
+         * {@code targetSdkVersion} of its app: {@code android:exported} if set, otherwise whether
+         * it has an intent filter, or for providers, whether the app targets an API level below
+         * 17. Apps targeting API level 31 and above must set {@code android:exported} on any
+         * component with an intent filter.
+         */
+        public boolean isExported(int targetSdkVersion) {
+            return isExported(type, exported, !intentFilters.isEmpty(), targetSdkVersion);
+        }
+
+        /**
+         * Returns whether a component of {@code type} is exported, by the rule of {@link
+         * #isExported(int)}.
+         *
+         * @param exported the value of {@code android:exported}, or null if it is not set
+         * @param hasIntentFilter whether the component declares an intent filter
+         * @param targetSdkVersion the {@code targetSdkVersion} of the app
+         */
+        public static boolean isExported(
+                @NonNull ComponentType type,
+                @Nullable Boolean exported,
+                boolean hasIntentFilter,
+                int targetSdkVersion) {
+            if (exported != null) {
+                return exported;
+            }
+            if (type == ComponentType.PROVIDER) {
+                return targetSdkVersion < PROVIDER_NOT_EXPORTED_SDK;
+            }
+            return hasIntentFilter;
+        }
+
+        /** Returns the value of {@code android:enabled}, true by default */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /** Returns the permission callers need, or null if none is set on the component */
+        @Nullable
+        public String getPermission() {
+            return permission;
+        }
+
+        /** Returns the permission needed to query a provider, or null if not set */
+        @Nullable
+        public String getReadPermission() {
+            return readPermission;
+        }
+
+        /** Returns the permission needed to modify the data of a provider, or null if not set */
+        @Nullable
+        public String getWritePermission() {
+            return writePermission;
+        }
+
+        /** Returns the fully qualified name of the activity an alias stands for */
+        @Nullable
+        public String getTargetActivity() {
+            return targetActivity;
+        }
+
+        /**
+         * Returns the permission callers need to start, bind to or query a component of {@code
+         * type}, after the defaults: for providers, the read permission or else the permission,
+         * with no application default; for activity aliases, their own permission or else the
+         * resolved permission of the target activity; for the others, their own permission or
+         * else the application permission.
+         *
+         * @param permission the {@code android:permission} of the component
+         * @param readPermission the {@code android:readPermission} of a provider
+         * @param targetActivityPermission for aliases, the resolved permission of the target
+         * @param applicationPermission the {@code android:permission} of the application
+         */
+        @Nullable
+        public static String resolvePermission(
+                @NonNull ComponentType type,
+                @Nullable String permission,
+                @Nullable String readPermission,
+                @Nullable String targetActivityPermission,
+                @Nullable String applicationPermission) {
+            switch (type) {
+                case PROVIDER:
+                    return readPermission != null ? readPermission : permission;
+                case ACTIVITY_ALIAS:
+                    return permission != null ? permission : targetActivityPermission;
+                default:
+                    return permission != null ? permission : applicationPermission;
+            }
+        }
+
+        /** Returns the authorities of a provider */
+        @NonNull
+        public List<String> getAuthorities() {
+            return authorities;
+        }
+
+        @NonNull
+        public List<IntentFilter> getIntentFilters() {
+            return intentFilters;
+        }
+
+        @NonNull
+        public List<MetaData> getMetaData() {
+            return metaData;
+        }
+
+        @Override
+        public String toString() {
+            return type.getTag() + ' ' + name;
+        }
+
+        static final class Builder {
+            @NonNull private final ComponentType type;
+            @NonNull private final String name;
+            @Nullable private Boolean exported;
+            private boolean enabled = true;
+            @Nullable private String permission;
+            @Nullable private String readPermission;
+            @Nullable private String writePermission;
+            @Nullable private String targetActivity;
+            @NonNull private ImmutableList<String> authorities = ImmutableList.of();
+            private final List<IntentFilter> intentFilters = new ArrayList<>(1);
+            private final List<MetaData> metaData = new ArrayList<>(0);
+
+            Builder(@NonNull ComponentType type, @NonNull String name) {
+                this.type = type;
+                this.name = name;
+            }
+
+            Builder setExported(@Nullable Boolean exported) {
+                this.exported = exported;
+                return this;
+            }
+
+            Builder setEnabled(boolean enabled) {
+                this.enabled = enabled;
+                return this;
+            }
+
+            Builder setPermissions(
+                    @Nullable String permission,
+                    @Nullable String readPermission,
+                    @Nullable String writePermission) {
+                this.permission = intern(permission);
+                this.readPermission = intern(readPermission);
+                this.writePermission = intern(writePermission);
+                return this;
+            }
+
+            Builder setTargetActivity(@Nullable String targetActivity) {
+                this.targetActivity = targetActivity;
+                return this;
+            }
+
+            Builder setAuthorities(@Nullable String authorities) {
+                if (authorities != null) {
+                    ImmutableList.Builder<String> list = ImmutableList.builder();
+                    for (String authority : authorities.split(";")) {
+                        if (!authority.trim().isEmpty()) {
+                            list.add(intern(authority.trim()));
+                        }
+                    }
+                    this.authorities = list.build();
+                }
+                return this;
+            }
+
+            void addIntentFilter(@NonNull IntentFilter filter) {
+                intentFilters.add(filter);
+            }
+
+            void addMetaData(@NonNull MetaData data) {
+                metaData.add(data);
+            }
+
+            @NonNull
+            Component build() {
+                return new Component(this);
+            }
+        }
+    }
+
+    /**
+     * An {@code <intent-filter>} of a component. Attributes of its {@code <data>} elements are
+     * merged as the platform does: a filter matches any of its schemes with any of its
+     * authorities. Immutable.
+     */
+    public static final class IntentFilter {
+        private final int priority;
+        @NonNull private final ImmutableList<String> actions;
+        @NonNull private final ImmutableList<String> categories;
+        @NonNull private final ImmutableList<String> schemes;
+        @NonNull private final ImmutableList<String> authorities;
+        @NonNull private final ImmutableList<String> paths;
+        @NonNull private final ImmutableList<String> pathPrefixes;
+        @NonNull private final ImmutableList<String> pathPatterns;
+        @NonNull private final ImmutableList<String> mimeTypes;
+
+        private IntentFilter(@NonNull Builder builder) {
+            priority = builder.priority;
+            actions = builder.actions.build();
+            categories = builder.categories.build();
+            schemes = builder.schemes.build();
+            authorities = builder.authorities.build();
+            paths = builder.paths.build();
+            pathPrefixes = builder.pathPrefixes.build();
+            pathPatterns = builder.pathPatterns.build();
+            mimeTypes = builder.mimeTypes.build();
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        @NonNull
+        public List<String> getActions() {
+            return actions;
+        }
+
+        @NonNull
+        public List<String> getCategories() {
+            return categories;
+        }
+
+        @NonNull
+        public List<String> getSchemes() {
+            return schemes;
+        }
+
+        /** Returns the {@code host} or {@code host:port} of each {@code <data>} naming a host */
+        @NonNull
+        public List<String> getAuthorities() {
+            return authorities;
+        }
+
+        @NonNull
+        public List<String> getPaths() {
+            return paths;
+        }
+
+        @NonNull
+        public List<String> getPathPrefixes() {
+            return pathPrefixes;
+        }
+
+        @NonNull
+        public List<String> getPathPatterns() {
+            return pathPatterns;
+        }
+
+        @NonNull
+        public List<String> getMimeTypes() {
+            return mimeTypes;
+        }
+
+        static final class Builder {
+            private final int priority;
+            private final ImmutableList.Builder<String> actions = ImmutableList.builder();
+            private final ImmutableList.Builder<String> categories = ImmutableList.builder();
+            private final ImmutableList.Builder<String> schemes = ImmutableList.builder();
+            private final ImmutableList.Builder<String> authorities = ImmutableList.builder();
+            private final ImmutableList.Builder<String> paths = ImmutableList.builder();
+            private final ImmutableList.Builder<String> pathPrefixes = ImmutableList.builder();
+            private final ImmutableList.Builder<String> pathPatterns = ImmutableList.builder();
+            private final ImmutableList.Builder<String> mimeTypes = ImmutableList.builder();
+
+            Builder(int priority) {
+                this.priority = priority;
+            }
+
+            void addAction(@NonNull String action) {
+                actions.add(intern(action));
+            }
+
+            void addCategory(@NonNull String category) {
+                categories.add(intern(category));
+            }
+
+            void addData(
+                    @Nullable String scheme,
+                    @Nullable String host,
+                    @Nullable String port,
+                    @Nullable String path,
+                    @Nullable String pathPrefix,
+                    @Nullable String pathPattern,
+                    @Nullable String mimeType) {
+                if (scheme != null) {
+                    schemes.add(intern(scheme));
+                }
+                if (host != null) {
+                    authorities.add(intern(port != null ? host + ':' + port : host));
+                }
+                if (path != null) {
+                    paths.add(path);
+                }
+                if (pathPrefix != null) {
+                    pathPrefixes.add(pathPrefix);
+                }
+                if (pathPattern != null) {
+                    pathPatterns.add(pathPattern);
+                }
+                if (mimeType != null) {
+                    mimeTypes.add(intern(mimeType));
+                }
+            }
+
+            @NonNull
+            IntentFilter build() {
+                return new IntentFilter(this);
+            }
+        }
+    }
+
+    /** A {@code <meta-data>} element: its name and its value or resource reference. */
+    public static final class MetaData {
+        @NonNull private final String name;
+        @Nullable private final String value;
+        @Nullable private final String resource;
+
+        MetaData(@NonNull String name, @Nullable String value, @Nullable String resource) {
+            this.name = intern(name);
+            this.value = value;
+            this.resource = resource;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @Nullable
+        public String getValue() {
+            return value;
+        }
+
+        @Nullable
+        public String getResource() {
+            return resource;
+        }
+    }
+
+    /** A permission defined by the manifest, with its {@code protectionLevel} as decoded. */
+    public static final class Permission {
+        @NonNull private final String name;
+        @Nullable private final String protectionLevel;
+        @Nullable private final String group;
+
+        Permission(@NonNull String name, @Nullable String protectionLevel, @Nullable String group) {
+            this.name = intern(name);
+            this.protectionLevel = intern(protectionLevel);
+            this.group = intern(group);
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @Nullable
+        public String getProtectionLevel() {
+            return protectionLevel;
+        }
+
+        @Nullable
+        public String getGroup() {
+            return group;
+        }
+    }
+
     /**
      * Class representing the <code>supports-screens</code> node in the manifest.
      * By default, all the getters will return null if there was no value defined in the manifest.
@@ -625,6 +1092,41 @@ public final class ManifestData {
         return mKeepClasses.toArray(new KeepClass[0]);
     }
 
+    /**
+     * Returns the activities, activity aliases, services, receivers and providers found in the
+     * manifest, in declaration order.
+     */
+    public Component[] getComponents() {
+        return mComponents.toArray(new Component[0]);
+    }
+
+    /**
+     * Returns the names of the permissions requested with {@code <uses-permission>} or {@code
+     * <uses-permission-sdk-23>}.
+     */
+    public String[] getUsesPermissions() {
+        return mUsesPermissions.toArray(new String[0]);
+    }
+
+    /** Returns the permissions defined with {@code <permission>}. */
+    public Permission[] getPermissions() {
+        return mPermissions.toArray(new Permission[0]);
+    }
+
+    /** Returns the meta-data of the application. */
+    public MetaData[] getMetaData() {
+        return mMetaData.toArray(new MetaData[0]);
+    }
+
+    /**
+     * Returns the <code>permission</code> attribute of the application, which applies to the
+     * components that do not set their own, or null if it is not set.
+     */
+    @Nullable
+    public String getApplicationPermission() {
+        return mApplicationPermission;
+    }
+
     /**
      * Returns the name of one activity found in the manifest, that is configured to show up in the
      * HOME screen.
@@ -791,6 +1293,16 @@ public final class ManifestData {
         return mUsesConfiguration;
     }
 
+    /**
+     * Returns the shared instance of {@code value}, or null if {@code value} is null. Permission,
+     * action, category and other names shared by many apps are stored once, so that the manifests
+     * of thousands of apps can be held at once.
+     */
+    @Nullable
+    static String intern(@Nullable String value) {
+        return StringTable.getShared().intern(value);
+    }
+
     void addProcessName(String processName) {
         if (mProcesses == null) {
             mProcesses = new TreeSet<String>();
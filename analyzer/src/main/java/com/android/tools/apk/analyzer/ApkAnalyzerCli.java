@@ -16,33 +16,88 @@
 
 package com.android.tools.apk.analyzer;
 
-import android.content.pm.IPackageManager;
-import android.os.IBinder;
 import android.os.Process;
-import android.os.RemoteException;
-import android.os.ServiceManager;
 
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.internal.ChannelOutputStream;
+import com.android.tools.apk.analyzer.internal.DirectoryPackageResolver;
+import com.android.tools.apk.analyzer.internal.PackageManagerResolver;
+import com.android.tools.apk.analyzer.internal.SharedArchiveManager;
+import com.android.utils.NullLogger;
 import joptsimple.*;
 import joptsimple.internal.Rows;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ApkAnalyzerCli {
     private static final String FLAG_FILE_PATH = "file";
+    private static final String FLAG_SNAPSHOT = "snapshot";
+    private static final String FLAG_OUT = "out";
+    private static final String FLAG_TIMINGS = "timings";
+    private static final String FLAG_USER = "user";
+    private static final String FLAG_INSTALLED = "installed";
+    private static final String FLAG_BATCH = "batch";
+    private static final String FLAG_JOBS = "jobs";
+    private static final String FLAG_SAFE = "safe";
+    private static final String FLAG_LIMITS = "limits";
+    private static final String FLAG_GUARDED = "guarded";
+    private static final String FLAG_INDEX = "index";
+    private static final String FLAG_ACTION = "action";
+    private static final String FLAG_CATEGORY = "category";
+    private static final String FLAG_DATA = "data";
+    private static final String FLAG_TYPE = "type";
+    private static final String FLAG_COMPONENT = "component";
+    private static final String FLAG_QUERIES = "queries";
+    private static final String FLAG_QUIET = "quiet";
+    private static final String FLAG_BREAKDOWN = "breakdown";
+    private static final String FLAG_SIZES = "sizes";
+    private static final String FLAG_FIRST = "first";
     private static final String APKANALYZER = "apkanalyzer";
     private static final String SUBJECT_APK = "apk";
     private static final String SUBJECT_MANIFEST = "manifest";
     private static final String SUBJECT_RESOURCES = "resources";
+    private static final String SUBJECT_DEX = "dex";
+    private static final String SUBJECT_FILES = "files";
+    private static final String SUBJECT_FLEET = "fleet";
+    private static final String SUBJECT_INDEX = "index";
     private static final String ACTION_SUMMARY = "summary";
+    private static final String ACTION_SPLITS = "splits";
+    private static final String ACTION_FILE_SIZE = "file-size";
+    private static final String ACTION_DOWNLOAD_SIZE = "download-size";
+    private static final String ACTION_LIST = "list";
+    private static final String ACTION_VERIFY = "verify";
     private static final String ACTION_PRINT = "print";
     private static final String ACTION_APPLICATION_ID = "application-id";
     private static final String ACTION_VERSION_NAME = "version-name";
@@ -51,140 +106,424 @@ public class ApkAnalyzerCli {
     private static final String ACTION_TARGET_SDK = "target-sdk";
     private static final String ACTION_DEBUGGABLE = "debuggable";
     private static final String ACTION_XML = "xml";
+    private static final String ACTION_DIFF = "diff";
+    private static final String ACTION_REFERENCES = "references";
+    private static final String ACTION_PACKAGES = "packages";
+    private static final String ACTION_RESCAN = "rescan";
+    private static final String ACTION_EXPORTED = "exported";
+    private static final String ACTION_FACTS = "facts";
+    private static final String ACTION_RESOLVE = "resolve";
+    private static final String ACTION_WATCH = "watch";
+    private static final String ACTION_BUILD = "build";
+    private static final String ACTION_QUERY = "query";
+    private static final String QUERY_PERMISSION = "permission";
 
-    private static final int DEFAULT_USER_ID = 0;
+    /** Resolves package names against {@code <dir>/<userId>/<package>/} instead of the device */
+    private static final String PACKAGES_DIR_PROPERTY = "apkanalyzer.packages.dir";
 
+    /**
+     * Size of the standard output buffer, which is flushed once per command or batch record
+     * rather than once per line
+     */
+    private static final int OUTPUT_BUFFER_SIZE = ChannelOutputStream.DEFAULT_BUFFER_SIZE;
+
+    /** Number of archives a batch keeps open after the commands using them are done */
+    private static final int BATCH_IDLE_ARCHIVES = 16;
+
+    private final InputStream in;
     private final PrintStream out;
     private final PrintStream err;
     private final ApkAnalyzerImpl impl;
 
-    private static IPackageManager iPackageManager;
-
-    private static final class HelpFormatter extends BuiltinHelpFormatter {
-        public HelpFormatter() {
-            super(120, 2);
-        }
+    private static PackageResolver packageResolver;
+    private static int userId = PackageResolver.DEFAULT_USER_ID;
+    /** Number of targets fleet scans read in parallel, and of threads {@code apk verify} uses */
+    private static int fleetJobs = Runtime.getRuntime().availableProcessors();
 
-        @Override
-        protected boolean shouldShowNonOptionArgumentDisplay(OptionDescriptor nonOptionDescriptor) {
-            return false;
-        }
+    public ApkAnalyzerCli(
+            @NonNull PrintStream out, @NonNull PrintStream err, ApkAnalyzerImpl impl) {
+        this(System.in, out, err, impl);
     }
 
     public ApkAnalyzerCli(
-            @NonNull PrintStream out, @NonNull PrintStream err, ApkAnalyzerImpl impl) {
+            @NonNull InputStream in,
+            @NonNull PrintStream out,
+            @NonNull PrintStream err,
+            ApkAnalyzerImpl impl) {
+        this.in = in;
         this.out = out;
         this.err = err;
         this.impl = impl;
     }
 
     public static void main(String[] args) {
-        ApkAnalyzerCli instance =
-                new ApkAnalyzerCli(
-                        System.out,
-                        System.err,
-                        new ApkAnalyzerImpl(System.out));
+        PrintStream out = ChannelOutputStream.openStandardOutput(OUTPUT_BUFFER_SIZE);
+        ApkAnalyzerCli instance = new ApkAnalyzerCli(out, System.err, new ApkAnalyzerImpl(out));
         instance.run(args);
+        out.flush();
     }
 
     public void run(String... args) {
-        OptionParser verbParser = new OptionParser();
-        verbParser.posixlyCorrect(true);
-        verbParser.allowsUnrecognizedOptions();
-        NonOptionArgumentSpec<String> verbSpec = verbParser.nonOptions().ofType(String.class);
-        verbParser.formatHelpWith(new HelpFormatter());
-
-        OptionSet parsed = verbParser.parse(args);
-        List<String> list = parsed.valuesOf(verbSpec);
-
-        if (list.isEmpty()) {
-            printArgsList(null);
-        } else if (list.size() == 1) {
-            printArgsList(list.get(0));
-        } else {
-            List<Action> actions = Action.findActions(list.get(0), list.get(1));
-            if (actions.isEmpty()) {
-                actions = Action.findActions(list.get(0), null);
-                if (actions.isEmpty()) {
-                    printArgsList(null);
+        // global options
+        int first = 0;
+        boolean timings = false;
+        boolean batch = false;
+        int jobs = 0;
+        int user = PackageResolver.DEFAULT_USER_ID;
+        boolean safe = false;
+        String limits = null;
+        try {
+            while (first < args.length && args[first].startsWith("--")) {
+                if (args[first].equals("--" + FLAG_TIMINGS)) {
+                    timings = true;
+                } else if (args[first].equals("--" + FLAG_BATCH)) {
+                    batch = true;
+                } else if (args[first].equals("--" + FLAG_USER) && first + 1 < args.length) {
+                    user = Integer.parseInt(args[++first]);
+                } else if (args[first].equals("--" + FLAG_JOBS) && first + 1 < args.length) {
+                    jobs = Math.max(1, Integer.parseInt(args[++first]));
+                } else if (args[first].equals("--" + FLAG_SAFE)) {
+                    safe = true;
+                } else if (args[first].equals("--" + FLAG_LIMITS) && first + 1 < args.length) {
+                    limits = args[++first];
                 } else {
-                    printArgsList(list.get(0));
+                    break;
                 }
+                first++;
+            }
+            DecodeLimits base = safe ? DecodeLimits.SAFE : DecodeLimits.DEFAULT;
+            DecodeLimits.set(limits != null ? base.with(limits) : base);
+        } catch (IllegalArgumentException e) {
+            Help.printUsage(err);
+            return;
+        }
+        userId = user;
+        fleetJobs = jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors();
+        args = Arrays.copyOfRange(args, first, args.length);
+
+        // The common "<subject> <verb> ..." form is dispatched through a static lookup table;
+        // option parsers and help formatting are only loaded when actually needed
+        Action action = args.length >= 2 ? Action.find(args[0], args[1]) : null;
+        if (action == null && !(batch && args.length == 0)) {
+            Help.printUsage(err, args);
+            return;
+        }
+
+        Timings.setEnabled(timings);
+        boolean failed = false;
+        try {
+            if (batch) {
+                failed = runBatch(args, Math.max(1, jobs));
             } else {
-                try {
-                    actions.get(0)
-                            .execute(out, err, impl, Arrays.copyOfRange(args, 2, args.length));
+                try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+                    action.execute(out, err, impl, Arrays.copyOfRange(args, 2, args.length));
+                }
+            }
+        } catch (RuntimeException e) {
+            failed = true;
+            out.flush();
+            err.println();
+            err.println("ERROR: " + getErrorMessage(e));
+        } finally {
+            out.flush();
+            if (timings) {
+                err.println();
+                Timings.print(err);
+                Timings.setEnabled(false);
+                Timings.reset();
+            }
+        }
+
+        if (failed) {
+            int _uid = Process.myUid();
+            if (_uid == Process.ROOT_UID || _uid == Process.SHELL_UID) {
+                // exit when running with root or shell
+                exit(1);
+            } else {
+                // don't exit when running with app
+            }
+        }
+    }
+
+    @Nullable
+    private static String getErrorMessage(@NonNull RuntimeException e) {
+        return e.getCause() instanceof OptionException ? e.getCause().getMessage() : e.getMessage();
+    }
+
+    /** The output of one command of a batch */
+    private static final class BatchResult {
+        final int index;
+        @NonNull final String command;
+        @NonNull final byte[] output;
+        @Nullable final ItemFailure failure;
+
+        BatchResult(
+                int index,
+                @NonNull String command,
+                @NonNull byte[] output,
+                @Nullable ItemFailure failure) {
+            this.index = index;
+            this.command = command;
+            this.output = output;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Runs one command per line of standard input, or, when {@code prefix} holds a {@code
+     * <subject> <verb> [options]}, that command on each target read from standard input. All the
+     * commands share the package resolver and a {@link SharedArchiveManager}, so archives named by
+     * several commands are opened once.
+     *
+     * <p>The output of each command is preceded by a {@code ##<TAB>index<TAB>OK|ERROR<TAB>line}
+     * header. With {@code jobs > 1} the commands run in parallel, and their output is still
+     * written in input order. A failed command does not stop the batch: its output ends with an
+     * {@code ERROR<TAB>}{@link ItemFailure} record. Commands failing with an I/O error, as when
+     * an APK is replaced while being read, are run once more first.
+     *
+     * @return whether any command failed
+     */
+    private boolean runBatch(@NonNull String[] prefix, int jobs) {
+        ExecutorService executor = jobs > 1 ? Executors.newFixedThreadPool(jobs) : null;
+        // bounds the memory held by the output of commands finished ahead of their turn
+        int window = jobs * 4;
+        Deque<Future<BatchResult>> pending = new ArrayDeque<>();
+        boolean failed = false;
+        try (SharedArchiveManager archives =
+                        new SharedArchiveManager(NullLogger.getLogger(), BATCH_IDLE_ARCHIVES);
+                BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            int index = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int itemIndex = index++;
+                String command = line;
+                if (executor == null) {
+                    failed |= printBatchResult(runBatchCommand(itemIndex, command, prefix, archives));
+                    continue;
+                }
+                pending.add(
+                        executor.submit(
+                                () -> runBatchCommand(itemIndex, command, prefix, archives)));
+                if (pending.size() >= window) {
+                    failed |= printBatchResult(pending.remove().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                failed |= printBatchResult(pending.remove().get());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+        return failed;
+    }
+
+    @NonNull
+    private static BatchResult runBatchCommand(
+            int index,
+            @NonNull String command,
+            @NonNull String[] prefix,
+            @NonNull SharedArchiveManager archives) {
+        String[] tokens = command.split("\\s+");
+        String[] args = Arrays.copyOf(prefix, prefix.length + tokens.length);
+        System.arraycopy(tokens, 0, args, prefix.length, tokens.length);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(buffer, false);
+        ItemFailure failure = null;
+        long start = System.nanoTime();
+        Timings.clearLastPhase();
+        Action action = args.length >= 2 ? Action.find(args[0], args[1]) : null;
+        if (action == null) {
+            failure =
+                    ItemFailure.of(
+                            new IllegalArgumentException("Unknown command: " + command), start, 1);
+        } else {
+            for (int attempt = 1; ; attempt++) {
+                ItemFailure.FileStamp stamp = stampFiles(tokens);
+                try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+                    action.execute(
+                            output,
+                            output,
+                            new ApkAnalyzerImpl(output, archives),
+                            Arrays.copyOfRange(args, 2, args.length));
+                    break;
                 } catch (RuntimeException e) {
-                    if (e.getCause() instanceof OptionException) {
-                        err.println();
-                        err.println("ERROR: " + e.getCause().getMessage());
-                    } else {
-                        err.println();
-                        err.println("ERROR: " + e.getMessage());
-                    }
-                    int _uid = Process.myUid();
-                    if (_uid == Process.ROOT_UID || _uid == Process.SHELL_UID) {
-                        // exit when running with root or shell
-                        exit(1);
-                    } else {
-                        // don't exit when running with app
+                    if (attempt == 1 && ItemFailure.shouldRetry(e, stamp)) {
+                        // the APK may have been replaced: run again, resolving it anew
+                        output.flush();
+                        buffer.reset();
+                        continue;
                     }
+                    failure = ItemFailure.of(e, start, attempt);
+                    break;
                 }
-                return;
             }
         }
+        output.flush();
+        return new BatchResult(index, command, buffer.toByteArray(), failure);
+    }
 
-        try {
-            err.println(
-                    "Usage:"
-                            + System.lineSeparator()
-                            + APKANALYZER
-                            + " [global options] <subject> <verb> [options] <apk_or_pkg> [<apk_or_pkg2>]"
-                            + System.lineSeparator());
-            verbParser.printHelpOn(err);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Returns the stamp of the arguments of a command that are files, or {@code null} if it names
+     * none, such as a command on a package name.
+     */
+    @Nullable
+    private static ItemFailure.FileStamp stampFiles(@NonNull String[] tokens) {
+        List<Path> files = new ArrayList<>();
+        for (String token : tokens) {
+            Path path = new File(token).toPath();
+            if (!token.startsWith("-") && Files.isRegularFile(path)) {
+                files.add(path);
+            }
         }
+        return files.isEmpty() ? null : ItemFailure.FileStamp.of(files.toArray(new Path[0]));
+    }
+
+    /** Prints {@code result} and returns whether its command failed */
+    private boolean printBatchResult(@NonNull BatchResult result) {
+        out.printf(
+                        "##\t%d\t%s\t%s",
+                        result.index,
+                        result.failure == null ? "OK" : "ERROR",
+                        result.command)
+                .println();
+        out.write(result.output, 0, result.output.length);
+        if (result.output.length > 0 && result.output[result.output.length - 1] != '\n') {
+            out.println();
+        }
+        if (result.failure != null) {
+            out.println("ERROR\t" + result.failure);
+        }
+        out.flush();
+        return result.failure != null;
     }
 
     protected void exit(int code) {
         System.exit(code);
     }
 
-    private void printArgsList(@Nullable String subject) {
-        if (subject == null) {
-            String subjects =
-                    Arrays.stream(Action.values())
-                            .map(action -> action.getSubject())
-                            .distinct()
-                            .collect(Collectors.joining(", "));
-            err.println("Subject must be one of: " + subjects);
-            err.println();
-            Rows rows = new Rows(120, 2);
-            for (Action action : Action.values()) {
-                rows.add(action.getSubject() + " " + action.getVerb(), action.getDescription());
+    /** Usage and help output, in its own class so that it is only loaded on error paths. */
+    private static final class Help {
+        private static final class HelpFormatter extends BuiltinHelpFormatter {
+            public HelpFormatter() {
+                super(120, 2);
             }
-            rows.fitToWidth();
-            err.println(rows.render());
-        } else {
-            List<Action> actions = Action.findActions(subject, null);
-            String verbs =
-                    actions.stream()
-                            .map(action -> action.getVerb())
-                            .collect(Collectors.joining(", "));
-            err.println("Verb must be one of: " + verbs);
-            err.println();
-            for (Action action : actions) {
-                err.println("==============================");
-                err.println(action.getSubject() + " " + action.getVerb() + ":");
-                err.println(action.getDescription());
-                err.println();
+
+            @Override
+            protected boolean shouldShowNonOptionArgumentDisplay(
+                    OptionDescriptor nonOptionDescriptor) {
+                return false;
+            }
+        }
+
+        static void printUsage(@NonNull PrintStream err, @NonNull String... args) {
+            if (args.length == 0 || Action.findActions(args[0], null).isEmpty()) {
+                printArgsList(err, null);
+            } else {
+                printArgsList(err, args[0]);
+            }
+
+            OptionParser verbParser = new OptionParser();
+            verbParser.posixlyCorrect(true);
+            verbParser.allowsUnrecognizedOptions();
+            verbParser.nonOptions().ofType(String.class);
+            verbParser.accepts(FLAG_TIMINGS, "Prints the time spent in each phase to stderr.");
+            verbParser.accepts(
+                    FLAG_BATCH,
+                    "Runs one command, or the given command on one target, per line of standard "
+                            + "input.");
+            verbParser
+                    .accepts(
+                            FLAG_JOBS,
+                            "Number of batch commands to run in parallel, 1 by default, or of "
+                                    + "targets fleet exported reads in parallel and of threads "
+                                    + "apk verify uses, one per processor by default.")
+                    .withRequiredArg()
+                    .ofType(Integer.class);
+            verbParser
+                    .accepts(FLAG_USER, "User to resolve package names for.")
+                    .withRequiredArg()
+                    .ofType(Integer.class)
+                    .defaultsTo(PackageResolver.DEFAULT_USER_ID);
+            verbParser.accepts(
+                    FLAG_SAFE,
+                    "Decodes with tight limits on entry sizes, memory and time, for untrusted "
+                            + "APKs.");
+            verbParser
+                    .accepts(
+                            FLAG_LIMITS,
+                            "Overrides decode limits, e.g. entry=16m,ratio=100,chunks=262144,"
+                                    + "depth=256,memory=256m,time=30s; 0 disables a limit.")
+                    .withRequiredArg()
+                    .ofType(String.class);
+            err.println(
+                    "Usage:"
+                            + System.lineSeparator()
+                            + APKANALYZER
+                            + " [global options] <subject> <verb> [options] <apk_or_pkg> [<apk_or_pkg2>]"
+                            + System.lineSeparator()
+                            + APKANALYZER
+                            + " [global options] --batch [<subject> <verb> [options]] < commands"
+                            + System.lineSeparator());
+            printHelpOn(verbParser, err);
+        }
+
+        static void printHelpOn(@NonNull OptionParser parser, @NonNull PrintStream err) {
+            synchronized (parser) {
+                parser.formatHelpWith(new HelpFormatter());
                 try {
-                    action.getParser().printHelpOn(err);
+                    parser.printHelpOn(err);
                 } catch (IOException e) {
                     throw new UncheckedIOException(e);
                 }
+            }
+        }
+
+        private static void printArgsList(@NonNull PrintStream err, @Nullable String subject) {
+            if (subject == null) {
+                String subjects =
+                        Arrays.stream(Action.values())
+                                .map(action -> action.getSubject())
+                                .distinct()
+                                .collect(Collectors.joining(", "));
+                err.println("Subject must be one of: " + subjects);
                 err.println();
+                Rows rows = new Rows(120, 2);
+                for (Action action : Action.values()) {
+                    rows.add(action.getSubject() + " " + action.getVerb(), action.getDescription());
+                }
+                rows.fitToWidth();
+                err.println(rows.render());
+            } else {
+                List<Action> actions = Action.findActions(subject, null);
+                String verbs =
+                        actions.stream()
+                                .map(action -> action.getVerb())
+                                .collect(Collectors.joining(", "));
+                err.println("Verb must be one of: " + verbs);
+                err.println();
+                for (Action action : actions) {
+                    err.println("==============================");
+                    err.println(action.getSubject() + " " + action.getVerb() + ":");
+                    err.println(action.getDescription());
+                    err.println();
+                    printHelpOn(action.getParser(), err);
+                    err.println();
+                }
             }
         }
     }
@@ -193,7 +532,39 @@ public class ApkAnalyzerCli {
         APK_SUMMARY(
                 SUBJECT_APK,
                 ACTION_SUMMARY,
-                "Prints the application Id, version code and version name.") {
+                "Prints the application Id, version code and version name.",
+                (impl, apk) -> impl.apkSummary(realFile(apk).toPath())),
+        APK_SPLITS(
+                SUBJECT_APK,
+                ACTION_SPLITS,
+                "Prints the split name and path of the base and of each split APK.",
+                (impl, apk) -> {
+                    List<Path> files = realFiles(apk);
+                    impl.apkSplits(files.get(0), files.subList(1, files.size()));
+                }),
+
+        APK_FILE_SIZE(
+                SUBJECT_APK,
+                ACTION_FILE_SIZE,
+                "Prints the file size of the APK.") {
+            @Nullable public OptionParser parser;
+            @Nullable private OptionSpec<Void> breakdownSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    breakdownSpec =
+                            parser.accepts(
+                                    FLAG_BREAKDOWN,
+                                    "Also prints the number of files, uncompressed and compressed "
+                                            + "size of each type of entry: dex, res, lib/<abi>, "
+                                            + "assets, META-INF and other.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
 
             @Override
             public void execute(
@@ -203,11 +574,40 @@ public class ApkAnalyzerCli {
                     @NonNull String... args) {
                 OptionParser parser = getParser();
                 OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.apkSummary(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert breakdownSpec != null;
+                impl.apkFileSize(
+                        realFile(opts.valueOf(getFileSpec())).toPath(), opts.has(breakdownSpec));
             }
         },
+        APK_DOWNLOAD_SIZE(
+                SUBJECT_APK,
+                ACTION_DOWNLOAD_SIZE,
+                "Prints an estimate of the download size of the APK: the compressed size of its "
+                        + "entries, stored entries counting in full.",
+                (impl, apk) -> impl.apkDownloadSize(realFile(apk).toPath())),
+
+        APK_VERIFY(
+                SUBJECT_APK,
+                ACTION_VERIFY,
+                "Checks every entry against the central directory: local header, sizes and "
+                        + "CRC-32. Prints one FAIL line per corrupt entry as soon as it is found, "
+                        + "or OK, the number of entries and of bytes checked.") {
+            @Nullable public OptionParser parser;
+            @Nullable private OptionSpec<Void> firstSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    firstSpec =
+                            parser.accepts(
+                                    FLAG_FIRST, "Stops checking at the first corrupt entry.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
 
-        MANIFEST_PRINT(SUBJECT_MANIFEST, ACTION_PRINT, "Prints the manifest in XML format") {
             @Override
             public void execute(
                     PrintStream out,
@@ -216,12 +616,57 @@ public class ApkAnalyzerCli {
                     @NonNull String... args) {
                 OptionParser parser = getParser();
                 OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestPrint(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert firstSpec != null;
+                impl.apkVerify(
+                        realFile(opts.valueOf(getFileSpec())).toPath(),
+                        fleetJobs,
+                        opts.has(firstSpec));
             }
         },
-        MANIFEST_APPLICATION_ID(
-                SUBJECT_MANIFEST, ACTION_APPLICATION_ID, "Prints the application id.") {
 
+        MANIFEST_PRINT(
+                SUBJECT_MANIFEST,
+                ACTION_PRINT,
+                "Prints the manifest in XML format, followed by the manifests of the splits",
+                (impl, apk) -> {
+                    List<Path> files = realFiles(apk);
+                    impl.manifestPrint(files.get(0), files.subList(1, files.size()));
+                }),
+        MANIFEST_APPLICATION_ID(
+                SUBJECT_MANIFEST,
+                ACTION_APPLICATION_ID,
+                "Prints the application id.",
+                (impl, apk) -> impl.manifestAppId(realFile(apk).toPath())),
+        MANIFEST_VERSION_NAME(
+                SUBJECT_MANIFEST,
+                ACTION_VERSION_NAME,
+                "Prints the version name.",
+                (impl, apk) -> impl.manifestVersionName(realFile(apk).toPath())),
+        MANIFEST_VERSION_CODE(
+                SUBJECT_MANIFEST,
+                ACTION_VERSION_CODE,
+                "Prints the version code.",
+                (impl, apk) -> impl.manifestVersionCode(realFile(apk).toPath())),
+        MANIFEST_MIN_SDK(
+                SUBJECT_MANIFEST,
+                ACTION_MIN_SDK,
+                "Prints the minimum sdk.",
+                (impl, apk) -> impl.manifestMinSdk(realFile(apk).toPath())),
+        MANIFEST_TARGET_SDK(
+                SUBJECT_MANIFEST,
+                ACTION_TARGET_SDK,
+                "Prints the target sdk",
+                (impl, apk) -> impl.manifestTargetSdk(realFile(apk).toPath())),
+        MANIFEST_DEBUGGABLE(
+                SUBJECT_MANIFEST,
+                ACTION_DEBUGGABLE,
+                "Prints if the app is debuggable",
+                (impl, apk) -> impl.manifestDebuggable(realFile(apk).toPath())),
+        MANIFEST_DIFF(
+                SUBJECT_MANIFEST,
+                ACTION_DIFF,
+                "Prints the added, removed and changed elements and attributes between two "
+                        + "manifests") {
             @Override
             public void execute(
                     PrintStream out,
@@ -230,10 +675,69 @@ public class ApkAnalyzerCli {
                     @NonNull String... args) {
                 OptionParser parser = getParser();
                 OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestAppId(realFile(opts.valueOf(getFileSpec())).toPath());
+                List<String> files = opts.valuesOf(getFileSpec());
+                if (files.size() != 2) {
+                    throw new RuntimeException("You must specify 2 apk files.");
+                }
+                impl.manifestDiff(
+                        realFile(files.get(0)).toPath(), realFile(files.get(1)).toPath());
             }
         },
-        MANIFEST_VERSION_NAME(SUBJECT_MANIFEST, ACTION_VERSION_NAME, "Prints the version name.") {
+        RESOURCES_XML(
+                SUBJECT_RESOURCES, ACTION_XML, "Prints the human readable form of a binary XML") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<String> filePathSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    filePathSpec = parser
+                            .accepts(FLAG_FILE_PATH, "File path within the APK.")
+                            .withRequiredArg()
+                            .ofType(String.class);
+                    this.parser = parser;
+                }
+                return parser;
+
+            }
+
+            @Override
+            public void execute(PrintStream out, PrintStream err,
+                    @NonNull ApkAnalyzerImpl impl,
+                    @NonNull String... args) {
+                OptionParser parser = getParser();
+                OptionSet opts = parseOrPrintHelp(parser, err, args);
+                assert filePathSpec != null;
+                List<Path> files = realFiles(opts.valueOf(getFileSpec()));
+                impl.resXml(
+                        files.get(0), files.subList(1, files.size()), opts.valueOf(filePathSpec));
+            }
+        },
+        FILES_LIST(
+                SUBJECT_FILES,
+                ACTION_LIST,
+                "Lists all files and directories in the APK, read from the central directory "
+                        + "only.") {
+            @Nullable public OptionParser parser;
+            @Nullable private OptionSpec<Void> sizesSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    sizesSpec =
+                            parser.accepts(
+                                    FLAG_SIZES,
+                                    "Also prints the uncompressed and compressed size of each "
+                                            + "file, and of all the files in each directory.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
             @Override
             public void execute(
                     PrintStream out,
@@ -242,10 +746,116 @@ public class ApkAnalyzerCli {
                     @NonNull String... args) {
                 OptionParser parser = getParser();
                 OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestVersionName(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert sizesSpec != null;
+                impl.filesList(
+                        realFile(opts.valueOf(getFileSpec())).toPath(), opts.has(sizesSpec));
+            }
+        },
+        DEX_REFERENCES(
+                SUBJECT_DEX,
+                ACTION_REFERENCES,
+                "Prints the number of method, field and type references and of classes in each "
+                        + "dex file, and their use of the 64K reference limit.",
+                (impl, apk) -> impl.dexReferences(realFile(apk).toPath())),
+        DEX_PACKAGES(
+                SUBJECT_DEX,
+                ACTION_PACKAGES,
+                "Prints the number of classes, defined and referenced methods, and defined and "
+                        + "referenced fields of each package.",
+                (impl, apk) -> impl.dexPackages(realFile(apk).toPath())),
+        FLEET_RESCAN(
+                SUBJECT_FLEET,
+                ACTION_RESCAN,
+                "Prints added, updated and removed manifests since the last rescan. Only "
+                        + "manifests whose CRC changed are decoded.") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<File> snapshotSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<File> outSpec;
+            @Nullable private OptionSpec<Void> installedSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    snapshotSpec =
+                            parser.accepts(FLAG_SNAPSHOT, "Snapshot file, updated in place.")
+                                    .withRequiredArg()
+                                    .ofType(File.class)
+                                    .required();
+                    outSpec =
+                            parser.accepts(
+                                            FLAG_OUT,
+                                            "Directory to write changed manifests to, "
+                                                    + "instead of printing them.")
+                                    .withRequiredArg()
+                                    .ofType(File.class);
+                    installedSpec =
+                            parser.accepts(
+                                    FLAG_INSTALLED,
+                                    "Rescans every package installed for the user, in addition "
+                                            + "to the given targets.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
+            @Override
+            public void execute(
+                    PrintStream out,
+                    PrintStream err,
+                    @NonNull ApkAnalyzerImpl impl,
+                    @NonNull String... args) {
+                OptionParser parser = getParser();
+                assert snapshotSpec != null && outSpec != null && installedSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                Map<String, Path> targets =
+                        fleetTargets(
+                                parser, err, opts.has(installedSpec), opts.valuesOf(getFileSpec()));
+                File outDir = opts.valueOf(outSpec);
+                impl.fleetRescan(
+                        opts.valueOf(snapshotSpec).toPath(),
+                        outDir != null ? outDir.toPath() : null,
+                        targets,
+                        target -> realFile(target).toPath());
             }
         },
-        MANIFEST_VERSION_CODE(SUBJECT_MANIFEST, ACTION_VERSION_CODE, "Prints the version code.") {
+        FLEET_EXPORTED(
+                SUBJECT_FLEET,
+                ACTION_EXPORTED,
+                "Prints the exported components not guarded by a permission, one per line: "
+                        + "target, tag, class, reason and permission. Manifests are read in "
+                        + "parallel without being decoded to text.") {
+            @Nullable public OptionParser parser;
+            @Nullable private OptionSpec<Void> installedSpec;
+            @Nullable private OptionSpec<Void> guardedSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    installedSpec =
+                            parser.accepts(
+                                    FLAG_INSTALLED,
+                                    "Scans every package installed for the user, in addition to "
+                                            + "the given targets.");
+                    guardedSpec =
+                            parser.accepts(
+                                    FLAG_GUARDED,
+                                    "Also prints the exported components guarded by a "
+                                            + "permission.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
             @Override
             public void execute(
                     PrintStream out,
@@ -253,11 +863,52 @@ public class ApkAnalyzerCli {
                     @NonNull ApkAnalyzerImpl impl,
                     @NonNull String... args) {
                 OptionParser parser = getParser();
-                OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestVersionCode(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert installedSpec != null && guardedSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                impl.fleetExported(
+                        fleetTargets(
+                                parser, err, opts.has(installedSpec), opts.valuesOf(getFileSpec())),
+                        target -> realFile(target).toPath(),
+                        fleetJobs,
+                        opts.has(guardedSpec));
             }
         },
-        MANIFEST_MIN_SDK(SUBJECT_MANIFEST, ACTION_MIN_SDK, "Prints the minimum sdk.") {
+        FLEET_FACTS(
+                SUBJECT_FLEET,
+                ACTION_FACTS,
+                "Writes the manifest facts of the given targets (package, versions, SDK levels, "
+                        + "debuggable, components and permissions) to a columnar file that is "
+                        + "queried memory mapped.") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<File> outSpec;
+            @Nullable private OptionSpec<Void> installedSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    outSpec =
+                            parser.accepts(FLAG_OUT, "Columns file to write.")
+                                    .withRequiredArg()
+                                    .ofType(File.class)
+                                    .required();
+                    installedSpec =
+                            parser.accepts(
+                                    FLAG_INSTALLED,
+                                    "Includes every package installed for the user, in addition "
+                                            + "to the given targets.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
             @Override
             public void execute(
                     PrintStream out,
@@ -265,11 +916,83 @@ public class ApkAnalyzerCli {
                     @NonNull ApkAnalyzerImpl impl,
                     @NonNull String... args) {
                 OptionParser parser = getParser();
-                OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestMinSdk(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert outSpec != null && installedSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                impl.fleetFacts(
+                        opts.valueOf(outSpec).toPath(),
+                        fleetTargets(
+                                parser, err, opts.has(installedSpec), opts.valuesOf(getFileSpec())),
+                        target -> realFile(target).toPath());
             }
         },
-        MANIFEST_TARGET_SDK(SUBJECT_MANIFEST, ACTION_TARGET_SDK, "Prints the target sdk") {
+        FLEET_RESOLVE(
+                SUBJECT_FLEET,
+                ACTION_RESOLVE,
+                "Prints the components of the given targets an intent resolves to, one per "
+                        + "line: target, package, tag, class, exported, priority and permission. "
+                        + "Activities only match filters with the DEFAULT category.") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<String> actionSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<String> categorySpec;
+            @Nullable private ArgumentAcceptingOptionSpec<String> dataSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<String> typeSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<String> componentSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<File> queriesSpec;
+            @Nullable private OptionSpec<Void> installedSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    actionSpec =
+                            parser.accepts(FLAG_ACTION, "Intent action.")
+                                    .withRequiredArg()
+                                    .ofType(String.class);
+                    categorySpec =
+                            parser.accepts(FLAG_CATEGORY, "Intent category, may be repeated.")
+                                    .withRequiredArg()
+                                    .ofType(String.class);
+                    dataSpec =
+                            parser.accepts(FLAG_DATA, "Intent data URI.")
+                                    .withRequiredArg()
+                                    .ofType(String.class);
+                    typeSpec =
+                            parser.accepts(FLAG_TYPE, "Intent MIME type.")
+                                    .withRequiredArg()
+                                    .ofType(String.class);
+                    componentSpec =
+                            parser.accepts(
+                                            FLAG_COMPONENT,
+                                            "Component tag to match, may be repeated. Defaults "
+                                                    + "to all of them.")
+                                    .withRequiredArg()
+                                    .ofType(String.class);
+                    queriesSpec =
+                            parser.accepts(
+                                            FLAG_QUERIES,
+                                            "File of intents to resolve against the same "
+                                                    + "targets, one per line, as space separated "
+                                                    + "action=, category=, data= and type= "
+                                                    + "fields.")
+                                    .withRequiredArg()
+                                    .ofType(File.class);
+                    installedSpec =
+                            parser.accepts(
+                                    FLAG_INSTALLED,
+                                    "Includes every package installed for the user, in addition "
+                                            + "to the given targets.");
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
             @Override
             public void execute(
                     PrintStream out,
@@ -277,12 +1000,103 @@ public class ApkAnalyzerCli {
                     @NonNull ApkAnalyzerImpl impl,
                     @NonNull String... args) {
                 OptionParser parser = getParser();
-                OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestTargetSdk(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert actionSpec != null
+                        && categorySpec != null
+                        && dataSpec != null
+                        && typeSpec != null
+                        && componentSpec != null
+                        && queriesSpec != null
+                        && installedSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+
+                List<IntentResolver.Intent> intents = new ArrayList<>();
+                if (opts.has(queriesSpec)) {
+                    try {
+                        for (String line :
+                                Files.readAllLines(
+                                        opts.valueOf(queriesSpec).toPath(),
+                                        StandardCharsets.UTF_8)) {
+                            if (!line.trim().isEmpty()) {
+                                intents.add(parseIntent(line));
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                } else if (opts.has(actionSpec) || opts.has(dataSpec) || opts.has(typeSpec)) {
+                    intents.add(
+                            new IntentResolver.Intent(
+                                    opts.valueOf(actionSpec),
+                                    new LinkedHashSet<>(opts.valuesOf(categorySpec)),
+                                    opts.valueOf(dataSpec),
+                                    opts.valueOf(typeSpec)));
+                } else {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(
+                            "You must specify an intent action, data or type, or a queries file.");
+                }
+
+                Set<ManifestData.ComponentType> types;
+                if (opts.has(componentSpec)) {
+                    types = EnumSet.noneOf(ManifestData.ComponentType.class);
+                    for (String tag : opts.valuesOf(componentSpec)) {
+                        ManifestData.ComponentType type = ManifestData.ComponentType.fromTag(tag);
+                        if (type == null) {
+                            throw new RuntimeException("Unknown component: " + tag);
+                        }
+                        types.add(type);
+                    }
+                } else {
+                    types = EnumSet.allOf(ManifestData.ComponentType.class);
+                }
+
+                impl.fleetResolve(
+                        fleetTargets(
+                                parser, err, opts.has(installedSpec), opts.valuesOf(getFileSpec())),
+                        target -> realFile(target).toPath(),
+                        intents,
+                        types);
             }
         },
-        MANIFEST_DEBUGGABLE(
-                SUBJECT_MANIFEST, ACTION_DEBUGGABLE, "Prints if the app is debuggable") {
+        FLEET_WATCH(
+                SUBJECT_FLEET,
+                ACTION_WATCH,
+                "Keeps the permission index current with the APK files below the given "
+                        + "directories until interrupted, printing a line per change. Only the "
+                        + "APKs that change are read, in parallel.") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<File> indexSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<Long> quietSpec;
+
+            @NonNull
+            @Override
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    indexSpec =
+                            parser.accepts(FLAG_INDEX, "Index file, updated in place.")
+                                    .withRequiredArg()
+                                    .ofType(File.class)
+                                    .required();
+                    quietSpec =
+                            parser.accepts(
+                                            FLAG_QUIET,
+                                            "Milliseconds without changes before the changed "
+                                                    + "APKs are read.")
+                                    .withRequiredArg()
+                                    .ofType(Long.class)
+                                    .defaultsTo(500L);
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
             @Override
             public void execute(
                     PrintStream out,
@@ -290,63 +1104,188 @@ public class ApkAnalyzerCli {
                     @NonNull ApkAnalyzerImpl impl,
                     @NonNull String... args) {
                 OptionParser parser = getParser();
-                OptionSet opts = parseOrPrintHelp(parser, err, args);
-                impl.manifestDebuggable(realFile(opts.valueOf(getFileSpec())).toPath());
+                assert indexSpec != null && quietSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                List<Path> directories = new ArrayList<>();
+                for (String directory : opts.valuesOf(getFileSpec())) {
+                    Path path = Paths.get(directory);
+                    if (!Files.isDirectory(path)) {
+                        throw new RuntimeException("Not a directory: " + directory);
+                    }
+                    directories.add(path);
+                }
+                if (directories.isEmpty()) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException("You must specify a directory.");
+                }
+                impl.fleetWatch(
+                        opts.valueOf(indexSpec).toPath(),
+                        directories,
+                        fleetJobs,
+                        opts.valueOf(quietSpec),
+                        null);
             }
         },
-        RESOURCES_XML(
-                SUBJECT_RESOURCES, ACTION_XML, "Prints the human readable form of a binary XML") {
+        INDEX_BUILD(
+                SUBJECT_INDEX,
+                ACTION_BUILD,
+                "Updates the permission index with the given targets. Only manifests whose "
+                        + "CRC changed are decoded, and packages no longer given are removed.") {
             @Nullable public OptionParser parser;
-            @Nullable private ArgumentAcceptingOptionSpec<String> filePathSpec;
+            @Nullable private ArgumentAcceptingOptionSpec<File> indexSpec;
+            @Nullable private OptionSpec<Void> installedSpec;
 
             @NonNull
             @Override
-            public OptionParser getParser() {
+            public synchronized OptionParser getParser() {
                 if (parser == null) {
-                    parser = super.getParser();
-                    filePathSpec = parser
-                            .accepts(FLAG_FILE_PATH, "File path within the APK.")
-                            .withRequiredArg()
-                            .ofType(String.class);
+                    OptionParser parser = super.getParser();
+                    indexSpec =
+                            parser.accepts(FLAG_INDEX, "Index file, updated in place.")
+                                    .withRequiredArg()
+                                    .ofType(File.class)
+                                    .required();
+                    installedSpec =
+                            parser.accepts(
+                                    FLAG_INSTALLED,
+                                    "Indexes every package installed for the user, in addition "
+                                            + "to the given targets.");
+                    this.parser = parser;
                 }
                 return parser;
+            }
 
+            @Override
+            public void execute(
+                    PrintStream out,
+                    PrintStream err,
+                    @NonNull ApkAnalyzerImpl impl,
+                    @NonNull String... args) {
+                OptionParser parser = getParser();
+                assert indexSpec != null && installedSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                impl.indexBuild(
+                        opts.valueOf(indexSpec).toPath(),
+                        fleetTargets(
+                                parser, err, opts.has(installedSpec), opts.valuesOf(getFileSpec())),
+                        target -> realFile(target).toPath());
             }
+        },
+        INDEX_QUERY(
+                SUBJECT_INDEX,
+                ACTION_QUERY,
+                "Prints the packages using, defining or enforcing a permission, as recorded "
+                        + "in the permission index: index query permission <name>.") {
+            @Nullable public OptionParser parser;
+            @Nullable private ArgumentAcceptingOptionSpec<File> indexSpec;
 
+            @NonNull
             @Override
-            public void execute(PrintStream out, PrintStream err,
+            public synchronized OptionParser getParser() {
+                if (parser == null) {
+                    OptionParser parser = super.getParser();
+                    indexSpec =
+                            parser.accepts(FLAG_INDEX, "Index file.")
+                                    .withRequiredArg()
+                                    .ofType(File.class)
+                                    .required();
+                    this.parser = parser;
+                }
+                return parser;
+            }
+
+            @Override
+            public void execute(
+                    PrintStream out,
+                    PrintStream err,
                     @NonNull ApkAnalyzerImpl impl,
                     @NonNull String... args) {
                 OptionParser parser = getParser();
-                OptionSet opts = parseOrPrintHelp(parser, err, args);
-                assert filePathSpec != null;
-                impl.resXml(
-                        realFile(opts.valueOf(getFileSpec())).toPath(), opts.valueOf(filePathSpec));
+                assert indexSpec != null;
+                OptionSet opts;
+                try {
+                    opts = parse(parser, args);
+                } catch (OptionException e) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException(e);
+                }
+                List<String> query = opts.valuesOf(getFileSpec());
+                if (query.size() != 2 || !QUERY_PERMISSION.equals(query.get(0))) {
+                    Help.printHelpOn(parser, err);
+                    throw new RuntimeException("You must specify: permission <name>");
+                }
+                impl.indexQueryPermission(opts.valueOf(indexSpec).toPath(), query.get(1));
             }
         },
         ;
 
+        /** Actions keyed by {@code "<subject> <verb>"} */
+        private static final Map<String, Action> ACTIONS = new HashMap<>();
+
+        static {
+            for (Action action : values()) {
+                ACTIONS.put(action.subject + ' ' + action.verb, action);
+            }
+        }
+
         private final String description;
         private final String verb;
         private final String subject;
+        /** Handles the single APK of an action without options, {@code null} for the others */
+        @Nullable private final BiConsumer<ApkAnalyzerImpl, String> handler;
         private OptionParser parser;
         private NonOptionArgumentSpec<String> fileSpec;
 
+        /** An action taking options, which overrides {@link #execute(PrintStream, PrintStream,
+         * ApkAnalyzerImpl, String...)} */
         Action(String subject, String verb, String description) {
+            this(subject, verb, description, null);
+        }
+
+        /**
+         * An action taking a single APK, package name or install directory, and no option, which
+         * {@code handler} executes.
+         */
+        Action(
+                String subject,
+                String verb,
+                String description,
+                @Nullable BiConsumer<ApkAnalyzerImpl, String> handler) {
+            if (handler == null && getClass() == Action.class) {
+                throw new IllegalStateException(name() + " has neither a handler nor options");
+            }
             this.subject = subject;
             this.verb = verb;
             this.description = description;
+            this.handler = handler;
         }
 
         private void initParser(){
-            parser = new OptionParser();
-            parser.formatHelpWith(new HelpFormatter());
+            OptionParser parser = new OptionParser();
             fileSpec =
                     parser.nonOptions("apk").describedAs("APK file path").ofType(String.class);
+            this.parser = parser;
         }
 
+        /**
+         * Returns the option parser of this action, built on first use. Batch commands run
+         * concurrently, so building it is synchronized, and parsing goes through {@link
+         * #parse(OptionParser, String...)}.
+         */
         @NonNull
-        public OptionParser getParser(){
+        public synchronized OptionParser getParser(){
             if (parser == null){
                 initParser();
             }
@@ -354,16 +1293,39 @@ public class ApkAnalyzerCli {
         }
 
         @NonNull
-        public NonOptionArgumentSpec<String> getFileSpec(){
+        public synchronized NonOptionArgumentSpec<String> getFileSpec(){
             if (parser == null){
                 initParser();
             }
             return fileSpec;
         }
 
-        public abstract void execute(
+        /** Parses {@code args}; parsers keep state while parsing, so one parse runs at a time. */
+        @NonNull
+        static OptionSet parse(@NonNull OptionParser parser, @NonNull String... args) {
+            synchronized (parser) {
+                return parser.parse(args);
+            }
+        }
+
+        /**
+         * Parses {@code args} and executes the action. The default implementation runs the
+         * handler of actions taking a single APK and no options, and does not build an option
+         * parser for the common case of a lone {@code <apk_or_pkg>} argument.
+         */
+        public void execute(
                 PrintStream out, PrintStream err, @NonNull ApkAnalyzerImpl impl,
-                @NonNull String... args);
+                @NonNull String... args) {
+            assert handler != null : name();
+            String apk;
+            if (args.length == 1 && !args[0].startsWith("-")) {
+                apk = args[0];
+            } else {
+                OptionSet opts = parseOrPrintHelp(getParser(), err, args);
+                apk = opts.valueOf(getFileSpec());
+            }
+            handler.accept(impl, apk);
+        }
 
         @NonNull
         public String getVerb() {
@@ -375,6 +1337,11 @@ public class ApkAnalyzerCli {
             return subject;
         }
 
+        @Nullable
+        public static Action find(@NonNull String subject, @NonNull String verb) {
+            return ACTIONS.get(subject + ' ' + verb);
+        }
+
         @NonNull
         public static List<Action> findActions(@NonNull String subject, @Nullable String verb) {
             ArrayList<Action> actions = new ArrayList<>();
@@ -392,23 +1359,15 @@ public class ApkAnalyzerCli {
 
         private static OptionSet parseOrPrintHelp(@NonNull OptionParser parser, @NonNull PrintStream err, String... args) {
             try {
-                OptionSet opts = parser.parse(args);
+                OptionSet opts = parse(parser, args);
                 List<?> files = opts.nonOptionArguments();
                 if (files.isEmpty()) {
-                    try {
-                        parser.printHelpOn(err);
-                    } catch (IOException e) {
-                        throw new UncheckedIOException(e);
-                    }
+                    Help.printHelpOn(parser, err);
                     throw new RuntimeException("You must specify an apk file.");
                 }
                 return opts;
             } catch (OptionException e) {
-                try {
-                    parser.printHelpOn(err);
-                } catch (IOException e1) {
-                    throw new UncheckedIOException(e1);
-                }
+                Help.printHelpOn(parser, err);
                 throw new RuntimeException(e);
             }
         }
@@ -418,18 +1377,127 @@ public class ApkAnalyzerCli {
         File file = new File(pkgOrPath);
         if (file.exists())
             return file;
-        try {
-            return queryPackagemanager(pkgOrPath);
-        } catch (RemoteException e) {
-            throw new RuntimeException(e);
+        return resolvePackage(pkgOrPath).get(0).toFile();
+    }
+
+    /**
+     * Resolves a package name, an APK path or an install directory to the base APK followed by
+     * its split APKs, if any.
+     */
+    @NonNull
+    private static List<Path> realFiles(String pkgOrPath) {
+        File file = new File(pkgOrPath);
+        if (file.isDirectory())
+            return DirectoryPackageResolver.listApks(file.toPath());
+        if (file.exists())
+            return Collections.singletonList(file.toPath());
+        return resolvePackage(pkgOrPath);
+    }
+
+    /**
+     * Resolves each of {@code targets} to APK files, keyed by the target name. Directories are
+     * expanded to all the APK files below them, keyed by their path. Package names are left
+     * unresolved, with a {@code null} path, for the scan to resolve and report on one by one.
+     */
+    @NonNull
+    private static Map<String, Path> resolveTargets(@NonNull List<String> targets) {
+        Map<String, Path> resolved = new LinkedHashMap<>();
+        for (String target : targets) {
+            Path path = new File(target).toPath();
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> files = Files.walk(path)) {
+                    files.filter(p -> p.getFileName().toString().endsWith(".apk"))
+                            .filter(Files::isRegularFile)
+                            .sorted()
+                            .forEach(p -> resolved.put(p.toString(), p));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                resolved.put(target, Files.exists(path) ? path : null);
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * Returns the targets of a fleet scan: every installed package when {@code installed} is set,
+     * followed by {@code targets} as resolved by {@link #resolveTargets}.
+     */
+    @NonNull
+    private static Map<String, Path> fleetTargets(
+            @NonNull OptionParser parser,
+            @NonNull PrintStream err,
+            boolean installed,
+            @NonNull List<String> targets) {
+        Map<String, Path> resolved = new LinkedHashMap<>();
+        if (installed) {
+            try (Timings.Span ignored = Timings.start(Timings.Phase.RESOLVE)) {
+                for (Map.Entry<String, List<Path>> entry :
+                        getPackageResolver().getPackages(userId).entrySet()) {
+                    resolved.put(entry.getKey(), entry.getValue().get(0));
+                }
+            }
+        } else if (targets.isEmpty()) {
+            Help.printHelpOn(parser, err);
+            throw new RuntimeException("You must specify an apk file.");
+        }
+        resolved.putAll(resolveTargets(targets));
+        return resolved;
+    }
+
+    /** Parses a line of {@code action=}, {@code category=}, {@code data=} and {@code type=} */
+    @NonNull
+    private static IntentResolver.Intent parseIntent(@NonNull String line) {
+        String action = null;
+        Set<String> categories = new LinkedHashSet<>();
+        String data = null;
+        String type = null;
+        for (String field : line.trim().split("\\s+")) {
+            int equals = field.indexOf('=');
+            String name = equals >= 0 ? field.substring(0, equals) : field;
+            String value = field.substring(equals + 1);
+            switch (name) {
+                case FLAG_ACTION:
+                    action = value;
+                    break;
+                case FLAG_CATEGORY:
+                    categories.add(value);
+                    break;
+                case FLAG_DATA:
+                    data = value;
+                    break;
+                case FLAG_TYPE:
+                    type = value;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Invalid intent field: " + field);
+            }
+        }
+        return new IntentResolver.Intent(action, categories, data, type);
+    }
+
+    @NonNull
+    private static List<Path> resolvePackage(@NonNull String pkg) {
+        List<Path> files;
+        try (Timings.Span ignored = Timings.start(Timings.Phase.RESOLVE)) {
+            files = getPackageResolver().resolve(pkg, userId);
+        }
+        if (files == null) {
+            throw new RuntimeException("No such file or package: " + pkg);
         }
+        return files;
     }
 
-    private static File queryPackagemanager(String pkg) throws RemoteException {
-        if (iPackageManager == null) {
-            IBinder binder = ServiceManager.getService("package");
-            iPackageManager = IPackageManager.Stub.asInterface(binder);
+    @NonNull
+    private static synchronized PackageResolver getPackageResolver() {
+        if (packageResolver == null) {
+            String dir = System.getProperty(PACKAGES_DIR_PROPERTY);
+            packageResolver =
+                    dir != null
+                            ? new DirectoryPackageResolver(Paths.get(dir))
+                            : PackageManagerResolver.create();
         }
-        return new File(iPackageManager.getApplicationInfo(pkg, 0, DEFAULT_USER_ID).publicSourceDir);
+        return packageResolver;
     }
 }
@@ -17,34 +17,96 @@ package com.android.tools.apk.analyzer;
 
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
 import com.android.ide.common.xml.AndroidManifestParser;
 import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.internal.ApkDirectoryWatcher;
+import com.android.tools.apk.analyzer.internal.MapUtils;
+import com.android.tools.apk.analyzer.internal.SharedArchiveManager;
+import com.android.xml.AndroidManifest;
+import com.android.tools.apk.analyzer.internal.ZipCentralDirectory;
+import com.android.tools.apk.analyzer.internal.ZipVerifier;
 import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.zip.ZipException;
 
 /**
  * Tool for getting all kinds of information about an APK, including: - basic package info, sizes
  * and files list - dex code - resources
  */
 public class ApkAnalyzerImpl {
+    /** Largest array the VM can allocate */
+    private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+    /** Initial capacity when the inflated size of an entry is not trusted */
+    private static final int READ_BUFFER_SIZE = 8192;
+
     @NonNull private final PrintStream out;
+    @Nullable private final SharedArchiveManager archiveManager;
 
     /** Constructs a new command-line processor. */
     public ApkAnalyzerImpl(@NonNull PrintStream out) {
+        this(out, null);
+    }
+
+    /**
+     * Constructs a command-line processor opening archives through {@code archiveManager}, which
+     * keeps them open across actions, instead of opening and closing them for each action.
+     */
+    public ApkAnalyzerImpl(@NonNull PrintStream out, @Nullable SharedArchiveManager archiveManager) {
         this.out = out;
+        this.archiveManager = archiveManager;
+    }
+
+    @NonNull
+    private ArchiveContext openArchive(@NonNull Path apk) throws IOException {
+        return archiveManager != null ? archiveManager.openArchive(apk) : Archives.open(apk);
+    }
+
+    @NonNull
+    private SplitApkContext openSplitApk(@NonNull Path base, @NonNull List<Path> splits)
+            throws IOException {
+        return archiveManager != null
+                ? archiveManager.openSplitApk(base, splits)
+                : Archives.openSplitApk(base, splits);
     }
 
     public void resXml(@NonNull Path apk, @NonNull String filePath) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
+        try (ArchiveContext archiveContext = openArchive(apk)) {
             Path path = archiveContext.getArchive().getContentRoot().resolve(filePath);
-            byte[] bytes = Files.readAllBytes(path);
+            byte[] bytes = readEntry(path);
             if (!archiveContext.getArchive().isBinaryXml(path, bytes)) {
                 throw new IOException("The supplied file is not a binary XML resource.");
             }
@@ -53,21 +115,130 @@ public class ApkAnalyzerImpl {
             throw new UncheckedIOException(e);
         }
     }
+    /**
+     * Prints the human readable form of {@code filePath}, looked up in the base APK first and
+     * then in each of the split APKs.
+     */
+    public void resXml(@NonNull Path base, @NonNull List<Path> splits, @NonNull String filePath) {
+        if (splits.isEmpty()) {
+            resXml(base, filePath);
+            return;
+        }
+        try (SplitApkContext context = openSplitApk(base, splits)) {
+            for (Archive archive : context.getArchives()) {
+                Path path = archive.getContentRoot().resolve(filePath);
+                if (!Files.exists(path)) {
+                    continue;
+                }
+                byte[] bytes = readEntry(path);
+                if (!archive.isBinaryXml(path, bytes)) {
+                    throw new IOException("The supplied file is not a binary XML resource.");
+                }
+                out.write(BinaryXmlParser.decodeXml(path.getFileName().toString(), bytes));
+                return;
+            }
+            throw new IOException("No such file in the base or split APKs: " + filePath);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     @NonNull
     private ManifestData getManifestData(@NonNull Archive archive)
             throws IOException, ParserConfigurationException, SAXException {
         Path manifestPath = archive.getContentRoot().resolve(SdkConstants.ANDROID_MANIFEST_XML);
-        byte[] manifestBytes =
-                BinaryXmlParser.decodeXml(
-                        SdkConstants.ANDROID_MANIFEST_XML, Files.readAllBytes(manifestPath));
-        return AndroidManifestParser.parse(new ByteArrayInputStream(manifestBytes));
+        return parseManifest(readEntry(manifestPath));
+    }
+
+    /**
+     * Returns {@code fields} of the manifest of {@code archive}, decoding it only as far as they
+     * need, see {@link ManifestFields}. A manifest that is not binary XML is parsed in full.
+     */
+    @NonNull
+    private ManifestFields getManifestFields(
+            @NonNull Archive archive, @NonNull ManifestFields.Field... fields)
+            throws IOException, ParserConfigurationException, SAXException {
+        Path manifestPath = archive.getContentRoot().resolve(SdkConstants.ANDROID_MANIFEST_XML);
+        byte[] bytes = readEntry(manifestPath);
+        ManifestFields manifestFields =
+                ManifestFields.read(bytes, EnumSet.copyOf(Arrays.asList(fields)));
+        return manifestFields != null
+                ? manifestFields
+                : ManifestFields.of(parseManifest(bytes));
+    }
+
+    @NonNull
+    private static ManifestData parseManifest(@NonNull byte[] bytes)
+            throws IOException, ParserConfigurationException, SAXException {
+        byte[] manifestBytes = BinaryXmlParser.decodeXml(SdkConstants.ANDROID_MANIFEST_XML, bytes);
+        try (Timings.Span span = Timings.start(Timings.Phase.PARSE)) {
+            span.addBytes(manifestBytes.length);
+            DecodeLimits.charge(2L * manifestBytes.length);
+            return AndroidManifestParser.parse(new ByteArrayInputStream(manifestBytes));
+        }
+    }
+
+    /**
+     * Reads and inflates the archive entry at {@code path}, within the entry size and compression
+     * ratio {@link DecodeLimits}. The sizes recorded in the archive are checked first, but not
+     * trusted: inflating stops as soon as the limits are exceeded.
+     */
+    @NonNull
+    private static byte[] readEntry(@NonNull Path path) throws IOException {
+        try (Timings.Span span = Timings.start(Timings.Phase.INFLATE)) {
+            DecodeLimits limits = DecodeLimits.get();
+            String name = path.toString();
+            long declaredSize = Files.size(path);
+            long compressedSize =
+                    path.getFileSystem().supportedFileAttributeViews().contains("zip")
+                            ? (Long) Files.getAttribute(path, "zip:compressedSize")
+                            : -1;
+            limits.checkEntry(name, declaredSize, compressedSize);
+            long maxSize =
+                    limits.getMaxEntrySize() > 0 ? limits.getMaxEntrySize() : MAX_ARRAY_SIZE;
+
+            int initialSize = (int) Math.min(declaredSize, maxSize);
+            DecodeLimits.charge(initialSize);
+            byte[] bytes = new byte[initialSize];
+            int length = 0;
+            try (InputStream in = Files.newInputStream(path)) {
+                while (true) {
+                    if (length == bytes.length) {
+                        // the entry is larger than recorded, if this is not its end
+                        int next = in.read();
+                        if (next < 0) {
+                            break;
+                        }
+                        limits.checkEntry(name, length + 1L, compressedSize);
+                        if (length == MAX_ARRAY_SIZE) {
+                            throw new DecodeLimitException(name + " is too large to be read");
+                        }
+                        int capacity =
+                                (int) Math.min(maxSize, Math.max(2L * length, READ_BUFFER_SIZE));
+                        DecodeLimits.charge(capacity - bytes.length);
+                        bytes = Arrays.copyOf(bytes, capacity);
+                        bytes[length++] = (byte) next;
+                    }
+                    int read = in.read(bytes, length, bytes.length - length);
+                    if (read < 0) {
+                        break;
+                    }
+                    length += read;
+                }
+            }
+            limits.checkEntry(name, length, compressedSize);
+            span.addBytes(length);
+            return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+        }
     }
 
     public void manifestDebuggable(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.DEBUGGABLE);
             boolean debuggable =
-                    manifestData.getDebuggable() != null ? manifestData.getDebuggable() : false;
+                    manifestFields.getDebuggable() != null ? manifestFields.getDebuggable() : false;
             out.println(String.valueOf(debuggable));
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
@@ -77,9 +248,11 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestTargetSdk(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
-            out.println(String.valueOf(manifestData.getTargetSdkVersion()));
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.TARGET_SDK);
+            out.println(String.valueOf(manifestFields.getTargetSdkVersion()));
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -88,12 +261,14 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestMinSdk(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.MIN_SDK);
             out.println(
-                    manifestData.getMinSdkVersion() != ManifestData.MIN_SDK_CODENAME
-                            ? String.valueOf(manifestData.getMinSdkVersion())
-                            : manifestData.getMinSdkVersionString());
+                    manifestFields.getMinSdkVersion() != ManifestData.MIN_SDK_CODENAME
+                            ? String.valueOf(manifestFields.getMinSdkVersion())
+                            : manifestFields.getMinSdkVersionString());
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -102,9 +277,11 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestVersionCode(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
-            out.printf("%s", valueToDisplayString(manifestData.getVersionCode())).println();
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.VERSION_CODE);
+            out.printf("%s", valueToDisplayString(manifestFields.getVersionCode())).println();
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -113,9 +290,11 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestVersionName(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
-            out.printf("%s", valueToDisplayString(manifestData.getVersionName())).println();
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.VERSION_NAME);
+            out.printf("%s", valueToDisplayString(manifestFields.getVersionName())).println();
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -124,9 +303,11 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestAppId(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
-            ManifestData manifestData = getManifestData(archiveContext.getArchive());
-            out.println(manifestData.getPackage());
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            ManifestFields manifestFields =
+                    getManifestFields(
+                            archiveContext.getArchive(), ManifestFields.Field.PACKAGE);
+            out.println(manifestFields.getPackage());
         } catch (SAXException | ParserConfigurationException e) {
             throw new RuntimeException(e);
         } catch (IOException e) {
@@ -135,21 +316,1088 @@ public class ApkAnalyzerImpl {
     }
 
     public void manifestPrint(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
+        try (ArchiveContext archiveContext = openArchive(apk)) {
+            out.write(decodeManifest(archiveContext.getArchive()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prints the structural differences between the manifests of {@code before} and {@code
+     * after}, see {@link ManifestDiff}. Both manifests are decoded concurrently.
+     */
+    public void manifestDiff(@NonNull Path before, @NonNull Path after) {
+        try {
+            XmlNode beforeTree;
+            XmlNode afterTree;
+            if (Files.isSameFile(before, after)) {
+                // a zip file system can only be opened once per file
+                beforeTree = afterTree = decodeManifestTree(before);
+            } else {
+                DecodeLimits.Budget budget = DecodeLimits.currentBudget();
+                CompletableFuture<XmlNode> beforeFuture =
+                        CompletableFuture.supplyAsync(
+                                () -> {
+                                    try (DecodeLimits.Scope scope = DecodeLimits.enter(budget)) {
+                                        return decodeManifestTree(before);
+                                    } catch (IOException e) {
+                                        throw new UncheckedIOException(e);
+                                    }
+                                });
+                afterTree = decodeManifestTree(after);
+                beforeTree = beforeFuture.join();
+            }
+            ManifestDiff.diff(beforeTree, afterTree, out::println);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @NonNull
+    private XmlNode decodeManifestTree(@NonNull Path apk) throws IOException {
+        try (ArchiveContext archiveContext = openArchive(apk)) {
             Path path =
                     archiveContext
                             .getArchive()
                             .getContentRoot()
                             .resolve(SdkConstants.ANDROID_MANIFEST_XML);
-            byte[] bytes = Files.readAllBytes(path);
-            out.write(BinaryXmlParser.decodeXml(path.getFileName().toString(), bytes));
+            XmlNode tree = BinaryXmlParser.decodeTree(readEntry(path));
+            if (tree == null) {
+                throw new IOException("The manifest of " + apk + " is not a binary XML file.");
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Prints the manifest of the base APK followed by the manifest of each split APK. The
+     * manifests are decoded concurrently.
+     */
+    public void manifestPrint(@NonNull Path base, @NonNull List<Path> splits) {
+        if (splits.isEmpty()) {
+            manifestPrint(base);
+            return;
+        }
+        try (SplitApkContext context = openSplitApk(base, splits)) {
+            List<Archive> archives = context.getArchives();
+            List<byte[]> manifests =
+                    mapConcurrently(archives, ApkAnalyzerImpl::decodeManifest);
+            for (int i = 0; i < archives.size(); i++) {
+                if (i > 0) {
+                    out.printf("<!-- %s -->", archives.get(i).getPath()).println();
+                }
+                out.write(manifests.get(i));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Prints the split name and path of the base APK and of each split APK. */
+    public void apkSplits(@NonNull Path base, @NonNull List<Path> splits) {
+        try (SplitApkContext context = openSplitApk(base, splits)) {
+            List<Archive> archives = context.getArchives();
+            List<XmlNode> manifests =
+                    mapConcurrently(
+                            archives,
+                            archive -> {
+                                Path path =
+                                        archive.getContentRoot()
+                                                .resolve(SdkConstants.ANDROID_MANIFEST_XML);
+                                return BinaryXmlParser.decodeTree(readEntry(path));
+                            });
+            for (int i = 0; i < archives.size(); i++) {
+                XmlNode manifest = manifests.get(i);
+                String split =
+                        manifest != null
+                                ? manifest.getAttribute(AndroidManifest.ATTRIBUTE_SPLIT)
+                                : null;
+                out.printf(
+                                "%s\t%s",
+                                split != null ? split : i == 0 ? "base" : "UNKNOWN",
+                                archives.get(i).getPath())
+                        .println();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Applies {@code function} to each of {@code archives} concurrently, and returns the results
+     * in the same order.
+     */
+    @NonNull
+    private static <T> List<T> mapConcurrently(
+            @NonNull List<Archive> archives,
+            @NonNull MapUtils.ThrowableFunction<Archive, T, IOException> function)
+            throws IOException {
+        List<CompletableFuture<T>> futures = new ArrayList<>(archives.size());
+        DecodeLimits.Budget budget = DecodeLimits.currentBudget();
+        for (Archive archive : archives.subList(1, archives.size())) {
+            futures.add(
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try (DecodeLimits.Scope scope = DecodeLimits.enter(budget)) {
+                                    return function.apply(archive);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }));
+        }
+        List<T> results = new ArrayList<>(archives.size());
+        results.add(function.apply(archives.get(0)));
+        try {
+            for (CompletableFuture<T> future : futures) {
+                results.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return results;
+    }
+
+    @NonNull
+    private static byte[] decodeManifest(@NonNull Archive archive) throws IOException {
+        Path path = archive.getContentRoot().resolve(SdkConstants.ANDROID_MANIFEST_XML);
+        byte[] bytes = readEntry(path);
+        return BinaryXmlParser.decodeXml(path.getFileName().toString(), bytes);
+    }
+
+    /**
+     * Re-scans {@code targets}, retrying failed targets against the same path, see {@link
+     * #fleetRescan(Path, Path, Map, Function)}.
+     */
+    public void fleetRescan(
+            @NonNull Path snapshotFile, @Nullable Path outDir, @NonNull Map<String, Path> targets) {
+        fleetRescan(snapshotFile, outDir, targets, null);
+    }
+
+    /**
+     * Incrementally re-scans the manifests of {@code targets} against the snapshot stored at
+     * {@code snapshotFile}, printing one {@code ADD}, {@code UPDATE} or {@code REMOVE} line per
+     * changed target.
+     *
+     * <p>A target whose APK path, size and modification time are unchanged is skipped without
+     * being read. Otherwise only the central directory is read, and the manifest is decoded only
+     * when its CRC-32 differs from the recorded one, within a {@link DecodeLimits.Budget} of its
+     * own. Decoded manifests are written to {@code outDir} when given, or printed after their
+     * delta line.
+     *
+     * <p>A target that fails does not stop the scan: it is reported by an {@code ERROR} line
+     * followed by its {@link ItemFailure} record, and keeps its previous snapshot entry so that
+     * the next rescan tries it again. A target failing with an I/O error while its APK changed or
+     * vanished, as when it is replaced while being read, is retried once, against the path {@code
+     * resolver} returns for it when given, see {@link ItemFailure#shouldRetry}.
+     *
+     * @param targets APK paths keyed by the name the target is tracked under; targets without a
+     *     path are resolved through {@code resolver}
+     * @param resolver returns the current APK path of a target, or throws if there is none
+     * @throws RuntimeException if any target failed, once all of them were scanned and the
+     *     snapshot saved
+     */
+    public void fleetRescan(
+            @NonNull Path snapshotFile,
+            @Nullable Path outDir,
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver) {
+        int failed;
+        try {
+            ManifestSnapshot snapshot = ManifestSnapshot.load(snapshotFile);
+            failed =
+                    scanTargets(
+                            targets,
+                            resolver,
+                            (key, apk) -> rescanTarget(snapshot, outDir, key, apk));
+
+            for (ManifestSnapshot.Entry entry : new ArrayList<>(snapshot.getEntries())) {
+                if (targets.containsKey(entry.getKey())) {
+                    continue;
+                }
+                snapshot.remove(entry.getKey());
+                out.printf("%s\t%s\t%s", "REMOVE", entry.getKey(), entry.getPath()).println();
+                if (outDir != null) {
+                    Files.deleteIfExists(outDir.resolve(toFileName(entry.getKey())));
+                }
+            }
+
+            snapshot.save(snapshotFile);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + targets.size() + " targets failed");
+        }
+    }
+
+    /** Scans a single target of a fleet scan */
+    private interface TargetScan {
+        void scan(@NonNull String key, @NonNull Path apk) throws IOException;
+    }
+
+    /**
+     * Runs {@code scan} on each of {@code targets} in turn. A target that fails is reported by an
+     * {@code ERROR} line and does not stop the others; one failing with an I/O error while its APK
+     * changed is first retried once, against the path {@code resolver} returns for it when given.
+     *
+     * @return the number of targets that failed
+     */
+    private int scanTargets(
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver,
+            @NonNull TargetScan scan) {
+        int failed = 0;
+        for (Map.Entry<String, Path> target : targets.entrySet()) {
+            String key = target.getKey();
+            Path apk = target.getValue();
+
+            long start = System.nanoTime();
+            Timings.clearLastPhase();
+            for (int attempt = 1; ; attempt++) {
+                ItemFailure.FileStamp stamp = null;
+                try {
+                    if (apk == null) {
+                        if (resolver == null) {
+                            throw new IllegalArgumentException("No APK for target " + key);
+                        }
+                        apk = resolver.apply(key);
+                    }
+                    stamp = ItemFailure.FileStamp.of(apk);
+                    scan.scan(key, apk);
+                    break;
+                } catch (IOException | RuntimeException e) {
+                    if (attempt == 1 && ItemFailure.shouldRetry(e, stamp)) {
+                        if (resolver != null) {
+                            apk = null;
+                        }
+                        continue;
+                    }
+                    failed++;
+                    out.printf(
+                                    "%s\t%s\t%s\t%s",
+                                    "ERROR",
+                                    key,
+                                    apk != null ? apk.toAbsolutePath() : "-",
+                                    ItemFailure.of(e, start, attempt))
+                            .println();
+                    break;
+                }
+            }
+        }
+        return failed;
+    }
+
+    private void rescanTarget(
+            @NonNull ManifestSnapshot snapshot,
+            @Nullable Path outDir,
+            @NonNull String key,
+            @NonNull Path apk)
+            throws IOException {
+        String path = apk.toAbsolutePath().toString();
+        long size = Files.size(apk);
+        long lastModified = Files.getLastModifiedTime(apk).toMillis();
+        ManifestSnapshot.Entry previous = snapshot.get(key);
+        if (previous != null && previous.isSameFile(path, size, lastModified)) {
+            return;
+        }
+
+        ZipCentralDirectory.Entry manifest;
+        try (Timings.Span span = Timings.start(Timings.Phase.OPEN)) {
+            manifest = ZipCentralDirectory.findEntry(apk, SdkConstants.ANDROID_MANIFEST_XML);
+        }
+        if (manifest == null) {
+            throw new ZipException("No " + SdkConstants.ANDROID_MANIFEST_XML + " in " + apk);
+        }
+        ManifestSnapshot.Entry current =
+                new ManifestSnapshot.Entry(key, path, size, lastModified, manifest.getCrc());
+        if (previous != null && previous.getManifestCrc() == manifest.getCrc()) {
+            snapshot.put(current);
+            return;
+        }
+
+        byte[] xml;
+        // each target has its own budget rather than a share of the command's
+        try (DecodeLimits.Scope scope = DecodeLimits.startItem();
+                ArchiveContext archiveContext = openArchive(apk)) {
+            xml = decodeManifest(archiveContext.getArchive());
+        }
+        if (outDir != null) {
+            Files.write(outDir.resolve(toFileName(key)), xml);
+        }
+        snapshot.put(current);
+        out.printf("%s\t%s\t%s", previous == null ? "ADD" : "UPDATE", key, path).println();
+        if (outDir == null) {
+            out.write(xml);
+        }
+    }
+
+    /**
+     * Incrementally updates the {@link PermissionIndex} stored at {@code indexFile} with the
+     * manifests of {@code targets}, printing one {@code ADD}, {@code UPDATE} or {@code REMOVE}
+     * line per changed target. As with {@link #fleetRescan(Path, Path, Map, Function)}, only the
+     * manifests whose CRC-32 changed are decoded, targets missing from {@code targets} are
+     * removed, and failing targets are reported and keep their previous postings.
+     *
+     * @throws RuntimeException if any target failed, once all of them were indexed and the index
+     *     saved
+     */
+    public void indexBuild(
+            @NonNull Path indexFile,
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver) {
+        int failed;
+        try {
+            PermissionIndex index = PermissionIndex.load(indexFile);
+            failed = scanTargets(targets, resolver, (key, apk) -> indexTarget(index, key, apk));
+            for (PermissionIndex.Package pkg : index.getPackages()) {
+                if (!targets.containsKey(pkg.getKey())) {
+                    removeIndexEntry(index, pkg.getKey());
+                }
+            }
+            index.save(indexFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + targets.size() + " targets failed");
+        }
+    }
+
+    private void indexTarget(
+            @NonNull PermissionIndex index, @NonNull String key, @NonNull Path apk)
+            throws IOException {
+        IndexChange change = readIndexChange(index.get(key), key, apk);
+        if (change != null) {
+            applyIndexChange(index, change);
+        }
+    }
+
+    /** A change to the {@link PermissionIndex} entry of a target, read but not yet applied */
+    private static final class IndexChange {
+        @NonNull final ManifestSnapshot.Entry file;
+        final boolean added;
+        /** The new package and its permissions, or null if only the state of its APK changed */
+        @Nullable final PermissionIndex.Package pkg;
+        @Nullable final Map<PermissionIndex.Relation, Set<String>> permissions;
+
+        IndexChange(
+                @NonNull ManifestSnapshot.Entry file,
+                boolean added,
+                @Nullable PermissionIndex.Package pkg,
+                @Nullable Map<PermissionIndex.Relation, Set<String>> permissions) {
+            this.file = file;
+            this.added = added;
+            this.pkg = pkg;
+            this.permissions = permissions;
+        }
+    }
+
+    /**
+     * Reads how the entry {@code previous} of {@code key} changes with {@code apk}, decoding the
+     * manifest only if its CRC changed, or returns null if the APK did not change at all. The
+     * index itself is not touched, so that targets can be read on other threads.
+     */
+    @Nullable
+    private IndexChange readIndexChange(
+            @Nullable PermissionIndex.Package previous, @NonNull String key, @NonNull Path apk)
+            throws IOException {
+        String path = apk.toAbsolutePath().toString();
+        long size = Files.size(apk);
+        long lastModified = Files.getLastModifiedTime(apk).toMillis();
+        if (previous != null && previous.getFile().isSameFile(path, size, lastModified)) {
+            return null;
+        }
+
+        ZipCentralDirectory.Entry manifest;
+        try (Timings.Span span = Timings.start(Timings.Phase.OPEN)) {
+            manifest = ZipCentralDirectory.findEntry(apk, SdkConstants.ANDROID_MANIFEST_XML);
+        }
+        if (manifest == null) {
+            throw new ZipException("No " + SdkConstants.ANDROID_MANIFEST_XML + " in " + apk);
+        }
+        ManifestSnapshot.Entry current =
+                new ManifestSnapshot.Entry(key, path, size, lastModified, manifest.getCrc());
+        if (previous != null && previous.getFile().getManifestCrc() == manifest.getCrc()) {
+            return new IndexChange(current, false, null, null);
+        }
+
+        ManifestData manifestData;
+        try (DecodeLimits.Scope scope = DecodeLimits.startItem();
+                ArchiveContext archiveContext = openArchive(apk)) {
+            manifestData = getManifestData(archiveContext.getArchive());
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+        return new IndexChange(
+                current,
+                previous == null,
+                new PermissionIndex.Package(current, manifestData.getPackage()),
+                getPermissions(manifestData));
+    }
+
+    /** Applies {@code change} to {@code index}, printing an {@code ADD} or {@code UPDATE} line */
+    private void applyIndexChange(@NonNull PermissionIndex index, @NonNull IndexChange change) {
+        if (change.pkg == null || change.permissions == null) {
+            index.update(change.file);
+            return;
+        }
+        index.put(change.pkg, change.permissions);
+        out.printf(
+                        "%s\t%s\t%s",
+                        change.added ? "ADD" : "UPDATE",
+                        change.file.getKey(),
+                        change.file.getPath())
+                .println();
+    }
+
+    /**
+     * Keeps the {@link PermissionIndex} stored at {@code indexFile} current with the APK files
+     * below {@code directories}, until the thread is interrupted. The index is first brought up
+     * to date with all of them, as by {@link #indexBuild}; from then on, only the APKs an {@link
+     * ApkDirectoryWatcher} reports changed are read, on {@code jobs} threads, and the index is
+     * saved after each batch that changed it.
+     *
+     * <p>Changes are printed as by {@link #indexBuild}, one {@code ADD}, {@code UPDATE}, {@code
+     * REMOVE} or {@code ERROR} line each, flushed after each batch, and {@code listener} is
+     * notified of them. APKs are keyed by path. A failing APK is reported and keeps its previous
+     * entry until it changes again.
+     *
+     * @param quietMillis how long the directories must be left alone before a batch of changes
+     *     is read, see {@link ApkDirectoryWatcher}
+     */
+    public void fleetWatch(
+            @NonNull Path indexFile,
+            @NonNull List<Path> directories,
+            int jobs,
+            long quietMillis,
+            @Nullable PermissionIndex.Listener listener) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs));
+        try (ApkDirectoryWatcher watcher = new ApkDirectoryWatcher(directories, quietMillis)) {
+            PermissionIndex index = PermissionIndex.load(indexFile);
+            if (listener != null) {
+                index.addListener(listener);
+            }
+            // null stands for every APK: at start, and once the watcher lost events
+            Set<Path> changed = null;
+            while (true) {
+                boolean modified;
+                if (changed == null) {
+                    Set<Path> apks = watcher.listApks();
+                    modified = indexChanges(index, apks, jobs, executor);
+                    Set<String> keys = new HashSet<>();
+                    for (Path apk : apks) {
+                        keys.add(apk.toString());
+                    }
+                    for (PermissionIndex.Package pkg : index.getPackages()) {
+                        if (!keys.contains(pkg.getKey())
+                                && watcher.isWatched(Paths.get(pkg.getKey()))) {
+                            modified |= removeIndexEntry(index, pkg.getKey());
+                        }
+                    }
+                } else {
+                    modified = indexChanges(index, changed, jobs, executor);
+                }
+                if (modified) {
+                    index.save(indexFile);
+                }
+                out.flush();
+                changed = watcher.take();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** The change one APK of {@link #fleetWatch} brings to the index, or why it failed */
+    private static final class IndexScan {
+        @NonNull final Path apk;
+        @Nullable final IndexChange change;
+        @Nullable final ItemFailure failure;
+
+        IndexScan(@NonNull Path apk, @Nullable IndexChange change, @Nullable ItemFailure failure) {
+            this.apk = apk;
+            this.change = change;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Reads the changes of {@code apks} on {@code executor} and applies them to {@code index} in
+     * order, removing the APKs that no longer exist.
+     *
+     * @return whether {@code index} changed
+     */
+    private boolean indexChanges(
+            @NonNull PermissionIndex index,
+            @NonNull Set<Path> apks,
+            int jobs,
+            @NonNull ExecutorService executor)
+            throws InterruptedException {
+        // bounds the memory held by the changes read ahead of their turn
+        int window = Math.max(1, jobs) * 4;
+        Deque<Future<IndexScan>> pending = new ArrayDeque<>();
+        boolean modified = false;
+        try {
+            for (Path apk : apks) {
+                if (!Files.isRegularFile(apk)) {
+                    modified |= removeIndexEntry(index, apk.toString());
+                    continue;
+                }
+                // read here, since the index is only modified by this thread
+                PermissionIndex.Package previous = index.get(apk.toString());
+                pending.add(executor.submit(() -> scanIndexChange(previous, apk)));
+                if (pending.size() >= window) {
+                    modified |= applyIndexScan(index, pending.remove().get());
+                }
+            }
+            while (!pending.isEmpty()) {
+                modified |= applyIndexScan(index, pending.remove().get());
+            }
+        } catch (ExecutionException e) {
+            // scanIndexChange reports failures rather than throwing them
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<IndexScan> future : pending) {
+                future.cancel(true);
+            }
+        }
+        return modified;
+    }
+
+    @NonNull
+    private IndexScan scanIndexChange(
+            @Nullable PermissionIndex.Package previous, @NonNull Path apk) {
+        long start = System.nanoTime();
+        Timings.clearLastPhase();
+        for (int attempt = 1; ; attempt++) {
+            ItemFailure.FileStamp stamp = ItemFailure.FileStamp.of(apk);
+            try {
+                return new IndexScan(apk, readIndexChange(previous, apk.toString(), apk), null);
+            } catch (IOException | RuntimeException e) {
+                if (attempt == 1 && ItemFailure.shouldRetry(e, stamp)) {
+                    continue;
+                }
+                return new IndexScan(apk, null, ItemFailure.of(e, start, attempt));
+            }
+        }
+    }
+
+    /** Applies or reports {@code scan}, returning whether {@code index} changed */
+    private boolean applyIndexScan(@NonNull PermissionIndex index, @NonNull IndexScan scan) {
+        if (scan.failure != null) {
+            out.printf(
+                            "%s\t%s\t%s\t%s",
+                            "ERROR",
+                            scan.apk,
+                            scan.apk.toAbsolutePath(),
+                            scan.failure)
+                    .println();
+            return false;
+        }
+        if (scan.change == null) {
+            return false;
+        }
+        applyIndexChange(index, scan.change);
+        return true;
+    }
+
+    /** Removes the entry of {@code key}, printing a {@code REMOVE} line if there was one */
+    private boolean removeIndexEntry(@NonNull PermissionIndex index, @NonNull String key) {
+        PermissionIndex.Package removed = index.remove(key);
+        if (removed == null) {
+            return false;
+        }
+        out.printf("%s\t%s\t%s", "REMOVE", key, removed.getFile().getPath()).println();
+        return true;
+    }
+
+    /** Returns the permissions {@code manifestData} uses, defines and is guarded by */
+    @NonNull
+    private static Map<PermissionIndex.Relation, Set<String>> getPermissions(
+            @NonNull ManifestData manifestData) {
+        Set<String> uses = new HashSet<>(Arrays.asList(manifestData.getUsesPermissions()));
+        Set<String> defines = new HashSet<>();
+        for (ManifestData.Permission permission : manifestData.getPermissions()) {
+            defines.add(permission.getName());
+        }
+        Set<String> guards = new HashSet<>();
+        if (manifestData.getApplicationPermission() != null) {
+            guards.add(manifestData.getApplicationPermission());
+        }
+        for (ManifestData.Component component : manifestData.getComponents()) {
+            for (String permission :
+                    new String[] {
+                        component.getPermission(),
+                        component.getReadPermission(),
+                        component.getWritePermission()
+                    }) {
+                if (permission != null) {
+                    guards.add(permission);
+                }
+            }
+        }
+
+        Map<PermissionIndex.Relation, Set<String>> permissions =
+                new EnumMap<>(PermissionIndex.Relation.class);
+        permissions.put(PermissionIndex.Relation.USES, uses);
+        permissions.put(PermissionIndex.Relation.DEFINES, defines);
+        permissions.put(PermissionIndex.Relation.GUARDS, guards);
+        return permissions;
+    }
+
+    /**
+     * Prints the packages related to {@code permission} in the index stored at {@code indexFile},
+     * one {@code relation<TAB>key<TAB>package} line each, without reading any APK.
+     */
+    public void indexQueryPermission(@NonNull Path indexFile, @NonNull String permission) {
+        if (!Files.exists(indexFile)) {
+            throw new UncheckedIOException(
+                    new NoSuchFileException(indexFile.toString(), null, "No permission index"));
+        }
+        try {
+            for (Map.Entry<PermissionIndex.Relation, List<PermissionIndex.Package>> entry :
+                    PermissionIndex.query(indexFile, permission).entrySet()) {
+                for (PermissionIndex.Package pkg : entry.getValue()) {
+                    out.printf(
+                                    "%s\t%s\t%s",
+                                    entry.getKey().getDisplayName(),
+                                    pkg.getKey(),
+                                    valueToDisplayString(pkg.getPackageName()))
+                            .println();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes the manifest facts of {@code targets} to {@code columnsFile} as {@link
+     * ManifestColumns}, one row per target that could be read. Failing targets are reported by
+     * {@code ERROR} lines, as by {@link #fleetRescan(Path, Path, Map, Function)}, and left out.
+     *
+     * @throws RuntimeException if any target failed, once the others were written
+     */
+    public void fleetFacts(
+            @NonNull Path columnsFile,
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver) {
+        ManifestColumns.Writer writer = new ManifestColumns.Writer();
+        int failed =
+                scanTargets(
+                        targets,
+                        resolver,
+                        (key, apk) -> {
+                            try (DecodeLimits.Scope scope = DecodeLimits.startItem();
+                                    ArchiveContext archiveContext = openArchive(apk)) {
+                                writer.add(key, getManifestData(archiveContext.getArchive()));
+                            } catch (SAXException | ParserConfigurationException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        try {
+            writer.write(columnsFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + targets.size() + " targets failed");
+        }
+    }
+
+    /**
+     * Prints the components of {@code targets} that {@code intents} resolve to, as {@link
+     * IntentResolver#resolve} finds them, one {@code key<TAB>package<TAB>tag<TAB>class<TAB>
+     * exported<TAB>priority<TAB>permission} line each. The manifests are decoded once and indexed,
+     * then each intent only matches its candidate filters. When there are several intents, the
+     * matches of each are preceded by a {@code ##<TAB>index} line. Failing targets are reported by
+     * {@code ERROR} lines, as by {@link #fleetRescan(Path, Path, Map, Function)}, and left out.
+     *
+     * @throws RuntimeException if any target failed, once the intents were resolved
+     */
+    public void fleetResolve(
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver,
+            @NonNull List<IntentResolver.Intent> intents,
+            @NonNull Set<ManifestData.ComponentType> types) {
+        IntentResolver intentResolver = new IntentResolver();
+        int failed =
+                scanTargets(
+                        targets,
+                        resolver,
+                        (key, apk) -> {
+                            try (DecodeLimits.Scope scope = DecodeLimits.startItem();
+                                    ArchiveContext archiveContext = openArchive(apk)) {
+                                intentResolver.add(
+                                        key, getManifestData(archiveContext.getArchive()));
+                            } catch (SAXException | ParserConfigurationException e) {
+                                throw new RuntimeException(e);
+                            }
+                        });
+        for (int i = 0; i < intents.size(); i++) {
+            if (intents.size() > 1) {
+                out.printf("%s\t%d", "##", i).println();
+            }
+            for (IntentResolver.Match match : intentResolver.resolve(intents.get(i), types)) {
+                out.printf(
+                                "%s\t%s\t%s\t%s\t%s\t%d\t%s",
+                                match.getKey(),
+                                valueToDisplayString(match.getPackageName()),
+                                match.getComponent().getType().getTag(),
+                                match.getComponent().getName(),
+                                match.isExported(),
+                                match.getFilter().getPriority(),
+                                valueToDisplayString(match.getPermission()))
+                        .println();
+            }
+        }
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + targets.size() + " targets failed");
+        }
+    }
+
+    /** The exported components of one target of {@link #fleetExported}, or why it failed */
+    private static final class ExportedScan {
+        @NonNull final String key;
+        @Nullable final Path apk;
+        @Nullable final ExportedComponents components;
+        @Nullable final ItemFailure failure;
+
+        ExportedScan(
+                @NonNull String key,
+                @Nullable Path apk,
+                @Nullable ExportedComponents components,
+                @Nullable ItemFailure failure) {
+            this.key = key;
+            this.apk = apk;
+            this.components = components;
+            this.failure = failure;
+        }
+    }
+
+    /**
+     * Prints the components of {@code targets} that other apps can reach without a permission,
+     * or all of their exported components when {@code includeGuarded} is set, one line each:
+     *
+     * <pre>
+     * key	tag	class	reason	permission|-
+     * </pre>
+     *
+     * <p>The manifests are read by {@code jobs} threads, through {@link ExportedComponents}
+     * rather than decoded to text, each within a {@link DecodeLimits.Budget} of its own. Lines
+     * are printed as soon as the targets before them are done, in the order of {@code targets}.
+     * A target that fails is reported by an {@code ERROR} line, as by {@link #fleetRescan(Path,
+     * Path, Map, Function)}, after being retried once if it failed with an I/O error while its
+     * APK changed.
+     *
+     * @param targets APK paths keyed by the name the target is reported under; targets without a
+     *     path are resolved through {@code resolver}
+     * @param resolver returns the current APK path of a target, or throws if there is none
+     * @throws RuntimeException if any target failed, once all of them were scanned
+     */
+    public void fleetExported(
+            @NonNull Map<String, Path> targets,
+            @Nullable Function<String, Path> resolver,
+            int jobs,
+            boolean includeGuarded) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, jobs));
+        // bounds the memory held by the targets finished ahead of their turn
+        int window = Math.max(1, jobs) * 4;
+        Deque<Future<ExportedScan>> pending = new ArrayDeque<>();
+        int failed = 0;
+        try {
+            for (Map.Entry<String, Path> target : targets.entrySet()) {
+                String key = target.getKey();
+                Path apk = target.getValue();
+                pending.add(executor.submit(() -> scanExported(key, apk, resolver)));
+                if (pending.size() >= window) {
+                    failed += printExported(pending.remove().get(), includeGuarded);
+                }
+            }
+            while (!pending.isEmpty()) {
+                failed += printExported(pending.remove().get(), includeGuarded);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // scanExported reports failures rather than throwing them
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        if (failed > 0) {
+            throw new RuntimeException(failed + " of " + targets.size() + " targets failed");
+        }
+    }
+
+    @NonNull
+    private ExportedScan scanExported(
+            @NonNull String key, @Nullable Path apk, @Nullable Function<String, Path> resolver) {
+        long start = System.nanoTime();
+        Timings.clearLastPhase();
+        for (int attempt = 1; ; attempt++) {
+            ItemFailure.FileStamp stamp = null;
+            try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+                if (apk == null) {
+                    if (resolver == null) {
+                        throw new IllegalArgumentException("No APK for target " + key);
+                    }
+                    apk = resolver.apply(key);
+                }
+                stamp = ItemFailure.FileStamp.of(apk);
+                byte[] bytes;
+                try (ArchiveContext archiveContext = openArchive(apk)) {
+                    bytes =
+                            readEntry(
+                                    archiveContext
+                                            .getArchive()
+                                            .getContentRoot()
+                                            .resolve(SdkConstants.ANDROID_MANIFEST_XML));
+                }
+                return new ExportedScan(key, apk, ExportedComponents.read(bytes), null);
+            } catch (IOException | RuntimeException e) {
+                if (attempt == 1 && ItemFailure.shouldRetry(e, stamp)) {
+                    if (resolver != null) {
+                        apk = null;
+                    }
+                    continue;
+                }
+                return new ExportedScan(key, apk, null, ItemFailure.of(e, start, attempt));
+            }
+        }
+    }
+
+    /** Prints the lines of {@code scan} and returns 1 if it failed, 0 otherwise */
+    private int printExported(@NonNull ExportedScan scan, boolean includeGuarded) {
+        if (scan.failure != null) {
+            out.printf(
+                            "%s\t%s\t%s\t%s",
+                            "ERROR",
+                            scan.key,
+                            scan.apk != null ? scan.apk.toAbsolutePath() : "-",
+                            scan.failure)
+                    .println();
+            return 1;
+        }
+        assert scan.components != null;
+        for (ExportedComponents.Component component : scan.components.getComponents()) {
+            if (!includeGuarded && component.isGuarded()) {
+                continue;
+            }
+            out.printf(
+                            "%s\t%s\t%s\t%s\t%s",
+                            scan.key,
+                            component.getType().getTag(),
+                            component.getName(),
+                            component.getReason().getDisplayName(),
+                            component.getGuard())
+                    .println();
+        }
+        return 0;
+    }
+
+    @NonNull
+    private static String toFileName(@NonNull String key) {
+        return key.replaceAll("[^A-Za-z0-9._-]", "_") + SdkConstants.DOT_XML;
+    }
+
+    /**
+     * Prints the size of {@code apk}, followed with {@code breakdown} by one line per type of
+     * entry, see {@link ApkSizes#getType}: its number of files, uncompressed and compressed size.
+     */
+    public void apkFileSize(@NonNull Path apk, boolean breakdown) {
+        try {
+            ApkSizes sizes = ApkSizes.read(apk);
+            out.println(sizes.getFileSize());
+            if (breakdown) {
+                for (Map.Entry<String, ApkSizes.Totals> type : sizes.getTypes().entrySet()) {
+                    ApkSizes.Totals totals = type.getValue();
+                    out.printf(
+                                    "%s\t%d\t%d\t%d",
+                                    type.getKey(),
+                                    totals.getEntries(),
+                                    totals.getSize(),
+                                    totals.getCompressedSize())
+                            .println();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Prints the estimated download size of {@code apk}, see {@link ApkSizes}. */
+    public void apkDownloadSize(@NonNull Path apk) {
+        try {
+            out.println(ApkSizes.read(apk).getDownloadSize());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prints the path of each file and directory of {@code apk}, depth first and sorted by name,
+     * followed with {@code sizes} by the uncompressed and compressed size of the file or of all the
+     * files in the directory.
+     */
+    public void filesList(@NonNull Path apk, boolean sizes) {
+        try {
+            printNode(ApkSizes.read(apk).getRoot(), sizes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void printNode(@NonNull ApkSizes.Node node, boolean sizes) {
+        if (sizes) {
+            ApkSizes.Totals totals = node.getTotals();
+            out.printf(
+                            "%s\t%d\t%d",
+                            node.getPath(),
+                            totals.getSize(),
+                            totals.getCompressedSize())
+                    .println();
+        } else {
+            out.println(node.getPath());
+        }
+        for (ApkSizes.Node child : node.getChildren()) {
+            printNode(child, sizes);
+        }
+    }
+
+    /**
+     * Verifies every entry of {@code apk} against the central directory with {@code jobs}
+     * threads, see {@link ZipVerifier}. Each corrupt entry is printed as soon as it is found, as a
+     * {@code FAIL<TAB>name<TAB>reason} line; if there is none, an {@code OK} line follows with the
+     * number of entries and of uncompressed bytes checked.
+     *
+     * @throws RuntimeException if any entry failed
+     */
+    public void apkVerify(@NonNull Path apk, int jobs, boolean stopAtFirstFailure) {
+        ZipVerifier.Result result;
+        try {
+            result =
+                    ZipVerifier.verify(
+                            apk,
+                            jobs,
+                            stopAtFirstFailure,
+                            (entry, reason) -> {
+                                synchronized (out) {
+                                    out.printf("FAIL\t%s\t%s", entry.getName(), reason)
+                                            .println();
+                                    out.flush();
+                                }
+                            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (result.getFailures() > 0) {
+            throw new RuntimeException(
+                    result.getFailures() + " of " + result.getEntries() + " entries failed verification");
+        }
+        out.printf("OK\t%d\t%d", result.getVerified(), result.getBytes()).println();
+    }
+
+    /**
+     * Prints one line per dex file of {@code apk}, in multidex order: its name, number of method,
+     * field and type references and of classes, and its use of the 64K reference limit. Only the
+     * headers of the dex files are read.
+     */
+    public void dexReferences(@NonNull Path apk) {
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ)) {
+            for (ZipCentralDirectory.Entry entry : getDexEntries(channel)) {
+                DexFile dex;
+                try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+                    dex = DexFile.readHeader(channel, entry);
+                }
+                out.printf(
+                                Locale.US,
+                                "%s\t%d\t%d\t%d\t%d\t%.1f%%",
+                                entry.getName(),
+                                dex.getMethodCount(),
+                                dex.getFieldCount(),
+                                dex.getTypeCount(),
+                                dex.getClassCount(),
+                                dex.getReferenceRatio() * 100)
+                        .println();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Prints one line per package defined or referenced by the dex files of {@code apk}, sorted
+     * by name: the number of classes, defined and referenced methods, and defined and referenced
+     * fields, summed over all the dex files. Only the ID tables and the class data headers are
+     * read, see {@link DexFile#read}.
+     */
+    public void dexPackages(@NonNull Path apk) {
+        Map<String, DexFile.PackageStats> packages = new TreeMap<>();
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ)) {
+            for (ZipCentralDirectory.Entry entry : getDexEntries(channel)) {
+                DexFile dex;
+                try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+                    span.addBytes(entry.getSize());
+                    dex = DexFile.read(channel, entry);
+                }
+                for (DexFile.PackageStats stats : dex.getPackages().values()) {
+                    packages.computeIfAbsent(stats.getName(), DexFile.PackageStats::new)
+                            .add(stats);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (DexFile.PackageStats stats : packages.values()) {
+            out.printf(
+                            "%s\t%d\t%d\t%d\t%d\t%d",
+                            stats.getName(),
+                            stats.getClasses(),
+                            stats.getDefinedMethods(),
+                            stats.getReferencedMethods(),
+                            stats.getDefinedFields(),
+                            stats.getReferencedFields())
+                    .println();
+        }
+    }
+
+    /** Returns the {@code classes*.dex} entries of an APK, in multidex order */
+    @NonNull
+    private static List<ZipCentralDirectory.Entry> getDexEntries(@NonNull FileChannel channel)
+            throws IOException {
+        ZipCentralDirectory directory;
+        try (Timings.Span span = Timings.start(Timings.Phase.OPEN)) {
+            directory = ZipCentralDirectory.read(channel);
+        }
+        List<ZipCentralDirectory.Entry> entries = new ArrayList<>();
+        for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+            if (DexFile.getDexIndex(entry.getName()) > 0) {
+                entries.add(entry);
+            }
+        }
+        entries.sort(Comparator.comparingInt(entry -> DexFile.getDexIndex(entry.getName())));
+        return entries;
     }
 
     public void apkSummary(@NonNull Path apk) {
-        try (ArchiveContext archiveContext = Archives.open(apk)) {
+        try (ArchiveContext archiveContext = openArchive(apk)) {
             ManifestData manifestData = getManifestData(archiveContext.getArchive());
             out.printf(
                             "%s\t%s\t%s",
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.internal.ZipCentralDirectory;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The sizes of an APK and of its entries, computed from its central directory alone: no entry is
+ * inflated, so the cost depends on the number of entries but not on their size.
+ *
+ * <p>Sizes are summed per directory, see {@link #getRoot()}, and per type of content, see {@link
+ * #getTypes()}. The download size is estimated as the sum of the compressed sizes of the entries,
+ * which is what the entries cost once compressed: stored entries count in full since the central
+ * directory does not tell how well they would compress.
+ */
+public final class ApkSizes {
+    /** Type of the {@code classes*.dex} files */
+    public static final String TYPE_DEX = "dex";
+    /** Type of {@code resources.arsc} and of the files under {@code res/} */
+    public static final String TYPE_RES = "res";
+    /** Type of the files under {@code assets/} */
+    public static final String TYPE_ASSETS = "assets";
+    /** Prefix of the types of native libraries, followed by their ABI, e.g. {@code lib/x86} */
+    public static final String TYPE_LIB = "lib/";
+    /** Type of the signature files, under {@code META-INF/} */
+    public static final String TYPE_META_INF = "META-INF";
+    /** Type of all the other entries, including the manifest */
+    public static final String TYPE_OTHER = "other";
+
+    /** Number of entries and their sizes */
+    public static final class Totals {
+        private int entries;
+        private long size;
+        private long compressedSize;
+
+        void add(@NonNull ZipCentralDirectory.Entry entry) {
+            entries++;
+            size += entry.getSize();
+            compressedSize += entry.getCompressedSize();
+        }
+
+        /** Returns the number of files, not counting directory entries */
+        public int getEntries() {
+            return entries;
+        }
+
+        /** Returns the uncompressed size */
+        public long getSize() {
+            return size;
+        }
+
+        /** Returns the size in the archive, which is also the estimated download size */
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+    }
+
+    /** A file or directory of the archive, with the totals of the files below it */
+    public static final class Node {
+        @NonNull private final String path;
+        @Nullable private final Map<String, Node> children;
+        @NonNull private final Totals totals = new Totals();
+
+        Node(@NonNull String path, boolean directory) {
+            this.path = path;
+            this.children = directory ? new TreeMap<>() : null;
+        }
+
+        /** Returns the path, starting with {@code /}, and ending with {@code /} for directories */
+        @NonNull
+        public String getPath() {
+            return path;
+        }
+
+        public boolean isDirectory() {
+            return children != null;
+        }
+
+        /** Returns the children of a directory sorted by name, or an empty list for a file */
+        @NonNull
+        public Collection<Node> getChildren() {
+            return children != null
+                    ? Collections.unmodifiableCollection(children.values())
+                    : Collections.emptyList();
+        }
+
+        @NonNull
+        public Totals getTotals() {
+            return totals;
+        }
+
+        @NonNull
+        private Node getChild(@NonNull String name, boolean directory) {
+            assert children != null;
+            String key = directory ? name + "/" : name;
+            Node child = children.get(key);
+            if (child == null) {
+                child = new Node(path + key, directory);
+                children.put(key, child);
+            }
+            return child;
+        }
+    }
+
+    private final long fileSize;
+    @NonNull private final Node root = new Node("/", true);
+    @NonNull private final Map<String, Totals> types = new TreeMap<>();
+
+    private ApkSizes(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    /** Reads the central directory of {@code apk} */
+    @NonNull
+    public static ApkSizes read(@NonNull Path apk) throws IOException {
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ);
+                Timings.Span span = Timings.start(Timings.Phase.OPEN)) {
+            ZipCentralDirectory directory = ZipCentralDirectory.read(channel);
+            span.addBytes(directory.getCentralDirectorySize());
+            ApkSizes sizes = new ApkSizes(channel.size());
+            for (ZipCentralDirectory.Entry entry : directory.getEntries()) {
+                sizes.add(entry);
+            }
+            return sizes;
+        }
+    }
+
+    private void add(@NonNull ZipCentralDirectory.Entry entry) {
+        String name = entry.getName();
+        // directory entries only create their node, files are counted in each of their parents
+        boolean file = !entry.isDirectory();
+        Node node = root;
+        if (file) {
+            root.totals.add(entry);
+            types.computeIfAbsent(getType(name), type -> new Totals()).add(entry);
+        }
+        for (int start = 0; start < name.length(); ) {
+            int slash = name.indexOf('/', start);
+            int end = slash < 0 ? name.length() : slash;
+            if (end > start) {
+                node = node.getChild(name.substring(start, end), slash >= 0);
+                if (file) {
+                    node.totals.add(entry);
+                }
+            }
+            start = end + 1;
+        }
+    }
+
+    /** Returns the {@code TYPE_} constant of the entry {@code name} */
+    @NonNull
+    public static String getType(@NonNull String name) {
+        if (DexFile.getDexIndex(name) > 0) {
+            return TYPE_DEX;
+        }
+        if (name.equals("resources.arsc") || name.startsWith("res/")) {
+            return TYPE_RES;
+        }
+        if (name.startsWith("assets/")) {
+            return TYPE_ASSETS;
+        }
+        if (name.startsWith(TYPE_LIB)) {
+            int slash = name.indexOf('/', TYPE_LIB.length());
+            if (slash > TYPE_LIB.length()) {
+                return name.substring(0, slash);
+            }
+        }
+        if (name.startsWith("META-INF/")) {
+            return TYPE_META_INF;
+        }
+        return TYPE_OTHER;
+    }
+
+    /** Returns the size of the APK file */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /** Returns the estimated download size, see the class documentation */
+    public long getDownloadSize() {
+        return root.totals.compressedSize;
+    }
+
+    /** Returns the root directory of the archive */
+    @NonNull
+    public Node getRoot() {
+        return root;
+    }
+
+    /** Returns the totals of each type of entry present, sorted by type */
+    @NonNull
+    public Map<String, Totals> getTypes() {
+        return Collections.unmodifiableMap(types);
+    }
+}
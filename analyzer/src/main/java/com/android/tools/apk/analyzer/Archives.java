@@ -23,6 +23,7 @@ import com.android.utils.NullLogger;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 
 public class Archives {
 
@@ -40,4 +41,21 @@ public class Archives {
         ArchiveManagerImpl archiveManager = new ArchiveManagerImpl(logger);
         return archiveManager.openArchive(path);
     }
+
+    /**
+     * Opens a base APK and its split APKs from the local file system. The archives are opened
+     * concurrently and share one {@link ArchiveManager}.
+     */
+    @NonNull
+    public static SplitApkContext openSplitApk(@NonNull Path base, @NonNull List<Path> splits)
+            throws IOException {
+        //noinspection resource,IOResourceOpenedButNotSafelyClosed
+        ArchiveManagerImpl archiveManager = new ArchiveManagerImpl(NullLogger.getLogger());
+        try {
+            return archiveManager.openSplitApk(base, splits);
+        } catch (IOException | RuntimeException e) {
+            archiveManager.close();
+            throw e;
+        }
+    }
 }
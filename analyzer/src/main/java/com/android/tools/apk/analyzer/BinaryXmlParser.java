@@ -18,7 +18,9 @@ package com.android.tools.apk.analyzer;
 import com.android.SdkConstants;
 import com.android.annotations.NonNull;
 import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.internal.ChunkValidator;
 import com.android.utils.ResMap;
+import com.android.utils.StringTable;
 import com.android.xml.XmlBuilder;
 import com.google.common.base.Charsets;
 import com.google.common.collect.Lists;
@@ -26,14 +28,28 @@ import com.google.devrel.gmscore.tools.apk.arsc.*;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
 public class BinaryXmlParser {
+    /** Number of chunks visited between two checks of the time budget */
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
     @NonNull
     public static byte[] decodeXml(@NonNull String fileName, @NonNull byte[] bytes) {
+        try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+            span.addBytes(bytes.length);
+            return decodeXmlWorker(fileName, bytes);
+        }
+    }
+
+    @NonNull
+    private static byte[] decodeXmlWorker(@NonNull String fileName, @NonNull byte[] bytes) {
+        ChunkValidator.validate(bytes, DecodeLimits.get());
         BinaryResourceFile file = new BinaryResourceFile(bytes);
         List<Chunk> chunks = file.getChunks();
         if (chunks.size() != 1) {
@@ -54,15 +70,42 @@ public class BinaryXmlParser {
 
         String reconstructedXml =
                 "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n" + printer.getReconstructedXml();
+        // the string and its encoded copy
+        DecodeLimits.charge(3L * reconstructedXml.length());
         return reconstructedXml.getBytes(Charsets.UTF_8);
     }
 
+    /**
+     * Decodes a binary XML file into a canonical {@link XmlNode} tree, or returns {@code null} if
+     * {@code bytes} is not a binary XML file.
+     */
+    @Nullable
+    public static XmlNode decodeTree(@NonNull byte[] bytes) {
+        try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+            span.addBytes(bytes.length);
+            ChunkValidator.validate(bytes, DecodeLimits.get());
+            BinaryResourceFile file = new BinaryResourceFile(bytes);
+            List<Chunk> chunks = file.getChunks();
+            if (chunks.size() != 1 || !(chunks.get(0) instanceof XmlChunk)) {
+                return null;
+            }
+
+            XmlTreeBuilder builder = new XmlTreeBuilder();
+            visitChunks(((XmlChunk) chunks.get(0)).getChunks(), builder);
+            return builder.getRoot();
+        }
+    }
+
     private static void visitChunks(
             @NonNull Map<Integer, Chunk> chunks, @NonNull XmlChunkHandler handler) {
         // sort the chunks by their offset in the file in order to traverse them in the right order
         List<Chunk> contentChunks = sortByOffset(chunks);
 
+        int visited = 0;
         for (Chunk chunk : contentChunks) {
+            if (++visited % TIME_CHECK_INTERVAL == 0) {
+                DecodeLimits.checkTime();
+            }
             if (chunk instanceof StringPoolChunk) {
                 handler.stringPool((StringPoolChunk) chunk);
             } else if (chunk instanceof XmlResourceMapChunk) {
@@ -107,17 +150,16 @@ public class BinaryXmlParser {
         default void endElement(@NonNull XmlEndElementChunk chunk) {}
     }
 
-    private static class XmlPrinter implements XmlChunkHandler {
-        private final XmlBuilder builder;
-        private Map<String, String> namespaces = new HashMap<>();
-        private boolean namespacesAdded;
+    /**
+     * Base class for handlers that need the attributes of each element resolved to their
+     * namespace prefix, name and display value.
+     */
+    private abstract static class XmlElementHandler implements XmlChunkHandler {
+        // in declaration order, so that the output does not depend on hashing
+        protected final Map<String, String> namespaces = new LinkedHashMap<>();
         private StringPoolChunk stringPool;
         private XmlResourceMapChunk xmlResourceMapChunk;
 
-        public XmlPrinter() {
-            builder = new XmlBuilder();
-        }
-
         @Override
         public void xmlResourceMap(@NonNull XmlResourceMapChunk chunk) {
             xmlResourceMapChunk = chunk;
@@ -134,6 +176,56 @@ public class BinaryXmlParser {
             namespaces.put(chunk.getUri(), chunk.getPrefix());
         }
 
+        @NonNull
+        protected String getPrefix(@NonNull XmlAttribute attribute) {
+            if (getFrameworkName(attribute) != null) {
+                return SdkConstants.ANDROID_NS_NAME;
+            }
+            return notNullize(namespaces.get(attribute.namespace()));
+        }
+
+        @NonNull
+        protected String getName(@NonNull XmlAttribute attribute) {
+            String frameworkName = getFrameworkName(attribute);
+            return frameworkName != null ? frameworkName : attribute.name();
+        }
+
+        /**
+         * Returns the name of the framework attribute the resource map associates with {@code
+         * attribute}, which is authoritative since the string pool name may be obfuscated.
+         */
+        @Nullable
+        private String getFrameworkName(@NonNull XmlAttribute attribute) {
+            try {
+                int index = attribute.nameIndex();
+                BinaryResourceIdentifier binaryResourceIdentifier =
+                        xmlResourceMapChunk.getResourceId(index);
+                return ResMap.id2name.get(binaryResourceIdentifier.toString());
+            } catch (Exception exception) {
+                return null;
+            }
+        }
+
+        @NonNull
+        protected String getValue(@NonNull XmlAttribute attribute) {
+            String rawValue = attribute.rawValue();
+            if (!(rawValue == null || rawValue.isEmpty())) {
+                return rawValue;
+            }
+
+            BinaryResourceValue resValue = attribute.typedValue();
+            return formatValue(resValue, stringPool);
+        }
+    }
+
+    private static class XmlPrinter extends XmlElementHandler {
+        private final XmlBuilder builder;
+        private boolean namespacesAdded;
+
+        public XmlPrinter() {
+            builder = new XmlBuilder();
+        }
+
         @Override
         public void startElement(@NonNull XmlStartElementChunk chunk) {
             builder.startTag(chunk.getName());
@@ -147,24 +239,11 @@ public class BinaryXmlParser {
             }
 
             for (XmlAttribute xmlAttribute : chunk.getAttributes()) {
-                String prefix = notNullize(namespaces.get(xmlAttribute.namespace()));
-                String attrName = xmlAttribute.name();
-                try {
-                    int index = xmlAttribute.nameIndex();
-                    BinaryResourceIdentifier binaryResourceIdentifier = xmlResourceMapChunk.getResourceId(index);
-                    attrName = ResMap.id2name.get(binaryResourceIdentifier.toString());
-                    prefix = "android";
-                } catch (Exception exception) {
-                    // pass
-                }
-                builder.attribute(prefix, attrName, getValue(xmlAttribute));
+                builder.attribute(
+                        getPrefix(xmlAttribute), getName(xmlAttribute), getValue(xmlAttribute));
             }
         }
 
-        public static String notNullize(@Nullable final String s) {
-            return s == null ? "" : s;
-        }
-
         @Override
         public void endElement(@NonNull XmlEndElementChunk chunk) {
             builder.endTag(chunk.getName());
@@ -174,17 +253,47 @@ public class BinaryXmlParser {
         public String getReconstructedXml() {
             return builder.toString();
         }
+    }
 
-        @NonNull
-        private String getValue(@NonNull XmlAttribute attribute) {
-            String rawValue = attribute.rawValue();
-            if (!(rawValue == null || rawValue.isEmpty())) {
-                return rawValue;
+    private static class XmlTreeBuilder extends XmlElementHandler {
+        private final Deque<XmlNode> stack = new ArrayDeque<>();
+        private XmlNode root;
+
+        @Override
+        public void startElement(@NonNull XmlStartElementChunk chunk) {
+            // trees are kept around, e.g. by diffs, so share their names and values across apps
+            StringTable strings = StringTable.getShared();
+            XmlNode node = new XmlNode(strings.intern(chunk.getName()));
+            for (XmlAttribute xmlAttribute : chunk.getAttributes()) {
+                String prefix = getPrefix(xmlAttribute);
+                String name = getName(xmlAttribute);
+                node.setAttribute(
+                        strings.intern(prefix.isEmpty() ? name : prefix + ':' + name),
+                        strings.intern(getValue(xmlAttribute)));
             }
 
-            BinaryResourceValue resValue = attribute.typedValue();
-            return formatValue(resValue, stringPool);
+            XmlNode parent = stack.peek();
+            if (parent != null) {
+                parent.addChild(node);
+            } else if (root == null) {
+                root = node;
+            }
+            stack.push(node);
         }
+
+        @Override
+        public void endElement(@NonNull XmlEndElementChunk chunk) {
+            stack.pop();
+        }
+
+        @Nullable
+        public XmlNode getRoot() {
+            return root;
+        }
+    }
+
+    public static String notNullize(@Nullable final String s) {
+        return s == null ? "" : s;
     }
 
     public static String formatValue(
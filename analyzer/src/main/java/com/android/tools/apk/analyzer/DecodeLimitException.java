@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+
+/**
+ * Thrown when an APK exceeds one of the {@link DecodeLimits}: an entry inflates past the size
+ * or compression ratio limit, a chunk header is inconsistent, or the item ran out of its memory
+ * or time budget.
+ */
+public class DecodeLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DecodeLimitException(@NonNull String message) {
+        super(message);
+    }
+}
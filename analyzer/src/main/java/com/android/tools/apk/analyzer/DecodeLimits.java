@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds on the resources spent decoding a single APK, so that a hostile or broken one (a
+ * decompression bomb, a string pool claiming billions of strings, a chunk of size zero) fails
+ * with a {@link DecodeLimitException} instead of exhausting the memory of the whole process.
+ *
+ * <p>Three kinds of checks are made:
+ *
+ * <ul>
+ *   <li>entries are inflated up to {@link #getMaxEntrySize()} bytes, and at most {@link
+ *       #getMaxCompressionRatio()} times their compressed size;
+ *   <li>binary XML chunk headers are checked against each other and against the file before
+ *       anything is allocated from them, and the number of chunks and the element depth are
+ *       bounded;
+ *   <li>each item, such as a command or a scanned APK, runs within a {@link Budget} of memory
+ *       and time. The memory charged is an estimate of the bytes allocated for the entries and
+ *       strings decoded, not a measurement.
+ * </ul>
+ *
+ * Zero disables a limit. The limits in effect are process wide, like {@link Timings}; budgets
+ * are per thread and are entered with {@link #startItem()}:
+ *
+ * <pre>
+ * try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+ *     ...
+ * }
+ * </pre>
+ */
+public final class DecodeLimits {
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+
+    /** Compression ratios are only checked above this size: tiny entries compress very well */
+    private static final long RATIO_MIN_SIZE = MB;
+
+    /** Generous limits, always enforced, which no legitimate APK comes close to */
+    public static final DecodeLimits DEFAULT =
+            new DecodeLimits(64 * MB, 0, 1 << 21, 1024, GB, 0);
+
+    /** Tight limits for scanning untrusted APKs, see {@code --safe} */
+    public static final DecodeLimits SAFE =
+            new DecodeLimits(8 * MB, 100, 1 << 18, 256, 256 * MB, TimeUnit.SECONDS.toMillis(30));
+
+    private static volatile DecodeLimits limits = DEFAULT;
+
+    private static final ThreadLocal<Budget> BUDGET = new ThreadLocal<>();
+
+    private final long maxEntrySize;
+    private final long maxCompressionRatio;
+    private final long maxChunks;
+    private final long maxDepth;
+    private final long maxItemMemory;
+    private final long maxItemMillis;
+
+    private DecodeLimits(
+            long maxEntrySize,
+            long maxCompressionRatio,
+            long maxChunks,
+            long maxDepth,
+            long maxItemMemory,
+            long maxItemMillis) {
+        this.maxEntrySize = maxEntrySize;
+        this.maxCompressionRatio = maxCompressionRatio;
+        this.maxChunks = maxChunks;
+        this.maxDepth = maxDepth;
+        this.maxItemMemory = maxItemMemory;
+        this.maxItemMillis = maxItemMillis;
+    }
+
+    /** Returns the limits in effect */
+    @NonNull
+    public static DecodeLimits get() {
+        return limits;
+    }
+
+    public static void set(@NonNull DecodeLimits limits) {
+        DecodeLimits.limits = limits;
+    }
+
+    /** Maximum inflated size of an entry, in bytes */
+    public long getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /** Maximum ratio of the inflated to the compressed size of an entry */
+    public long getMaxCompressionRatio() {
+        return maxCompressionRatio;
+    }
+
+    /** Maximum number of chunks in a binary XML file */
+    public long getMaxChunks() {
+        return maxChunks;
+    }
+
+    /** Maximum nesting depth of the elements of a binary XML file */
+    public long getMaxDepth() {
+        return maxDepth;
+    }
+
+    /** Maximum memory charged to the budget of an item, in bytes */
+    public long getMaxItemMemory() {
+        return maxItemMemory;
+    }
+
+    /** Maximum time an item may spend decoding, in milliseconds */
+    public long getMaxItemMillis() {
+        return maxItemMillis;
+    }
+
+    /**
+     * Returns these limits with some of them replaced, as given by {@code spec}: a comma separated
+     * list of {@code entry}, {@code ratio}, {@code chunks}, {@code depth}, {@code memory} or
+     * {@code time} assignments. Sizes take an optional {@code k}, {@code m} or {@code g} suffix
+     * and times an {@code ms} or {@code s} suffix, e.g. {@code entry=16m,time=10s,ratio=0}.
+     *
+     * @throws IllegalArgumentException if {@code spec} is malformed
+     */
+    @NonNull
+    public DecodeLimits with(@NonNull String spec) {
+        long[] values = {
+            maxEntrySize, maxCompressionRatio, maxChunks, maxDepth, maxItemMemory, maxItemMillis
+        };
+        for (String assignment : spec.split(",")) {
+            int equals = assignment.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected <limit>=<value>: " + assignment);
+            }
+            String name = assignment.substring(0, equals).trim();
+            String value = assignment.substring(equals + 1).trim().toLowerCase(Locale.US);
+            switch (name) {
+                case "entry":
+                    values[0] = parseSize(value);
+                    break;
+                case "ratio":
+                    values[1] = parseCount(value);
+                    break;
+                case "chunks":
+                    values[2] = parseCount(value);
+                    break;
+                case "depth":
+                    values[3] = parseCount(value);
+                    break;
+                case "memory":
+                    values[4] = parseSize(value);
+                    break;
+                case "time":
+                    values[5] = parseMillis(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown limit: " + name);
+            }
+        }
+        return new DecodeLimits(values[0], values[1], values[2], values[3], values[4], values[5]);
+    }
+
+    private static long parseCount(@NonNull String value) {
+        long count = Long.parseLong(value);
+        if (count < 0) {
+            throw new IllegalArgumentException("Negative limit: " + value);
+        }
+        return count;
+    }
+
+    private static long parseSize(@NonNull String value) {
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = KB;
+        } else if (value.endsWith("m")) {
+            unit = MB;
+        } else if (value.endsWith("g")) {
+            unit = GB;
+        }
+        long count = parseCount(unit == 1 ? value : value.substring(0, value.length() - 1));
+        return multiply(count, unit, value);
+    }
+
+    private static long parseMillis(@NonNull String value) {
+        if (value.endsWith("ms")) {
+            return parseCount(value.substring(0, value.length() - 2));
+        } else if (value.endsWith("s")) {
+            long seconds = parseCount(value.substring(0, value.length() - 1));
+            return multiply(seconds, TimeUnit.SECONDS.toMillis(1), value);
+        }
+        return parseCount(value);
+    }
+
+    private static long multiply(long count, long unit, @NonNull String value) {
+        try {
+            return Math.multiplyExact(count, unit);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Limit out of range: " + value, e);
+        }
+    }
+
+    /**
+     * Checks that an entry inflating to {@code size} bytes from {@code compressedSize} bytes, or
+     * -1 if unknown, is within the entry size and compression ratio limits.
+     */
+    public void checkEntry(@NonNull String name, long size, long compressedSize) {
+        if (maxEntrySize > 0 && size > maxEntrySize) {
+            throw new DecodeLimitException(
+                    String.format(
+                            Locale.US,
+                            "%s inflates to more than %d bytes",
+                            name,
+                            maxEntrySize));
+        }
+        if (maxCompressionRatio > 0
+                && compressedSize >= 0
+                && size > RATIO_MIN_SIZE
+                && size > compressedSize * maxCompressionRatio) {
+            throw new DecodeLimitException(
+                    String.format(
+                            Locale.US,
+                            "%s inflates more than %d times: %d bytes compressed to %d",
+                            name,
+                            maxCompressionRatio,
+                            size,
+                            compressedSize));
+        }
+    }
+
+    /** Starts the budget of a new item on the calling thread, under the limits in effect. */
+    @NonNull
+    public static Scope startItem() {
+        return enter(new Budget(limits));
+    }
+
+    /**
+     * Returns the budget of the item running on the calling thread, to be entered by the threads
+     * it hands work to, or {@code null} if none.
+     */
+    @Nullable
+    public static Budget currentBudget() {
+        return BUDGET.get();
+    }
+
+    /** Makes the calling thread charge {@code budget}, until the returned scope is closed. */
+    @NonNull
+    public static Scope enter(@Nullable Budget budget) {
+        Scope scope = new Scope(BUDGET.get());
+        if (budget != null) {
+            BUDGET.set(budget);
+        }
+        return scope;
+    }
+
+    /**
+     * Charges {@code bytes} about to be allocated to the budget of the current item, and checks
+     * its deadline.
+     *
+     * @throws DecodeLimitException if the budget is exhausted
+     */
+    public static void charge(long bytes) {
+        Budget budget = BUDGET.get();
+        if (budget != null) {
+            budget.charge(bytes);
+        }
+    }
+
+    /**
+     * Checks the deadline of the current item; cheap enough to be called every few hundred
+     * chunks.
+     *
+     * @throws DecodeLimitException if the item is out of time
+     */
+    public static void checkTime() {
+        Budget budget = BUDGET.get();
+        if (budget != null) {
+            budget.checkTime();
+        }
+    }
+
+    /** The memory and time an item may still spend. Safe for use by multiple threads. */
+    public static final class Budget {
+        @NonNull private final DecodeLimits limits;
+        private final long deadline;
+        private final AtomicLong charged = new AtomicLong();
+
+        Budget(@NonNull DecodeLimits limits) {
+            this.limits = limits;
+            this.deadline =
+                    limits.maxItemMillis > 0
+                            ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(limits.maxItemMillis)
+                            : 0;
+        }
+
+        /** Returns the bytes charged so far */
+        public long getCharged() {
+            return charged.get();
+        }
+
+        void charge(long bytes) {
+            long total = charged.addAndGet(bytes);
+            if (limits.maxItemMemory > 0 && total > limits.maxItemMemory) {
+                throw new DecodeLimitException(
+                        String.format(
+                                Locale.US,
+                                "Decoding exceeded the memory budget of %d bytes",
+                                limits.maxItemMemory));
+            }
+            checkTime();
+        }
+
+        void checkTime() {
+            if (deadline != 0 && System.nanoTime() - deadline > 0) {
+                throw new DecodeLimitException(
+                        String.format(
+                                Locale.US,
+                                "Decoding exceeded the time budget of %d ms",
+                                limits.maxItemMillis));
+            }
+        }
+    }
+
+    /** Restores the budget the thread charged before, when closed */
+    public static final class Scope implements AutoCloseable {
+        @Nullable private final Budget previous;
+
+        private Scope(@Nullable Budget previous) {
+            this.previous = previous;
+        }
+
+        @Override
+        public void close() {
+            if (previous != null) {
+                BUDGET.set(previous);
+            } else {
+                BUDGET.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.internal.ZipCentralDirectory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The counts of a {@code classes*.dex} file of an APK, read from its header and ID tables only.
+ *
+ * <p>{@link #readHeader} reads the 112 bytes of the header, which hold the number of strings,
+ * types, method and field references and class definitions: its cost does not depend on the size
+ * of the code. {@link #read} also walks the type, field, method and class definition tables, plus
+ * the type descriptors and the four counts at the start of each class data item, to break these
+ * counts down per package. Code items, debug info and annotations are never decoded.
+ *
+ * <p>Stored entries are memory mapped, so only the pages holding these tables are read. Deflated
+ * entries are inflated up to the furthest byte needed, within the {@link DecodeLimits}; since
+ * string data usually follows the code, that is most of the entry for {@link #read}.
+ *
+ * <p>Malformed files throw {@link DecodeLimitException}.
+ */
+public final class DexFile {
+    /** The number of method, field or type references a single dex file can address */
+    public static final int MAX_REFERENCES = 0x10000;
+
+    /** Name under which classes outside of any package are reported */
+    public static final String DEFAULT_PACKAGE = "<default>";
+
+    private static final int HEADER_SIZE = 0x70;
+    private static final int ENDIAN_CONSTANT = 0x12345678;
+    private static final int TYPE_ID_SIZE = 4;
+    private static final int FIELD_ID_SIZE = 8;
+    private static final int METHOD_ID_SIZE = 8;
+    private static final int CLASS_DEF_SIZE = 32;
+    private static final int NO_INDEX = -1;
+
+    /** Number of classes, methods and fields of a package, defined and referenced */
+    public static final class PackageStats {
+        @NonNull private final String name;
+        private int classes;
+        private int definedMethods;
+        private int referencedMethods;
+        private int definedFields;
+        private int referencedFields;
+
+        PackageStats(@NonNull String name) {
+            this.name = name;
+        }
+
+        /** Returns the dotted package name, or {@link #DEFAULT_PACKAGE} */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the number of classes defined in this package */
+        public int getClasses() {
+            return classes;
+        }
+
+        /** Returns the number of methods of the classes defined in this package */
+        public int getDefinedMethods() {
+            return definedMethods;
+        }
+
+        /** Returns the number of method references to classes of this package */
+        public int getReferencedMethods() {
+            return referencedMethods;
+        }
+
+        /** Returns the number of fields of the classes defined in this package */
+        public int getDefinedFields() {
+            return definedFields;
+        }
+
+        /** Returns the number of field references to classes of this package */
+        public int getReferencedFields() {
+            return referencedFields;
+        }
+
+        /** Adds the counts of {@code other}, typically the same package in another dex file */
+        public void add(@NonNull PackageStats other) {
+            classes += other.classes;
+            definedMethods += other.definedMethods;
+            referencedMethods += other.referencedMethods;
+            definedFields += other.definedFields;
+            referencedFields += other.referencedFields;
+        }
+    }
+
+    private final int version;
+    private final long fileSize;
+    private final int stringCount;
+    private final int typeCount;
+    private final int protoCount;
+    private final int fieldCount;
+    private final int methodCount;
+    private final int classCount;
+    @Nullable private final Map<String, PackageStats> packages;
+
+    private DexFile(@NonNull Source source, boolean readTables) throws IOException {
+        source.ensure(HEADER_SIZE);
+        ByteBuffer header = source.buffer;
+        if (header.get(0) != 'd'
+                || header.get(1) != 'e'
+                || header.get(2) != 'x'
+                || header.get(3) != '\n'
+                || header.get(7) != 0) {
+            throw malformed(source, "bad magic");
+        }
+        if (header.getInt(40) != ENDIAN_CONSTANT) {
+            throw malformed(source, "unsupported endianness");
+        }
+        version = parseVersion(source, header);
+        fileSize = header.getInt(32) & 0xFFFFFFFFL;
+        if (fileSize < HEADER_SIZE || fileSize > source.size) {
+            throw malformed(source, "file size " + fileSize);
+        }
+        stringCount = checkTable(source, 56, TYPE_ID_SIZE);
+        typeCount = checkTable(source, 64, TYPE_ID_SIZE);
+        protoCount = checkTable(source, 72, 12);
+        fieldCount = checkTable(source, 80, FIELD_ID_SIZE);
+        methodCount = checkTable(source, 88, METHOD_ID_SIZE);
+        classCount = checkTable(source, 96, CLASS_DEF_SIZE);
+        packages = readTables ? new Tables(source, header).readPackages() : null;
+    }
+
+    /** Reads the header of the dex {@code entry} of the zip file {@code channel}. */
+    @NonNull
+    public static DexFile readHeader(
+            @NonNull FileChannel channel, @NonNull ZipCentralDirectory.Entry entry)
+            throws IOException {
+        return read(channel, entry, false);
+    }
+
+    /**
+     * Reads the header and the ID tables of the dex {@code entry} of the zip file {@code
+     * channel}, see {@link #getPackages()}.
+     */
+    @NonNull
+    public static DexFile read(
+            @NonNull FileChannel channel, @NonNull ZipCentralDirectory.Entry entry)
+            throws IOException {
+        return read(channel, entry, true);
+    }
+
+    @NonNull
+    private static DexFile read(
+            @NonNull FileChannel channel,
+            @NonNull ZipCentralDirectory.Entry entry,
+            boolean readTables)
+            throws IOException {
+        DecodeLimits.get()
+                .checkEntry(entry.getName(), entry.getSize(), entry.getCompressedSize());
+        if (entry.getSize() > Integer.MAX_VALUE) {
+            throw new DecodeLimitException(entry.getName() + ": dex file too large");
+        }
+        if (entry.getMethod() == 0) {
+            if (entry.getSize() != entry.getCompressedSize()) {
+                throw new DecodeLimitException(
+                        entry.getName() + ": stored entry with a compressed size");
+            }
+            ByteBuffer mapped =
+                    channel.map(
+                            FileChannel.MapMode.READ_ONLY,
+                            ZipCentralDirectory.getDataOffset(channel, entry),
+                            entry.getSize());
+            return new DexFile(new Source(entry.getName(), mapped), readTables);
+        }
+        try (InputStream in = ZipCentralDirectory.openEntry(channel, entry)) {
+            return new DexFile(new Source(entry.getName(), in, entry.getSize()), readTables);
+        }
+    }
+
+    /**
+     * Returns the index of a {@code classes*.dex} entry name in the multidex order, 1 for {@code
+     * classes.dex} and {@code N} for {@code classesN.dex}, or -1 if {@code name} is not the name
+     * of a dex file loaded by the platform.
+     */
+    public static int getDexIndex(@NonNull String name) {
+        if (!name.startsWith("classes") || !name.endsWith(".dex")) {
+            return -1;
+        }
+        String number = name.substring("classes".length(), name.length() - ".dex".length());
+        if (number.isEmpty()) {
+            return 1;
+        }
+        if (number.length() > 4 || number.charAt(0) == '0') {
+            return -1;
+        }
+        for (int i = 0; i < number.length(); i++) {
+            if (number.charAt(i) < '0' || number.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        int index = Integer.parseInt(number);
+        return index >= 2 ? index : -1;
+    }
+
+    /** Returns the format version from the magic, e.g. 35 or 39 */
+    public int getVersion() {
+        return version;
+    }
+
+    /** Returns the size of the dex file recorded in its header */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getStringCount() {
+        return stringCount;
+    }
+
+    public int getTypeCount() {
+        return typeCount;
+    }
+
+    public int getProtoCount() {
+        return protoCount;
+    }
+
+    /** Returns the number of field references, defined or not, the 64K limit applies to */
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    /** Returns the number of method references, defined or not, the 64K limit applies to */
+    public int getMethodCount() {
+        return methodCount;
+    }
+
+    /** Returns the number of classes defined in this dex file */
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * Returns how close this dex file is to the 64K reference limit, as the largest fraction of
+     * {@link #MAX_REFERENCES} used by its method, field or type references.
+     */
+    public double getReferenceRatio() {
+        return (double) Math.max(methodCount, Math.max(fieldCount, typeCount)) / MAX_REFERENCES;
+    }
+
+    /**
+     * Returns the stats of each package, by dotted name, or {@code null} if only the header was
+     * read. Method and field references are attributed to the package of the class they belong
+     * to, whether or not that class is defined in this dex file.
+     */
+    @Nullable
+    public Map<String, PackageStats> getPackages() {
+        return packages;
+    }
+
+    private static int parseVersion(@NonNull Source source, @NonNull ByteBuffer header) {
+        int version = 0;
+        for (int i = 4; i < 7; i++) {
+            byte b = header.get(i);
+            if (b < '0' || b > '9') {
+                throw malformed(source, "bad magic");
+            }
+            version = version * 10 + b - '0';
+        }
+        return version;
+    }
+
+    /** Checks the table whose size and offset are at {@code position}, returns its size */
+    private int checkTable(@NonNull Source source, int position, int itemSize) {
+        long size = source.buffer.getInt(position) & 0xFFFFFFFFL;
+        long offset = source.buffer.getInt(position + 4) & 0xFFFFFFFFL;
+        if (size > 0 && (offset < HEADER_SIZE || offset + size * itemSize > fileSize)) {
+            throw malformed(source, "table at " + offset + " of " + size + " items");
+        }
+        return (int) size;
+    }
+
+    @NonNull
+    private static DecodeLimitException malformed(@NonNull Source source, @NonNull String what) {
+        return new DecodeLimitException("Malformed dex file " + source.name + ": " + what);
+    }
+
+    /** The ID tables and the data they point to */
+    private final class Tables {
+        @NonNull private final Source source;
+        private final int stringIds;
+        private final int typeIds;
+        private final int fieldIds;
+        private final int methodIds;
+        private final int classDefs;
+        /** Package of each type, {@code null} until computed or for primitive types */
+        @NonNull private final PackageStats[] typePackages;
+
+        @NonNull private final boolean[] resolved;
+        @NonNull private final Map<String, PackageStats> packages = new TreeMap<>();
+        @NonNull private char[] chars = new char[64];
+
+        Tables(@NonNull Source source, @NonNull ByteBuffer header) {
+            this.source = source;
+            stringIds = header.getInt(60);
+            typeIds = header.getInt(68);
+            fieldIds = header.getInt(84);
+            methodIds = header.getInt(92);
+            classDefs = header.getInt(100);
+            typePackages = new PackageStats[typeCount];
+            resolved = new boolean[typeCount];
+            DecodeLimits.charge(5L * typeCount);
+        }
+
+        @NonNull
+        Map<String, PackageStats> readPackages() throws IOException {
+            // the tables may come in any order, so read up to the end of the furthest one
+            source.ensure(
+                    Math.max(
+                            Math.max(
+                                    tableEnd(typeIds, typeCount, TYPE_ID_SIZE),
+                                    tableEnd(fieldIds, fieldCount, FIELD_ID_SIZE)),
+                            Math.max(
+                                    tableEnd(methodIds, methodCount, METHOD_ID_SIZE),
+                                    tableEnd(classDefs, classCount, CLASS_DEF_SIZE))));
+            for (int i = 0; i < fieldCount; i++) {
+                PackageStats stats = getPackage(readUnsignedShort(fieldIds + i * FIELD_ID_SIZE));
+                if (stats != null) {
+                    stats.referencedFields++;
+                }
+            }
+            for (int i = 0; i < methodCount; i++) {
+                PackageStats stats =
+                        getPackage(readUnsignedShort(methodIds + i * METHOD_ID_SIZE));
+                if (stats != null) {
+                    stats.referencedMethods++;
+                }
+            }
+            for (int i = 0; i < classCount; i++) {
+                int classDef = classDefs + i * CLASS_DEF_SIZE;
+                PackageStats stats = getPackage(source.buffer.getInt(classDef));
+                if (stats == null) {
+                    throw malformed(source, "class definition of a primitive type");
+                }
+                stats.classes++;
+                long classData = source.buffer.getInt(classDef + 24) & 0xFFFFFFFFL;
+                if (classData != 0) {
+                    long[] position = {checkOffset(classData)};
+                    stats.definedFields += readUleb128(position);
+                    stats.definedFields += readUleb128(position);
+                    stats.definedMethods += readUleb128(position);
+                    stats.definedMethods += readUleb128(position);
+                }
+            }
+            DecodeLimits.checkTime();
+            return Collections.unmodifiableMap(packages);
+        }
+
+        /** Returns the end of a table checked by {@link #checkTable}, or 0 if it is empty */
+        private long tableEnd(int offset, int count, int itemSize) {
+            return count > 0 ? (offset & 0xFFFFFFFFL) + (long) count * itemSize : 0;
+        }
+
+        @Nullable
+        private PackageStats getPackage(int typeIndex) throws IOException {
+            if (typeIndex < 0 || typeIndex >= typeCount) {
+                throw malformed(source, "type index " + typeIndex);
+            }
+            if (!resolved[typeIndex]) {
+                String name = readPackageName(source.buffer.getInt(typeIds + typeIndex * 4));
+                if (name != null) {
+                    PackageStats stats = packages.get(name);
+                    if (stats == null) {
+                        stats = new PackageStats(name);
+                        packages.put(name, stats);
+                    }
+                    typePackages[typeIndex] = stats;
+                }
+                resolved[typeIndex] = true;
+            }
+            return typePackages[typeIndex];
+        }
+
+        /**
+         * Returns the dotted package of the type descriptor string {@code stringIndex}, that of the
+         * element type for arrays, or {@code null} for primitive types.
+         */
+        @Nullable
+        private String readPackageName(int stringIndex) throws IOException {
+            if (stringIndex < 0 || stringIndex >= stringCount) {
+                throw malformed(source, "string index " + stringIndex);
+            }
+            source.ensure(stringIds + (long) stringIndex * 4 + 4);
+            long[] position = {checkOffset(source.buffer.getInt(stringIds + stringIndex * 4))};
+            long declared = readUleb128(position);
+            // each UTF-16 unit takes at least 1 and at most 3 bytes of MUTF-8
+            long end = Math.min(position[0] + 3 * declared, fileSize);
+            if (declared > end - position[0]) {
+                throw malformed(source, "string " + stringIndex + " of " + declared + " units");
+            }
+            int length = (int) declared;
+            source.ensure(end);
+            if (chars.length < length) {
+                DecodeLimits.charge(2L * length);
+                chars = new char[length];
+            }
+            int count = decodeMutf8(position[0], end, length);
+            int start = 0;
+            while (start < count && chars[start] == '[') {
+                start++;
+            }
+            if (start == count || chars[start] != 'L') {
+                return null;
+            }
+            int lastSlash = -1;
+            for (int i = start + 1; i < count; i++) {
+                if (chars[i] == '/') {
+                    chars[i] = '.';
+                    lastSlash = i;
+                }
+            }
+            return lastSlash < 0
+                    ? DEFAULT_PACKAGE
+                    : new String(chars, start + 1, lastSlash - start - 1);
+        }
+
+        /** Decodes up to {@code length} MUTF-8 characters into {@link #chars} */
+        private int decodeMutf8(long start, long end, int length) {
+            ByteBuffer buffer = source.buffer;
+            int position = (int) start;
+            int count = 0;
+            while (count < length) {
+                if (position >= end) {
+                    throw malformed(source, "truncated string at " + start);
+                }
+                int a = buffer.get(position++) & 0xFF;
+                if (a < 0x80) {
+                    chars[count++] = (char) a;
+                } else if ((a & 0xE0) == 0xC0 && position < end) {
+                    int b = buffer.get(position++) & 0x3F;
+                    chars[count++] = (char) (((a & 0x1F) << 6) | b);
+                } else if ((a & 0xF0) == 0xE0 && position + 1 < end) {
+                    int b = buffer.get(position++) & 0x3F;
+                    int c = buffer.get(position++) & 0x3F;
+                    chars[count++] = (char) (((a & 0x0F) << 12) | (b << 6) | c);
+                } else {
+                    throw malformed(source, "bad string at " + start);
+                }
+            }
+            return count;
+        }
+
+        private long checkOffset(long offset) {
+            long unsigned = offset & 0xFFFFFFFFL;
+            if (unsigned < HEADER_SIZE || unsigned >= fileSize) {
+                throw malformed(source, "offset " + unsigned);
+            }
+            return unsigned;
+        }
+
+        private int readUnsignedShort(int position) {
+            return source.buffer.getShort(position) & 0xFFFF;
+        }
+
+        /** Reads the uleb128 at {@code position[0]} and moves it past the value */
+        private long readUleb128(@NonNull long[] position) throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                if (position[0] >= fileSize) {
+                    break;
+                }
+                source.ensure(position[0] + 1);
+                int b = source.buffer.get((int) position[0]++);
+                result |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return result;
+                }
+            }
+            throw malformed(source, "bad uleb128 at " + position[0]);
+        }
+    }
+
+    /**
+     * The bytes of a dex file, either mapped or inflated on demand up to the furthest position
+     * read so far.
+     */
+    private static final class Source {
+        @NonNull private final String name;
+        /** Declared size of the entry */
+        private final long size;
+        @Nullable private final InputStream in;
+        @NonNull private ByteBuffer buffer;
+        private byte[] bytes;
+        private int length;
+
+        Source(@NonNull String name, @NonNull ByteBuffer mapped) {
+            this.name = name;
+            this.size = mapped.capacity();
+            this.in = null;
+            this.buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        Source(@NonNull String name, @NonNull InputStream in, long size) {
+            this.name = name;
+            this.size = size;
+            this.in = in;
+            this.bytes = new byte[(int) Math.min(size, 64 * 1024)];
+            this.buffer = ByteBuffer.wrap(bytes, 0, 0).order(ByteOrder.LITTLE_ENDIAN);
+            DecodeLimits.charge(bytes.length);
+        }
+
+        /** Makes the bytes up to {@code end} available, or throws if the file is shorter */
+        void ensure(long end) throws IOException {
+            if (end > size) {
+                throw malformed(this, "truncated at " + end + " of " + size + " bytes");
+            }
+            if (in == null || end <= length) {
+                return;
+            }
+            if (end > bytes.length) {
+                int capacity = (int) Math.min(size, Math.max(end, 2L * bytes.length));
+                DecodeLimits.charge(capacity);
+                bytes = Arrays.copyOf(bytes, capacity);
+            }
+            while (length < end) {
+                int read = in.read(bytes, length, bytes.length - length);
+                if (read < 0) {
+                    throw malformed(this, "truncated at " + length + " bytes");
+                }
+                length += read;
+            }
+            buffer = ByteBuffer.wrap(bytes, 0, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.xml.ManifestData;
+import com.android.ide.common.xml.ManifestData.ComponentType;
+import com.android.tools.apk.analyzer.internal.BinaryXmlReader;
+import com.android.xml.AndroidManifest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The components of an app that other apps can reach, read straight from its binary manifest.
+ *
+ * <p>Only the elements deciding whether a component is exported are read, through a {@link
+ * BinaryXmlReader}: no XML text is built and no other attribute is decoded. A component is
+ * exported when its {@code android:exported} says so, or when it is not set and the component
+ * has an intent filter, or is a provider of an app targeting an API level below 17. Components
+ * disabled in the manifest are left out, as are components whose class name is missing.
+ */
+public final class ExportedComponents {
+    /** Resource ids of the framework attributes read from the manifest */
+    private static final int ATTR_NAME = 0x01010003;
+
+    private static final int ATTR_PERMISSION = 0x01010006;
+    private static final int ATTR_READ_PERMISSION = 0x01010007;
+    private static final int ATTR_WRITE_PERMISSION = 0x01010008;
+    private static final int ATTR_ENABLED = 0x0101000e;
+    private static final int ATTR_EXPORTED = 0x01010010;
+    private static final int ATTR_TARGET_ACTIVITY = 0x01010202;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+
+    /** API level of an app targeting a preview platform, by its code name */
+    private static final int CUR_DEVELOPMENT = 10000;
+
+    /** Why a component is exported */
+    public enum Reason {
+        /** {@code android:exported="true"} */
+        EXPLICIT("exported"),
+        /** No {@code android:exported}, and the component has an intent filter */
+        INTENT_FILTER("intent-filter"),
+        /** No {@code android:exported} on a provider of an app targeting API level 16 or lower */
+        PROVIDER_DEFAULT("provider-default"),
+        /**
+         * {@code android:exported} is a resource reference, which depends on the device
+         * configuration; such components are reported as exported
+         */
+        UNRESOLVED("unresolved");
+
+        @NonNull private final String displayName;
+
+        Reason(@NonNull String displayName) {
+            this.displayName = displayName;
+        }
+
+        @NonNull
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /** An exported component and the permissions guarding it */
+    public static final class Component {
+        @NonNull private final ComponentType type;
+        @NonNull private final String name;
+        @NonNull private final Reason reason;
+        @Nullable private final String readPermission;
+        @Nullable private final String writePermission;
+
+        Component(
+                @NonNull ComponentType type,
+                @NonNull String name,
+                @NonNull Reason reason,
+                @Nullable String readPermission,
+                @Nullable String writePermission) {
+            this.type = type;
+            this.name = name;
+            this.reason = reason;
+            this.readPermission = readPermission;
+            this.writePermission = writePermission;
+        }
+
+        @NonNull
+        public ComponentType getType() {
+            return type;
+        }
+
+        /** Returns the fully qualified class name */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        @NonNull
+        public Reason getReason() {
+            return reason;
+        }
+
+        /**
+         * Returns the permission callers need, after the defaults of the application and, for
+         * aliases, of the target activity; for providers, the permission needed to query it.
+         */
+        @Nullable
+        public String getPermission() {
+            return readPermission;
+        }
+
+        /** Returns the permission needed to modify the data of a provider */
+        @Nullable
+        public String getWritePermission() {
+            return writePermission;
+        }
+
+        /**
+         * Returns whether callers need a permission to reach the component; providers need one
+         * for both reading and writing.
+         */
+        public boolean isGuarded() {
+            return readPermission != null
+                    && (type != ComponentType.PROVIDER || writePermission != null);
+        }
+
+        /**
+         * Returns the permissions as printed by {@code fleet exported}: the permission, {@code
+         * read/write} for providers guarded differently for each, or {@code -}.
+         */
+        @NonNull
+        public String getGuard() {
+            if (type == ComponentType.PROVIDER
+                    && (readPermission == null
+                            ? writePermission != null
+                            : !readPermission.equals(writePermission))) {
+                return (readPermission != null ? readPermission : "-")
+                        + '/'
+                        + (writePermission != null ? writePermission : "-");
+            }
+            return readPermission != null ? readPermission : "-";
+        }
+    }
+
+    /** A component as declared, before the defaults and the exported rule are applied */
+    private static final class Declaration {
+        @NonNull final ComponentType type;
+        @NonNull final String name;
+        @Nullable final String exported;
+        @Nullable final String permission;
+        @Nullable final String readPermission;
+        @Nullable final String writePermission;
+        @Nullable final String targetActivity;
+        boolean hasIntentFilter;
+
+        Declaration(
+                @NonNull ComponentType type,
+                @NonNull String name,
+                @Nullable String exported,
+                @Nullable String permission,
+                @Nullable String readPermission,
+                @Nullable String writePermission,
+                @Nullable String targetActivity) {
+            this.type = type;
+            this.name = name;
+            this.exported = exported;
+            this.permission = permission;
+            this.readPermission = readPermission;
+            this.writePermission = writePermission;
+            this.targetActivity = targetActivity;
+        }
+    }
+
+    @Nullable private final String packageName;
+    private final int targetSdkVersion;
+    @NonNull private final List<Component> components;
+
+    private ExportedComponents(
+            @Nullable String packageName,
+            int targetSdkVersion,
+            @NonNull List<Component> components) {
+        this.packageName = packageName;
+        this.targetSdkVersion = targetSdkVersion;
+        this.components = components;
+    }
+
+    /** Returns the package name, or {@code null} if the manifest does not declare one */
+    @Nullable
+    public String getPackage() {
+        return packageName;
+    }
+
+    /** Returns the target API level the exported rule was applied with */
+    public int getTargetSdkVersion() {
+        return targetSdkVersion;
+    }
+
+    /** Returns the exported components, in declaration order */
+    @NonNull
+    public List<Component> getComponents() {
+        return components;
+    }
+
+    /**
+     * Reads the exported components of the binary manifest {@code bytes}.
+     *
+     * @throws IllegalArgumentException if {@code bytes} is not a binary XML file
+     * @throws DecodeLimitException if the manifest is malformed or exceeds the {@link
+     *     DecodeLimits}
+     */
+    @NonNull
+    public static ExportedComponents read(@NonNull byte[] bytes) {
+        try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+            span.addBytes(bytes.length);
+            BinaryXmlReader reader = BinaryXmlReader.open(bytes);
+            if (reader == null) {
+                throw new IllegalArgumentException("Not a binary XML file");
+            }
+            return read(reader);
+        }
+    }
+
+    @NonNull
+    private static ExportedComponents read(@NonNull BinaryXmlReader reader) {
+        String packageName = null;
+        String minSdkVersion = null;
+        String targetSdkVersion = null;
+        String applicationPermission = null;
+        boolean applicationEnabled = true;
+        List<Declaration> declarations = new ArrayList<>();
+        // the component being read, null when disabled or outside of the components
+        Declaration current = null;
+
+        for (int event = reader.next();
+                event != BinaryXmlReader.END_DOCUMENT;
+                event = reader.next()) {
+            if (event != BinaryXmlReader.START_ELEMENT) {
+                if (reader.getDepth() == 3) {
+                    current = null;
+                }
+                continue;
+            }
+            String element = reader.getName();
+            switch (reader.getDepth()) {
+                case 1:
+                    if (AndroidManifest.NODE_MANIFEST.equals(element)) {
+                        packageName =
+                                reader.getAttributeValue(
+                                        reader.indexOfAttribute(
+                                                AndroidManifest.ATTRIBUTE_PACKAGE));
+                    }
+                    break;
+                case 2:
+                    if (AndroidManifest.NODE_USES_SDK.equals(element)) {
+                        minSdkVersion =
+                                reader.getAttributeValue(
+                                        reader.indexOfAttribute(ATTR_MIN_SDK_VERSION));
+                        targetSdkVersion =
+                                reader.getAttributeValue(
+                                        reader.indexOfAttribute(ATTR_TARGET_SDK_VERSION));
+                    } else if (AndroidManifest.NODE_APPLICATION.equals(element)) {
+                        applicationPermission =
+                                reader.getAttributeValue(reader.indexOfAttribute(ATTR_PERMISSION));
+                        applicationEnabled =
+                                !"false"
+                                        .equalsIgnoreCase(
+                                                reader.getAttributeValue(
+                                                        reader.indexOfAttribute(ATTR_ENABLED)));
+                    }
+                    break;
+                case 3:
+                    ComponentType type = element != null ? ComponentType.fromTag(element) : null;
+                    String name = reader.getAttributeValue(reader.indexOfAttribute(ATTR_NAME));
+                    if (type == null
+                            || name == null
+                            || !applicationEnabled
+                            || "false"
+                                    .equalsIgnoreCase(
+                                            reader.getAttributeValue(
+                                                    reader.indexOfAttribute(ATTR_ENABLED)))) {
+                        break;
+                    }
+                    String targetActivity =
+                            reader.getAttributeValue(reader.indexOfAttribute(ATTR_TARGET_ACTIVITY));
+                    current =
+                            new Declaration(
+                                    type,
+                                    toClassName(packageName, name),
+                                    reader.getAttributeValue(
+                                            reader.indexOfAttribute(ATTR_EXPORTED)),
+                                    reader.getAttributeValue(
+                                            reader.indexOfAttribute(ATTR_PERMISSION)),
+                                    reader.getAttributeValue(
+                                            reader.indexOfAttribute(ATTR_READ_PERMISSION)),
+                                    reader.getAttributeValue(
+                                            reader.indexOfAttribute(ATTR_WRITE_PERMISSION)),
+                                    targetActivity != null
+                                            ? toClassName(packageName, targetActivity)
+                                            : null);
+                    declarations.add(current);
+                    break;
+                case 4:
+                    if (current != null && AndroidManifest.NODE_INTENT.equals(element)) {
+                        current.hasIntentFilter = true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        int targetSdk =
+                parseSdkVersion(
+                        targetSdkVersion != null ? targetSdkVersion : minSdkVersion, 1);
+        return new ExportedComponents(
+                packageName,
+                targetSdk,
+                resolve(declarations, applicationPermission, targetSdk));
+    }
+
+    /** Applies the exported rule and the permission defaults to {@code declarations} */
+    @NonNull
+    private static List<Component> resolve(
+            @NonNull List<Declaration> declarations,
+            @Nullable String applicationPermission,
+            int targetSdkVersion) {
+        Map<String, String> activityPermissions = new HashMap<>();
+        for (Declaration declaration : declarations) {
+            if (declaration.type == ComponentType.ACTIVITY) {
+                activityPermissions.put(
+                        declaration.name,
+                        ManifestData.Component.resolvePermission(
+                                declaration.type,
+                                declaration.permission,
+                                null,
+                                null,
+                                applicationPermission));
+            }
+        }
+
+        List<Component> components = new ArrayList<>();
+        for (Declaration declaration : declarations) {
+            Reason reason;
+            if (declaration.exported != null && declaration.exported.startsWith("@")) {
+                reason = Reason.UNRESOLVED;
+            } else {
+                // ignoring case, as the manifest parser
+                Boolean exported =
+                        declaration.exported != null
+                                ? Boolean.valueOf(declaration.exported)
+                                : null;
+                if (!ManifestData.Component.isExported(
+                        declaration.type,
+                        exported,
+                        declaration.hasIntentFilter,
+                        targetSdkVersion)) {
+                    continue;
+                }
+                if (exported != null) {
+                    reason = Reason.EXPLICIT;
+                } else if (declaration.type == ComponentType.PROVIDER) {
+                    reason = Reason.PROVIDER_DEFAULT;
+                } else {
+                    reason = Reason.INTENT_FILTER;
+                }
+            }
+
+            String readPermission =
+                    ManifestData.Component.resolvePermission(
+                            declaration.type,
+                            declaration.permission,
+                            declaration.readPermission,
+                            declaration.targetActivity != null
+                                    ? activityPermissions.get(declaration.targetActivity)
+                                    : null,
+                            applicationPermission);
+            String writePermission = null;
+            if (declaration.type == ComponentType.PROVIDER) {
+                writePermission =
+                        declaration.writePermission != null
+                                ? declaration.writePermission
+                                : declaration.permission;
+            }
+            components.add(
+                    new Component(
+                            declaration.type,
+                            declaration.name,
+                            reason,
+                            readPermission,
+                            writePermission));
+        }
+        return Collections.unmodifiableList(components);
+    }
+
+    /** Parses an API level, or a preview code name */
+    private static int parseSdkVersion(@Nullable String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return value.isEmpty() || value.startsWith("@") ? defaultValue : CUR_DEVELOPMENT;
+        }
+    }
+
+    /** Returns the fully qualified form of the class name {@code name} of a manifest */
+    @NonNull
+    private static String toClassName(@Nullable String packageName, @NonNull String name) {
+        if (packageName == null || packageName.isEmpty() || name.isEmpty()) {
+            return name;
+        }
+        if (name.charAt(0) == '.') {
+            return packageName + name;
+        }
+        return name.indexOf('.') < 0 ? packageName + '.' + name : name;
+    }
+}
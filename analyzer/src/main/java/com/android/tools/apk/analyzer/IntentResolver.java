@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.xml.ManifestData;
+import com.android.ide.common.xml.ManifestData.ComponentType;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds the components whose intent filters match an intent, following the rules of the
+ * platform's {@code IntentFilter.match}: the action must be listed, every category of the intent
+ * must be listed, and the data URI and MIME type must match the schemes, authorities, paths and
+ * types of the filter.
+ *
+ * <p>Filters are indexed by action and by scheme and host, so that a query only matches the
+ * filters of the smaller of the two candidate lists against the intent, instead of every
+ * filter. Queries without an action or an indexed data URI fall back to an index by MIME type,
+ * and only then to all filters.
+ *
+ * <p>Not modeled: types resolved from {@code content:} URIs by their provider, scheme specific
+ * parts, and the path suffix and advanced patterns of recent API levels.
+ */
+public final class IntentResolver {
+    private static final String CATEGORY_DEFAULT = "android.intent.category.DEFAULT";
+    private static final String SCHEME_CONTENT = "content";
+    private static final String SCHEME_FILE = "file";
+    /** Key of the filters of a scheme that match any host */
+    private static final String ANY_HOST = "";
+
+    /** An intent to resolve. All its parts are optional. */
+    public static final class Intent {
+        @Nullable private final String action;
+        @NonNull private final Set<String> categories;
+        @Nullable private final String data;
+        @Nullable private final String type;
+        @Nullable private final String scheme;
+        @Nullable private final String host;
+        private final int port;
+        @Nullable private final String path;
+
+        /**
+         * @param data the data URI, such as {@code https://example.com/path}
+         * @param type the MIME type, such as {@code image/png} or {@code image/*}
+         * @throws IllegalArgumentException if {@code data} is not a valid URI
+         */
+        public Intent(
+                @Nullable String action,
+                @NonNull Set<String> categories,
+                @Nullable String data,
+                @Nullable String type) {
+            this.action = action;
+            this.categories = Collections.unmodifiableSet(new LinkedHashSet<>(categories));
+            this.data = data;
+            this.type = type;
+            if (data != null) {
+                URI uri;
+                try {
+                    uri = new URI(data);
+                } catch (URISyntaxException e) {
+                    throw new IllegalArgumentException("Invalid data URI: " + data, e);
+                }
+                scheme = uri.getScheme();
+                host = uri.getHost();
+                port = uri.getPort();
+                path = uri.getPath();
+            } else {
+                scheme = null;
+                host = null;
+                port = -1;
+                path = null;
+            }
+        }
+
+        @Nullable
+        public String getAction() {
+            return action;
+        }
+
+        @NonNull
+        public Set<String> getCategories() {
+            return categories;
+        }
+
+        @Nullable
+        public String getData() {
+            return data;
+        }
+
+        @Nullable
+        public String getType() {
+            return type;
+        }
+    }
+
+    /** A component with a filter matching an intent */
+    public static final class Match {
+        @NonNull private final String key;
+        @Nullable private final String packageName;
+        @NonNull private final ManifestData.Component component;
+        @NonNull private final ManifestData.IntentFilter filter;
+        private final boolean exported;
+        @Nullable private final String permission;
+
+        Match(@NonNull Filter filter) {
+            this.key = filter.key;
+            this.packageName = filter.packageName;
+            this.component = filter.component;
+            this.filter = filter.filter;
+            this.exported = filter.exported;
+            this.permission = filter.permission;
+        }
+
+        /** Returns the target the component's APK was added as */
+        @NonNull
+        public String getKey() {
+            return key;
+        }
+
+        @Nullable
+        public String getPackageName() {
+            return packageName;
+        }
+
+        @NonNull
+        public ManifestData.Component getComponent() {
+            return component;
+        }
+
+        /** Returns the matching filter */
+        @NonNull
+        public ManifestData.IntentFilter getFilter() {
+            return filter;
+        }
+
+        /** Returns whether other apps can reach the component, given its app's target SDK */
+        public boolean isExported() {
+            return exported;
+        }
+
+        /**
+         * Returns the permission a sender needs, or null, as {@link
+         * ManifestData.Component#resolvePermission}: aliases default to the permission of their
+         * target activity, other components except providers to that of the application
+         */
+        @Nullable
+        public String getPermission() {
+            return permission;
+        }
+    }
+
+    /** An indexed intent filter, numbered in the order it was added */
+    private static final class Filter {
+        final int id;
+        @NonNull final String key;
+        @Nullable final String packageName;
+        @NonNull final ManifestData.Component component;
+        @NonNull final ManifestData.IntentFilter filter;
+        final boolean exported;
+        @Nullable final String permission;
+
+        Filter(
+                int id,
+                @NonNull String key,
+                @Nullable String packageName,
+                @NonNull ManifestData.Component component,
+                @NonNull ManifestData.IntentFilter filter,
+                boolean exported,
+                @Nullable String permission) {
+            this.id = id;
+            this.key = key;
+            this.packageName = packageName;
+            this.component = component;
+            this.filter = filter;
+            this.exported = exported;
+            this.permission = permission;
+        }
+    }
+
+    private static final Comparator<Filter> BY_ID = (a, b) -> Integer.compare(a.id, b.id);
+
+    @NonNull private final List<Filter> filters = new ArrayList<>();
+    @NonNull private final Map<String, List<Filter>> byAction = new HashMap<>();
+    /** Filters by scheme, then by host, or {@link #ANY_HOST} for those without authorities */
+    @NonNull private final Map<String, Map<String, List<Filter>>> byScheme = new HashMap<>();
+    /** Filters with MIME types, by the part before the slash, or {@code *} */
+    @NonNull private final Map<String, List<Filter>> byBaseType = new HashMap<>();
+
+    /** Indexes the intent filters of the components of {@code manifestData}. */
+    public void add(@NonNull String key, @NonNull ManifestData manifestData) {
+        int targetSdkVersion = manifestData.getTargetSdkVersion();
+        String applicationPermission = manifestData.getApplicationPermission();
+        Map<String, String> activityPermissions = new HashMap<>();
+        for (ManifestData.Component component : manifestData.getComponents()) {
+            if (component.getType() == ComponentType.ACTIVITY) {
+                activityPermissions.put(
+                        component.getName(),
+                        ManifestData.Component.resolvePermission(
+                                component.getType(),
+                                component.getPermission(),
+                                null,
+                                null,
+                                applicationPermission));
+            }
+        }
+        for (ManifestData.Component component : manifestData.getComponents()) {
+            if (!component.isEnabled()) {
+                continue;
+            }
+            boolean exported = component.isExported(targetSdkVersion);
+            String targetActivity = component.getTargetActivity();
+            String permission =
+                    ManifestData.Component.resolvePermission(
+                            component.getType(),
+                            component.getPermission(),
+                            component.getReadPermission(),
+                            targetActivity != null ? activityPermissions.get(targetActivity) : null,
+                            applicationPermission);
+            for (ManifestData.IntentFilter intentFilter : component.getIntentFilters()) {
+                Filter filter =
+                        new Filter(
+                                filters.size(),
+                                key,
+                                manifestData.getPackage(),
+                                component,
+                                intentFilter,
+                                exported,
+                                permission);
+                filters.add(filter);
+                for (String action : intentFilter.getActions()) {
+                    index(byAction, action, filter);
+                }
+                for (String scheme : intentFilter.getSchemes()) {
+                    Map<String, List<Filter>> hosts =
+                            byScheme.computeIfAbsent(scheme, s -> new HashMap<>());
+                    if (intentFilter.getAuthorities().isEmpty()) {
+                        index(hosts, ANY_HOST, filter);
+                    }
+                    for (String authority : intentFilter.getAuthorities()) {
+                        index(hosts, getHost(authority), filter);
+                    }
+                }
+                for (String mimeType : intentFilter.getMimeTypes()) {
+                    index(byBaseType, getBaseType(mimeType), filter);
+                }
+            }
+        }
+    }
+
+    private static void index(
+            @NonNull Map<String, List<Filter>> index, @NonNull String key, @NonNull Filter filter) {
+        List<Filter> list = index.computeIfAbsent(key, k -> new ArrayList<>(1));
+        // a filter listing a key twice is indexed once
+        if (list.isEmpty() || list.get(list.size() - 1) != filter) {
+            list.add(filter);
+        }
+    }
+
+    /** Returns the number of indexed intent filters */
+    public int getFilterCount() {
+        return filters.size();
+    }
+
+    /**
+     * Returns the components of {@code types} with a filter matching {@code intent}, by
+     * decreasing filter priority, then in the order they were added. As {@code startActivity}
+     * does, activities and aliases only match through filters with the {@code DEFAULT}
+     * category.
+     */
+    @NonNull
+    public List<Match> resolve(@NonNull Intent intent, @NonNull Set<ComponentType> types) {
+        List<Match> matches = new ArrayList<>();
+        for (Filter filter : getCandidates(intent)) {
+            if (!types.contains(filter.component.getType())) {
+                continue;
+            }
+            boolean activity =
+                    filter.component.getType() == ComponentType.ACTIVITY
+                            || filter.component.getType() == ComponentType.ACTIVITY_ALIAS;
+            if (activity && !filter.filter.getCategories().contains(CATEGORY_DEFAULT)) {
+                continue;
+            }
+            if (matches(filter.filter, intent)) {
+                matches.add(new Match(filter));
+            }
+        }
+        // stable, so that equal priorities keep the order of the candidates
+        matches.sort((a, b) -> Integer.compare(b.filter.getPriority(), a.filter.getPriority()));
+        return matches;
+    }
+
+    /** Returns the filters that may match {@code intent}, ordered by id */
+    @NonNull
+    private Iterable<Filter> getCandidates(@NonNull Intent intent) {
+        List<Filter> byActionCandidates = null;
+        if (intent.action != null) {
+            byActionCandidates = byAction.get(intent.action);
+            if (byActionCandidates == null) {
+                // a filter must list the action of the intent
+                return Collections.emptyList();
+            }
+        }
+
+        // filters without schemes also match content: and file: URIs, which are not indexed
+        Set<Filter> byDataCandidates = null;
+        if (intent.scheme != null
+                && !intent.scheme.isEmpty()
+                && !SCHEME_CONTENT.equals(intent.scheme)
+                && !SCHEME_FILE.equals(intent.scheme)) {
+            byDataCandidates = new TreeSet<>(BY_ID);
+            Map<String, List<Filter>> hosts = byScheme.get(intent.scheme);
+            if (hosts != null) {
+                addAll(byDataCandidates, hosts.get(ANY_HOST));
+                if (intent.host != null) {
+                    addAll(byDataCandidates, hosts.get(intent.host));
+                    addAll(byDataCandidates, hosts.get("*"));
+                    // wildcard hosts, such as *.example.com, for each parent domain
+                    for (int dot = intent.host.indexOf('.');
+                            dot >= 0;
+                            dot = intent.host.indexOf('.', dot + 1)) {
+                        addAll(byDataCandidates, hosts.get('*' + intent.host.substring(dot)));
+                    }
+                }
+            }
+        }
+
+        if (byActionCandidates != null && byDataCandidates != null) {
+            return byActionCandidates.size() <= byDataCandidates.size()
+                    ? byActionCandidates
+                    : byDataCandidates;
+        } else if (byActionCandidates != null) {
+            return byActionCandidates;
+        } else if (byDataCandidates != null) {
+            return byDataCandidates;
+        } else if (intent.type != null) {
+            Set<Filter> byTypeCandidates = new TreeSet<>(BY_ID);
+            addAll(byTypeCandidates, byBaseType.get(getBaseType(intent.type)));
+            addAll(byTypeCandidates, byBaseType.get("*"));
+            if (intent.type.startsWith("*")) {
+                byTypeCandidates.addAll(filters);
+            }
+            return byTypeCandidates;
+        }
+        return filters;
+    }
+
+    private static void addAll(@NonNull Set<Filter> set, @Nullable List<Filter> filters) {
+        if (filters != null) {
+            set.addAll(filters);
+        }
+    }
+
+    /** Returns whether {@code filter} matches {@code intent}, as {@code IntentFilter.match} */
+    private static boolean matches(
+            @NonNull ManifestData.IntentFilter filter, @NonNull Intent intent) {
+        if (filter.getActions().isEmpty()
+                || (intent.action != null && !filter.getActions().contains(intent.action))) {
+            return false;
+        }
+        if (!matchesData(filter, intent)) {
+            return false;
+        }
+        return filter.getCategories().containsAll(intent.categories);
+    }
+
+    private static boolean matchesData(
+            @NonNull ManifestData.IntentFilter filter, @NonNull Intent intent) {
+        List<String> schemes = filter.getSchemes();
+        List<String> types = filter.getMimeTypes();
+        if (schemes.isEmpty() && types.isEmpty()) {
+            return intent.data == null && intent.type == null;
+        }
+
+        String scheme = intent.scheme != null ? intent.scheme : "";
+        if (!schemes.isEmpty()) {
+            if (!schemes.contains(scheme)) {
+                return false;
+            }
+            if (!filter.getAuthorities().isEmpty()) {
+                if (!matchesAuthority(filter.getAuthorities(), intent)) {
+                    return false;
+                }
+                if (hasPaths(filter) && !matchesPath(filter, intent.path)) {
+                    return false;
+                }
+            }
+        } else if (!scheme.isEmpty()
+                && !SCHEME_CONTENT.equals(scheme)
+                && !SCHEME_FILE.equals(scheme)) {
+            // a filter with only types matches content: and file: data, or none
+            return false;
+        }
+
+        if (!types.isEmpty()) {
+            return intent.type != null && matchesType(types, intent.type);
+        }
+        return intent.type == null;
+    }
+
+    private static boolean matchesAuthority(
+            @NonNull List<String> authorities, @NonNull Intent intent) {
+        if (intent.host == null) {
+            return false;
+        }
+        for (String authority : authorities) {
+            String host = getHost(authority);
+            int colon = authority.lastIndexOf(':');
+            String port = colon >= 0 ? authority.substring(colon + 1) : null;
+            if (port != null && !port.equals(Integer.toString(intent.port))) {
+                continue;
+            }
+            if (host.equals("*")
+                    || host.equals(intent.host)
+                    || (host.startsWith("*") && intent.host.endsWith(host.substring(1)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasPaths(@NonNull ManifestData.IntentFilter filter) {
+        return !filter.getPaths().isEmpty()
+                || !filter.getPathPrefixes().isEmpty()
+                || !filter.getPathPatterns().isEmpty();
+    }
+
+    private static boolean matchesPath(
+            @NonNull ManifestData.IntentFilter filter, @Nullable String path) {
+        if (path == null) {
+            return false;
+        }
+        if (filter.getPaths().contains(path)) {
+            return true;
+        }
+        for (String prefix : filter.getPathPrefixes()) {
+            if (path.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (String pattern : filter.getPathPatterns()) {
+            if (matchesGlob(pattern, path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches {@code path} against a {@code pathPattern}, as {@code PatternMatcher} does for
+     * {@code PATTERN_SIMPLE_GLOB}: {@code .} matches any character, {@code *} repeats the
+     * character before it zero or more times, and {@code \} escapes a character. Like the
+     * platform, the matcher makes a single pass without backtracking: {@code .*} consumes the
+     * path up to the first occurrence of the character after it, so {@code .*\\.pdf} does not
+     * match {@code a.b.pdf}.
+     */
+    static boolean matchesGlob(@NonNull String pattern, @NonNull String path) {
+        int patternLength = pattern.length();
+        if (patternLength == 0) {
+            return path.isEmpty();
+        }
+        int pathLength = path.length();
+        int p = 0;
+        int s = 0;
+        char next = pattern.charAt(0);
+        while (p < patternLength && s < pathLength) {
+            char c = next;
+            p++;
+            next = p < patternLength ? pattern.charAt(p) : 0;
+            boolean escaped = c == '\\';
+            if (escaped) {
+                c = next;
+                p++;
+                next = p < patternLength ? pattern.charAt(p) : 0;
+            }
+            if (next == '*') {
+                if (!escaped && c == '.') {
+                    if (p >= patternLength - 1) {
+                        // a trailing .* matches the rest of the path
+                        return true;
+                    }
+                    p++;
+                    next = pattern.charAt(p);
+                    if (next == '\\') {
+                        p++;
+                        next = p < patternLength ? pattern.charAt(p) : 0;
+                    }
+                    // skip to the first occurrence of the character after .*
+                    while (s < pathLength && path.charAt(s) != next) {
+                        s++;
+                    }
+                    if (s == pathLength) {
+                        return false;
+                    }
+                    p++;
+                    next = p < patternLength ? pattern.charAt(p) : 0;
+                    s++;
+                } else {
+                    // skip the run of the character before *
+                    while (s < pathLength && path.charAt(s) == c) {
+                        s++;
+                    }
+                    p++;
+                    next = p < patternLength ? pattern.charAt(p) : 0;
+                }
+            } else {
+                // as in the platform, an escaped . still matches any character
+                if (c != '.' && path.charAt(s) != c) {
+                    return false;
+                }
+                s++;
+            }
+        }
+        if (p >= patternLength && s >= pathLength) {
+            return true;
+        }
+        // the path may end before a trailing .*
+        return p == patternLength - 2
+                && pattern.charAt(p) == '.'
+                && pattern.charAt(p + 1) == '*';
+    }
+
+    private static boolean matchesType(@NonNull List<String> types, @NonNull String type) {
+        if (types.contains(type) || types.contains("*/*") || type.equals("*/*")) {
+            return true;
+        }
+        String baseType = getBaseType(type);
+        if (types.contains(baseType + "/*")) {
+            return true;
+        }
+        if (type.endsWith("/*")) {
+            for (String filterType : types) {
+                if (getBaseType(filterType).equals(baseType)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @NonNull
+    private static String getBaseType(@NonNull String mimeType) {
+        int slash = mimeType.indexOf('/');
+        return slash >= 0 ? mimeType.substring(0, slash) : mimeType;
+    }
+
+    /** Returns the host of an authority stored as {@code host} or {@code host:port} */
+    @NonNull
+    private static String getHost(@NonNull String authority) {
+        int colon = authority.lastIndexOf(':');
+        return colon >= 0 ? authority.substring(0, colon) : authority;
+    }
+}
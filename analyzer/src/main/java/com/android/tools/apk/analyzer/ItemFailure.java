@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipException;
+
+/**
+ * Why one item of a scan, such as a batch command or a fleet target, failed: the {@link
+ * Timings.Phase} it failed in, the type of the exception, the time spent on the item and the
+ * number of attempts. Printed as a single tab separated record:
+ *
+ * <pre>
+ * inflate	java.util.zip.ZipException	12ms	2	invalid stored block lengths
+ * </pre>
+ *
+ * The phase is {@code -} when the item failed outside of any measured phase.
+ */
+public final class ItemFailure {
+    @Nullable private final Timings.Phase phase;
+    @NonNull private final Throwable cause;
+    private final long elapsedMillis;
+    private final int attempts;
+
+    private ItemFailure(
+            @Nullable Timings.Phase phase,
+            @NonNull Throwable cause,
+            long elapsedMillis,
+            int attempts) {
+        this.phase = phase;
+        this.cause = cause;
+        this.elapsedMillis = elapsedMillis;
+        this.attempts = attempts;
+    }
+
+    /**
+     * Records {@code exception}, thrown by the calling thread while working on an item started at
+     * {@code startNanos}, on the {@link System#nanoTime()} clock.
+     */
+    @NonNull
+    public static ItemFailure of(@NonNull Throwable exception, long startNanos, int attempts) {
+        return new ItemFailure(
+                Timings.getLastPhase(),
+                unwrap(exception),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                attempts);
+    }
+
+    /**
+     * Returns the exception a wrapper such as {@link UncheckedIOException}, or a plain {@link
+     * RuntimeException} around a checked exception, stands for
+     */
+    @NonNull
+    private static Throwable unwrap(@NonNull Throwable exception) {
+        while ((exception instanceof UncheckedIOException
+                        || exception instanceof CompletionException
+                        || exception instanceof ExecutionException
+                        || exception.getClass() == RuntimeException.class)
+                && exception.getCause() != null) {
+            exception = exception.getCause();
+        }
+        return exception;
+    }
+
+    /**
+     * Returns whether the item may succeed if retried: an I/O error, as when an APK is replaced
+     * while it is read, as opposed to a malformed APK ({@link ZipException}) or a {@link
+     * DecodeLimits} violation.
+     */
+    public static boolean isTransient(@NonNull Throwable exception) {
+        Throwable cause = unwrap(exception);
+        return cause instanceof IOException && !(cause instanceof ZipException);
+    }
+
+    /**
+     * Returns whether an item that failed with {@code exception} should be retried: the failure
+     * is {@link #isTransient transient} and, when the files the item read are known, one of them
+     * changed or vanished since {@code stamp} was taken. A broken APK that stayed in place fails
+     * the same way twice.
+     */
+    public static boolean shouldRetry(@NonNull Throwable exception, @Nullable FileStamp stamp) {
+        return isTransient(exception) && (stamp == null || stamp.hasChanged());
+    }
+
+    /** The size and modification time of files, taken between resolving and reading them */
+    public static final class FileStamp {
+        @NonNull private final Path[] paths;
+        @NonNull private final long[][] attributes;
+
+        private FileStamp(@NonNull Path[] paths) {
+            this.paths = paths;
+            this.attributes = new long[paths.length][];
+            for (int i = 0; i < paths.length; i++) {
+                attributes[i] = read(paths[i]);
+            }
+        }
+
+        @NonNull
+        public static FileStamp of(@NonNull Path... paths) {
+            return new FileStamp(paths.clone());
+        }
+
+        /** Returns whether any of the files changed size or time, appeared or vanished */
+        public boolean hasChanged() {
+            for (int i = 0; i < paths.length; i++) {
+                if (!Arrays.equals(read(paths[i]), attributes[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Returns the size and modification time of {@code path}, or -1s if it is missing */
+        @NonNull
+        private static long[] read(@NonNull Path path) {
+            try {
+                BasicFileAttributes attributes =
+                        Files.readAttributes(path, BasicFileAttributes.class);
+                return new long[] {attributes.size(), attributes.lastModifiedTime().toMillis()};
+            } catch (IOException e) {
+                return new long[] {-1, -1};
+            }
+        }
+    }
+
+    @Nullable
+    public Timings.Phase getPhase() {
+        return phase;
+    }
+
+    @NonNull
+    public Throwable getCause() {
+        return cause;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    @Override
+    public String toString() {
+        String message = cause.getMessage();
+        return String.format(
+                Locale.US,
+                "%s\t%s\t%dms\t%d\t%s",
+                phase != null ? phase.getDisplayName() : "-",
+                cause.getClass().getName(),
+                elapsedMillis,
+                attempts,
+                message != null ? message.replaceAll("[\t\r\n]+", " ") : "");
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.xml.ManifestData;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Columnar, memory mapped snapshot of the manifest facts of many APKs: package, versions, SDK
+ * levels, debuggable, components and permissions.
+ *
+ * <p>Each fact is a {@link Column} of fixed width values, one per APK (a row) or one per
+ * component or permission, whose range for each row is given by a start column. Strings are
+ * stored once, in a dictionary sorted by their UTF-8 bytes, and referred to by their index in
+ * it, or -1 for null. A snapshot is opened by mapping the file: queries read the columns in
+ * place, as int and byte buffers, and only the strings they print are decoded.
+ *
+ * <pre>
+ * ManifestColumns facts = ManifestColumns.open(file);
+ * int internet = facts.findString("android.permission.INTERNET");
+ * IntBuffer uses = facts.getIntColumn(ManifestColumns.Column.USES_PERMISSION);
+ * for (int i = 0; i &lt; uses.limit(); i++) {
+ *     if (uses.get(i) == internet) count++;
+ * }
+ * </pre>
+ *
+ * A single file is mapped at once, which limits a snapshot to 2 GB.
+ */
+public final class ManifestColumns {
+    private static final int MAGIC = 0x4d434f4c; // "MCOL"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+    private static final int DIRECTORY_ENTRY_SIZE = 12;
+
+    /** Value of {@link Column#VERSION_CODE} when the manifest has none */
+    public static final int NO_VERSION_CODE = Integer.MIN_VALUE;
+
+    /** Value of a string column when the string is null */
+    public static final int NO_STRING = -1;
+
+    /** The columns of a snapshot; the id of a column is part of the file format */
+    public enum Column {
+        /** Start of each dictionary string in {@link #STRING_DATA}, plus the end of the last */
+        STRING_OFFSETS(0, 4),
+        /** The UTF-8 bytes of the dictionary strings */
+        STRING_DATA(1, 1),
+        /** Per row: the target the APK was scanned as, a package name or an APK path */
+        KEY(2, 4),
+        /** Per row: the package name */
+        PACKAGE(3, 4),
+        /** Per row: the version code, or {@link #NO_VERSION_CODE} */
+        VERSION_CODE(4, 4),
+        /** Per row: the version name */
+        VERSION_NAME(5, 4),
+        /** Per row: the min SDK version, as {@link ManifestData#getMinSdkVersion()} */
+        MIN_SDK(6, 4),
+        /** Per row: the target SDK version, as {@link ManifestData#getTargetSdkVersion()} */
+        TARGET_SDK(7, 4),
+        /** Per row: 1 if debuggable, 0 if not, -1 if not set */
+        DEBUGGABLE(8, 1),
+        /** Per row, plus one: index of the first component of the row in the component columns */
+        COMPONENT_START(9, 4),
+        /** Per component: the ordinal of its {@link ManifestData.ComponentType} */
+        COMPONENT_TYPE(10, 1),
+        /** Per component: the fully qualified class name */
+        COMPONENT_NAME(11, 4),
+        /** Per component: 1 if exported, given the target SDK version of its row, 0 if not */
+        COMPONENT_EXPORTED(12, 1),
+        /** Per component: the permission it requires, or for providers its read permission */
+        COMPONENT_PERMISSION(13, 4),
+        /** Per row, plus one: index of the first requested permission of the row */
+        USES_PERMISSION_START(14, 4),
+        /** Per requested permission: its name */
+        USES_PERMISSION(15, 4),
+        /** Per row, plus one: index of the first permission the row defines */
+        PERMISSION_START(16, 4),
+        /** Per defined permission: its name */
+        PERMISSION(17, 4);
+
+        private final int id;
+        private final int width;
+
+        Column(int id, int width) {
+            this.id = id;
+            this.width = width;
+        }
+
+        /** Returns the size in bytes of a value of the column */
+        public int getWidth() {
+            return width;
+        }
+    }
+
+    @NonNull private final Map<Column, ByteBuffer> columns;
+    private final int rowCount;
+    @NonNull private final IntBuffer stringOffsets;
+    @NonNull private final ByteBuffer stringData;
+
+    private ManifestColumns(int rowCount, @NonNull Map<Column, ByteBuffer> columns) {
+        this.rowCount = rowCount;
+        this.columns = columns;
+        this.stringOffsets = getIntColumn(Column.STRING_OFFSETS);
+        this.stringData = getByteColumn(Column.STRING_DATA);
+    }
+
+    /** Maps the snapshot stored at {@code file}. */
+    @NonNull
+    public static ManifestColumns open(@NonNull Path file) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Manifest columns over 2 GB: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a manifest columns file: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported manifest columns version " + version);
+        }
+        int rowCount = buffer.getInt(8);
+        int columnCount = buffer.getInt(12);
+        if (rowCount < 0
+                || columnCount < 0
+                || HEADER_SIZE + (long) columnCount * DIRECTORY_ENTRY_SIZE > buffer.limit()) {
+            throw new IOException("Malformed manifest columns header: " + file);
+        }
+
+        Map<Column, ByteBuffer> columns = new EnumMap<>(Column.class);
+        for (int i = 0; i < columnCount; i++) {
+            int entry = HEADER_SIZE + i * DIRECTORY_ENTRY_SIZE;
+            int id = buffer.getInt(entry);
+            int offset = buffer.getInt(entry + 4);
+            int length = buffer.getInt(entry + 8);
+            if (offset < 0 || length < 0 || (long) offset + length > buffer.limit()) {
+                throw new IOException("Column " + id + " out of the file: " + file);
+            }
+            for (Column column : Column.values()) {
+                if (column.id == id) {
+                    if (length % column.width != 0) {
+                        throw new IOException("Column " + column + " of " + length + " bytes");
+                    }
+                    ByteBuffer slice = buffer.duplicate();
+                    slice.position(offset).limit(offset + length);
+                    columns.put(column, slice.slice().order(ByteOrder.LITTLE_ENDIAN));
+                }
+            }
+        }
+        for (Column column : Column.values()) {
+            if (!columns.containsKey(column)) {
+                throw new IOException("Missing column " + column + ": " + file);
+            }
+        }
+        ManifestColumns result = new ManifestColumns(rowCount, columns);
+        result.validate(file);
+        return result;
+    }
+
+    /**
+     * Checks the column sizes, the start columns and the string indices, so that a corrupt file
+     * fails to open rather than queries failing with an {@link IndexOutOfBoundsException}.
+     */
+    private void validate(@NonNull Path file) throws IOException {
+        Column[] rowColumns = {
+            Column.KEY,
+            Column.PACKAGE,
+            Column.VERSION_CODE,
+            Column.VERSION_NAME,
+            Column.MIN_SDK,
+            Column.TARGET_SDK,
+            Column.DEBUGGABLE
+        };
+        for (Column column : rowColumns) {
+            checkCount(file, column, rowCount);
+        }
+        int componentCount = getCount(Column.COMPONENT_TYPE);
+        checkCount(file, Column.COMPONENT_NAME, componentCount);
+        checkCount(file, Column.COMPONENT_EXPORTED, componentCount);
+        checkCount(file, Column.COMPONENT_PERMISSION, componentCount);
+        checkStarts(file, Column.COMPONENT_START, componentCount);
+        checkStarts(file, Column.USES_PERMISSION_START, getCount(Column.USES_PERMISSION));
+        checkStarts(file, Column.PERMISSION_START, getCount(Column.PERMISSION));
+
+        if (stringOffsets.limit() == 0) {
+            throw new IOException("Empty " + Column.STRING_OFFSETS + ": " + file);
+        }
+        checkAscending(file, Column.STRING_OFFSETS, stringData.limit());
+        int stringCount = getStringCount();
+        for (Column column : Column.values()) {
+            if (!isStringColumn(column)) {
+                continue;
+            }
+            IntBuffer values = getIntColumn(column);
+            for (int i = 0; i < values.limit(); i++) {
+                int index = values.get(i);
+                if (index < NO_STRING || index >= stringCount) {
+                    throw new IOException(
+                            "String index " + index + " out of range in " + column + ": " + file);
+                }
+            }
+        }
+        ByteBuffer types = getByteColumn(Column.COMPONENT_TYPE);
+        int typeCount = ManifestData.ComponentType.values().length;
+        for (int i = 0; i < types.limit(); i++) {
+            if (types.get(i) < 0 || types.get(i) >= typeCount) {
+                throw new IOException("Unknown component type " + types.get(i) + ": " + file);
+            }
+        }
+    }
+
+    /** Returns whether the values of {@code column} are indices in the dictionary */
+    private static boolean isStringColumn(@NonNull Column column) {
+        switch (column) {
+            case KEY:
+            case PACKAGE:
+            case VERSION_NAME:
+            case COMPONENT_NAME:
+            case COMPONENT_PERMISSION:
+            case USES_PERMISSION:
+            case PERMISSION:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int getCount(@NonNull Column column) {
+        return columns.get(column).limit() / column.width;
+    }
+
+    private void checkCount(@NonNull Path file, @NonNull Column column, long count)
+            throws IOException {
+        if (getCount(column) != count) {
+            throw new IOException(
+                    column + " has " + getCount(column) + " values, expected " + count + ": "
+                            + file);
+        }
+    }
+
+    /** Checks that the start column {@code start} indexes {@code valueCount} values, row by row */
+    private void checkStarts(@NonNull Path file, @NonNull Column start, int valueCount)
+            throws IOException {
+        checkCount(file, start, rowCount + 1L);
+        checkAscending(file, start, valueCount);
+        if (getIntColumn(start).get(rowCount) != valueCount) {
+            throw new IOException(start + " does not end at " + valueCount + ": " + file);
+        }
+    }
+
+    /** Checks that the values of the int {@code column} ascend from 0 up to at most {@code max} */
+    private void checkAscending(@NonNull Path file, @NonNull Column column, int max)
+            throws IOException {
+        IntBuffer values = getIntColumn(column);
+        int previous = 0;
+        for (int i = 0; i < values.limit(); i++) {
+            int value = values.get(i);
+            // the first value is 0, each next one at least the previous one
+            int limit = i == 0 ? 0 : max;
+            if (value < previous || value > limit) {
+                throw new IOException(
+                        column + " value " + value + " at " + i + " not in [" + previous + ", "
+                                + limit + "]: " + file);
+            }
+            previous = value;
+        }
+    }
+
+    /** Returns the number of APKs in the snapshot */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Returns a read-only view of an int column, positioned at its start. Each call returns a new
+     * view over the same mapped memory.
+     */
+    @NonNull
+    public IntBuffer getIntColumn(@NonNull Column column) {
+        if (column.width != 4) {
+            throw new IllegalArgumentException(column + " is not an int column");
+        }
+        return columns.get(column).duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /** Returns a read-only view of a byte column, positioned at its start */
+    @NonNull
+    public ByteBuffer getByteColumn(@NonNull Column column) {
+        if (column.width != 1) {
+            throw new IllegalArgumentException(column + " is not a byte column");
+        }
+        return columns.get(column).asReadOnlyBuffer();
+    }
+
+    /** Returns the number of strings in the dictionary */
+    public int getStringCount() {
+        return stringOffsets.limit() - 1;
+    }
+
+    /** Returns the dictionary string at {@code index}, or null for {@link #NO_STRING} */
+    @Nullable
+    public String getString(int index) {
+        if (index == NO_STRING) {
+            return null;
+        }
+        int start = stringOffsets.get(index);
+        byte[] bytes = new byte[stringOffsets.get(index + 1) - start];
+        ByteBuffer data = stringData.duplicate();
+        data.position(start);
+        data.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the index of {@code value} in the dictionary, or {@link #NO_STRING} if no column
+     * holds it, in which case no row matches it. Looked up by binary search over the mapped
+     * bytes.
+     */
+    public int findString(@NonNull String value) {
+        byte[] key = value.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = getStringCount() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int comparison = compareString(middle, key);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return NO_STRING;
+    }
+
+    private int compareString(int index, @NonNull byte[] key) {
+        int start = stringOffsets.get(index);
+        int length = stringOffsets.get(index + 1) - start;
+        for (int i = 0; i < Math.min(length, key.length); i++) {
+            int difference = (stringData.get(start + i) & 0xFF) - (key[i] & 0xFF);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return length - key.length;
+    }
+
+    /** Returns the rows whose {@code start} column range in {@code values} holds {@code value} */
+    @NonNull
+    public int[] findRows(@NonNull Column start, @NonNull Column values, int value) {
+        IntBuffer starts = getIntColumn(start);
+        IntBuffer column = getIntColumn(values);
+        int[] rows = new int[rowCount];
+        int count = 0;
+        for (int row = 0; row < rowCount; row++) {
+            for (int i = starts.get(row), end = starts.get(row + 1); i < end; i++) {
+                if (column.get(i) == value) {
+                    rows[count++] = row;
+                    break;
+                }
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /** Accumulates the rows of a snapshot in memory, then writes them in columns. */
+    public static final class Writer {
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final List<String> stringList = new ArrayList<>();
+        private final Map<Column, ByteBuffer> columns = new EnumMap<>(Column.class);
+        private int rowCount;
+
+        public Writer() {
+            for (Column column : Column.values()) {
+                columns.put(column, allocate(64));
+            }
+            putInt(Column.COMPONENT_START, 0);
+            putInt(Column.USES_PERMISSION_START, 0);
+            putInt(Column.PERMISSION_START, 0);
+        }
+
+        /** Adds a row for the manifest {@code manifestData} of the APK scanned as {@code key}. */
+        public void add(@NonNull String key, @NonNull ManifestData manifestData) {
+            putString(Column.KEY, key);
+            putString(Column.PACKAGE, manifestData.getPackage());
+            Integer versionCode = manifestData.getVersionCode();
+            putInt(Column.VERSION_CODE, versionCode != null ? versionCode : NO_VERSION_CODE);
+            putString(Column.VERSION_NAME, manifestData.getVersionName());
+            putInt(Column.MIN_SDK, manifestData.getMinSdkVersion());
+            int targetSdkVersion = manifestData.getTargetSdkVersion();
+            putInt(Column.TARGET_SDK, targetSdkVersion);
+            Boolean debuggable = manifestData.getDebuggable();
+            putByte(Column.DEBUGGABLE, debuggable == null ? -1 : debuggable ? 1 : 0);
+
+            ManifestData.Component[] components = manifestData.getComponents();
+            String applicationPermission = manifestData.getApplicationPermission();
+            Map<String, String> activityPermissions = new HashMap<>();
+            for (ManifestData.Component component : components) {
+                if (component.getType() == ManifestData.ComponentType.ACTIVITY) {
+                    activityPermissions.put(
+                            component.getName(),
+                            ManifestData.Component.resolvePermission(
+                                    component.getType(),
+                                    component.getPermission(),
+                                    null,
+                                    null,
+                                    applicationPermission));
+                }
+            }
+            for (ManifestData.Component component : components) {
+                putByte(Column.COMPONENT_TYPE, component.getType().ordinal());
+                putString(Column.COMPONENT_NAME, component.getName());
+                putByte(Column.COMPONENT_EXPORTED, component.isExported(targetSdkVersion) ? 1 : 0);
+                String targetActivity = component.getTargetActivity();
+                putString(
+                        Column.COMPONENT_PERMISSION,
+                        ManifestData.Component.resolvePermission(
+                                component.getType(),
+                                component.getPermission(),
+                                component.getReadPermission(),
+                                targetActivity != null
+                                        ? activityPermissions.get(targetActivity)
+                                        : null,
+                                applicationPermission));
+            }
+            putInt(Column.COMPONENT_START, size(Column.COMPONENT_TYPE));
+
+            for (String permission : manifestData.getUsesPermissions()) {
+                putString(Column.USES_PERMISSION, permission);
+            }
+            putInt(Column.USES_PERMISSION_START, size(Column.USES_PERMISSION));
+            for (ManifestData.Permission permission : manifestData.getPermissions()) {
+                putString(Column.PERMISSION, permission.getName());
+            }
+            putInt(Column.PERMISSION_START, size(Column.PERMISSION));
+            rowCount++;
+        }
+
+        public int getRowCount() {
+            return rowCount;
+        }
+
+        /** Writes the snapshot next to {@code file} and atomically moves it into place. */
+        public void write(@NonNull Path file) throws IOException {
+            // sort the dictionary by UTF-8 bytes, for lookups by binary search on the file
+            int count = stringList.size();
+            byte[][] encoded = new byte[count][];
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                encoded[i] = stringList.get(i).getBytes(StandardCharsets.UTF_8);
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> compareBytes(encoded[a], encoded[b]));
+            int[] remap = new int[count];
+            long dataSize = 0;
+            for (int i = 0; i < count; i++) {
+                remap[order[i]] = i;
+                dataSize += encoded[i].length;
+            }
+            if (dataSize > Integer.MAX_VALUE) {
+                throw new IOException("Manifest columns string dictionary over 2 GB");
+            }
+
+            Map<Column, ByteBuffer> output = new EnumMap<>(columns);
+            ByteBuffer offsets = allocate(4 * (count + 1));
+            ByteBuffer data = allocate((int) dataSize);
+            for (int i = 0; i < count; i++) {
+                offsets.putInt(data.position());
+                data.put(encoded[order[i]]);
+            }
+            offsets.putInt(data.position());
+            output.put(Column.STRING_OFFSETS, offsets);
+            output.put(Column.STRING_DATA, data);
+            for (Column column : Column.values()) {
+                if (isStringColumn(column)) {
+                    ByteBuffer values = columns.get(column);
+                    ByteBuffer remapped = allocate(values.position());
+                    for (int i = 0; i < values.position(); i += 4) {
+                        int index = values.getInt(i);
+                        remapped.putInt(index != NO_STRING ? remap[index] : NO_STRING);
+                    }
+                    output.put(column, remapped);
+                } else if (output.get(column) == columns.get(column)) {
+                    // written through a view, so that the writer can still add rows afterwards
+                    ByteBuffer values = columns.get(column).duplicate();
+                    output.put(column, values);
+                }
+            }
+
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel channel =
+                    FileChannel.open(
+                            tmp,
+                            StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
+                Column[] all = Column.values();
+                ByteBuffer header = allocate(HEADER_SIZE + all.length * DIRECTORY_ENTRY_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).putInt(rowCount).putInt(all.length);
+                long offset = header.capacity();
+                for (Column column : all) {
+                    int length = output.get(column).position();
+                    offset = align(offset);
+                    if (offset + length > Integer.MAX_VALUE) {
+                        throw new IOException("Manifest columns over 2 GB");
+                    }
+                    header.putInt(column.id).putInt((int) offset).putInt(length);
+                    offset += length;
+                }
+                header.flip();
+                writeFully(channel, header, 0);
+                long position = header.limit();
+                for (Column column : all) {
+                    ByteBuffer values = output.get(column);
+                    values.flip();
+                    position = align(position);
+                    writeFully(channel, values, position);
+                    position += values.limit();
+                }
+            }
+            Files.move(
+                    tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void putString(@NonNull Column column, @Nullable String value) {
+            int index = NO_STRING;
+            if (value != null) {
+                Integer existing = strings.get(value);
+                if (existing == null) {
+                    existing = stringList.size();
+                    strings.put(value, existing);
+                    stringList.add(value);
+                }
+                index = existing;
+            }
+            putInt(column, index);
+        }
+
+        private void putInt(@NonNull Column column, int value) {
+            reserve(column, 4).putInt(value);
+        }
+
+        private void putByte(@NonNull Column column, int value) {
+            reserve(column, 1).put((byte) value);
+        }
+
+        private int size(@NonNull Column column) {
+            return columns.get(column).position() / column.width;
+        }
+
+        @NonNull
+        private ByteBuffer reserve(@NonNull Column column, int bytes) {
+            ByteBuffer values = columns.get(column);
+            if (values.remaining() < bytes) {
+                ByteBuffer grown =
+                        allocate(Math.max(values.capacity() * 2, values.position() + bytes));
+                values.flip();
+                grown.put(values);
+                columns.put(column, grown);
+                values = grown;
+            }
+            return values;
+        }
+
+        /** Int columns start on a 4 byte boundary, so that they can be read as int buffers */
+        private static long align(long offset) {
+            return (offset + 3) & ~3L;
+        }
+
+        private static void writeFully(
+                @NonNull FileChannel channel, @NonNull ByteBuffer buffer, long position)
+                throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        @NonNull
+        private static ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static int compareBytes(@NonNull byte[] a, @NonNull byte[] b) {
+            for (int i = 0; i < Math.min(a.length, b.length); i++) {
+                int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (difference != 0) {
+                    return difference;
+                }
+            }
+            return a.length - b.length;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+
+/**
+ * Structural diff of two {@link XmlNode} trees, typically two manifests.
+ *
+ * <p>Children are matched by element name and {@code android:name}, falling back to their
+ * position among siblings with the same key ({@code intent-filter#2}), so the diff runs in time
+ * linear in the size of both trees. Each difference is reported as a single line:
+ *
+ * <pre>
+ * + manifest/uses-permission[android.permission.CAMERA]
+ * - manifest/application/service[com.example.SyncService]
+ * ~ manifest/application/activity[com.example.Main] android:exported: true -&gt; false
+ * </pre>
+ *
+ * An added or removed element is reported once, without its descendants.
+ */
+public final class ManifestDiff {
+    private static final String ATTR_ANDROID_NAME =
+            SdkConstants.ANDROID_NS_NAME + ':' + SdkConstants.ATTR_NAME;
+
+    private ManifestDiff() {}
+
+    /** Reports the differences between {@code before} and {@code after} to {@code sink}. */
+    public static void diff(
+            @NonNull XmlNode before, @NonNull XmlNode after, @NonNull Consumer<String> sink) {
+        if (!before.getName().equals(after.getName())) {
+            sink.accept("- " + before.getName());
+            sink.accept("+ " + after.getName());
+            return;
+        }
+        diffNode(before.getName(), before, after, sink);
+    }
+
+    private static void diffNode(
+            @NonNull String path,
+            @NonNull XmlNode before,
+            @NonNull XmlNode after,
+            @NonNull Consumer<String> sink) {
+        diffAttributes(path, before.getAttributes(), after.getAttributes(), sink);
+
+        Map<String, XmlNode> beforeChildren = keyChildren(before);
+        Map<String, XmlNode> afterChildren = keyChildren(after);
+        for (Map.Entry<String, XmlNode> entry : beforeChildren.entrySet()) {
+            String childPath = path + '/' + entry.getKey();
+            XmlNode other = afterChildren.get(entry.getKey());
+            if (other == null) {
+                sink.accept("- " + childPath);
+            } else {
+                diffNode(childPath, entry.getValue(), other, sink);
+            }
+        }
+        for (String key : afterChildren.keySet()) {
+            if (!beforeChildren.containsKey(key)) {
+                sink.accept("+ " + path + '/' + key);
+            }
+        }
+    }
+
+    private static void diffAttributes(
+            @NonNull String path,
+            @NonNull Map<String, String> before,
+            @NonNull Map<String, String> after,
+            @NonNull Consumer<String> sink) {
+        // both maps are sorted by name: merge them
+        Iterator<Map.Entry<String, String>> left = before.entrySet().iterator();
+        Iterator<Map.Entry<String, String>> right = after.entrySet().iterator();
+        Map.Entry<String, String> l = next(left);
+        Map.Entry<String, String> r = next(right);
+        while (l != null || r != null) {
+            int order = l == null ? 1 : r == null ? -1 : l.getKey().compareTo(r.getKey());
+            if (order < 0) {
+                sink.accept("- " + path + ' ' + l.getKey() + '=' + l.getValue());
+                l = next(left);
+            } else if (order > 0) {
+                sink.accept("+ " + path + ' ' + r.getKey() + '=' + r.getValue());
+                r = next(right);
+            } else {
+                if (!Objects.equals(l.getValue(), r.getValue())) {
+                    sink.accept(
+                            "~ " + path + ' ' + l.getKey() + ": " + l.getValue() + " -> "
+                                    + r.getValue());
+                }
+                l = next(left);
+                r = next(right);
+            }
+        }
+    }
+
+    @Nullable
+    private static <T> T next(@NonNull Iterator<T> iterator) {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    @NonNull
+    private static Map<String, XmlNode> keyChildren(@NonNull XmlNode node) {
+        Map<String, XmlNode> keyed = new LinkedHashMap<>();
+        Map<String, Integer> occurrences = new HashMap<>();
+        for (XmlNode child : node.getChildren()) {
+            String name = child.getAttribute(ATTR_ANDROID_NAME);
+            String key = name != null ? child.getName() + '[' + name + ']' : child.getName();
+            int occurrence = occurrences.merge(key, 1, Integer::sum);
+            if (occurrence > 1) {
+                key += "#" + occurrence;
+            }
+            keyed.put(key, child);
+        }
+        return keyed;
+    }
+}
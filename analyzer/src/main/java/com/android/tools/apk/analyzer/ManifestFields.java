@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.internal.BinaryXmlReader;
+import com.android.xml.AndroidManifest;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * A few top level fields of a manifest, read straight from its binary form and only as far as
+ * needed: reading stops as soon as every requested field is resolved, so that the cost of
+ * looking up the package name or version of an app does not grow with its number of components.
+ *
+ * <p>The package name and versions are attributes of the root element, the SDK versions of the
+ * last {@code <uses-sdk>} element, and {@code debuggable} of the {@code <application>} element.
+ * Values are parsed the way {@link ManifestData} parses them, and the getters follow the {@link
+ * ManifestData} getters of the same name.
+ *
+ * <p>A later {@code <uses-sdk>} overrides an earlier one, so the SDK versions are resolved when
+ * {@code <application>} starts, from the last {@code <uses-sdk>} before it, and reading never
+ * goes into the components. Unlike {@link ManifestData}, a {@code <uses-sdk>} after {@code
+ * <application>} is ignored; aapt and the manifest merger write it before.
+ */
+public final class ManifestFields {
+    /** Resource ids of the framework attributes read from the manifest */
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+
+    /** A field that can be requested */
+    public enum Field {
+        PACKAGE,
+        VERSION_CODE,
+        VERSION_NAME,
+        MIN_SDK,
+        TARGET_SDK,
+        DEBUGGABLE
+    }
+
+    @Nullable private String packageName;
+    @Nullable private Integer versionCode;
+    @Nullable private String versionName;
+    @Nullable private String minSdkVersionString;
+    private int minSdkVersion = 1;
+    private int targetSdkVersion;
+    @Nullable private Boolean debuggable;
+
+    private ManifestFields() {}
+
+    /**
+     * Reads {@code fields} from the binary manifest {@code bytes}, or returns {@code null} if
+     * {@code bytes} is not a binary XML file. Other fields may be left unread.
+     */
+    @Nullable
+    public static ManifestFields read(@NonNull byte[] bytes, @NonNull Set<Field> fields) {
+        try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+            span.addBytes(bytes.length);
+            BinaryXmlReader reader = BinaryXmlReader.open(bytes);
+            if (reader == null) {
+                return null;
+            }
+            return read(reader, fields);
+        }
+    }
+
+    /** Returns the fields of an already parsed manifest */
+    @NonNull
+    static ManifestFields of(@NonNull ManifestData manifestData) {
+        ManifestFields fields = new ManifestFields();
+        fields.packageName = manifestData.getPackage();
+        fields.versionCode = manifestData.getVersionCode();
+        fields.versionName = manifestData.getVersionName();
+        fields.minSdkVersionString = manifestData.getMinSdkVersionString();
+        fields.minSdkVersion = manifestData.getMinSdkVersion();
+        fields.targetSdkVersion = manifestData.getTargetSdkVersion();
+        fields.debuggable = manifestData.getDebuggable();
+        return fields;
+    }
+
+    @NonNull
+    private static ManifestFields read(
+            @NonNull BinaryXmlReader reader, @NonNull Set<Field> fields) {
+        ManifestFields result = new ManifestFields();
+        Set<Field> pending = EnumSet.noneOf(Field.class);
+        pending.addAll(fields);
+        for (int event = reader.next();
+                event != BinaryXmlReader.END_DOCUMENT && !pending.isEmpty();
+                event = reader.next()) {
+            if (event != BinaryXmlReader.START_ELEMENT) {
+                continue;
+            }
+            String element = reader.getName();
+            if (reader.getDepth() == 1) {
+                if (!AndroidManifest.NODE_MANIFEST.equals(element)) {
+                    // as the parser, which only reads the children of <manifest>
+                    break;
+                }
+                result.packageName =
+                        reader.getAttributeValue(
+                                reader.indexOfAttribute(AndroidManifest.ATTRIBUTE_PACKAGE));
+                String versionCode =
+                        reader.getAttributeValue(reader.indexOfAttribute(ATTR_VERSION_CODE));
+                if (versionCode != null) {
+                    try {
+                        result.versionCode = Integer.valueOf(versionCode);
+                    } catch (NumberFormatException e) {
+                        // keep null in the field.
+                    }
+                }
+                result.versionName =
+                        reader.getAttributeValue(reader.indexOfAttribute(ATTR_VERSION_NAME));
+                pending.remove(Field.PACKAGE);
+                pending.remove(Field.VERSION_CODE);
+                pending.remove(Field.VERSION_NAME);
+            } else if (reader.getDepth() == 2) {
+                if (AndroidManifest.NODE_USES_SDK.equals(element)) {
+                    result.setMinSdkVersion(
+                            reader.getAttributeValue(
+                                    reader.indexOfAttribute(ATTR_MIN_SDK_VERSION)));
+                    result.setTargetSdkVersion(
+                            reader.getAttributeValue(
+                                    reader.indexOfAttribute(ATTR_TARGET_SDK_VERSION)));
+                    // SDK versions stay pending until <application>: the parser keeps the last
+                    // <uses-sdk>
+                } else if (AndroidManifest.NODE_APPLICATION.equals(element)) {
+                    String debuggable =
+                            reader.getAttributeValue(reader.indexOfAttribute(ATTR_DEBUGGABLE));
+                    if (debuggable != null) {
+                        result.debuggable = Boolean.parseBoolean(debuggable);
+                    }
+                    pending.remove(Field.DEBUGGABLE);
+                    pending.remove(Field.MIN_SDK);
+                    pending.remove(Field.TARGET_SDK);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void setMinSdkVersion(@Nullable String value) {
+        minSdkVersionString = value;
+        if (value != null) {
+            try {
+                minSdkVersion = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                minSdkVersion = ManifestData.MIN_SDK_CODENAME;
+            }
+        }
+    }
+
+    private void setTargetSdkVersion(@Nullable String value) {
+        if (value != null) {
+            try {
+                targetSdkVersion = Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                // keep the value at 0.
+            }
+        }
+    }
+
+    @Nullable
+    public String getPackage() {
+        return packageName;
+    }
+
+    @Nullable
+    public Integer getVersionCode() {
+        return versionCode;
+    }
+
+    @Nullable
+    public String getVersionName() {
+        return versionName;
+    }
+
+    /** Returns the {@code minSdkVersion}, or 0 if it is a codename */
+    public int getMinSdkVersion() {
+        return minSdkVersion;
+    }
+
+    @Nullable
+    public String getMinSdkVersionString() {
+        return minSdkVersionString;
+    }
+
+    /** Returns the {@code targetSdkVersion}, or the minimum SDK version if it is not set */
+    public int getTargetSdkVersion() {
+        return targetSdkVersion == 0 ? minSdkVersion : targetSdkVersion;
+    }
+
+    @Nullable
+    public Boolean getDebuggable() {
+        return debuggable;
+    }
+}
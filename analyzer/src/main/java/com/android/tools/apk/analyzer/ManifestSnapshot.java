@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Persistent record of the manifest state of a set of APKs, used to re-decode only the manifests
+ * that changed since the previous scan.
+ *
+ * <p>Each entry is keyed by the target the user asked for (a package name or an APK path) and
+ * remembers the APK path, its size and modification time, and the CRC-32 of the {@code
+ * AndroidManifest.xml} entry as recorded in the central directory.
+ */
+public final class ManifestSnapshot {
+    private static final int MAGIC = 0x4d534e50; // "MSNP"
+    private static final int VERSION = 1;
+
+    /** State of a single APK at the time of the scan */
+    public static final class Entry {
+        @NonNull private final String key;
+        @NonNull private final String path;
+        private final long size;
+        private final long lastModified;
+        private final int manifestCrc;
+
+        public Entry(
+                @NonNull String key,
+                @NonNull String path,
+                long size,
+                long lastModified,
+                int manifestCrc) {
+            this.key = key;
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.manifestCrc = manifestCrc;
+        }
+
+        @NonNull
+        public String getKey() {
+            return key;
+        }
+
+        @NonNull
+        public String getPath() {
+            return path;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public int getManifestCrc() {
+            return manifestCrc;
+        }
+
+        /**
+         * Returns {@code true} if the file behind this entry is known to be unchanged, without
+         * looking at its content.
+         */
+        public boolean isSameFile(@NonNull String path, long size, long lastModified) {
+            return this.path.equals(path) && this.size == size && this.lastModified == lastModified;
+        }
+    }
+
+    @NonNull private final Map<String, Entry> entries = new TreeMap<>();
+
+    /** Loads a snapshot from disk. A missing file yields an empty snapshot. */
+    @NonNull
+    public static ManifestSnapshot load(@NonNull Path file) throws IOException {
+        ManifestSnapshot snapshot = new ManifestSnapshot();
+        try (DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a manifest snapshot: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported manifest snapshot version " + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry =
+                        new Entry(
+                                in.readUTF(), in.readUTF(), in.readLong(), in.readLong(),
+                                in.readInt());
+                snapshot.entries.put(entry.getKey(), entry);
+            }
+        } catch (NoSuchFileException e) {
+            // first run
+        }
+        return snapshot;
+    }
+
+    /** Writes the snapshot next to {@code file} and atomically moves it into place. */
+    public void save(@NonNull Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.getKey());
+                out.writeUTF(entry.getPath());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                out.writeInt(entry.getManifestCrc());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Nullable
+    public Entry get(@NonNull String key) {
+        return entries.get(key);
+    }
+
+    public void put(@NonNull Entry entry) {
+        entries.put(entry.getKey(), entry);
+    }
+
+    @Nullable
+    public Entry remove(@NonNull String key) {
+        return entries.remove(key);
+    }
+
+    @NonNull
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+}
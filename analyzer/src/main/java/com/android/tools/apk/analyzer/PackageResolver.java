@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps installed package names to their APK files: the base APK followed by the split APKs, if
+ * any. Implementations are safe for use by multiple threads.
+ */
+public interface PackageResolver {
+    /** The user ({@code UserHandle.USER_SYSTEM}) packages are resolved for by default */
+    int DEFAULT_USER_ID = 0;
+
+    /**
+     * Returns the APK files of {@code packageName} as installed for {@code userId}, or {@code
+     * null} if it is not installed.
+     */
+    @Nullable
+    List<Path> resolve(@NonNull String packageName, int userId);
+
+    /** Returns the APK files of every package installed for {@code userId}, sorted by name. */
+    @NonNull
+    Map<String, List<Path>> getPackages(int userId);
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.internal.PostingList;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Persistent inverted index from permission names to the packages requesting, defining or
+ * enforcing them, so that "which apps use permission X" is answered without reading any APK.
+ *
+ * <p>Each indexed package gets a small int id, reused once the package is removed. For each
+ * {@link Relation}, a permission maps to the {@link PostingList} of the ids of its packages. The
+ * file also records, for each package, the state of its APK as {@link ManifestSnapshot} does, so
+ * that an update re-reads only the manifests that changed.
+ */
+public final class PermissionIndex {
+    private static final int MAGIC = 0x50494458; // "PIDX"
+    private static final int VERSION = 1;
+
+    /** How a package relates to a permission */
+    public enum Relation {
+        /** Requested with {@code <uses-permission>} */
+        USES("uses"),
+        /** Defined with {@code <permission>} */
+        DEFINES("defines"),
+        /** Required by the application or one of its components, to start or query it */
+        GUARDS("guards");
+
+        @NonNull private final String displayName;
+
+        Relation(@NonNull String displayName) {
+            this.displayName = displayName;
+        }
+
+        @NonNull
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /** An indexed package and the state of its APK when it was indexed */
+    public static final class Package {
+        @NonNull private final String key;
+        @Nullable private final String packageName;
+        @NonNull private final ManifestSnapshot.Entry file;
+
+        /**
+         * @param file the state of the APK, keyed like the package
+         * @param packageName the package name in the manifest, or null if it declares none
+         */
+        public Package(@NonNull ManifestSnapshot.Entry file, @Nullable String packageName) {
+            this.key = file.getKey();
+            this.packageName = packageName;
+            this.file = file;
+        }
+
+        /** Returns the target the package is tracked under, a package name or an APK path */
+        @NonNull
+        public String getKey() {
+            return key;
+        }
+
+        @Nullable
+        public String getPackageName() {
+            return packageName;
+        }
+
+        @NonNull
+        public ManifestSnapshot.Entry getFile() {
+            return file;
+        }
+    }
+
+    /** Notified of the changes to an index, on the thread making them and in their order */
+    public interface Listener {
+        /**
+         * Called once {@code pkg} is indexed under {@code permissions}, replacing {@code previous}
+         * if its key was already indexed.
+         */
+        void onPut(
+                @Nullable Package previous,
+                @NonNull Package pkg,
+                @NonNull Map<Relation, Set<String>> permissions);
+
+        /** Called once {@code pkg} is removed */
+        void onRemove(@NonNull Package pkg);
+    }
+
+    /** Packages by id; removed packages leave a {@code null} slot until their id is reused */
+    @NonNull private final List<Package> packages = new ArrayList<>();
+
+    @NonNull private final Map<String, Integer> ids = new HashMap<>();
+    @NonNull private final TreeSet<Integer> freeIds = new TreeSet<>();
+    @NonNull private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @NonNull
+    private final Map<Relation, TreeMap<String, PostingList>> postings =
+            new EnumMap<>(Relation.class);
+
+    /**
+     * The permissions each package is indexed under, by id, so that replacing or removing it only
+     * touches their posting lists. Rebuilt from the posting lists on load.
+     */
+    @NonNull private final List<Map<Relation, List<String>>> permissionsById = new ArrayList<>();
+
+    public PermissionIndex() {
+        for (Relation relation : Relation.values()) {
+            postings.put(relation, new TreeMap<>());
+        }
+    }
+
+    /** Loads an index from disk. A missing file yields an empty index. */
+    @NonNull
+    public static PermissionIndex load(@NonNull Path file) throws IOException {
+        PermissionIndex index = new PermissionIndex();
+        try (DataInputStream in = open(file)) {
+            index.readPackages(in);
+            for (Relation relation : Relation.values()) {
+                Map<String, PostingList> lists = index.postings.get(relation);
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String permission = in.readUTF();
+                    PostingList list = PostingList.read(in);
+                    lists.put(permission, list);
+                    for (int j = 0; j < list.size(); j++) {
+                        index.getPermissions(list.get(j))
+                                .computeIfAbsent(relation, r -> new ArrayList<>())
+                                .add(permission);
+                    }
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // first run
+        }
+        return index;
+    }
+
+    /**
+     * Returns the packages related to {@code permission} in the index stored at {@code file},
+     * decoding only the posting lists of that permission.
+     */
+    @NonNull
+    public static Map<Relation, List<Package>> query(@NonNull Path file, @NonNull String permission)
+            throws IOException {
+        PermissionIndex index = new PermissionIndex();
+        Map<Relation, List<Package>> result = new EnumMap<>(Relation.class);
+        try (DataInputStream in = open(file)) {
+            index.readPackages(in);
+            for (Relation relation : Relation.values()) {
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    if (in.readUTF().equals(permission)) {
+                        result.put(relation, index.toPackages(PostingList.read(in)));
+                    } else {
+                        PostingList.skip(in);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @NonNull
+    private static DataInputStream open(@NonNull Path file) throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(Files.newInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a permission index: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported permission index version " + version);
+            }
+            return in;
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private void readPackages(@NonNull DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int id = 0; id < count; id++) {
+            permissionsById.add(null);
+            if (!in.readBoolean()) {
+                packages.add(null);
+                freeIds.add(id);
+                continue;
+            }
+            String key = in.readUTF();
+            String packageName = in.readUTF();
+            Package pkg =
+                    new Package(
+                            new ManifestSnapshot.Entry(
+                                    key, in.readUTF(), in.readLong(), in.readLong(), in.readInt()),
+                            packageName.isEmpty() ? null : packageName);
+            packages.add(pkg);
+            ids.put(key, id);
+        }
+    }
+
+    /** Returns the permissions of the loaded package {@code id}, for {@link #load} to fill */
+    @NonNull
+    private Map<Relation, List<String>> getPermissions(int id) throws IOException {
+        if (id < 0 || id >= packages.size() || packages.get(id) == null) {
+            throw new IOException("Posting of missing package " + id);
+        }
+        Map<Relation, List<String>> permissions = permissionsById.get(id);
+        if (permissions == null) {
+            permissions = new EnumMap<>(Relation.class);
+            permissionsById.set(id, permissions);
+        }
+        return permissions;
+    }
+
+    /** Writes the index next to {@code file} and atomically moves it into place. */
+    public void save(@NonNull Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            // trailing free slots are dropped
+            int count = packages.size();
+            while (count > 0 && packages.get(count - 1) == null) {
+                count--;
+            }
+            out.writeInt(count);
+            for (Package pkg : packages.subList(0, count)) {
+                out.writeBoolean(pkg != null);
+                if (pkg == null) {
+                    continue;
+                }
+                ManifestSnapshot.Entry entry = pkg.getFile();
+                out.writeUTF(pkg.getKey());
+                out.writeUTF(pkg.getPackageName() != null ? pkg.getPackageName() : "");
+                out.writeUTF(entry.getPath());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getLastModified());
+                out.writeInt(entry.getManifestCrc());
+            }
+            for (Relation relation : Relation.values()) {
+                Map<String, PostingList> lists = postings.get(relation);
+                out.writeInt(lists.size());
+                for (Map.Entry<String, PostingList> entry : lists.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Nullable
+    public Package get(@NonNull String key) {
+        Integer id = ids.get(key);
+        return id != null ? packages.get(id) : null;
+    }
+
+    @NonNull
+    public Collection<Package> getPackages() {
+        List<Package> result = new ArrayList<>(ids.size());
+        for (Package pkg : packages) {
+            if (pkg != null) {
+                result.add(pkg);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Indexes {@code pkg} under {@code permissions}, replacing what was indexed under its key.
+     */
+    public void put(@NonNull Package pkg, @NonNull Map<Relation, Set<String>> permissions) {
+        Integer id = ids.get(pkg.getKey());
+        Package previous = id != null ? packages.get(id) : null;
+        if (id != null) {
+            removePostings(id);
+        } else if (!freeIds.isEmpty()) {
+            id = freeIds.pollFirst();
+        } else {
+            id = packages.size();
+            packages.add(null);
+            permissionsById.add(null);
+        }
+        packages.set(id, pkg);
+        ids.put(pkg.getKey(), id);
+        Map<Relation, List<String>> indexed = new EnumMap<>(Relation.class);
+        for (Map.Entry<Relation, Set<String>> entry : permissions.entrySet()) {
+            Map<String, PostingList> lists = postings.get(entry.getKey());
+            List<String> names = new ArrayList<>(entry.getValue());
+            for (String permission : names) {
+                lists.computeIfAbsent(permission, name -> new PostingList()).add(id);
+            }
+            indexed.put(entry.getKey(), names);
+        }
+        permissionsById.set(id, indexed);
+        for (Listener listener : listeners) {
+            listener.onPut(previous, pkg, permissions);
+        }
+    }
+
+    /**
+     * Records the new state of the APK of an indexed package whose manifest did not change.
+     *
+     * @throws IllegalArgumentException if no package is indexed under the key of {@code file}
+     */
+    public void update(@NonNull ManifestSnapshot.Entry file) {
+        Integer id = ids.get(file.getKey());
+        if (id == null) {
+            throw new IllegalArgumentException("Not indexed: " + file.getKey());
+        }
+        packages.set(id, new Package(file, packages.get(id).getPackageName()));
+    }
+
+    @Nullable
+    public Package remove(@NonNull String key) {
+        Integer id = ids.remove(key);
+        if (id == null) {
+            return null;
+        }
+        removePostings(id);
+        Package pkg = packages.set(id, null);
+        freeIds.add(id);
+        for (Listener listener : listeners) {
+            listener.onRemove(pkg);
+        }
+        return pkg;
+    }
+
+    /** Subscribes {@code listener} to the changes made to this index from now on */
+    public void addListener(@NonNull Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(@NonNull Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Returns the packages related to {@code permission} by {@code relation}, by id */
+    @NonNull
+    public List<Package> query(@NonNull Relation relation, @NonNull String permission) {
+        PostingList list = postings.get(relation).get(permission);
+        return list != null ? toPackages(list) : Collections.emptyList();
+    }
+
+    @NonNull
+    private List<Package> toPackages(@NonNull PostingList list) {
+        List<Package> result = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            int id = list.get(i);
+            Package pkg = id < packages.size() ? packages.get(id) : null;
+            if (pkg == null) {
+                throw new IllegalStateException("Posting of missing package " + id);
+            }
+            result.add(pkg);
+        }
+        return result;
+    }
+
+    private void removePostings(int id) {
+        Map<Relation, List<String>> permissions = permissionsById.set(id, null);
+        if (permissions == null) {
+            return;
+        }
+        for (Map.Entry<Relation, List<String>> entry : permissions.entrySet()) {
+            Map<String, PostingList> lists = postings.get(entry.getKey());
+            for (String permission : entry.getValue()) {
+                PostingList list = lists.get(permission);
+                if (list != null && list.remove(id) && list.isEmpty()) {
+                    lists.remove(permission);
+                }
+            }
+        }
+    }
+}
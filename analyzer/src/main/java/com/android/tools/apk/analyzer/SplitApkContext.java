@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import java.util.List;
+
+/**
+ * An {@link ArchiveContext} for an installed package made of a base APK and zero or more
+ * configuration or feature split APKs. All archives share the same {@link ArchiveManager} and are
+ * closed together.
+ */
+public interface SplitApkContext extends ArchiveContext {
+    /** The split archives, in the order they were given; does not include the base archive */
+    @NonNull
+    List<Archive> getSplits();
+
+    /** The base archive followed by all the split archives */
+    @NonNull
+    List<Archive> getArchives();
+}
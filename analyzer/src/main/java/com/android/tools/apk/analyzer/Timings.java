@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process wide, opt-in instrumentation of the analysis phases.
+ *
+ * <p>Code wraps each phase in a {@link Span}:
+ *
+ * <pre>
+ * try (Timings.Span span = Timings.start(Timings.Phase.DECODE)) {
+ *     span.addBytes(bytes.length);
+ *     ...
+ * }
+ * </pre>
+ *
+ * Spans are measured with the monotonic {@link System#nanoTime()} clock. When the JVM supports
+ * it, the bytes allocated by the calling thread during the span are recorded as well. While
+ * timings are disabled, {@link #start(Phase)} returns a shared no-op span and costs a single
+ * volatile read, plus a thread local write: the phase each thread last started is always kept,
+ * so that a failure can be attributed to its phase, see {@link #getLastPhase()}.
+ */
+public final class Timings {
+    /** The phases of an analysis, in the order they normally happen */
+    public enum Phase {
+        /** Resolving a package name to APK paths through the PackageManager */
+        RESOLVE("resolve"),
+        /** Opening an archive, which reads its central directory */
+        OPEN("open"),
+        /** Reading and inflating an archive entry */
+        INFLATE("inflate"),
+        /** Decoding binary XML */
+        DECODE("decode"),
+        /** Parsing the decoded manifest */
+        PARSE("parse");
+
+        @NonNull private final String displayName;
+
+        Phase(@NonNull String displayName) {
+            this.displayName = displayName;
+        }
+
+        @NonNull
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    /** A measured phase; closing it records its duration. */
+    public static class Span implements AutoCloseable {
+        private final PhaseStats stats;
+        private final long start;
+        private final long allocatedAtStart;
+
+        private Span(PhaseStats stats, long allocatedAtStart) {
+            this.stats = stats;
+            this.allocatedAtStart = allocatedAtStart;
+            this.start = System.nanoTime();
+        }
+
+        /** Records {@code count} bytes read or processed during this span */
+        public void addBytes(long count) {
+            stats.bytes.add(count);
+        }
+
+        @Override
+        public void close() {
+            long elapsed = System.nanoTime() - start;
+            stats.record(elapsed);
+            if (allocatedAtStart >= 0) {
+                long allocated = Allocations.current();
+                if (allocated >= 0) {
+                    stats.allocated.add(allocated - allocatedAtStart);
+                }
+            }
+        }
+    }
+
+    private static final Span NO_OP =
+            new Span(null, -1) {
+                @Override
+                public void addBytes(long count) {}
+
+                @Override
+                public void close() {}
+            };
+
+    /** Number of histogram buckets: bucket {@code i} holds spans shorter than 2^i microseconds */
+    private static final int BUCKETS = 32;
+
+    private static final class PhaseStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder allocated = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long elapsedNanos) {
+            count.increment();
+            nanos.add(elapsedNanos);
+            long micros = elapsedNanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        }
+    }
+
+    private static final PhaseStats[] STATS = new PhaseStats[Phase.values().length];
+
+    static {
+        for (int i = 0; i < STATS.length; i++) {
+            STATS[i] = new PhaseStats();
+        }
+    }
+
+    private static volatile boolean enabled;
+
+    private static final ThreadLocal<Phase> LAST_PHASE = new ThreadLocal<>();
+
+    private Timings() {}
+
+    public static void setEnabled(boolean enabled) {
+        Timings.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts measuring {@code phase}. The returned span must be closed. */
+    @NonNull
+    public static Span start(@NonNull Phase phase) {
+        LAST_PHASE.set(phase);
+        if (!enabled) {
+            return NO_OP;
+        }
+        return new Span(STATS[phase.ordinal()], Allocations.current());
+    }
+
+    /**
+     * Returns the phase the calling thread last started since {@link #clearLastPhase()}, which is
+     * the phase an exception was thrown from unless the thread got past the end of that phase.
+     */
+    @Nullable
+    public static Phase getLastPhase() {
+        return LAST_PHASE.get();
+    }
+
+    /** Forgets the phase the calling thread last started, typically before a new item */
+    public static void clearLastPhase() {
+        LAST_PHASE.remove();
+    }
+
+    /** Clears all the recorded spans */
+    public static void reset() {
+        for (int i = 0; i < STATS.length; i++) {
+            STATS[i] = new PhaseStats();
+        }
+    }
+
+    /**
+     * Prints the count, total and mean duration, bytes and allocations of each phase. Phases
+     * measured more than once, as happens when analyzing many APKs, are followed by a histogram
+     * of their span durations.
+     */
+    public static void print(@NonNull PrintStream out) {
+        out.println(
+                String.format(
+                        Locale.US,
+                        "%-8s %8s %12s %10s %12s %12s",
+                        "phase",
+                        "count",
+                        "total(ms)",
+                        "mean(ms)",
+                        "bytes",
+                        "allocated"));
+        for (Phase phase : Phase.values()) {
+            PhaseStats stats = STATS[phase.ordinal()];
+            long count = stats.count.sum();
+            if (count == 0) {
+                continue;
+            }
+            long nanos = stats.nanos.sum();
+            long allocated = stats.allocated.sum();
+            out.println(
+                    String.format(
+                            Locale.US,
+                            "%-8s %8d %12.3f %10.3f %12d %12s",
+                            phase.getDisplayName(),
+                            count,
+                            nanos / 1e6,
+                            nanos / 1e6 / count,
+                            stats.bytes.sum(),
+                            Allocations.isSupported() ? Long.toString(allocated) : "n/a"));
+        }
+
+        for (Phase phase : Phase.values()) {
+            PhaseStats stats = STATS[phase.ordinal()];
+            if (stats.count.sum() <= 1) {
+                continue;
+            }
+            out.println();
+            out.println(phase.getDisplayName() + ":");
+            long max = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                max = Math.max(max, stats.histogram.get(i));
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long samples = stats.histogram.get(i);
+                if (samples == 0) {
+                    continue;
+                }
+                StringBuilder bar = new StringBuilder();
+                for (long j = samples * 40 / max; j > 0; j--) {
+                    bar.append('#');
+                }
+                out.println(
+                        String.format(
+                                Locale.US,
+                                "  < %10s %8d %s",
+                                formatMicros(1L << i),
+                                samples,
+                                bar));
+            }
+        }
+    }
+
+    @NonNull
+    private static String formatMicros(long micros) {
+        if (micros < 1000) {
+            return micros + "us";
+        } else if (micros < 1000_000) {
+            return (micros / 1000) + "ms";
+        }
+        return (micros / 1000_000) + "s";
+    }
+
+    /**
+     * Per thread allocation counter, available on HotSpot through {@code
+     * com.sun.management.ThreadMXBean} but not on ART, hence the reflection.
+     */
+    private static final class Allocations {
+        private static Object bean;
+        private static Method getThreadAllocatedBytes;
+
+        static {
+            try {
+                Object threadBean =
+                        Class.forName("java.lang.management.ManagementFactory")
+                                .getMethod("getThreadMXBean")
+                                .invoke(null);
+                Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+                if (beanClass.isInstance(threadBean)
+                        && (Boolean)
+                                beanClass
+                                        .getMethod("isThreadAllocatedMemorySupported")
+                                        .invoke(threadBean)) {
+                    beanClass
+                            .getMethod("setThreadAllocatedMemoryEnabled", boolean.class)
+                            .invoke(threadBean, true);
+                    getThreadAllocatedBytes =
+                            beanClass.getMethod("getThreadAllocatedBytes", long.class);
+                    bean = threadBean;
+                }
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // not available on this VM
+            }
+        }
+
+        static boolean isSupported() {
+            return bean != null;
+        }
+
+        /** Returns the bytes allocated so far by the current thread, or -1 if unsupported */
+        static long current() {
+            if (bean == null) {
+                return -1;
+            }
+            try {
+                return (Long)
+                        getThreadAllocatedBytes.invoke(bean, Thread.currentThread().getId());
+            } catch (ReflectiveOperationException e) {
+                return -1;
+            }
+        }
+    }
+}
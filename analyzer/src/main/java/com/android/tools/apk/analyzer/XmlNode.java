@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Canonical element tree of a decoded binary XML file. Attributes are keyed by their qualified
+ * name ({@code prefix:name}) and kept sorted, so two trees of the same document compare equal
+ * regardless of the attribute and namespace order in the binary file.
+ */
+public final class XmlNode {
+    @NonNull private final String name;
+    @NonNull private final SortedMap<String, String> attributes = new TreeMap<>();
+    @NonNull private final List<XmlNode> children = new ArrayList<>();
+
+    public XmlNode(@NonNull String name) {
+        this.name = name;
+    }
+
+    /** Returns the element name */
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    @NonNull
+    public SortedMap<String, String> getAttributes() {
+        return Collections.unmodifiableSortedMap(attributes);
+    }
+
+    @Nullable
+    public String getAttribute(@NonNull String qualifiedName) {
+        return attributes.get(qualifiedName);
+    }
+
+    @NonNull
+    public List<XmlNode> getChildren() {
+        return Collections.unmodifiableList(children);
+    }
+
+    void setAttribute(@NonNull String qualifiedName, @NonNull String value) {
+        attributes.put(qualifiedName, value);
+    }
+
+    void addChild(@NonNull XmlNode child) {
+        children.add(child);
+    }
+
+    @Override
+    public String toString() {
+        return "<" + name + " " + attributes + ">";
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches directory trees of APK files through a {@link WatchService} and reports the APKs that
+ * changed, in batches: a batch ends once no event came for a quiet period, so that an APK being
+ * copied, or a burst of updates, is reported once rather than for each write. Directories
+ * created below the roots are watched as well, and the APKs they already hold reported.
+ */
+public final class ApkDirectoryWatcher implements Closeable {
+    /** A batch is reported at most this many quiet periods after its first event */
+    private static final int MAX_QUIET_PERIODS = 10;
+
+    @NonNull private final List<Path> roots;
+    private final long quietMillis;
+    @NonNull private final WatchService service;
+    @NonNull private final Map<WatchKey, Path> directories = new HashMap<>();
+
+    /**
+     * Starts watching {@code roots} and the directories below them.
+     *
+     * @param quietMillis how long no event must come before a batch is reported
+     */
+    public ApkDirectoryWatcher(@NonNull List<Path> roots, long quietMillis) throws IOException {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("No directory to watch");
+        }
+        this.roots = roots;
+        this.quietMillis = quietMillis;
+        this.service = roots.get(0).getFileSystem().newWatchService();
+        try {
+            for (Path root : roots) {
+                register(root, null);
+            }
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    /** Returns whether {@code path} names an APK file */
+    public static boolean isApk(@NonNull Path path) {
+        Path name = path.getFileName();
+        return name != null && name.toString().endsWith(".apk");
+    }
+
+    /** Returns whether {@code path} is below one of the watched roots */
+    public boolean isWatched(@NonNull Path path) {
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns all the APK files below the roots, in path order */
+    @NonNull
+    public Set<Path> listApks() throws IOException {
+        Set<Path> apks = new TreeSet<>();
+        for (Path root : roots) {
+            walk(root, false, apks);
+        }
+        return apks;
+    }
+
+    /**
+     * Waits for the next batch of changes and returns the APKs that were created, modified or
+     * deleted, whether they exist or not, or {@code null} if every APK below the roots may have
+     * changed: events were lost, or a watched directory was moved or deleted, which reports no
+     * event for the APKs it held.
+     */
+    @Nullable
+    public Set<Path> take() throws IOException, InterruptedException {
+        Set<Path> changed = new TreeSet<>();
+        boolean incomplete = false;
+        WatchKey key = service.take();
+        long quietNanos = TimeUnit.MILLISECONDS.toNanos(quietMillis);
+        long deadline = System.nanoTime() + MAX_QUIET_PERIODS * quietNanos;
+        while (key != null) {
+            incomplete |= process(key, changed);
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            key = service.poll(Math.min(quietNanos, remaining), TimeUnit.NANOSECONDS);
+        }
+        return incomplete ? null : changed;
+    }
+
+    /**
+     * Adds the APKs {@code key} reports to {@code changed}, returning whether they are not the
+     * only changes
+     */
+    private boolean process(@NonNull WatchKey key, @NonNull Set<Path> changed)
+            throws IOException {
+        boolean incomplete = false;
+        Path directory = directories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                incomplete = true;
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path child = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(child)) {
+                register(child, changed);
+            } else if (isApk(child)) {
+                changed.add(child);
+            } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                incomplete |= unregister(child);
+            }
+        }
+        if (!key.reset()) {
+            // the directory is gone, and the deletion of its APKs was reported with it
+            directories.remove(key);
+        }
+        return incomplete;
+    }
+
+    /**
+     * Stops watching {@code directory}, deleted or moved away, and its subdirectories. A moved
+     * directory keeps its watch keys, which would otherwise report events under its old path.
+     * Returns whether it was watched.
+     */
+    private boolean unregister(@NonNull Path directory) {
+        boolean watched = false;
+        for (Iterator<Map.Entry<WatchKey, Path>> it = directories.entrySet().iterator();
+                it.hasNext(); ) {
+            Map.Entry<WatchKey, Path> entry = it.next();
+            if (entry.getValue().startsWith(directory)) {
+                entry.getKey().cancel();
+                it.remove();
+                watched = true;
+            }
+        }
+        return watched;
+    }
+
+    /** Watches {@code root} and its subdirectories, adding their APKs to {@code apks} if given */
+    private void register(@NonNull Path root, @Nullable Set<Path> apks) throws IOException {
+        walk(root, true, apks);
+    }
+
+    private void walk(@NonNull Path root, boolean register, @Nullable Set<Path> apks)
+            throws IOException {
+        Files.walkFileTree(
+                root,
+                new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult preVisitDirectory(
+                            Path dir, BasicFileAttributes attributes) throws IOException {
+                        if (register) {
+                            WatchKey key =
+                                    dir.register(
+                                            service,
+                                            StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_DELETE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY);
+                            directories.put(key, dir);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                        if (apks != null && attributes.isRegularFile() && isApk(file)) {
+                            apks.add(file);
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e)
+                            throws IOException {
+                        // a file or directory deleted while walking is reported by its event
+                        if (Files.exists(file)) {
+                            throw e;
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+    }
+}
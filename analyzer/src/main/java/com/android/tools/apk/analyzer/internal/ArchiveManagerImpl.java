@@ -20,13 +20,19 @@ import com.android.annotations.NonNull;
 import com.android.tools.apk.analyzer.Archive;
 import com.android.tools.apk.analyzer.ArchiveContext;
 import com.android.tools.apk.analyzer.ArchiveManager;
+import com.android.tools.apk.analyzer.SplitApkContext;
+import com.android.tools.apk.analyzer.Timings;
 import com.android.utils.FileUtils;
 import com.android.utils.ILogger;
 import com.google.common.collect.ImmutableList;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static com.android.SdkConstants.*;
 
@@ -39,7 +45,7 @@ public class ArchiveManagerImpl implements ArchiveManager {
             ImmutableList.of(".zip", ".apk", ".jar");
 
     @NonNull private final ILogger logger;
-    @NonNull private final Map<Path, Archive> archives = new HashMap<>();
+    @NonNull private final Map<Path, Archive> archives = new ConcurrentHashMap<>();
 
     @NonNull
     private final Map<Archive, Path> tempDirectories = new TreeMap<>(new ArchivePathComparator());
@@ -51,8 +57,60 @@ public class ArchiveManagerImpl implements ArchiveManager {
     @NonNull
     @Override
     public ArchiveContext openArchive(@NonNull Path path) throws IOException {
-        Archive archive = MapUtils.computeIfAbsent(archives, path, this::openArchiveWorker);
-        return new ArchiveContextImpl(this, archive);
+        return new ArchiveContextImpl(this, getArchive(path));
+    }
+
+    /**
+     * Opens a base APK and its split APKs. The archives are opened concurrently, and are valid
+     * until the {@link #close()} method is called.
+     */
+    @NonNull
+    public SplitApkContext openSplitApk(@NonNull Path base, @NonNull List<Path> splits)
+            throws IOException {
+        List<CompletableFuture<Archive>> futures = new ArrayList<>(splits.size());
+        for (Path split : splits) {
+            futures.add(
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return getArchive(split);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }));
+        }
+        Archive baseArchive = getArchive(base);
+        List<Archive> splitArchives = new ArrayList<>(splits.size());
+        try {
+            for (CompletableFuture<Archive> future : futures) {
+                splitArchives.add(future.join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        return new SplitApkContextImpl(this, baseArchive, splitArchives);
+    }
+
+    @NonNull
+    private Archive getArchive(@NonNull Path path) throws IOException {
+        // A zip file system can be opened only once per file, so concurrent requests for the
+        // same path must wait for the first one; different paths are opened in parallel
+        try {
+            return archives.computeIfAbsent(
+                    path,
+                    p -> {
+                        try {
+                            return openArchiveWorker(p);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     @Override
@@ -75,6 +133,13 @@ public class ArchiveManagerImpl implements ArchiveManager {
     @NonNull
     private Archive openArchiveWorker(@NonNull Path path) throws IOException {
         logger.info(String.format("Opening archive \"%s\"", path));
+        try (Timings.Span ignored = Timings.start(Timings.Phase.OPEN)) {
+            return openArchiveWorkerImpl(path);
+        }
+    }
+
+    @NonNull
+    static Archive openArchiveWorkerImpl(@NonNull Path path) throws IOException {
         if (hasFileExtension(path, EXT_ZIP)) {
             // We assume this is an AIA bundle, which we give special handling
             throw new RuntimeException("Unsupport InstantAppBundleArchive");
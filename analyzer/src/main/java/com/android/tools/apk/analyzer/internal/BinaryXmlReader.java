@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.DecodeLimits;
+import com.android.utils.StringTable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Pull reader over a binary XML file, for callers that need a few elements and attributes out
+ * of it rather than its text.
+ *
+ * <pre>
+ * BinaryXmlReader reader = BinaryXmlReader.open(bytes);
+ * for (int event = reader.next(); event != END_DOCUMENT; event = reader.next()) {
+ *     if (event == START_ELEMENT &amp;&amp; reader.getDepth() == 1) {
+ *         String value = reader.getAttributeValue(reader.indexOfAttribute(0x01010003));
+ *     }
+ * }
+ * </pre>
+ *
+ * The reader works on the raw chunks, without building a chunk tree: each call to {@link #next()}
+ * reads one chunk header, and strings are decoded from the string pool only when asked for, once.
+ * Short strings are looked up in the shared {@link StringTable} straight from the pool bytes, so
+ * the names and values common to many apps are neither decoded nor held twice. Android
+ * attributes are looked up by resource id, which the string pool names cannot spoof. The chunks
+ * are checked by {@link ChunkValidator} before reading, so the reader can trust their sizes and
+ * offsets.
+ */
+public final class BinaryXmlReader {
+    /** Returned by {@link #next()} at the end of the file */
+    public static final int END_DOCUMENT = 1;
+
+    /** Returned by {@link #next()} at the start of an element, with its attributes */
+    public static final int START_ELEMENT = 2;
+
+    /** Returned by {@link #next()} at the end of an element */
+    public static final int END_ELEMENT = 3;
+
+    private static final int TYPE_STRING_POOL = 0x0001;
+    private static final int TYPE_XML = 0x0003;
+    private static final int TYPE_XML_START_ELEMENT = 0x0102;
+    private static final int TYPE_XML_END_ELEMENT = 0x0103;
+    private static final int TYPE_XML_RESOURCE_MAP = 0x0180;
+
+    private static final int CHUNK_HEADER_SIZE = 8;
+    /** The size of an attribute, as the validator checks them */
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int NO_INDEX = -1;
+
+    private static final int VALUE_REFERENCE = 0x01;
+    private static final int VALUE_STRING = 0x03;
+    private static final int VALUE_INT_DEC = 0x10;
+    private static final int VALUE_INT_HEX = 0x11;
+    private static final int VALUE_INT_BOOLEAN = 0x12;
+
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    @NonNull private final ByteBuffer buffer;
+    private final int end;
+    private int position;
+    private int chunks;
+
+    private int stringCount;
+    private int stringOffsets;
+    private int stringData;
+    private boolean utf8;
+    @Nullable private String[] strings;
+
+    private int resourceMap;
+    private int resourceMapCount;
+
+    private int depth;
+    private boolean endPending;
+    private int nameIndex = NO_INDEX;
+    private int attributeStart;
+    private int attributeCount;
+
+    private BinaryXmlReader(@NonNull byte[] bytes, int headerSize, int end) {
+        this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.position = headerSize;
+        this.end = end;
+    }
+
+    /**
+     * Returns a reader positioned before the root element of {@code bytes}, or {@code null} if
+     * {@code bytes} is not a binary XML file.
+     *
+     * @throws com.android.tools.apk.analyzer.DecodeLimitException if a chunk is malformed or a
+     *     {@link DecodeLimits} is exceeded
+     */
+    @Nullable
+    public static BinaryXmlReader open(@NonNull byte[] bytes) {
+        if (bytes.length < CHUNK_HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        if ((header.getShort(0) & 0xFFFF) != TYPE_XML) {
+            return null;
+        }
+        ChunkValidator.validate(bytes, DecodeLimits.get());
+        return new BinaryXmlReader(bytes, header.getShort(2) & 0xFFFF, header.getInt(4));
+    }
+
+    /**
+     * Moves to the next element start or end, skipping namespaces and text, and returns {@link
+     * #START_ELEMENT}, {@link #END_ELEMENT} or {@link #END_DOCUMENT}.
+     */
+    public int next() {
+        if (endPending) {
+            endPending = false;
+            depth--;
+        }
+        attributeCount = 0;
+        while (position < end) {
+            int chunk = position;
+            int type = buffer.getShort(chunk) & 0xFFFF;
+            int headerSize = buffer.getShort(chunk + 2) & 0xFFFF;
+            int size = buffer.getInt(chunk + 4);
+            position += size;
+            if (++chunks % TIME_CHECK_INTERVAL == 0) {
+                DecodeLimits.checkTime();
+            }
+
+            switch (type) {
+                case TYPE_STRING_POOL:
+                    // the first pool holds the names and values; later ones are not referenced
+                    if (strings == null) {
+                        stringCount = buffer.getInt(chunk + 8);
+                        utf8 = (buffer.getInt(chunk + 16) & UTF8_FLAG) != 0;
+                        stringData = chunk + buffer.getInt(chunk + 20);
+                        stringOffsets = chunk + headerSize;
+                        strings = new String[stringCount];
+                    }
+                    break;
+                case TYPE_XML_RESOURCE_MAP:
+                    resourceMap = chunk + headerSize;
+                    resourceMapCount = (size - headerSize) / 4;
+                    break;
+                case TYPE_XML_START_ELEMENT:
+                    {
+                        int extension = chunk + headerSize;
+                        nameIndex = buffer.getInt(extension + 4);
+                        attributeStart = extension + (buffer.getShort(extension + 8) & 0xFFFF);
+                        attributeCount = buffer.getShort(extension + 12) & 0xFFFF;
+                        depth++;
+                        return START_ELEMENT;
+                    }
+                case TYPE_XML_END_ELEMENT:
+                    nameIndex = buffer.getInt(chunk + headerSize + 4);
+                    endPending = true;
+                    return END_ELEMENT;
+                default:
+                    break;
+            }
+        }
+        nameIndex = NO_INDEX;
+        return END_DOCUMENT;
+    }
+
+    /** Returns the depth of the current element, 1 for the root element */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Returns the name of the current element, or {@code null} at the end of the document */
+    @Nullable
+    public String getName() {
+        return getString(nameIndex);
+    }
+
+    /** Returns the number of attributes of the current element, 0 unless at its start */
+    public int getAttributeCount() {
+        return attributeCount;
+    }
+
+    /** Returns the name of the attribute at {@code index}, as in the string pool */
+    @Nullable
+    public String getAttributeName(int index) {
+        return getString(buffer.getInt(attribute(index) + 4));
+    }
+
+    /**
+     * Returns the resource id of the attribute at {@code index}, such as {@code 0x01010003} for
+     * {@code android:name}, or 0 if it is not a resource attribute.
+     */
+    public int getAttributeResourceId(int index) {
+        int nameIndex = buffer.getInt(attribute(index) + 4);
+        if (nameIndex < 0 || nameIndex >= resourceMapCount) {
+            return 0;
+        }
+        return buffer.getInt(resourceMap + 4 * nameIndex);
+    }
+
+    /**
+     * Returns the index of the attribute of the current element with resource id {@code
+     * resourceId}, or -1 if there is none.
+     */
+    public int indexOfAttribute(int resourceId) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (getAttributeResourceId(i) == resourceId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the attribute of the current element named {@code name} that is not
+     * a resource attribute, such as {@code package}, or -1 if there is none.
+     */
+    public int indexOfAttribute(@NonNull String name) {
+        for (int i = 0; i < attributeCount; i++) {
+            if (getAttributeResourceId(i) == 0 && name.equals(getAttributeName(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the value of the attribute at {@code index} in the form {@link
+     * com.android.tools.apk.analyzer.BinaryXmlParser} prints it, or {@code null} if {@code index}
+     * is -1.
+     */
+    @Nullable
+    public String getAttributeValue(int index) {
+        if (index < 0) {
+            return null;
+        }
+        int attribute = attribute(index);
+        int rawValue = buffer.getInt(attribute + 8);
+        if (rawValue != NO_INDEX) {
+            return getString(rawValue);
+        }
+        int type = buffer.get(attribute + 15) & 0xFF;
+        int data = buffer.getInt(attribute + 16);
+        switch (type) {
+            case VALUE_STRING:
+                return getString(data);
+            case VALUE_REFERENCE:
+                return String.format(Locale.US, "@ref/0x%1$08x", data);
+            case VALUE_INT_DEC:
+                return Integer.toString(data);
+            case VALUE_INT_HEX:
+                return "0x" + Integer.toHexString(data);
+            case VALUE_INT_BOOLEAN:
+                return Boolean.toString(data != 0);
+            default:
+                return String.format(Locale.US, "@res/0x%x", data);
+        }
+    }
+
+    private int attribute(int index) {
+        if (index < 0 || index >= attributeCount) {
+            throw new IndexOutOfBoundsException("Attribute " + index + " of " + attributeCount);
+        }
+        return attributeStart + index * ATTRIBUTE_SIZE;
+    }
+
+    /** Returns the string at {@code index} in the string pool, decoding it on first use */
+    @Nullable
+    private String getString(int index) {
+        if (strings == null || index < 0 || index >= stringCount) {
+            return null;
+        }
+        String string = strings[index];
+        if (string == null) {
+            string = decodeString(stringData + buffer.getInt(stringOffsets + 4 * index));
+            strings[index] = string;
+        }
+        return string;
+    }
+
+    @NonNull
+    private String decodeString(int offset) {
+        byte[] bytes = buffer.array();
+        int p = offset;
+        if (utf8) {
+            // the length in characters, then in bytes
+            if ((bytes[p++] & 0x80) != 0) {
+                p++;
+            }
+            int length = bytes[p++] & 0xFF;
+            if ((length & 0x80) != 0) {
+                length = ((length & 0x7F) << 8) | (bytes[p++] & 0xFF);
+            }
+            String shared = StringTable.getShared().internAscii(bytes, p, length);
+            return shared != null ? shared : new String(bytes, p, length, StandardCharsets.UTF_8);
+        }
+        int length = buffer.getShort(p) & 0xFFFF;
+        p += 2;
+        if ((length & 0x8000) != 0) {
+            length = ((length & 0x7FFF) << 16) | (buffer.getShort(p) & 0xFFFF);
+            p += 2;
+        }
+        String shared = StringTable.getShared().internUtf16(bytes, p, length);
+        return shared != null
+                ? shared
+                : new String(bytes, p, 2 * length, StandardCharsets.UTF_16LE);
+    }
+}
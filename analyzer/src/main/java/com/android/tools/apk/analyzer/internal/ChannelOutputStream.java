@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link OutputStream} over a {@link WritableByteChannel}, staged through a direct buffer of a
+ * fixed size and written to the channel only when the buffer fills up or on {@link #flush()}.
+ *
+ * <p>Unlike {@link System#out}, which flushes a small buffer on every line, this turns the many
+ * small writes of a dump into one system call per buffer, and writes large arrays in buffer sized
+ * slices without copying them into a temporary buffer of their own size. Not safe for use by
+ * multiple threads, which {@link PrintStream} takes care of.
+ */
+public class ChannelOutputStream extends OutputStream {
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    @NonNull private final WritableByteChannel channel;
+    @NonNull private final ByteBuffer buffer;
+
+    public ChannelOutputStream(@NonNull WritableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Returns a print stream writing to the channel of standard output, which must be flushed
+     * explicitly.
+     */
+    @NonNull
+    public static PrintStream openStandardOutput(int bufferSize) {
+        FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        return new PrintStream(new ChannelOutputStream(stdout.getChannel(), bufferSize), false);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer.put((byte) b);
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (buffer.position() > 0) {
+            drain();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.DecodeLimitException;
+import com.android.tools.apk.analyzer.DecodeLimits;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+
+/**
+ * Checks the chunk headers of a binary resource file before they are parsed.
+ *
+ * <p>The parser trusts the sizes and counts in the headers: a chunk of size zero makes it loop
+ * forever, and a string pool claiming billions of strings makes it allocate for all of them.
+ * This pass walks the headers without allocating, checks that every chunk, string and attribute
+ * lies within its parent, bounds the number of chunks and the depth of the elements, and charges
+ * an estimate of the memory the parser will allocate to the current {@link
+ * DecodeLimits.Budget}. It reads each header once, plus the length of each string.
+ */
+public final class ChunkValidator {
+    private static final int TYPE_STRING_POOL = 0x0001;
+    private static final int TYPE_TABLE = 0x0002;
+    private static final int TYPE_XML = 0x0003;
+    private static final int TYPE_XML_START_ELEMENT = 0x0102;
+    private static final int TYPE_XML_END_ELEMENT = 0x0103;
+    private static final int TYPE_TABLE_PACKAGE = 0x0200;
+
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+    /** A node header followed by the start of element extension */
+    private static final int START_ELEMENT_SIZE = 16 + 20;
+    /** A node header followed by the end of element extension */
+    private static final int END_ELEMENT_SIZE = 16 + 8;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int SPAN_SIZE = 12;
+    private static final int SPAN_END = 0xFFFFFFFF;
+    private static final int UTF8_FLAG = 1 << 8;
+
+    /** Estimated bytes the parser allocates per chunk, attribute, string and style span */
+    private static final int CHUNK_COST = 64;
+
+    private static final int ATTRIBUTE_COST = 48;
+    private static final int STRING_COST = 40;
+    private static final int SPAN_COST = 32;
+
+    /** Charges are batched to keep the budget off the per-chunk path */
+    private static final long CHARGE_BATCH = 1 << 20;
+
+    private static final int TIME_CHECK_INTERVAL = 1024;
+
+    @NonNull private final ByteBuffer buffer;
+    @NonNull private final DecodeLimits limits;
+    private long chunks;
+    private long depth;
+    private long uncharged;
+
+    private ChunkValidator(@NonNull byte[] bytes, @NonNull DecodeLimits limits) {
+        this.buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.limits = limits;
+    }
+
+    /**
+     * Validates the chunks of {@code bytes} against {@code limits}.
+     *
+     * @throws DecodeLimitException if a header is inconsistent or a limit is exceeded
+     */
+    public static void validate(@NonNull byte[] bytes, @NonNull DecodeLimits limits) {
+        ChunkValidator validator = new ChunkValidator(bytes, limits);
+        validator.validateChunks(0, bytes.length, 0);
+        DecodeLimits.charge(validator.uncharged);
+    }
+
+    /** Validates the sequence of chunks filling {@code [start, end)} */
+    private void validateChunks(int start, int end, int level) {
+        int offset = start;
+        while (offset < end) {
+            if (end - offset < CHUNK_HEADER_SIZE) {
+                throw malformed(offset, "truncated chunk header");
+            }
+            int type = buffer.getShort(offset) & 0xFFFF;
+            int headerSize = buffer.getShort(offset + 2) & 0xFFFF;
+            long size = buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+            if (headerSize < CHUNK_HEADER_SIZE || size < headerSize) {
+                throw malformed(offset, "header size " + headerSize + ", chunk size " + size);
+            }
+            if (size > end - offset) {
+                throw malformed(offset, "chunk size " + size + " overruns its parent");
+            }
+
+            if (limits.getMaxChunks() > 0 && ++chunks > limits.getMaxChunks()) {
+                throw new DecodeLimitException(
+                        "More than " + limits.getMaxChunks() + " chunks in binary XML");
+            }
+            if (chunks % TIME_CHECK_INTERVAL == 0) {
+                DecodeLimits.checkTime();
+            }
+            charge(CHUNK_COST);
+
+            int chunkEnd = offset + (int) size;
+            switch (type) {
+                case TYPE_STRING_POOL:
+                    validateStringPool(offset, headerSize, (int) size);
+                    break;
+                case TYPE_XML_START_ELEMENT:
+                    validateStartElement(offset, headerSize, (int) size);
+                    break;
+                case TYPE_XML_END_ELEMENT:
+                    validateEndElement(offset, headerSize, (int) size);
+                    break;
+                case TYPE_XML:
+                case TYPE_TABLE:
+                    if (level == 0) {
+                        validateChunks(offset + headerSize, chunkEnd, level + 1);
+                    }
+                    break;
+                case TYPE_TABLE_PACKAGE:
+                    if (level == 1) {
+                        validateChunks(offset + headerSize, chunkEnd, level + 1);
+                    }
+                    break;
+                default:
+                    // copied as is, or parsed from within its bounds
+                    charge(size);
+                    break;
+            }
+            offset = chunkEnd;
+        }
+    }
+
+    private void validateStartElement(int offset, int headerSize, int size) {
+        if (headerSize < 16 || size < START_ELEMENT_SIZE || size - headerSize < 20) {
+            throw malformed(offset, "start element of size " + size);
+        }
+        int extension = offset + headerSize;
+        int attributeStart = buffer.getShort(extension + 8) & 0xFFFF;
+        int attributeCount = buffer.getShort(extension + 12) & 0xFFFF;
+        if (headerSize + attributeStart + (long) attributeCount * ATTRIBUTE_SIZE > size) {
+            throw malformed(offset, attributeCount + " attributes overrun the element");
+        }
+        charge((long) attributeCount * ATTRIBUTE_COST);
+
+        if (limits.getMaxDepth() > 0 && ++depth > limits.getMaxDepth()) {
+            throw new DecodeLimitException(
+                    "Elements nested more than " + limits.getMaxDepth() + " deep");
+        }
+    }
+
+    private void validateEndElement(int offset, int headerSize, int size) {
+        if (headerSize < 16 || size < END_ELEMENT_SIZE || size - headerSize < 8) {
+            throw malformed(offset, "end element of size " + size);
+        }
+        depth = Math.max(0, depth - 1);
+    }
+
+    private void validateStringPool(int offset, int headerSize, int size) {
+        if (headerSize < STRING_POOL_HEADER_SIZE) {
+            throw malformed(offset, "string pool header size " + headerSize);
+        }
+        long stringCount = buffer.getInt(offset + 8) & 0xFFFFFFFFL;
+        long styleCount = buffer.getInt(offset + 12) & 0xFFFFFFFFL;
+        boolean utf8 = (buffer.getInt(offset + 16) & UTF8_FLAG) != 0;
+        long stringsStart = buffer.getInt(offset + 20) & 0xFFFFFFFFL;
+        long stylesStart = buffer.getInt(offset + 24) & 0xFFFFFFFFL;
+        if (headerSize + 4 * (stringCount + styleCount) > size) {
+            throw malformed(
+                    offset,
+                    String.format(
+                            Locale.US,
+                            "string pool of %d bytes claims %d strings and %d styles",
+                            size,
+                            stringCount,
+                            styleCount));
+        }
+        if ((stringCount > 0 && stringsStart > size) || (styleCount > 0 && stylesStart > size)) {
+            throw malformed(offset, "string pool data starts beyond its end");
+        }
+
+        int index = offset + headerSize;
+        int strings = offset + (int) stringsStart;
+        for (int i = 0; i < stringCount; i++, index += 4) {
+            if (i % TIME_CHECK_INTERVAL == 0) {
+                DecodeLimits.checkTime();
+            }
+            long position = strings + (buffer.getInt(index) & 0xFFFFFFFFL);
+            long length =
+                    utf8
+                            ? utf8Length(offset, size, position)
+                            : utf16Length(offset, size, position);
+            charge(STRING_COST + 2 * length);
+        }
+
+        int styles = offset + (int) stylesStart;
+        for (int i = 0; i < styleCount; i++, index += 4) {
+            if (i % TIME_CHECK_INTERVAL == 0) {
+                DecodeLimits.checkTime();
+            }
+            long position = styles + (buffer.getInt(index) & 0xFFFFFFFFL);
+            while (true) {
+                if (position + 4 > offset + size) {
+                    throw malformed(offset, "unterminated style " + i);
+                }
+                if (buffer.getInt((int) position) == SPAN_END) {
+                    break;
+                }
+                position += SPAN_SIZE;
+                charge(SPAN_COST);
+            }
+        }
+    }
+
+    /** Returns the length in characters of the UTF-8 string at {@code position} */
+    private long utf8Length(int offset, int size, long position) {
+        long end = offset + size;
+        if (position + 2 > end) {
+            throw malformed(offset, "string out of the pool");
+        }
+        int p = (int) position;
+        int chars = buffer.get(p++) & 0xFF;
+        if ((chars & 0x80) != 0) {
+            chars = ((chars & 0x7F) << 8) | (buffer.get(p++) & 0xFF);
+        }
+        if (p + 1 > end) {
+            throw malformed(offset, "string out of the pool");
+        }
+        int bytes = buffer.get(p++) & 0xFF;
+        if ((bytes & 0x80) != 0) {
+            if (p + 1 > end) {
+                throw malformed(offset, "string out of the pool");
+            }
+            bytes = ((bytes & 0x7F) << 8) | (buffer.get(p++) & 0xFF);
+        }
+        if (p + (long) bytes > end) {
+            throw malformed(offset, "string of " + bytes + " bytes overruns the pool");
+        }
+        return chars;
+    }
+
+    /** Returns the length in characters of the UTF-16 string at {@code position} */
+    private long utf16Length(int offset, int size, long position) {
+        long end = offset + size;
+        if (position + 2 > end) {
+            throw malformed(offset, "string out of the pool");
+        }
+        int p = (int) position;
+        long chars = buffer.getShort(p) & 0xFFFF;
+        p += 2;
+        if ((chars & 0x8000) != 0) {
+            if (p + 2 > end) {
+                throw malformed(offset, "string out of the pool");
+            }
+            chars = ((chars & 0x7FFF) << 16) | (buffer.getShort(p) & 0xFFFF);
+            p += 2;
+        }
+        if (p + 2 * chars > end) {
+            throw malformed(offset, "string of " + chars + " characters overruns the pool");
+        }
+        return chars;
+    }
+
+    private void charge(long bytes) {
+        uncharged += bytes;
+        if (uncharged >= CHARGE_BATCH) {
+            DecodeLimits.charge(uncharged);
+            uncharged = 0;
+        }
+    }
+
+    @NonNull
+    private static DecodeLimitException malformed(int offset, @NonNull String message) {
+        return new DecodeLimitException(
+                String.format(Locale.US, "Malformed chunk at offset %d: %s", offset, message));
+    }
+}
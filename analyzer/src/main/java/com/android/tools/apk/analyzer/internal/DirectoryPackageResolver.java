@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.PackageResolver;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link PackageResolver} over a directory tree laid out as {@code <root>/<userId>/<package>/},
+ * each package directory holding a {@code base.apk} and optional {@code split_*.apk} files like
+ * an install directory under {@code /data/app}. Stands in for the PackageManager off device.
+ */
+public class DirectoryPackageResolver implements PackageResolver {
+    private static final String BASE_APK = "base" + SdkConstants.DOT_ANDROID_PACKAGE;
+    private static final String SPLIT_PREFIX = "split_";
+
+    @NonNull private final Path root;
+
+    public DirectoryPackageResolver(@NonNull Path root) {
+        this.root = root;
+    }
+
+    @Nullable
+    @Override
+    public List<Path> resolve(@NonNull String packageName, int userId) {
+        Path dir = root.resolve(Integer.toString(userId)).resolve(packageName);
+        if (!Files.isRegularFile(dir.resolve(BASE_APK))) {
+            return null;
+        }
+        return listApks(dir);
+    }
+
+    @NonNull
+    @Override
+    public Map<String, List<Path>> getPackages(int userId) {
+        Map<String, List<Path>> packages = new TreeMap<>();
+        Path userDir = root.resolve(Integer.toString(userId));
+        if (!Files.isDirectory(userDir)) {
+            return packages;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(userDir, Files::isDirectory)) {
+            for (Path dir : dirs) {
+                if (Files.isRegularFile(dir.resolve(BASE_APK))) {
+                    packages.put(dir.getFileName().toString(), listApks(dir));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return packages;
+    }
+
+    /**
+     * Returns the {@code base.apk} of the install directory {@code dir} followed by its {@code
+     * split_*.apk} files, sorted by name.
+     */
+    @NonNull
+    public static List<Path> listApks(@NonNull Path dir) {
+        List<Path> splits = new ArrayList<>();
+        try (DirectoryStream<Path> files =
+                Files.newDirectoryStream(dir, SPLIT_PREFIX + "*" + SdkConstants.DOT_ANDROID_PACKAGE)) {
+            for (Path file : files) {
+                splits.add(file);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Collections.sort(splits);
+        List<Path> apks = new ArrayList<>(splits.size() + 1);
+        apks.add(dir.resolve(BASE_APK));
+        apks.addAll(splits);
+        return apks;
+    }
+}
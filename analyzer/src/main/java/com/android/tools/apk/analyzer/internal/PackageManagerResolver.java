@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ChangedPackages;
+import android.content.pm.IPackageManager;
+import android.content.pm.PackageInfo;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.PackageResolver;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link PackageResolver} backed by the {@code package} system service.
+ *
+ * <p>Resolved paths are cached for the lifetime of the process. A cached package whose base APK
+ * is gone, as happens when it is updated into a new install directory, is looked up again. {@link
+ * #getPackages(int)} lists all the packages of a user in a single binder call the first time, and
+ * afterwards only looks up again the packages reported by {@code getChangedPackages}.
+ */
+public class PackageManagerResolver implements PackageResolver {
+    /** Per user cache */
+    private static final class UserPackages {
+        final Map<String, List<Path>> packages = new ConcurrentHashMap<>();
+        /** Whether {@link #packages} holds every installed package */
+        boolean complete;
+        /** The {@code ChangedPackages} sequence number {@link #packages} is up to date with */
+        int sequenceNumber;
+    }
+
+    @NonNull private final IPackageManager packageManager;
+    private final Map<Integer, UserPackages> users = new ConcurrentHashMap<>();
+
+    public PackageManagerResolver(@NonNull IPackageManager packageManager) {
+        this.packageManager = packageManager;
+    }
+
+    /** Creates a resolver talking to the {@code package} service of this device */
+    @NonNull
+    public static PackageManagerResolver create() {
+        return new PackageManagerResolver(
+                IPackageManager.Stub.asInterface(ServiceManager.getService("package")));
+    }
+
+    @Nullable
+    @Override
+    public List<Path> resolve(@NonNull String packageName, int userId) {
+        UserPackages cache = users.computeIfAbsent(userId, id -> new UserPackages());
+        List<Path> paths = cache.packages.get(packageName);
+        if (paths != null && Files.exists(paths.get(0))) {
+            return paths;
+        }
+        try {
+            return refresh(cache, packageName, userId);
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Map<String, List<Path>> getPackages(int userId) {
+        UserPackages cache = users.computeIfAbsent(userId, id -> new UserPackages());
+        try {
+            synchronized (cache) {
+                if (!cache.complete) {
+                    load(cache, userId);
+                } else {
+                    sync(cache, userId);
+                }
+            }
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+        return Collections.unmodifiableMap(new TreeMap<>(cache.packages));
+    }
+
+    private void load(@NonNull UserPackages cache, int userId) throws RemoteException {
+        // take the sequence number first, so that packages changing while listing are caught by
+        // the next sync
+        ChangedPackages changed = packageManager.getChangedPackages(0, userId);
+        List<PackageInfo> installed = packageManager.getInstalledPackages(0, userId).getList();
+        cache.packages.clear();
+        for (PackageInfo info : installed) {
+            if (info.applicationInfo != null && info.applicationInfo.publicSourceDir != null) {
+                cache.packages.put(info.packageName, toPaths(info.applicationInfo));
+            }
+        }
+        cache.sequenceNumber = changed != null ? changed.getSequenceNumber() : 0;
+        cache.complete = true;
+    }
+
+    private void sync(@NonNull UserPackages cache, int userId) throws RemoteException {
+        ChangedPackages changed =
+                packageManager.getChangedPackages(cache.sequenceNumber, userId);
+        if (changed == null) {
+            return;
+        }
+        for (String packageName : changed.getPackageNames()) {
+            refresh(cache, packageName, userId);
+        }
+        cache.sequenceNumber = changed.getSequenceNumber();
+    }
+
+    @Nullable
+    private List<Path> refresh(@NonNull UserPackages cache, @NonNull String packageName, int userId)
+            throws RemoteException {
+        ApplicationInfo info = packageManager.getApplicationInfo(packageName, 0, userId);
+        if (info == null || info.publicSourceDir == null) {
+            cache.packages.remove(packageName);
+            return null;
+        }
+        List<Path> paths = toPaths(info);
+        cache.packages.put(packageName, paths);
+        return paths;
+    }
+
+    @NonNull
+    private static List<Path> toPaths(@NonNull ApplicationInfo info) {
+        List<Path> paths = new ArrayList<>();
+        paths.add(new File(info.publicSourceDir).toPath());
+        if (info.splitPublicSourceDirs != null) {
+            for (String split : info.splitPublicSourceDirs) {
+                paths.add(new File(split).toPath());
+            }
+        }
+        return Collections.unmodifiableList(paths);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sorted set of non-negative int ids, as stored in an inverted index.
+ *
+ * <p>Ids are kept in a sorted array; adding ids in increasing order, as when an index is built
+ * from scratch, appends. On disk the list is its byte length, its size and the gaps between
+ * consecutive ids, each as a variable length integer, so that a dense list of ids costs about a
+ * byte per id and a reader can skip a list without decoding it.
+ */
+public final class PostingList {
+    private static final int[] EMPTY = new int[0];
+
+    @NonNull private int[] ids = EMPTY;
+    private int size;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Posting " + index + " of " + size);
+        }
+        return ids[index];
+    }
+
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, 0, size, id) >= 0;
+    }
+
+    /** Adds {@code id}, and returns {@code false} if it was already present. */
+    public boolean add(int id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Negative id " + id);
+        }
+        int index =
+                size == 0 || ids[size - 1] < id
+                        ? -size - 1
+                        : Arrays.binarySearch(ids, 0, size, id);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(4, size + (size >> 1)));
+        }
+        System.arraycopy(ids, index, ids, index + 1, size - index);
+        ids[index] = id;
+        size++;
+        return true;
+    }
+
+    /** Removes {@code id}, and returns {@code false} if it was not present. */
+    public boolean remove(int id) {
+        int index = Arrays.binarySearch(ids, 0, size, id);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+        size--;
+        return true;
+    }
+
+    @NonNull
+    public int[] toArray() {
+        return Arrays.copyOf(ids, size);
+    }
+
+    /** Writes the list, delta encoded. */
+    public void write(@NonNull DataOutput out) throws IOException {
+        byte[] bytes = new byte[5 * (size + 1)];
+        int length = putVarint(bytes, 0, size);
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            length = putVarint(bytes, length, ids[i] - previous);
+            previous = ids[i];
+        }
+        writeVarint(out, length);
+        out.write(bytes, 0, length);
+    }
+
+    /** Reads a list written by {@link #write}. */
+    @NonNull
+    public static PostingList read(@NonNull DataInput in) throws IOException {
+        int length = readVarint(in);
+        int size = readVarint(in);
+        // each id takes at least a byte, which bounds the allocation by the file size
+        if (size > length) {
+            throw new IOException("Posting list of " + length + " bytes claims " + size + " ids");
+        }
+        PostingList list = new PostingList();
+        list.ids = new int[size];
+        int id = 0;
+        for (int i = 0; i < size; i++) {
+            id += readVarint(in);
+            list.ids[i] = id;
+        }
+        list.size = size;
+        return list;
+    }
+
+    /** Skips a list written by {@link #write}, without decoding it. */
+    public static void skip(@NonNull DataInput in) throws IOException {
+        int length = readVarint(in);
+        if (in.skipBytes(length) != length) {
+            throw new IOException("Truncated posting list");
+        }
+    }
+
+    public static void writeVarint(@NonNull DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static int readVarint(@NonNull DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static int putVarint(@NonNull byte[] bytes, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+}
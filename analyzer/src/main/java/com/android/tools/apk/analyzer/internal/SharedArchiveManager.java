@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.Archive;
+import com.android.tools.apk.analyzer.ArchiveManager;
+import com.android.tools.apk.analyzer.SplitApkContext;
+import com.android.tools.apk.analyzer.Timings;
+import com.android.utils.ILogger;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An {@link ArchiveManager} whose archives outlive the contexts they are opened through, for
+ * running many commands in one process.
+ *
+ * <p>Closing a context only releases its archives. Released archives stay open, and are reused by
+ * later contexts, until more than {@code maxIdle} of them are unused: the least recently used
+ * ones are then closed. An archive whose file changed size or modification time since it was
+ * opened is not reused: later contexts get a fresh archive, and the stale one is closed once the
+ * contexts still using it are closed. Contexts may be opened and closed from multiple threads.
+ */
+public class SharedArchiveManager implements ArchiveManager {
+    private static final class Entry {
+        @NonNull final Path path;
+        @NonNull final FutureTask<Archive> archive;
+        final long size;
+        final long lastModified;
+        int references;
+
+        Entry(
+                @NonNull Path path,
+                @NonNull FutureTask<Archive> archive,
+                long size,
+                long lastModified) {
+            this.path = path;
+            this.archive = archive;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        /** Returns the archive of an entry returned by {@link #acquire}, which is already open. */
+        @NonNull
+        Archive getArchive() {
+            try {
+                return archive.get();
+            } catch (ExecutionException | InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @NonNull private final ILogger logger;
+    private final int maxIdle;
+
+    // guarded by this
+    @NonNull private final Map<Path, Entry> entries = new HashMap<>();
+    /** Unused entries, least recently used first */
+    @NonNull private final LinkedHashMap<Path, Entry> idle = new LinkedHashMap<>();
+    /** Stale entries replaced in {@link #entries} while still in use */
+    @NonNull private final Set<Entry> detached = new HashSet<>();
+
+    public SharedArchiveManager(@NonNull ILogger logger, int maxIdle) {
+        this.logger = logger;
+        this.maxIdle = maxIdle;
+    }
+
+    @NonNull
+    @Override
+    public SplitApkContext openArchive(@NonNull Path path) throws IOException {
+        List<Entry> acquired = new ArrayList<>(1);
+        acquired.add(acquire(path));
+        return new Context(acquired);
+    }
+
+    /** Opens a base APK and its split APKs, concurrently. */
+    @NonNull
+    public SplitApkContext openSplitApk(@NonNull Path base, @NonNull List<Path> splits)
+            throws IOException {
+        List<CompletableFuture<Entry>> futures = new ArrayList<>(splits.size());
+        for (Path split : splits) {
+            futures.add(
+                    CompletableFuture.supplyAsync(
+                            () -> {
+                                try {
+                                    return acquire(split);
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            }));
+        }
+
+        List<Entry> acquired = new ArrayList<>(splits.size() + 1);
+        IOException failure = null;
+        try {
+            acquired.add(acquire(base));
+        } catch (IOException e) {
+            failure = e;
+        }
+        for (CompletableFuture<Entry> future : futures) {
+            try {
+                acquired.add(future.join());
+            } catch (CompletionException e) {
+                if (!(e.getCause() instanceof UncheckedIOException)) {
+                    release(acquired);
+                    throw e;
+                }
+                if (failure == null) {
+                    failure = ((UncheckedIOException) e.getCause()).getCause();
+                }
+            }
+        }
+        if (failure != null) {
+            release(acquired);
+            throw failure;
+        }
+        return new Context(acquired);
+    }
+
+    @NonNull
+    private Entry acquire(@NonNull Path path) throws IOException {
+        long size = Files.size(path);
+        long lastModified = Files.getLastModifiedTime(path).toMillis();
+        Entry entry;
+        boolean opener = false;
+        synchronized (this) {
+            entry = entries.get(path);
+            if (entry != null && (entry.size != size || entry.lastModified != lastModified)) {
+                // contexts still using the stale archive keep it until they are closed
+                idle.remove(path);
+                entries.remove(path);
+                if (entry.references == 0) {
+                    closeEntry(entry);
+                } else {
+                    detached.add(entry);
+                }
+                entry = null;
+            }
+            if (entry == null) {
+                entry = new Entry(path, new FutureTask<>(() -> open(path)), size, lastModified);
+                entries.put(path, entry);
+                opener = true;
+            }
+            entry.references++;
+            idle.remove(path);
+        }
+
+        // open outside of the lock, so that different paths are opened in parallel
+        if (opener) {
+            entry.archive.run();
+        }
+        try {
+            entry.archive.get();
+            return entry;
+        } catch (ExecutionException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                entry.references--;
+                entries.remove(path, entry);
+                if (entry.references == 0) {
+                    detached.remove(entry);
+                }
+            }
+            Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @NonNull
+    private Archive open(@NonNull Path path) throws IOException {
+        logger.info(String.format("Opening archive \"%s\"", path));
+        try (Timings.Span ignored = Timings.start(Timings.Phase.OPEN)) {
+            return ArchiveManagerImpl.openArchiveWorkerImpl(path);
+        }
+    }
+
+    private synchronized void release(@NonNull List<Entry> acquired) throws IOException {
+        for (Entry entry : acquired) {
+            if (--entry.references > 0) {
+                continue;
+            }
+            if (entries.get(entry.path) == entry) {
+                idle.put(entry.path, entry);
+            } else if (detached.remove(entry)) {
+                closeEntry(entry);
+            }
+        }
+        Iterator<Map.Entry<Path, Entry>> eldest = idle.entrySet().iterator();
+        while (idle.size() > maxIdle) {
+            Map.Entry<Path, Entry> evicted = eldest.next();
+            eldest.remove();
+            entries.remove(evicted.getKey());
+            closeEntry(evicted.getValue());
+        }
+    }
+
+    private void closeEntry(@NonNull Entry entry) throws IOException {
+        logger.info(String.format("Closing archive \"%s\"", entry.path));
+        try {
+            entry.archive.get().close();
+        } catch (ExecutionException e) {
+            // never opened
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Closes every archive, including the ones still in use. */
+    @Override
+    public synchronized void close() throws IOException {
+        for (Entry entry : entries.values()) {
+            closeEntry(entry);
+        }
+        for (Entry entry : detached) {
+            closeEntry(entry);
+        }
+        entries.clear();
+        idle.clear();
+        detached.clear();
+    }
+
+    private final class Context implements SplitApkContext {
+        @NonNull private final List<Entry> acquired;
+        @NonNull private final List<Archive> archives;
+
+        Context(@NonNull List<Entry> acquired) {
+            this.acquired = acquired;
+            archives = new ArrayList<>(acquired.size());
+            for (Entry entry : acquired) {
+                archives.add(entry.getArchive());
+            }
+        }
+
+        @NonNull
+        @Override
+        public Archive getArchive() {
+            return archives.get(0);
+        }
+
+        @NonNull
+        @Override
+        public List<Archive> getSplits() {
+            return archives.subList(1, archives.size());
+        }
+
+        @NonNull
+        @Override
+        public List<Archive> getArchives() {
+            return archives;
+        }
+
+        @NonNull
+        @Override
+        public ArchiveManager getArchiveManager() {
+            return SharedArchiveManager.this;
+        }
+
+        /** Releases the archives of this context, which may stay open for reuse */
+        @Override
+        public void close() throws IOException {
+            release(acquired);
+        }
+    }
+}
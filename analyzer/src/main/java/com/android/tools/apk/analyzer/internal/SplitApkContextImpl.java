@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.Archive;
+import com.android.tools.apk.analyzer.ArchiveManager;
+import com.android.tools.apk.analyzer.SplitApkContext;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+public class SplitApkContextImpl extends ArchiveContextImpl implements SplitApkContext {
+    @NonNull private final List<Archive> splits;
+
+    public SplitApkContextImpl(
+            @NonNull ArchiveManager archiveManager,
+            @NonNull Archive base,
+            @NonNull List<Archive> splits) {
+        super(archiveManager, base);
+        this.splits = ImmutableList.copyOf(splits);
+    }
+
+    @NonNull
+    @Override
+    public List<Archive> getSplits() {
+        return splits;
+    }
+
+    @NonNull
+    @Override
+    public List<Archive> getArchives() {
+        return ImmutableList.<Archive>builder().add(getArchive()).addAll(splits).build();
+    }
+}
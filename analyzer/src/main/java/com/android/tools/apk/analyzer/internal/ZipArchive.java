@@ -21,7 +21,6 @@ import com.android.tools.apk.analyzer.Archive;
 import com.sun.nio.zipfs.ZipFileSystemProvider;
 
 import java.io.IOException;
-import java.net.URI;
 import java.nio.file.FileSystem;
 import java.nio.file.Path;
 import java.util.Collections;
@@ -37,8 +36,8 @@ public class ZipArchive extends AbstractArchive {
     private static final ZipFileSystemProvider provider = new ZipFileSystemProvider();
     public ZipArchive(@NonNull Path path) throws IOException {
         super(path);
-        URI uri = URI.create("jar:" + path.toUri().toString());
-        this.zipFileSystem = provider.newFileSystem(uri, Collections.emptyMap());
+        // not registered by URI, so that a changed file can be reopened while still open
+        this.zipFileSystem = provider.newFileSystem(path, Collections.emptyMap());
     }
 
     @Override
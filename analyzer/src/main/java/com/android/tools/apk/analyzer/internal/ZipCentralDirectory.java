@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file without opening it as a {@code zip} file system and
+ * without inflating any entry.
+ *
+ * <p>Only the end of central directory record and the central directory itself are read, which
+ * makes this suitable for cheap change detection (CRCs) and size reports over many archives.
+ */
+public final class ZipCentralDirectory {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CD_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int CD_ENTRY_SIZE = 46;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int METHOD_STORED = 0;
+    static final int METHOD_DEFLATED = 8;
+
+    /** A single central directory record. */
+    public static final class Entry {
+        @NonNull private final String name;
+        private final int method;
+        private final int crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Entry(
+                @NonNull String name,
+                int method,
+                int crc,
+                long compressedSize,
+                long size,
+                long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        /** Returns the entry name, e.g. {@code res/layout/main.xml} */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /** Returns the compression method, 0 for stored and 8 for deflated entries */
+        public int getMethod() {
+            return method;
+        }
+
+        /** Returns the CRC-32 of the uncompressed data as recorded in the central directory */
+        public int getCrc() {
+            return crc;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "%s: method=%d crc=%08x csize=%d size=%d", name, method, crc, compressedSize,
+                    size);
+        }
+    }
+
+    @NonNull private final List<Entry> entries;
+    private final long centralDirectoryOffset;
+    private final long centralDirectorySize;
+
+    private ZipCentralDirectory(
+            @NonNull List<Entry> entries, long centralDirectoryOffset, long centralDirectorySize) {
+        this.entries = entries;
+        this.centralDirectoryOffset = centralDirectoryOffset;
+        this.centralDirectorySize = centralDirectorySize;
+    }
+
+    /** Reads the whole central directory of the zip file at {@code path}. */
+    @NonNull
+    public static ZipCentralDirectory read(@NonNull Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return read(channel);
+        }
+    }
+
+    /** Reads the whole central directory from an already opened zip file channel. */
+    @NonNull
+    public static ZipCentralDirectory read(@NonNull FileChannel channel) throws IOException {
+        long[] location = locate(channel);
+        ByteBuffer cd = readCentralDirectory(channel, location);
+        List<Entry> entries = new ArrayList<>((int) Math.min(location[2], 1 << 16));
+        while (cd.remaining() >= CD_ENTRY_SIZE) {
+            entries.add(readEntry(cd));
+        }
+        return new ZipCentralDirectory(
+                Collections.unmodifiableList(entries), location[0], location[1]);
+    }
+
+    /**
+     * Returns the central directory record for {@code name}, or {@code null} when the archive has
+     * no such entry. Decoding stops at the first match.
+     */
+    @Nullable
+    public static Entry findEntry(@NonNull Path path, @NonNull String name) throws IOException {
+        byte[] expected = name.getBytes(StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer cd = readCentralDirectory(channel, locate(channel));
+            while (cd.remaining() >= CD_ENTRY_SIZE) {
+                int start = cd.position();
+                if (nameEquals(cd, start, expected)) {
+                    return readEntry(cd);
+                }
+                skipEntry(cd);
+            }
+        }
+        return null;
+    }
+
+    @NonNull
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    @Nullable
+    public Entry getEntry(@NonNull String name) {
+        for (Entry entry : entries) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the file offset of the first central directory record */
+    public long getCentralDirectoryOffset() {
+        return centralDirectoryOffset;
+    }
+
+    /** Returns the size in bytes of the central directory */
+    public long getCentralDirectorySize() {
+        return centralDirectorySize;
+    }
+
+    /**
+     * Returns the file offset of the data of {@code entry}, past its local header.
+     *
+     * @throws ZipException if the local header is missing or lies outside of the file
+     */
+    public static long getDataOffset(@NonNull FileChannel channel, @NonNull Entry entry)
+            throws IOException {
+        if (entry.getLocalHeaderOffset() + LOCAL_HEADER_SIZE > channel.size()) {
+            throw new ZipException("Local header of " + entry.getName() + " outside of the file");
+        }
+        ByteBuffer header =
+                readFully(channel, entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header for " + entry.getName());
+        }
+        long offset =
+                entry.getLocalHeaderOffset()
+                        + LOCAL_HEADER_SIZE
+                        + (header.getShort(26) & 0xFFFF)
+                        + (header.getShort(28) & 0xFFFF);
+        if (offset + entry.getCompressedSize() > channel.size()) {
+            throw new ZipException("Data of " + entry.getName() + " outside of the file");
+        }
+        return offset;
+    }
+
+    /**
+     * Opens the uncompressed data of {@code entry}, reading {@code channel} at absolute positions,
+     * so that several entries can be read at once. Only the bytes read are inflated.
+     *
+     * @throws ZipException if the entry is neither stored nor deflated
+     */
+    @NonNull
+    public static InputStream openEntry(@NonNull FileChannel channel, @NonNull Entry entry)
+            throws IOException {
+        InputStream data =
+                new ChannelInputStream(
+                        channel, getDataOffset(channel, entry), entry.getCompressedSize());
+        switch (entry.getMethod()) {
+            case METHOD_STORED:
+                return data;
+            case METHOD_DEFLATED:
+                Inflater inflater = new Inflater(true);
+                return new InflaterInputStream(data, inflater) {
+                    @Override
+                    public void close() throws IOException {
+                        super.close();
+                        inflater.end();
+                    }
+                };
+            default:
+                throw new ZipException(
+                        "Unsupported compression method " + entry.getMethod() + " of "
+                                + entry.getName());
+        }
+    }
+
+    /** Reads a range of a channel at absolute positions */
+    private static final class ChannelInputStream extends InputStream {
+        @NonNull private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ChannelInputStream(@NonNull FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.end = position + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(@NonNull byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int count = (int) Math.min(len, end - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, count), position);
+            if (read < 0) {
+                throw new ZipException("Unexpected end of zip file");
+            }
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    /** Returns {@code offset, size, entryCount} of the central directory. */
+    @NonNull
+    private static long[] locate(@NonNull FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        if (fileSize < EOCD_SIZE) {
+            throw new ZipException("Not a zip file: too small");
+        }
+        int tailSize = (int) Math.min(fileSize, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE
+                    && i + EOCD_SIZE + (tail.getShort(i + 20) & 0xFFFF) <= tailSize) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new ZipException("End of central directory record not found");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+        long cdSize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+
+        int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+        if (locator >= 0 && tail.getInt(locator) == ZIP64_EOCD_LOCATOR_SIGNATURE) {
+            long zip64EocdOffset = tail.getLong(locator + 8);
+            if (zip64EocdOffset < 0 || zip64EocdOffset > fileSize - ZIP64_EOCD_SIZE) {
+                throw new ZipException(
+                        "Zip64 end of central directory record lies outside of the file");
+            }
+            ByteBuffer zip64Eocd = readFully(channel, zip64EocdOffset, ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new ZipException("Corrupt zip64 end of central directory record");
+            }
+            entryCount = zip64Eocd.getLong(32);
+            cdSize = zip64Eocd.getLong(40);
+            cdOffset = zip64Eocd.getLong(48);
+        }
+
+        if (cdOffset < 0 || cdSize < 0 || cdOffset > fileSize || cdSize > fileSize - cdOffset) {
+            throw new ZipException("Central directory lies outside of the file");
+        }
+        if (entryCount < 0) {
+            throw new ZipException("Bad central directory entry count: " + entryCount);
+        }
+        if (cdSize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory too large: " + cdSize);
+        }
+        return new long[] {cdOffset, cdSize, entryCount};
+    }
+
+    @NonNull
+    private static ByteBuffer readCentralDirectory(
+            @NonNull FileChannel channel, @NonNull long[] location) throws IOException {
+        return readFully(channel, location[0], (int) location[1]);
+    }
+
+    @NonNull
+    private static ByteBuffer readFully(@NonNull FileChannel channel, long position, int size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of zip file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Returns the end of the central directory record at {@code start}, checking its bounds */
+    private static int recordEnd(@NonNull ByteBuffer cd, int start) throws ZipException {
+        if (cd.getInt(start) != CD_ENTRY_SIGNATURE) {
+            throw new ZipException("Bad central directory record at " + start);
+        }
+        int end =
+                start
+                        + CD_ENTRY_SIZE
+                        + (cd.getShort(start + 28) & 0xFFFF)
+                        + (cd.getShort(start + 30) & 0xFFFF)
+                        + (cd.getShort(start + 32) & 0xFFFF);
+        if (end > cd.limit()) {
+            throw new ZipException("Truncated central directory record at " + start);
+        }
+        return end;
+    }
+
+    private static boolean nameEquals(@NonNull ByteBuffer cd, int start, @NonNull byte[] name)
+            throws ZipException {
+        recordEnd(cd, start);
+        int nameLength = cd.getShort(start + 28) & 0xFFFF;
+        if (nameLength != name.length) {
+            return false;
+        }
+        for (int i = 0; i < nameLength; i++) {
+            if (cd.get(start + CD_ENTRY_SIZE + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void skipEntry(@NonNull ByteBuffer cd) throws ZipException {
+        cd.position(recordEnd(cd, cd.position()));
+    }
+
+    @NonNull
+    private static Entry readEntry(@NonNull ByteBuffer cd) throws ZipException {
+        int start = cd.position();
+        int end = recordEnd(cd, start);
+        int method = cd.getShort(start + 10) & 0xFFFF;
+        int crc = cd.getInt(start + 16);
+        long compressedSize = cd.getInt(start + 20) & 0xFFFFFFFFL;
+        long size = cd.getInt(start + 24) & 0xFFFFFFFFL;
+        int nameLength = cd.getShort(start + 28) & 0xFFFF;
+        int extraLength = cd.getShort(start + 30) & 0xFFFF;
+        long localHeaderOffset = cd.getInt(start + 42) & 0xFFFFFFFFL;
+
+        byte[] nameBytes = new byte[nameLength];
+        cd.position(start + CD_ENTRY_SIZE);
+        cd.get(nameBytes);
+        String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+        // Sizes and offset saturated at 0xFFFFFFFF are stored in the zip64 extra field, in order
+        int extra = start + CD_ENTRY_SIZE + nameLength;
+        int extraEnd = extra + extraLength;
+        while (extra + 4 <= extraEnd) {
+            int id = cd.getShort(extra) & 0xFFFF;
+            int length = cd.getShort(extra + 2) & 0xFFFF;
+            if (id == ZIP64_EXTRA_ID) {
+                int field = extra + 4;
+                int fieldEnd = Math.min(field + length, extraEnd);
+                if (size == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                    size = cd.getLong(field);
+                    field += 8;
+                }
+                if (compressedSize == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                    compressedSize = cd.getLong(field);
+                    field += 8;
+                }
+                if (localHeaderOffset == 0xFFFFFFFFL && field + 8 <= fieldEnd) {
+                    localHeaderOffset = cd.getLong(field);
+                }
+                break;
+            }
+            extra += 4 + length;
+        }
+
+        cd.position(end);
+        return new Entry(name, method, crc, compressedSize, size, localHeaderOffset);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.DecodeLimits;
+import com.android.tools.apk.analyzer.Timings;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Verifies the integrity of every entry of a zip file against its central directory record: the
+ * local header must agree with it, and the data must inflate to the recorded size and CRC-32.
+ *
+ * <p>Entries are claimed in file order by a fixed number of workers reading the file at absolute
+ * positions, each with its own {@link Inflater}, CRC and buffers, reset rather than reallocated
+ * for each entry. Nothing is kept once checked, so the entry size limit of {@link DecodeLimits}
+ * does not apply; inflating stops as soon as an entry outgrows its recorded size, and entries
+ * beyond the compression ratio limit are reported without being inflated.
+ */
+public final class ZipVerifier {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final long ZIP64_SIZE = 0xFFFFFFFFL;
+    /** Compression ratios are only checked above this size, as {@link DecodeLimits} does */
+    private static final long RATIO_MIN_SIZE = 1024 * 1024;
+
+    /** Receives the failures, from the worker threads, as soon as they are found */
+    public interface Listener {
+        void onFailure(@NonNull ZipCentralDirectory.Entry entry, @NonNull String reason);
+    }
+
+    /** The outcome of a verification */
+    public static final class Result {
+        private final int entries;
+        private final int verified;
+        private final int failures;
+        private final long bytes;
+
+        Result(int entries, int verified, int failures, long bytes) {
+            this.entries = entries;
+            this.verified = verified;
+            this.failures = failures;
+            this.bytes = bytes;
+        }
+
+        /** Returns the number of entries in the central directory */
+        public int getEntries() {
+            return entries;
+        }
+
+        /** Returns the number of entries checked, less than all when stopped at a failure */
+        public int getVerified() {
+            return verified;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /** Returns the number of uncompressed bytes checked */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    @NonNull private final FileChannel channel;
+    @NonNull private final List<ZipCentralDirectory.Entry> entries;
+    private final long centralDirectoryOffset;
+    private final boolean stopAtFirstFailure;
+    @NonNull private final Listener listener;
+    @NonNull private final DecodeLimits limits = DecodeLimits.get();
+
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger verified = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean stopped;
+
+    private ZipVerifier(
+            @NonNull FileChannel channel,
+            @NonNull ZipCentralDirectory directory,
+            boolean stopAtFirstFailure,
+            @NonNull Listener listener) {
+        this.channel = channel;
+        this.entries = new ArrayList<>(directory.getEntries());
+        this.entries.sort(
+                Comparator.comparingLong(ZipCentralDirectory.Entry::getLocalHeaderOffset));
+        this.centralDirectoryOffset = directory.getCentralDirectoryOffset();
+        this.stopAtFirstFailure = stopAtFirstFailure;
+        this.listener = listener;
+    }
+
+    /**
+     * Verifies the entries of the zip file {@code path} with {@code jobs} threads, reporting each
+     * failure to {@code listener}. With {@code stopAtFirstFailure}, the workers stop as soon as
+     * one entry failed.
+     *
+     * @throws IOException if the file cannot be read or has no valid central directory
+     */
+    @NonNull
+    public static Result verify(
+            @NonNull Path path, int jobs, boolean stopAtFirstFailure, @NonNull Listener listener)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ZipCentralDirectory directory;
+            try (Timings.Span span = Timings.start(Timings.Phase.OPEN)) {
+                directory = ZipCentralDirectory.read(channel);
+                span.addBytes(directory.getCentralDirectorySize());
+            }
+            return new ZipVerifier(channel, directory, stopAtFirstFailure, listener).run(jobs);
+        }
+    }
+
+    @NonNull
+    private Result run(int jobs) throws IOException {
+        int workers = Math.max(1, Math.min(jobs, entries.size()));
+        if (workers == 1) {
+            new Worker().run();
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<Void>> futures = new ArrayList<>();
+                for (int i = 0; i < workers; i++) {
+                    futures.add(
+                            executor.submit(
+                                    () -> {
+                                        new Worker().run();
+                                        return null;
+                                    }));
+                }
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                stopped = true;
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+        return new Result(entries.size(), verified.get(), failures.get(), bytes.get());
+    }
+
+    private void fail(@NonNull ZipCentralDirectory.Entry entry, @NonNull String reason) {
+        failures.incrementAndGet();
+        if (stopAtFirstFailure) {
+            stopped = true;
+        }
+        listener.onFailure(entry, reason);
+    }
+
+    /** Verifies the entries it claims until none is left, with buffers of its own */
+    private final class Worker {
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[BUFFER_SIZE];
+        private final byte[] output = new byte[BUFFER_SIZE];
+        private final ByteBuffer header =
+                ByteBuffer.allocate(ZipCentralDirectory.LOCAL_HEADER_SIZE)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+
+        void run() throws IOException {
+            try {
+                for (int i = next.getAndIncrement();
+                        i < entries.size() && !stopped;
+                        i = next.getAndIncrement()) {
+                    ZipCentralDirectory.Entry entry = entries.get(i);
+                    String reason;
+                    try (Timings.Span span = Timings.start(Timings.Phase.INFLATE)) {
+                        reason = verify(entry);
+                        span.addBytes(entry.getCompressedSize());
+                    }
+                    if (reason != null) {
+                        fail(entry, reason);
+                    } else if (!stopped) {
+                        verified.incrementAndGet();
+                    }
+                }
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /** Returns why {@code entry} is corrupt, or {@code null} if it is not */
+        private String verify(@NonNull ZipCentralDirectory.Entry entry) throws IOException {
+            long offset = entry.getLocalHeaderOffset();
+            if (offset + ZipCentralDirectory.LOCAL_HEADER_SIZE > centralDirectoryOffset) {
+                return "local header at " + offset + " outside of the entries";
+            }
+            header.clear();
+            readFully(header, offset);
+            if (header.getInt(0) != ZipCentralDirectory.LOCAL_HEADER_SIGNATURE) {
+                return "no local header at " + offset;
+            }
+            int flags = header.getShort(6) & 0xFFFF;
+            int method = header.getShort(8) & 0xFFFF;
+            int nameLength = header.getShort(26) & 0xFFFF;
+            int extraLength = header.getShort(28) & 0xFFFF;
+            if (method != entry.getMethod()) {
+                return mismatch(
+                        "local header compression method", method, entry.getMethod());
+            }
+            if ((flags & FLAG_DATA_DESCRIPTOR) == 0) {
+                // sizes saturated for zip64 are in the local extra field, not checked here
+                int crc = header.getInt(14);
+                long compressedSize = header.getInt(18) & 0xFFFFFFFFL;
+                long size = header.getInt(22) & 0xFFFFFFFFL;
+                if (crc != entry.getCrc()) {
+                    return String.format(
+                            Locale.US,
+                            "local header CRC %08x, central directory %08x",
+                            crc,
+                            entry.getCrc());
+                }
+                if (compressedSize != ZIP64_SIZE
+                        && compressedSize != entry.getCompressedSize()) {
+                    return mismatch(
+                            "local header compressed size",
+                            compressedSize,
+                            entry.getCompressedSize());
+                }
+                if (size != ZIP64_SIZE && size != entry.getSize()) {
+                    return mismatch("local header size", size, entry.getSize());
+                }
+            }
+
+            long dataOffset =
+                    offset + ZipCentralDirectory.LOCAL_HEADER_SIZE + nameLength + extraLength;
+            if (dataOffset + entry.getCompressedSize() > centralDirectoryOffset) {
+                return "data at " + dataOffset + " overlaps the central directory";
+            }
+            // names are at most 0xFFFF bytes, which fits in the input buffer
+            readFully(
+                    ByteBuffer.wrap(input, 0, nameLength),
+                    offset + ZipCentralDirectory.LOCAL_HEADER_SIZE);
+            String localName = new String(input, 0, nameLength, StandardCharsets.UTF_8);
+            if (!localName.equals(entry.getName())) {
+                return "local header name " + localName;
+            }
+            if (entry.isDirectory() && entry.getSize() == 0) {
+                return null;
+            }
+
+            long maxRatio = limits.getMaxCompressionRatio();
+            if (maxRatio > 0
+                    && entry.getSize() > RATIO_MIN_SIZE
+                    && entry.getSize() > entry.getCompressedSize() * maxRatio) {
+                return "inflates more than " + maxRatio + " times";
+            }
+            crc.reset();
+            String reason;
+            switch (entry.getMethod()) {
+                case ZipCentralDirectory.METHOD_STORED:
+                    reason = checkStored(entry, dataOffset);
+                    break;
+                case ZipCentralDirectory.METHOD_DEFLATED:
+                    reason = checkDeflated(entry, dataOffset);
+                    break;
+                default:
+                    return "unsupported compression method " + entry.getMethod();
+            }
+            if (reason != null || stopped) {
+                return reason;
+            }
+            if ((int) crc.getValue() != entry.getCrc()) {
+                return String.format(
+                        Locale.US, "CRC %08x, central directory %08x", crc.getValue(), entry.getCrc());
+            }
+            bytes.addAndGet(entry.getSize());
+            return null;
+        }
+
+        private String checkStored(@NonNull ZipCentralDirectory.Entry entry, long position)
+                throws IOException {
+            if (entry.getSize() != entry.getCompressedSize()) {
+                return "stored entry of " + entry.getSize() + " bytes in "
+                        + entry.getCompressedSize();
+            }
+            for (long remaining = entry.getSize(); remaining > 0 && !stopped; ) {
+                int count = (int) Math.min(input.length, remaining);
+                readFully(ByteBuffer.wrap(input, 0, count), position);
+                crc.update(input, 0, count);
+                position += count;
+                remaining -= count;
+            }
+            return null;
+        }
+
+        private String checkDeflated(@NonNull ZipCentralDirectory.Entry entry, long position)
+                throws IOException {
+            inflater.reset();
+            long remaining = entry.getCompressedSize();
+            long size = 0;
+            try {
+                while (!inflater.finished() && !stopped) {
+                    if (inflater.needsInput()) {
+                        if (remaining == 0) {
+                            return "deflate data truncated after " + size + " bytes";
+                        }
+                        int count = (int) Math.min(input.length, remaining);
+                        readFully(ByteBuffer.wrap(input, 0, count), position);
+                        inflater.setInput(input, 0, count);
+                        position += count;
+                        remaining -= count;
+                    }
+                    int count = inflater.inflate(output);
+                    if (count == 0 && inflater.needsDictionary()) {
+                        return "deflate data needs a preset dictionary";
+                    }
+                    size += count;
+                    if (size > entry.getSize()) {
+                        return "inflates past its size of " + entry.getSize() + " bytes";
+                    }
+                    crc.update(output, 0, count);
+                }
+            } catch (DataFormatException e) {
+                return "corrupt deflate data: " + e.getMessage();
+            }
+            if (stopped) {
+                return null;
+            }
+            if (remaining > 0 || inflater.getRemaining() > 0) {
+                return (remaining + inflater.getRemaining())
+                        + " compressed bytes after the end of the deflate data";
+            }
+            if (size != entry.getSize()) {
+                return mismatch("inflated size", size, entry.getSize());
+            }
+            return null;
+        }
+
+        private void readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of zip file");
+                }
+                position += read;
+            }
+        }
+    }
+
+    @NonNull
+    private static String mismatch(@NonNull String what, long actual, long expected) {
+        return what + " " + actual + ", central directory " + expected;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.utils;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded intern table, shared by the threads decoding manifests, so that the names and values
+ * that repeat across apps, such as {@code android.intent.action.MAIN} or permission names, are
+ * held once however many apps are decoded.
+ *
+ * <p>Unlike {@link String#intern()} or a weak interner, the table never grows: it is a fixed
+ * array of buckets of two slots, indexed by {@link String#hashCode()}. A string missing from its
+ * bucket replaces the least recently added one, so that strings seen once, such as class names,
+ * cycle through the table while the frequent ones stay. Lookups take no lock; concurrent
+ * updates of a bucket may lose a string, which only costs a duplicate copy.
+ *
+ * <p>Strings can be looked up straight from the bytes of a string pool, and are only decoded
+ * when missing.
+ */
+public final class StringTable {
+    /** Strings longer than this are rarely shared, and are returned as they are */
+    public static final int MAX_LENGTH = 256;
+
+    private static final int DEFAULT_CAPACITY = 1 << 15;
+
+    private static final StringTable SHARED = new StringTable(DEFAULT_CAPACITY);
+
+    @NonNull private final AtomicReferenceArray<String> slots;
+    private final int mask;
+
+    /** Creates a table holding up to {@code capacity} strings, rounded up to a power of two */
+    public StringTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 2;
+    }
+
+    /** Returns the table shared by the decoders */
+    @NonNull
+    public static StringTable getShared() {
+        return SHARED;
+    }
+
+    /** Returns the shared instance of {@code value}, or null if {@code value} is null. */
+    @Nullable
+    public String intern(@Nullable String value) {
+        if (value == null || value.length() > MAX_LENGTH) {
+            return value;
+        }
+        int bucket = bucket(value.hashCode());
+        String first = slots.get(bucket);
+        if (value.equals(first)) {
+            return first;
+        }
+        String second = slots.get(bucket + 1);
+        if (value.equals(second)) {
+            return second;
+        }
+        insert(bucket, first, value);
+        return value;
+    }
+
+    /**
+     * Returns the shared instance of the ASCII string of {@code length} bytes at {@code offset},
+     * decoding it only if missing, or null if the bytes are not all ASCII or the string is too
+     * long, in which case the caller decodes it itself.
+     */
+    @Nullable
+    public String internAscii(@NonNull byte[] bytes, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            return null;
+        }
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                return null;
+            }
+            hash = 31 * hash + b;
+        }
+        int bucket = bucket(hash);
+        String first = slots.get(bucket);
+        if (matchesAscii(first, bytes, offset, length)) {
+            return first;
+        }
+        String second = slots.get(bucket + 1);
+        if (matchesAscii(second, bytes, offset, length)) {
+            return second;
+        }
+        String value = new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        insert(bucket, first, value);
+        return value;
+    }
+
+    /**
+     * Returns the shared instance of the string of {@code length} UTF-16LE characters at {@code
+     * offset}, decoding it only if missing, or null if the string is too long.
+     */
+    @Nullable
+    public String internUtf16(@NonNull byte[] bytes, int offset, int length) {
+        if (length > MAX_LENGTH) {
+            return null;
+        }
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + utf16At(bytes, offset, i);
+        }
+        int bucket = bucket(hash);
+        String first = slots.get(bucket);
+        if (matchesUtf16(first, bytes, offset, length)) {
+            return first;
+        }
+        String second = slots.get(bucket + 1);
+        if (matchesUtf16(second, bytes, offset, length)) {
+            return second;
+        }
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = utf16At(bytes, offset, i);
+        }
+        String value = new String(chars);
+        insert(bucket, first, value);
+        return value;
+    }
+
+    /** Returns the index of the first slot of the bucket of {@code hash} */
+    private int bucket(int hash) {
+        // spread the high bits, as HashMap does, since the low bits of close strings collide
+        return ((hash ^ (hash >>> 16)) << 1) & mask;
+    }
+
+    /** Adds {@code value} first in its bucket, moving the previous first one second */
+    private void insert(int bucket, @Nullable String first, @NonNull String value) {
+        if (first != null) {
+            slots.lazySet(bucket + 1, first);
+        }
+        slots.lazySet(bucket, value);
+    }
+
+    private static char utf16At(@NonNull byte[] bytes, int offset, int index) {
+        int p = offset + 2 * index;
+        return (char) ((bytes[p] & 0xFF) | (bytes[p + 1] & 0xFF) << 8);
+    }
+
+    private static boolean matchesAscii(
+            @Nullable String string, @NonNull byte[] bytes, int offset, int length) {
+        if (string == null || string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != bytes[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesUtf16(
+            @Nullable String string, @NonNull byte[] bytes, int offset, int length) {
+        if (string == null || string.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (string.charAt(i) != utf16At(bytes, offset, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
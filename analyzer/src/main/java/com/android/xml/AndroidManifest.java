@@ -36,6 +36,7 @@ public final class AndroidManifest {
     public static final String NODE_PERMISSION_TREE = "permission-tree";
     public static final String NODE_PERMISSION_GROUP = "permission-group";
     public static final String NODE_USES_PERMISSION = "uses-permission";
+    public static final String NODE_USES_PERMISSION_SDK_23 = "uses-permission-sdk-23";
     public static final String NODE_INSTRUMENTATION = "instrumentation";
     public static final String NODE_USES_LIBRARY = "uses-library";
     public static final String NODE_SUPPORTS_SCREENS = "supports-screens";
@@ -90,6 +91,20 @@ public final class AndroidManifest {
     public static final String ATTRIBUTE_SPLIT = "split";
     public static final String ATTRIBUTE_RESIZEABLE_ACTIVITY = "resizeableActivity";
     public static final String ATTRIBUTE_SCREEN_ORIENTATION = "screenOrientation";
+    public static final String ATTRIBUTE_PERMISSION = "permission";
+    public static final String ATTRIBUTE_READ_PERMISSION = "readPermission";
+    public static final String ATTRIBUTE_WRITE_PERMISSION = "writePermission";
+    public static final String ATTRIBUTE_PERMISSION_GROUP = "permissionGroup";
+    public static final String ATTRIBUTE_PROTECTION_LEVEL = "protectionLevel";
+    public static final String ATTRIBUTE_AUTHORITIES = "authorities";
+    public static final String ATTRIBUTE_ENABLED = "enabled";
+    public static final String ATTRIBUTE_PRIORITY = "priority";
+    public static final String ATTRIBUTE_RESOURCE = "resource";
+    public static final String ATTRIBUTE_SCHEME = "scheme";
+    public static final String ATTRIBUTE_HOST = "host";
+    public static final String ATTRIBUTE_PATH = "path";
+    public static final String ATTRIBUTE_PATH_PREFIX = "pathPrefix";
+    public static final String ATTRIBUTE_PATH_PATTERN = "pathPattern";
 
     public static final String VALUE_PARENT_ACTIVITY =
             SdkConstants.ANDROID_SUPPORT_PKG_PREFIX + "PARENT_ACTIVITY";
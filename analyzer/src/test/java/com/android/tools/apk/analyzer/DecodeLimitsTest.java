@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DecodeLimitsTest {
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @After
+    public void restoreLimits() {
+        DecodeLimits.set(DecodeLimits.DEFAULT);
+    }
+
+    @Test
+    public void withParsesUnits() {
+        DecodeLimits limits = DecodeLimits.DEFAULT.with("entry=4m, ratio=10, time=2s, memory=1g");
+        assertEquals(4L << 20, limits.getMaxEntrySize());
+        assertEquals(10, limits.getMaxCompressionRatio());
+        assertEquals(2000, limits.getMaxItemMillis());
+        assertEquals(1L << 30, limits.getMaxItemMemory());
+        assertEquals(DecodeLimits.DEFAULT.getMaxDepth(), limits.getMaxDepth());
+    }
+
+    @Test
+    public void withRejectsOverflowingAndMalformedValues() {
+        for (String spec :
+                new String[] {
+                    "entry=99999999999g", "time=9223372036854776s", "ratio=-1", "depth=x", "size=1"
+                }) {
+            try {
+                DecodeLimits.DEFAULT.with(spec);
+                fail(spec);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void checkEntryRejectsLargeAndHighlyCompressedEntries() {
+        DecodeLimits limits = DecodeLimits.DEFAULT.with("entry=4m,ratio=10");
+        limits.checkEntry("ok", 4 << 20, 1 << 20);
+        // small entries are not held to the ratio
+        limits.checkEntry("small", 1 << 20, 1);
+        expectLimit(() -> limits.checkEntry("large", (4 << 20) + 1, 4 << 20), "more than");
+        expectLimit(() -> limits.checkEntry("bomb", 2 << 20, 1 << 10), "times");
+    }
+
+    @Test
+    public void decompressionBombOverTheEntrySize() throws IOException {
+        Path apk = writeBomb(16 << 20);
+        DecodeLimits.set(DecodeLimits.SAFE);
+        expectLimit(() -> manifestAppId(apk), "inflates to more than");
+    }
+
+    @Test
+    public void decompressionBombUnderstatingItsSize() throws IOException {
+        Path apk = writeBomb(16 << 20);
+        // record 1 KB as the uncompressed size, in the local header and the central directory
+        byte[] bytes = Files.readAllBytes(apk);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i + 4 <= bytes.length; i++) {
+            if (buffer.getInt(i) == 0x04034b50) {
+                buffer.putInt(i + 22, 1024);
+            } else if (buffer.getInt(i) == 0x02014b50) {
+                buffer.putInt(i + 24, 1024);
+            }
+        }
+        Files.write(apk, bytes);
+        DecodeLimits.set(DecodeLimits.SAFE);
+        // the recorded size passes, but inflating stops once the ratio is exceeded
+        expectLimit(() -> manifestAppId(apk), "inflates more than 100 times");
+    }
+
+    @Test
+    public void decompressionBombOverTheCompressionRatio() throws IOException {
+        Path apk = writeBomb(4 << 20);
+        DecodeLimits.set(DecodeLimits.SAFE);
+        expectLimit(() -> manifestAppId(apk), "inflates more than 100 times");
+        // inflated in full once the ratio is not limited, then rejected as not binary XML
+        DecodeLimits.set(DecodeLimits.DEFAULT);
+        expectLimit(() -> manifestAppId(apk), "Malformed chunk");
+    }
+
+    @Test
+    public void itemMemoryBudget() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        assertTrue(manifestAppId(apk).startsWith("com.example.corpus.small"));
+        DecodeLimits.set(DecodeLimits.DEFAULT.with("memory=1k"));
+        expectLimit(() -> manifestAppId(apk), "memory budget");
+    }
+
+    @Test
+    public void itemTimeBudget() throws InterruptedException {
+        DecodeLimits.set(DecodeLimits.DEFAULT.with("time=1ms"));
+        try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+            Thread.sleep(20);
+            expectLimit(DecodeLimits::checkTime, "time budget");
+        }
+        // the budget ends with its scope
+        DecodeLimits.checkTime();
+    }
+
+    /** Writes an APK whose manifest is {@code size} zero bytes, deflated */
+    @NonNull
+    private Path writeBomb(int size) throws IOException {
+        return TestApks.writeManifestOnly(temp.newFile("bomb.apk").toPath(), new byte[size]);
+    }
+
+    @NonNull
+    private static String manifestAppId(@NonNull Path apk) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+            new ApkAnalyzerImpl(new PrintStream(bytes, true)).manifestAppId(apk);
+        }
+        return bytes.toString();
+    }
+
+    /**
+     * Runs {@code action}, expecting it to throw {@link DecodeLimitException} with a message
+     * containing {@code message}.
+     */
+    static void expectLimit(@NonNull Runnable action, @NonNull String message) {
+        try {
+            action.run();
+            fail("Expected DecodeLimitException: " + message);
+        } catch (DecodeLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.internal.ZipCentralDirectory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DexFileTest {
+    private static final String DEX = "classes.dex";
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void countsThePackagesOfDefinedAndReferencedMembers() throws IOException {
+        for (boolean classDefsFirst : new boolean[] {false, true}) {
+            byte[] dex = sample().build(classDefsFirst);
+            for (boolean stored : new boolean[] {false, true}) {
+                Map<String, DexFile.PackageStats> packages = read(dex, stored).getPackages();
+                assertNotNull(packages);
+                assertEquals(
+                        Arrays.asList(DexFile.DEFAULT_PACKAGE, "com.example", "org.other"),
+                        new ArrayList<>(packages.keySet()));
+                // classes, defined methods, referenced methods, defined fields, referenced fields
+                assertStats(packages.get("com.example"), 2, 7, 1, 3, 3);
+                assertStats(packages.get("org.other"), 1, 2, 0, 1, 1);
+                assertStats(packages.get(DexFile.DEFAULT_PACKAGE), 1, 1, 1, 0, 0);
+            }
+        }
+    }
+
+    @Test
+    public void readHeaderReadsCountsOnly() throws IOException {
+        DexFile dex = read(sample().build(false), true, false);
+        assertEquals(35, dex.getVersion());
+        assertEquals(6, dex.getStringCount());
+        assertEquals(6, dex.getTypeCount());
+        assertEquals(4, dex.getFieldCount());
+        assertEquals(3, dex.getMethodCount());
+        assertEquals(4, dex.getClassCount());
+        assertNull(dex.getPackages());
+    }
+
+    @Test
+    public void dexIndex() {
+        assertEquals(1, DexFile.getDexIndex("classes.dex"));
+        assertEquals(2, DexFile.getDexIndex("classes2.dex"));
+        assertEquals(10, DexFile.getDexIndex("classes10.dex"));
+        assertEquals(-1, DexFile.getDexIndex("classes1.dex"));
+        assertEquals(-1, DexFile.getDexIndex("classes02.dex"));
+        assertEquals(-1, DexFile.getDexIndex("classesX.dex"));
+        assertEquals(-1, DexFile.getDexIndex("assets/classes.dex"));
+    }
+
+    @Test
+    public void truncatedDex() throws IOException {
+        byte[] dex = sample().build(false);
+        for (boolean stored : new boolean[] {false, true}) {
+            expectMalformed(Arrays.copyOf(dex, 0x50), stored, "truncated at 112 of 80 bytes");
+            expectMalformed(Arrays.copyOf(dex, dex.length - 1), stored, "file size");
+        }
+    }
+
+    @Test
+    public void tableOutsideOfTheFile() throws IOException {
+        byte[] dex = sample().build(false);
+        // the class definitions run past the end of the file
+        ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN).putInt(100, dex.length - 16);
+        expectMalformed(dex, true, "table at");
+    }
+
+    @Test
+    public void stringLongerThanTheFile() throws IOException {
+        byte[] dex = sample().build(false);
+        ByteBuffer buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        // the last string, "[[Lcom/example/A;", gets a uleb128 length of Integer.MAX_VALUE units
+        int stringData = buffer.getInt(buffer.getInt(60) + 5 * 4);
+        byte[] length = {-1, -1, -1, -1, 7};
+        System.arraycopy(length, 0, dex, stringData, length.length);
+        for (boolean stored : new boolean[] {false, true}) {
+            expectMalformed(dex, stored, "string 5 of 2147483647 units");
+        }
+    }
+
+    @Test
+    public void badMagic() throws IOException {
+        byte[] dex = sample().build(false);
+        dex[0] = 'D';
+        expectMalformed(dex, true, "bad magic");
+    }
+
+    /**
+     * Three packages: com.example with two classes, one without class data, org.other and the
+     * default package. Fields and methods are also referenced on arrays and primitive types.
+     */
+    @NonNull
+    private static DexBuilder sample() {
+        return new DexBuilder()
+                .defineClass("Lcom/example/A;", 1, 2, 3, 4)
+                .defineClass("Lcom/example/B;", -1, 0, 0, 0)
+                .defineClass("Lorg/other/C;", 0, 1, 0, 2)
+                .defineClass("LTop;", 0, 0, 1, 0)
+                .referenceField("Lcom/example/A;")
+                .referenceField("Lcom/example/A;")
+                .referenceField("[[Lcom/example/A;")
+                .referenceField("Lorg/other/C;")
+                .referenceMethod("LTop;")
+                .referenceMethod("Lcom/example/B;")
+                .referenceMethod("I");
+    }
+
+    private static void assertStats(
+            DexFile.PackageStats stats,
+            int classes,
+            int definedMethods,
+            int referencedMethods,
+            int definedFields,
+            int referencedFields) {
+        assertNotNull(stats);
+        assertArrayEquals(
+                stats.getName(),
+                new int[] {
+                    classes, definedMethods, referencedMethods, definedFields, referencedFields
+                },
+                new int[] {
+                    stats.getClasses(),
+                    stats.getDefinedMethods(),
+                    stats.getReferencedMethods(),
+                    stats.getDefinedFields(),
+                    stats.getReferencedFields()
+                });
+    }
+
+    @NonNull
+    private DexFile read(@NonNull byte[] dex, boolean stored) throws IOException {
+        return read(dex, stored, true);
+    }
+
+    @NonNull
+    private DexFile read(@NonNull byte[] dex, boolean stored, boolean tables) throws IOException {
+        Path apk = temp.newFile().toPath();
+        TestApks.write(apk, Collections.singletonMap(DEX, dex), stored);
+        try (FileChannel channel = FileChannel.open(apk, StandardOpenOption.READ)) {
+            ZipCentralDirectory.Entry entry = ZipCentralDirectory.read(channel).getEntry(DEX);
+            assertNotNull(entry);
+            return tables ? DexFile.read(channel, entry) : DexFile.readHeader(channel, entry);
+        }
+    }
+
+    private void expectMalformed(@NonNull byte[] dex, boolean stored, @NonNull String message)
+            throws IOException {
+        try {
+            read(dex, stored);
+            fail("Read a malformed dex file, expected: " + message);
+        } catch (DecodeLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Malformed dex file"));
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    /** Writes the ID tables of a dex file, with class data but no code */
+    private static final class DexBuilder {
+        private static final int HEADER_SIZE = 0x70;
+
+        private final TreeSet<String> types = new TreeSet<>();
+        private final List<String> classes = new ArrayList<>();
+        private final List<int[]> classData = new ArrayList<>();
+        private final List<String> fields = new ArrayList<>();
+        private final List<String> methods = new ArrayList<>();
+
+        /**
+         * Defines {@code type} with the given numbers of members, or without class data if {@code
+         * staticFields} is negative.
+         */
+        @NonNull
+        DexBuilder defineClass(
+                @NonNull String type,
+                int staticFields,
+                int instanceFields,
+                int directMethods,
+                int virtualMethods) {
+            types.add(type);
+            classes.add(type);
+            classData.add(
+                    staticFields < 0
+                            ? null
+                            : new int[] {
+                                staticFields, instanceFields, directMethods, virtualMethods
+                            });
+            return this;
+        }
+
+        @NonNull
+        DexBuilder referenceField(@NonNull String type) {
+            types.add(type);
+            fields.add(type);
+            return this;
+        }
+
+        @NonNull
+        DexBuilder referenceMethod(@NonNull String type) {
+            types.add(type);
+            methods.add(type);
+            return this;
+        }
+
+        /**
+         * Returns the dex file; its class definitions come right after the header if {@code
+         * classDefsFirst}, after the other tables otherwise.
+         */
+        @NonNull
+        byte[] build(boolean classDefsFirst) {
+            // the type descriptors are the only strings, so type i is string i
+            List<String> names = new ArrayList<>(types);
+            int tables =
+                    names.size() * 8 + fields.size() * 8 + methods.size() * 8 + classes.size() * 32;
+            int classDefs =
+                    classDefsFirst ? HEADER_SIZE : HEADER_SIZE + tables - classes.size() * 32;
+            int stringIds = classDefsFirst ? HEADER_SIZE + classes.size() * 32 : HEADER_SIZE;
+            int typeIds = stringIds + names.size() * 4;
+            int fieldIds = typeIds + names.size() * 4;
+            int methodIds = fieldIds + fields.size() * 8;
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int dataStart = HEADER_SIZE + tables;
+            int[] stringOffsets = new int[names.size()];
+            for (int i = 0; i < names.size(); i++) {
+                stringOffsets[i] = dataStart + data.size();
+                String name = names.get(i);
+                writeUleb128(data, name.length());
+                for (char c : name.toCharArray()) {
+                    data.write(c);
+                }
+                data.write(0);
+            }
+            int[] classDataOffsets = new int[classes.size()];
+            for (int i = 0; i < classes.size(); i++) {
+                int[] counts = classData.get(i);
+                if (counts != null) {
+                    classDataOffsets[i] = dataStart + data.size();
+                    for (int count : counts) {
+                        writeUleb128(data, count);
+                    }
+                }
+            }
+
+            ByteBuffer dex =
+                    ByteBuffer.allocate(dataStart + data.size()).order(ByteOrder.LITTLE_ENDIAN);
+            dex.put("dex\n035\0".getBytes(StandardCharsets.US_ASCII));
+            dex.putInt(32, dex.capacity()).putInt(36, HEADER_SIZE).putInt(40, 0x12345678);
+            dex.putInt(56, names.size()).putInt(60, stringIds);
+            dex.putInt(64, names.size()).putInt(68, typeIds);
+            dex.putInt(80, fields.size()).putInt(84, fieldIds);
+            dex.putInt(88, methods.size()).putInt(92, methodIds);
+            dex.putInt(96, classes.size()).putInt(100, classDefs);
+            dex.putInt(104, data.size()).putInt(108, dataStart);
+            for (int i = 0; i < names.size(); i++) {
+                dex.putInt(stringIds + i * 4, stringOffsets[i]);
+                dex.putInt(typeIds + i * 4, i);
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                dex.putShort(fieldIds + i * 8, (short) names.indexOf(fields.get(i)));
+            }
+            for (int i = 0; i < methods.size(); i++) {
+                dex.putShort(methodIds + i * 8, (short) names.indexOf(methods.get(i)));
+            }
+            for (int i = 0; i < classes.size(); i++) {
+                int classDef = classDefs + i * 32;
+                dex.putInt(classDef, names.indexOf(classes.get(i)));
+                dex.putInt(classDef + 8, -1).putInt(classDef + 16, -1);
+                dex.putInt(classDef + 24, classDataOffsets[i]);
+            }
+            dex.position(dataStart);
+            dex.put(data.toByteArray());
+            return dex.array();
+        }
+
+        private static void writeUleb128(@NonNull ByteArrayOutputStream out, int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertEquals;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.benchmark.BinaryXmlWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+
+public class ExportedComponentsTest {
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_ENABLED = 0x0101000e;
+    private static final int ATTR_EXPORTED = 0x01010010;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+
+    @Test
+    public void exportedRule() {
+        Map<String, ExportedComponents.Reason> expected = new LinkedHashMap<>();
+        expected.put("com.example.Upper", ExportedComponents.Reason.EXPLICIT);
+        expected.put("com.example.Boolean", ExportedComponents.Reason.EXPLICIT);
+        expected.put("com.example.Filtered", ExportedComponents.Reason.INTENT_FILTER);
+        expected.put("com.example.Reference", ExportedComponents.Reason.UNRESOLVED);
+        assertEquals(expected, reasons(ExportedComponents.read(manifest(30))));
+
+        // providers are exported by default below API level 17
+        expected.put("com.example.Provider", ExportedComponents.Reason.PROVIDER_DEFAULT);
+        assertEquals(expected, reasons(ExportedComponents.read(manifest(16))));
+    }
+
+    @NonNull
+    private static byte[] manifest(int targetSdkVersion) {
+        BinaryXmlWriter w = new BinaryXmlWriter(true);
+        w.startNamespace(SdkConstants.ANDROID_NS_NAME, SdkConstants.ANDROID_URI);
+        w.startElement(SdkConstants.TAG_MANIFEST);
+        w.attribute(null, SdkConstants.ATTR_PACKAGE, 0, "com.example");
+        w.startElement(SdkConstants.TAG_USES_SDK);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "targetSdkVersion",
+                ATTR_TARGET_SDK_VERSION,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                targetSdkVersion);
+        w.endElement();
+        w.startElement(SdkConstants.TAG_APPLICATION);
+
+        // attribute values are compared ignoring case, as the manifest parser does
+        component(w, SdkConstants.TAG_ACTIVITY, ".Upper", "TRUE", false);
+        component(w, SdkConstants.TAG_ACTIVITY, ".Lower", "False", false);
+        w.startElement(SdkConstants.TAG_ACTIVITY);
+        w.attribute(SdkConstants.ANDROID_URI, SdkConstants.ATTR_NAME, ATTR_NAME, ".Boolean");
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "exported",
+                ATTR_EXPORTED,
+                BinaryXmlWriter.TYPE_INT_BOOLEAN,
+                -1);
+        w.endElement();
+        component(w, SdkConstants.TAG_ACTIVITY, ".Plain", null, false);
+        component(w, SdkConstants.TAG_SERVICE, ".Filtered", null, true);
+        component(w, SdkConstants.TAG_RECEIVER, ".Reference", "@bool/exported", false);
+        component(w, SdkConstants.TAG_PROVIDER, ".Provider", null, false);
+        w.startElement(SdkConstants.TAG_ACTIVITY);
+        w.attribute(SdkConstants.ANDROID_URI, SdkConstants.ATTR_NAME, ATTR_NAME, ".Disabled");
+        w.attribute(SdkConstants.ANDROID_URI, "exported", ATTR_EXPORTED, "true");
+        w.attribute(SdkConstants.ANDROID_URI, "enabled", ATTR_ENABLED, "FALSE");
+        w.endElement();
+
+        w.endElement();
+        w.endElement();
+        w.endNamespace();
+        return w.toByteArray();
+    }
+
+    /** Writes a component with {@code android:exported} as a string, if not null */
+    private static void component(
+            @NonNull BinaryXmlWriter w,
+            @NonNull String tag,
+            @NonNull String name,
+            @Nullable String exported,
+            boolean intentFilter) {
+        w.startElement(tag);
+        w.attribute(SdkConstants.ANDROID_URI, SdkConstants.ATTR_NAME, ATTR_NAME, name);
+        if (exported != null) {
+            w.attribute(SdkConstants.ANDROID_URI, "exported", ATTR_EXPORTED, exported);
+        }
+        if (intentFilter) {
+            w.startElement(SdkConstants.TAG_INTENT_FILTER);
+            w.endElement();
+        }
+        w.endElement();
+    }
+
+    @NonNull
+    private static Map<String, ExportedComponents.Reason> reasons(
+            @NonNull ExportedComponents exported) {
+        Map<String, ExportedComponents.Reason> reasons = new LinkedHashMap<>();
+        for (ExportedComponents.Component component : exported.getComponents()) {
+            reasons.put(component.getName(), component.getReason());
+        }
+        return reasons;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.ide.common.xml.AndroidManifestParser;
+import com.android.ide.common.xml.ManifestData;
+import com.android.ide.common.xml.ManifestData.ComponentType;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+public class IntentResolverTest {
+    private static final String VIEW = "android.intent.action.VIEW";
+    private static final String SEND = "android.intent.action.SEND";
+    private static final String DEFAULT = "android.intent.category.DEFAULT";
+    private static final String BROWSABLE = "android.intent.category.BROWSABLE";
+    private static final String HOME = "android.intent.category.HOME";
+
+    private static final String MANIFEST =
+            "<manifest xmlns:android='http://schemas.android.com/apk/res/android'"
+                    + " package='com.example.app'>"
+                    + "<uses-sdk android:minSdkVersion='21' android:targetSdkVersion='30'/>"
+                    + "<application android:permission='app.P'>"
+                    + "<activity android:name='.Web' android:permission='web.P'>"
+                    + "<intent-filter android:priority='1'>"
+                    + "<action android:name='" + VIEW + "'/>"
+                    + "<category android:name='" + DEFAULT + "'/>"
+                    + "<category android:name='" + BROWSABLE + "'/>"
+                    + "<data android:scheme='https' android:host='*.example.com'"
+                    + " android:pathPattern='/item/.*'/>"
+                    + "</intent-filter></activity>"
+                    + "<activity-alias android:name='.WebAlias' android:targetActivity='.Web'>"
+                    + "<intent-filter android:priority='2'>"
+                    + "<action android:name='" + VIEW + "'/>"
+                    + "<category android:name='" + DEFAULT + "'/>"
+                    + "<category android:name='" + BROWSABLE + "'/>"
+                    + "<data android:scheme='https' android:host='*.example.com'/>"
+                    + "</intent-filter></activity-alias>"
+                    + "<activity android:name='.Share'>"
+                    + "<intent-filter>"
+                    + "<action android:name='" + SEND + "'/>"
+                    + "<category android:name='" + DEFAULT + "'/>"
+                    + "<data android:mimeType='image/*'/>"
+                    + "</intent-filter></activity>"
+                    + "<activity android:name='.NoDefault'>"
+                    + "<intent-filter>"
+                    + "<action android:name='" + SEND + "'/>"
+                    + "<data android:mimeType='image/*'/>"
+                    + "</intent-filter></activity>"
+                    + "<receiver android:name='.Receiver' android:enabled='false'>"
+                    + "<intent-filter><action android:name='" + SEND + "'/></intent-filter>"
+                    + "</receiver>"
+                    + "</application></manifest>";
+
+    private static final String ITEM = "https://www.example.com/item/1";
+
+    private static final Set<ComponentType> ACTIVITIES =
+            EnumSet.of(ComponentType.ACTIVITY, ComponentType.ACTIVITY_ALIAS);
+
+    @Test
+    public void resolvesByActionCategoriesAndData() throws Exception {
+        IntentResolver resolver = resolver();
+        assertEquals(4, resolver.getFilterCount());
+
+        // by decreasing priority
+        assertEquals(
+                Arrays.asList("com.example.app.WebAlias", "com.example.app.Web"),
+                names(resolver.resolve(intent(VIEW, ITEM, null, BROWSABLE), ACTIVITIES)));
+        // the path pattern of .Web does not match
+        assertEquals(
+                Arrays.asList("com.example.app.WebAlias"),
+                names(
+                        resolver.resolve(
+                                intent(VIEW, "https://www.example.com/other", null),
+                                ACTIVITIES)));
+        // *.example.com does not match example.com
+        assertTrue(
+                resolver.resolve(intent(VIEW, "https://example.com/item/1", null), ACTIVITIES)
+                        .isEmpty());
+        assertTrue(
+                resolver.resolve(intent(VIEW, "http://www.example.com/", null), ACTIVITIES)
+                        .isEmpty());
+        assertTrue(resolver.resolve(intent(VIEW, ITEM, null, HOME), ACTIVITIES).isEmpty());
+    }
+
+    @Test
+    public void activitiesNeedTheDefaultCategory() throws Exception {
+        List<IntentResolver.Match> matches =
+                resolver().resolve(intent(SEND, null, "image/png"), ACTIVITIES);
+        assertEquals(Arrays.asList("com.example.app.Share"), names(matches));
+        assertEquals("app.P", matches.get(0).getPermission());
+        assertTrue(matches.get(0).isExported());
+    }
+
+    @Test
+    public void disabledComponentsAreNotIndexed() throws Exception {
+        assertTrue(
+                resolver()
+                        .resolve(intent(SEND, null, null), EnumSet.of(ComponentType.RECEIVER))
+                        .isEmpty());
+    }
+
+    @Test
+    public void aliasesTakeThePermissionOfTheirTarget() throws Exception {
+        List<IntentResolver.Match> matches =
+                resolver().resolve(intent(VIEW, ITEM, null), ACTIVITIES);
+        assertEquals(2, matches.size());
+        assertEquals(ComponentType.ACTIVITY_ALIAS, matches.get(0).getComponent().getType());
+        assertEquals("web.P", matches.get(0).getPermission());
+        assertEquals("web.P", matches.get(1).getPermission());
+    }
+
+    @Test
+    public void globMatchesAsThePlatform() {
+        assertTrue(IntentResolver.matchesGlob("", ""));
+        assertFalse(IntentResolver.matchesGlob("", "/a"));
+        assertTrue(IntentResolver.matchesGlob("/a.c", "/abc"));
+        assertFalse(IntentResolver.matchesGlob("/a.c", "/abcd"));
+        assertTrue(IntentResolver.matchesGlob("/item/.*", "/item/42"));
+        assertTrue(IntentResolver.matchesGlob("/item/.*", "/item/"));
+        assertTrue(IntentResolver.matchesGlob("/a*b", "/aaab"));
+        assertTrue(IntentResolver.matchesGlob("/a*b", "/b"));
+        assertFalse(IntentResolver.matchesGlob("/a*b", "/aac"));
+        assertTrue(IntentResolver.matchesGlob("/.*/end", "/x/end"));
+        assertTrue(IntentResolver.matchesGlob("\\*", "*"));
+        assertTrue(IntentResolver.matchesGlob(".*\\.pdf", "/doc.pdf"));
+        // .* stops at the first occurrence of the next character, without backtracking
+        assertFalse(IntentResolver.matchesGlob(".*\\.pdf", "/a.b.pdf"));
+    }
+
+    @Test(timeout = 1000)
+    public void globIsLinear() {
+        StringBuilder pattern = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            pattern.append(".*");
+        }
+        pattern.append('x');
+        char[] path = new char[10_000];
+        Arrays.fill(path, 'a');
+        assertFalse(IntentResolver.matchesGlob(pattern.toString(), new String(path)));
+        assertFalse(IntentResolver.matchesGlob("a*a*a*a*a*a*a*a*a*a*a*x", new String(path)));
+    }
+
+    @NonNull
+    private static IntentResolver resolver() throws Exception {
+        ManifestData manifest =
+                AndroidManifestParser.parse(
+                        new ByteArrayInputStream(MANIFEST.getBytes(StandardCharsets.UTF_8)));
+        IntentResolver resolver = new IntentResolver();
+        resolver.add("app.apk", manifest);
+        return resolver;
+    }
+
+    @NonNull
+    private static IntentResolver.Intent intent(
+            @Nullable String action,
+            @Nullable String data,
+            @Nullable String type,
+            @NonNull String... categories) {
+        Set<String> set = new HashSet<>(Arrays.asList(categories));
+        return new IntentResolver.Intent(action, set, data, type);
+    }
+
+    @NonNull
+    private static List<String> names(@NonNull List<IntentResolver.Match> matches) {
+        List<String> names = new ArrayList<>();
+        for (IntentResolver.Match match : matches) {
+            names.add(match.getComponent().getName());
+        }
+        return names;
+    }
+}
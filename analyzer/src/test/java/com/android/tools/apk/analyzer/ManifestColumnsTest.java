@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.ide.common.xml.AndroidManifestParser;
+import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.ManifestColumns.Column;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ManifestColumnsTest {
+    private static final String MANIFEST =
+            "<manifest xmlns:android='http://schemas.android.com/apk/res/android'"
+                    + " package='com.example.app' android:versionCode='7'"
+                    + " android:versionName='1.7'>"
+                    + "<uses-sdk android:minSdkVersion='16' android:targetSdkVersion='29'/>"
+                    + "<uses-permission android:name='android.permission.INTERNET'/>"
+                    + "<permission android:name='com.example.app.OWN'/>"
+                    + "<application android:permission='app.P' android:debuggable='true'>"
+                    + "<activity android:name='.A' android:permission='activity.P'/>"
+                    + "<activity android:name='.B' android:exported='true'/>"
+                    + "<activity-alias android:name='.AliasA' android:targetActivity='.A'/>"
+                    + "<activity-alias android:name='.AliasB' android:targetActivity='.B'/>"
+                    + "<activity-alias android:name='.AliasOwn' android:targetActivity='.A'"
+                    + " android:permission='alias.P'/>"
+                    + "<service android:name='.S'/>"
+                    + "<provider android:name='.P' android:authorities='p'"
+                    + " android:permission='provider.P' android:readPermission='read.P'/>"
+                    + "</application></manifest>";
+
+    private static final String BARE_MANIFEST =
+            "<manifest xmlns:android='http://schemas.android.com/apk/res/android'"
+                    + " package='com.example.bare'/>";
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void writeOpenRoundTrip() throws Exception {
+        ManifestColumns columns = ManifestColumns.open(write());
+        assertEquals(2, columns.getRowCount());
+        assertEquals(Arrays.asList("app.apk", "bare.apk"), strings(columns, Column.KEY));
+        assertEquals(
+                Arrays.asList("com.example.app", "com.example.bare"),
+                strings(columns, Column.PACKAGE));
+        assertEquals(7, columns.getIntColumn(Column.VERSION_CODE).get(0));
+        assertEquals(
+                ManifestColumns.NO_VERSION_CODE, columns.getIntColumn(Column.VERSION_CODE).get(1));
+        assertEquals(Arrays.asList("1.7", null), strings(columns, Column.VERSION_NAME));
+        assertEquals(16, columns.getIntColumn(Column.MIN_SDK).get(0));
+        assertEquals(29, columns.getIntColumn(Column.TARGET_SDK).get(0));
+        assertEquals(1, columns.getByteColumn(Column.DEBUGGABLE).get(0));
+        assertEquals(-1, columns.getByteColumn(Column.DEBUGGABLE).get(1));
+
+        IntBuffer componentStart = columns.getIntColumn(Column.COMPONENT_START);
+        assertEquals(7, componentStart.get(1));
+        assertEquals(7, componentStart.get(2));
+        assertEquals(
+                Arrays.asList(
+                        "com.example.app.A",
+                        "com.example.app.B",
+                        "com.example.app.AliasA",
+                        "com.example.app.AliasB",
+                        "com.example.app.AliasOwn",
+                        "com.example.app.S",
+                        "com.example.app.P"),
+                strings(columns, Column.COMPONENT_NAME));
+        assertEquals(
+                ManifestData.ComponentType.PROVIDER.ordinal(),
+                columns.getByteColumn(Column.COMPONENT_TYPE).get(6));
+        assertEquals(1, columns.getByteColumn(Column.COMPONENT_EXPORTED).get(1));
+
+        int internet = columns.findString("android.permission.INTERNET");
+        assertTrue(internet >= 0);
+        assertArrayEquals(
+                new int[] {0},
+                columns.findRows(Column.USES_PERMISSION_START, Column.USES_PERMISSION, internet));
+        assertEquals(Arrays.asList("com.example.app.OWN"), strings(columns, Column.PERMISSION));
+        assertEquals(ManifestColumns.NO_STRING, columns.findString("missing"));
+    }
+
+    @Test
+    public void dictionaryIsSortedAndUnique() throws Exception {
+        ManifestColumns columns = ManifestColumns.open(write());
+        for (int i = 0; i < columns.getStringCount(); i++) {
+            String string = columns.getString(i);
+            assertEquals(i, columns.findString(string));
+            if (i > 0) {
+                assertTrue(columns.getString(i - 1).compareTo(string) < 0);
+            }
+        }
+        assertNull(columns.getString(ManifestColumns.NO_STRING));
+    }
+
+    @Test
+    public void componentPermissions() throws Exception {
+        ManifestColumns columns = ManifestColumns.open(write());
+        // aliases take the permission of their target activity, unless they set their own
+        assertEquals(
+                Arrays.asList(
+                        "activity.P", "app.P", "activity.P", "app.P", "alias.P", "app.P", "read.P"),
+                strings(columns, Column.COMPONENT_PERMISSION).subList(0, 7));
+    }
+
+    @Test
+    public void rejectsCorruptFiles() throws Exception {
+        byte[] good = Files.readAllBytes(write());
+
+        byte[] magic = good.clone();
+        magic[0] ^= 1;
+        expectIOException(magic, "Not a manifest columns file");
+
+        byte[] start = good.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(start).order(ByteOrder.LITTLE_ENDIAN);
+        int offset = columnOffset(buffer, Column.COMPONENT_START);
+        buffer.putInt(offset + 4, 1000);
+        expectIOException(start, "COMPONENT_START value 1000");
+
+        byte[] name = good.clone();
+        buffer = ByteBuffer.wrap(name).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(columnOffset(buffer, Column.COMPONENT_NAME), 1 << 20);
+        expectIOException(name, "out of range in COMPONENT_NAME");
+
+        expectIOException(Arrays.copyOf(good, good.length / 2), "");
+    }
+
+    @NonNull
+    private Path write() throws Exception {
+        ManifestColumns.Writer writer = new ManifestColumns.Writer();
+        writer.add("app.apk", parse(MANIFEST));
+        writer.add("bare.apk", parse(BARE_MANIFEST));
+        Path file = temp.getRoot().toPath().resolve("manifests.col");
+        writer.write(file);
+        return file;
+    }
+
+    @NonNull
+    private static ManifestData parse(@NonNull String xml) throws Exception {
+        return AndroidManifestParser.parse(
+                new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @NonNull
+    private static List<String> strings(@NonNull ManifestColumns columns, @NonNull Column column) {
+        IntBuffer values = columns.getIntColumn(column);
+        List<String> strings = new ArrayList<>();
+        while (values.hasRemaining()) {
+            strings.add(columns.getString(values.get()));
+        }
+        return strings;
+    }
+
+    /** Returns the file offset of {@code column}, whose ids follow the order of the enum */
+    private static int columnOffset(@NonNull ByteBuffer file, @NonNull Column column) {
+        int count = file.getInt(12);
+        for (int i = 0; i < count; i++) {
+            int entry = 16 + 12 * i;
+            if (file.getInt(entry) == column.ordinal()) {
+                return file.getInt(entry + 4);
+            }
+        }
+        throw new AssertionError("No column " + column);
+    }
+
+    private void expectIOException(@NonNull byte[] bytes, @NonNull String message)
+            throws IOException {
+        Path file = temp.newFile().toPath();
+        Files.write(file, bytes);
+        try {
+            ManifestColumns.open(file);
+            fail("Opened a corrupt file, expected: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
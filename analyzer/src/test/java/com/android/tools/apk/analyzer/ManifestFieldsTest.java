@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.ide.common.xml.AndroidManifestParser;
+import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.benchmark.BinaryXmlWriter;
+import com.android.tools.apk.analyzer.benchmark.CorpusGenerator;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import org.junit.Test;
+
+public class ManifestFieldsTest {
+    private static final int ATTR_DEBUGGABLE = 0x0101000f;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+
+    @Test
+    public void readsTheRequestedFields() {
+        ManifestFields fields =
+                ManifestFields.read(
+                        TestApks.manifest(), EnumSet.allOf(ManifestFields.Field.class));
+        assertNotNull(fields);
+        assertEquals("com.example.corpus.small", fields.getPackage());
+        assertNotNull(fields.getVersionCode());
+        assertNotNull(fields.getVersionName());
+        assertEquals("21", fields.getMinSdkVersionString());
+        assertEquals(21, fields.getMinSdkVersion());
+        assertEquals(30, fields.getTargetSdkVersion());
+        assertNull(fields.getDebuggable());
+    }
+
+    @Test
+    public void matchesTheParser() throws Exception {
+        for (CorpusGenerator.Spec spec : CorpusGenerator.Spec.STANDARD) {
+            byte[] manifest = new CorpusGenerator(CorpusGenerator.DEFAULT_SEED).manifest(spec);
+            ManifestFields fields =
+                    ManifestFields.read(manifest, EnumSet.allOf(ManifestFields.Field.class));
+            assertNotNull(fields);
+            ManifestData expected = parse(manifest);
+            assertEquals(expected.getPackage(), fields.getPackage());
+            assertEquals(expected.getVersionCode(), fields.getVersionCode());
+            assertEquals(expected.getVersionName(), fields.getVersionName());
+            assertEquals(expected.getMinSdkVersionString(), fields.getMinSdkVersionString());
+            assertEquals(expected.getMinSdkVersion(), fields.getMinSdkVersion());
+            assertEquals(expected.getTargetSdkVersion(), fields.getTargetSdkVersion());
+            assertEquals(expected.getDebuggable(), fields.getDebuggable());
+        }
+    }
+
+    @Test
+    public void sdkVersionsFromTheLastUsesSdkBeforeTheApplication() throws Exception {
+        BinaryXmlWriter w = new BinaryXmlWriter(true);
+        w.startNamespace(SdkConstants.ANDROID_NS_NAME, SdkConstants.ANDROID_URI);
+        w.startElement(SdkConstants.TAG_MANIFEST);
+        w.attribute(null, SdkConstants.ATTR_PACKAGE, 0, "com.example");
+        usesSdk(w, "14", 20);
+        usesSdk(w, "Q", 30);
+        w.startElement(SdkConstants.TAG_APPLICATION);
+        w.attribute(SdkConstants.ANDROID_URI, "debuggable", ATTR_DEBUGGABLE, "true");
+        w.endElement();
+        // ManifestData would take this one, but reading stops at <application>
+        usesSdk(w, "26", 33);
+        w.endElement();
+        w.endNamespace();
+        byte[] manifest = w.toByteArray();
+
+        ManifestFields fields =
+                ManifestFields.read(
+                        manifest,
+                        EnumSet.of(ManifestFields.Field.MIN_SDK, ManifestFields.Field.TARGET_SDK));
+        assertNotNull(fields);
+        assertEquals("Q", fields.getMinSdkVersionString());
+        assertEquals(ManifestData.MIN_SDK_CODENAME, fields.getMinSdkVersion());
+        assertEquals(30, fields.getTargetSdkVersion());
+        assertEquals(33, parse(manifest).getTargetSdkVersion());
+
+        fields = ManifestFields.read(manifest, EnumSet.of(ManifestFields.Field.DEBUGGABLE));
+        assertNotNull(fields);
+        assertEquals(Boolean.TRUE, fields.getDebuggable());
+    }
+
+    @Test
+    public void notBinaryXml() {
+        byte[] text = "<manifest/>".getBytes(StandardCharsets.UTF_8);
+        assertNull(ManifestFields.read(text, EnumSet.of(ManifestFields.Field.PACKAGE)));
+    }
+
+    @NonNull
+    private static ManifestData parse(@NonNull byte[] manifest) throws Exception {
+        byte[] xml = BinaryXmlParser.decodeXml(SdkConstants.ANDROID_MANIFEST_XML, manifest);
+        return AndroidManifestParser.parse(new ByteArrayInputStream(xml));
+    }
+
+    private static void usesSdk(@NonNull BinaryXmlWriter w, @NonNull String min, int target) {
+        w.startElement(SdkConstants.TAG_USES_SDK);
+        w.attribute(SdkConstants.ANDROID_URI, "minSdkVersion", ATTR_MIN_SDK_VERSION, min);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "targetSdkVersion",
+                ATTR_TARGET_SDK_VERSION,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                target);
+        w.endElement();
+    }
+}
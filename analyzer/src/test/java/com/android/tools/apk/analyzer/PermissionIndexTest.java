@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.android.tools.apk.analyzer.PermissionIndex.Package;
+import com.android.tools.apk.analyzer.PermissionIndex.Relation;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PermissionIndexTest {
+    private static final String CAMERA = "android.permission.CAMERA";
+    private static final String INTERNET = "android.permission.INTERNET";
+    private static final String CUSTOM = "com.example.permission.CUSTOM";
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void saveLoadRoundTrip() throws IOException {
+        PermissionIndex index = new PermissionIndex();
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, CAMERA, INTERNET));
+        index.put(pkg("b", "com.example.b"), permissions(Relation.USES, INTERNET));
+        index.put(pkg("c", null), permissions(Relation.DEFINES, CUSTOM));
+        index.put(pkg("d", "com.example.d"), permissions(Relation.GUARDS, CUSTOM));
+        // leaves a free id between indexed packages
+        index.remove("b");
+        Path file = temp.getRoot().toPath().resolve("permissions.idx");
+        index.save(file);
+
+        PermissionIndex loaded = PermissionIndex.load(file);
+        assertEquals(keys(index.getPackages()), keys(loaded.getPackages()));
+        assertNull(loaded.get("c").getPackageName());
+        assertEquals(42, loaded.get("a").getFile().getManifestCrc());
+        for (Relation relation : Relation.values()) {
+            for (String permission : Arrays.asList(CAMERA, INTERNET, CUSTOM)) {
+                List<String> expected = keys(index.query(relation, permission));
+                assertEquals(expected, keys(loaded.query(relation, permission)));
+                List<Package> stored = PermissionIndex.query(file, permission).get(relation);
+                assertEquals(expected, keys(stored != null ? stored : Collections.emptyList()));
+            }
+        }
+
+        // the loaded index can be changed and saved again
+        loaded.put(pkg("e", "com.example.e"), permissions(Relation.USES, INTERNET));
+        loaded.remove("a");
+        loaded.save(file);
+        PermissionIndex reloaded = PermissionIndex.load(file);
+        assertEquals(Arrays.asList("e"), keys(reloaded.query(Relation.USES, INTERNET)));
+        assertTrue(reloaded.query(Relation.USES, CAMERA).isEmpty());
+    }
+
+    @Test
+    public void putReplacesThePermissionsOfAPackage() {
+        PermissionIndex index = new PermissionIndex();
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, CAMERA));
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, INTERNET));
+        assertTrue(index.query(Relation.USES, CAMERA).isEmpty());
+        assertEquals(Arrays.asList("a"), keys(index.query(Relation.USES, INTERNET)));
+        assertEquals(1, index.getPackages().size());
+    }
+
+    @Test
+    public void updateRecordsTheNewStateOfTheApk() {
+        PermissionIndex index = new PermissionIndex();
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, CAMERA));
+        index.update(new ManifestSnapshot.Entry("a", "a.apk", 20, 2, 42));
+        assertEquals(20, index.get("a").getFile().getSize());
+        assertEquals("com.example.a", index.get("a").getPackageName());
+        try {
+            index.update(new ManifestSnapshot.Entry("b", "b.apk", 20, 2, 42));
+            fail("Updated a package that is not indexed");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void listenersSeeChangesInOrder() {
+        PermissionIndex index = new PermissionIndex();
+        List<String> events = new ArrayList<>();
+        index.addListener(
+                new PermissionIndex.Listener() {
+                    @Override
+                    public void onPut(
+                            @Nullable Package previous,
+                            @NonNull Package pkg,
+                            @NonNull Map<Relation, Set<String>> permissions) {
+                        events.add("put " + pkg.getKey() + (previous != null ? " again" : ""));
+                    }
+
+                    @Override
+                    public void onRemove(@NonNull Package pkg) {
+                        events.add("remove " + pkg.getKey());
+                    }
+                });
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, CAMERA));
+        index.put(pkg("a", "com.example.a"), permissions(Relation.USES, CAMERA));
+        index.remove("a");
+        assertNull(index.remove("a"));
+        assertEquals(Arrays.asList("put a", "put a again", "remove a"), events);
+    }
+
+    @Test
+    public void missingFileIsEmptyAndForeignFileIsRejected() throws IOException {
+        Path file = temp.getRoot().toPath().resolve("permissions.idx");
+        assertTrue(PermissionIndex.load(file).getPackages().isEmpty());
+
+        Files.write(file, new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+        try {
+            PermissionIndex.load(file);
+            fail("Loaded a file that is not an index");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Not a permission index"));
+        }
+    }
+
+    @NonNull
+    private static Package pkg(@NonNull String key, @Nullable String packageName) {
+        return new Package(new ManifestSnapshot.Entry(key, key + ".apk", 10, 1, 42), packageName);
+    }
+
+    @NonNull
+    private static Map<Relation, Set<String>> permissions(
+            @NonNull Relation relation, @NonNull String... names) {
+        Map<Relation, Set<String>> permissions = new EnumMap<>(Relation.class);
+        permissions.put(relation, new HashSet<>(Arrays.asList(names)));
+        return permissions;
+    }
+
+    @NonNull
+    private static List<String> keys(@NonNull Iterable<Package> packages) {
+        List<String> keys = new ArrayList<>();
+        for (Package pkg : packages) {
+            keys.add(pkg.getKey());
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+}
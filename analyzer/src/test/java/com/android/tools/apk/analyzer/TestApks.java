@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.benchmark.CorpusGenerator;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Builds the APKs of the unit tests, from the corpus generator or from given entries. */
+public final class TestApks {
+    private TestApks() {}
+
+    /** Returns the binary manifest of a small generated APK */
+    @NonNull
+    public static byte[] manifest() {
+        return new CorpusGenerator(CorpusGenerator.DEFAULT_SEED)
+                .manifest(CorpusGenerator.Spec.SMALL);
+    }
+
+    /** Writes a small generated APK to {@code file} */
+    @NonNull
+    public static Path writeSmall(@NonNull Path file) throws IOException {
+        new CorpusGenerator(CorpusGenerator.DEFAULT_SEED)
+                .writeApk(file, CorpusGenerator.Spec.SMALL);
+        return file;
+    }
+
+    /** Writes an APK holding only {@code manifest} */
+    @NonNull
+    public static Path writeManifestOnly(@NonNull Path file, @NonNull byte[] manifest)
+            throws IOException {
+        return write(
+                file,
+                Collections.singletonMap(SdkConstants.FN_ANDROID_MANIFEST_XML, manifest),
+                false);
+    }
+
+    /** Writes {@code entries} to the zip {@code file}, in iteration order */
+    @NonNull
+    public static Path write(
+            @NonNull Path file, @NonNull Map<String, byte[]> entries, boolean stored)
+            throws IOException {
+        try (OutputStream out = Files.newOutputStream(file);
+                ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                byte[] content = entry.getValue();
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                zipEntry.setTime(0);
+                if (stored) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(content.length);
+                    zipEntry.setCompressedSize(content.length);
+                    zipEntry.setCrc(crc.getValue());
+                }
+                zip.putNextEntry(zipEntry);
+                zip.write(content);
+                zip.closeEntry();
+            }
+        }
+        return file;
+    }
+}
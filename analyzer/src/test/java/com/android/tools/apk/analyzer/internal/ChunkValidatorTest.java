@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.DecodeLimitException;
+import com.android.tools.apk.analyzer.DecodeLimits;
+import com.android.tools.apk.analyzer.TestApks;
+import com.android.tools.apk.analyzer.benchmark.CorpusGenerator;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.After;
+import org.junit.Test;
+
+public class ChunkValidatorTest {
+    /** The string pool follows the 8 byte header of the XML chunk */
+    private static final int STRING_POOL = 8;
+
+    @After
+    public void restoreLimits() {
+        DecodeLimits.set(DecodeLimits.DEFAULT);
+    }
+
+    @Test
+    public void generatedManifestIsValid() {
+        byte[] manifest = TestApks.manifest();
+        ChunkValidator.validate(manifest, DecodeLimits.SAFE);
+
+        BinaryXmlReader reader = BinaryXmlReader.open(manifest);
+        assertNotNull(reader);
+        assertEquals(BinaryXmlReader.START_ELEMENT, reader.next());
+        assertEquals("manifest", reader.getName());
+    }
+
+    @Test
+    public void oversizedStringPoolCount() {
+        byte[] manifest = TestApks.manifest();
+        buffer(manifest).putInt(STRING_POOL + 8, Integer.MAX_VALUE);
+        expectMalformed(manifest, "claims 2147483647 strings");
+    }
+
+    @Test
+    public void selfReferentialChunkSize() {
+        byte[] manifest = TestApks.manifest();
+        // a size of zero would leave the parser on the same chunk forever
+        buffer(manifest).putInt(STRING_POOL + 4, 0);
+        expectMalformed(manifest, "chunk size 0");
+    }
+
+    @Test
+    public void chunkOverrunningItsParent() {
+        byte[] manifest = TestApks.manifest();
+        buffer(manifest).putInt(STRING_POOL + 4, manifest.length);
+        expectMalformed(manifest, "overruns its parent");
+    }
+
+    @Test
+    public void truncatedFile() {
+        byte[] manifest = TestApks.manifest();
+        byte[] truncated = new byte[manifest.length - 3];
+        System.arraycopy(manifest, 0, truncated, 0, truncated.length);
+        expectMalformed(truncated, "Malformed chunk");
+    }
+
+    @Test
+    public void endElementWithoutItsExtension() {
+        // an XML chunk holding an empty string pool and an end element cut after its node header
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 28 + 16).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) 0x0003).putShort((short) 8).putInt(buffer.capacity());
+        buffer.putShort((short) 0x0001).putShort((short) 28).putInt(28);
+        buffer.putInt(0).putInt(0).putInt(0).putInt(28).putInt(0);
+        buffer.putShort((short) 0x0103).putShort((short) 16).putInt(16);
+        buffer.putInt(1).putInt(-1);
+        byte[] document = buffer.array();
+        expectMalformed(document, "end element of size 16");
+
+        try {
+            BinaryXmlReader.open(document);
+            fail("Opened a truncated end element");
+        } catch (DecodeLimitException expected) {
+        }
+    }
+
+    @Test
+    public void deepNesting() {
+        byte[] layout = new CorpusGenerator(CorpusGenerator.DEFAULT_SEED).layout(300, true);
+        ChunkValidator.validate(layout, DecodeLimits.DEFAULT);
+        expectLimit(layout, DecodeLimits.SAFE, "nested more than 256 deep");
+    }
+
+    @Test
+    public void chunkCount() {
+        byte[] manifest = TestApks.manifest();
+        expectLimit(manifest, DecodeLimits.DEFAULT.with("chunks=10"), "More than 10 chunks");
+    }
+
+    @Test
+    public void memoryBudget() {
+        byte[] manifest = TestApks.manifest();
+        DecodeLimits.set(DecodeLimits.DEFAULT.with("memory=1k"));
+        try (DecodeLimits.Scope scope = DecodeLimits.startItem()) {
+            ChunkValidator.validate(manifest, DecodeLimits.get());
+            fail("Expected the memory budget to be exceeded");
+        } catch (DecodeLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("memory budget"));
+        }
+    }
+
+    @NonNull
+    private static ByteBuffer buffer(@NonNull byte[] bytes) {
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void expectMalformed(@NonNull byte[] bytes, @NonNull String message) {
+        expectLimit(bytes, DecodeLimits.DEFAULT, message);
+    }
+
+    private static void expectLimit(
+            @NonNull byte[] bytes, @NonNull DecodeLimits limits, @NonNull String message) {
+        try {
+            ChunkValidator.validate(bytes, limits);
+            fail("Expected DecodeLimitException: " + message);
+        } catch (DecodeLimitException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.annotations.NonNull;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.Test;
+
+public class PostingListTest {
+    @Test
+    public void keepsIdsSortedAndUnique() {
+        PostingList list = new PostingList();
+        assertTrue(list.add(5));
+        assertTrue(list.add(1));
+        assertTrue(list.add(3));
+        assertFalse(list.add(3));
+        assertArrayEquals(new int[] {1, 3, 5}, list.toArray());
+
+        assertTrue(list.remove(3));
+        assertFalse(list.remove(4));
+        assertFalse(list.contains(3));
+        assertTrue(list.contains(5));
+        assertEquals(2, list.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeIds() {
+        new PostingList().add(-1);
+    }
+
+    @Test
+    public void writeReadRoundTrip() throws IOException {
+        Random random = new Random(1);
+        TreeSet<Integer> ids = new TreeSet<>();
+        PostingList list = new PostingList();
+        for (int i = 0; i < 1000; i++) {
+            int id = random.nextInt(i < 900 ? 2000 : Integer.MAX_VALUE);
+            ids.add(id);
+            list.add(id);
+        }
+        list.add(Integer.MAX_VALUE);
+        ids.add(Integer.MAX_VALUE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        list.write(out);
+        new PostingList().write(out);
+        list.write(out);
+        out.writeInt(42);
+
+        DataInputStream in = input(bytes.toByteArray());
+        int[] expected = ids.stream().mapToInt(Integer::intValue).toArray();
+        assertArrayEquals(expected, PostingList.read(in).toArray());
+        assertTrue(PostingList.read(in).isEmpty());
+        PostingList.skip(in);
+        assertEquals(42, in.readInt());
+    }
+
+    @Test
+    public void rejectsMoreIdsThanBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        PostingList.writeVarint(out, 1);
+        PostingList.writeVarint(out, Integer.MAX_VALUE);
+        expectIOException(bytes.toByteArray(), "claims 2147483647 ids");
+    }
+
+    @Test
+    public void rejectsMalformedVarints() {
+        expectIOException(new byte[] {-1, -1, -1, -1, -1, 1}, "Malformed variable length");
+    }
+
+    @Test
+    public void skipRejectsTruncatedLists() {
+        try {
+            PostingList.skip(input(new byte[] {10, 1, 2}));
+            fail("Skipped a truncated list");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Truncated"));
+        }
+    }
+
+    @NonNull
+    private static DataInputStream input(@NonNull byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    private static void expectIOException(@NonNull byte[] bytes, @NonNull String message) {
+        try {
+            PostingList.read(input(bytes));
+            fail("Expected IOException: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
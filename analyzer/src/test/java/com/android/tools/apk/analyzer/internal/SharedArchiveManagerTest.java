@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.Archive;
+import com.android.tools.apk.analyzer.SplitApkContext;
+import com.android.tools.apk.analyzer.TestApks;
+import com.android.utils.NullLogger;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedArchiveManagerTest {
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void releasedArchivesAreReused() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        try (SharedArchiveManager manager =
+                new SharedArchiveManager(NullLogger.getLogger(), 1)) {
+            Archive first;
+            try (SplitApkContext context = manager.openArchive(apk)) {
+                first = context.getArchive();
+            }
+            assertTrue(isOpen(first));
+            try (SplitApkContext context = manager.openArchive(apk)) {
+                assertSame(first, context.getArchive());
+            }
+        }
+    }
+
+    @Test
+    public void changedArchiveIsReopenedWhileInUse() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        try (SharedArchiveManager manager =
+                new SharedArchiveManager(NullLogger.getLogger(), 1)) {
+            SplitApkContext stale = manager.openArchive(apk);
+            touch(apk);
+
+            Archive fresh;
+            try (SplitApkContext context = manager.openArchive(apk)) {
+                fresh = context.getArchive();
+                assertNotSame(stale.getArchive(), fresh);
+                assertTrue(isOpen(stale.getArchive()));
+            }
+
+            // the stale archive is closed by its last release, not kept for reuse
+            stale.close();
+            assertFalse(isOpen(stale.getArchive()));
+            assertTrue(isOpen(fresh));
+            try (SplitApkContext context = manager.openArchive(apk)) {
+                assertSame(fresh, context.getArchive());
+            }
+        }
+    }
+
+    @Test
+    public void closeClosesArchivesInUse() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        SharedArchiveManager manager = new SharedArchiveManager(NullLogger.getLogger(), 1);
+        SplitApkContext stale = manager.openArchive(apk);
+        touch(apk);
+        SplitApkContext fresh = manager.openArchive(apk);
+
+        manager.close();
+        assertFalse(isOpen(stale.getArchive()));
+        assertFalse(isOpen(fresh.getArchive()));
+        stale.close();
+        fresh.close();
+    }
+
+    private static void touch(@NonNull Path file) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() - 60_000));
+    }
+
+    private static boolean isOpen(@NonNull Archive archive) {
+        return archive.getContentRoot().getFileSystem().isOpen();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.TestApks;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ZipCentralDirectoryTest {
+    private static final int EOCD_SIZE = 22;
+
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void entriesMatchJavaUtilZip() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        ZipCentralDirectory cd = ZipCentralDirectory.read(apk);
+        List<ZipCentralDirectory.Entry> entries = cd.getEntries();
+
+        try (ZipFile zip = new ZipFile(apk.toFile())) {
+            assertEquals(zip.size(), entries.size());
+            for (ZipCentralDirectory.Entry entry : entries) {
+                ZipEntry expected = zip.getEntry(entry.getName());
+                assertNotNull(entry.getName(), expected);
+                assertEquals(expected.getMethod(), entry.getMethod());
+                assertEquals(expected.getCrc(), entry.getCrc() & 0xFFFFFFFFL);
+                assertEquals(expected.getSize(), entry.getSize());
+                assertEquals(expected.getCompressedSize(), entry.getCompressedSize());
+            }
+        }
+        assertEquals(
+                Files.size(apk) - EOCD_SIZE,
+                cd.getCentralDirectoryOffset() + cd.getCentralDirectorySize());
+    }
+
+    @Test
+    public void openEntryReadsStoredAndDeflatedData() throws IOException {
+        byte[] stored = new byte[3000];
+        new Random(1).nextBytes(stored);
+        byte[] deflated = new byte[5000];
+        Path storedZip = temp.newFile("stored.zip").toPath();
+        TestApks.write(storedZip, Collections.singletonMap("stored.bin", stored), true);
+        Path deflatedZip = temp.newFile("deflated.zip").toPath();
+        TestApks.write(deflatedZip, Collections.singletonMap("deflated.bin", deflated), false);
+
+        assertArrayEquals(stored, readEntry(storedZip, "stored.bin"));
+        assertArrayEquals(deflated, readEntry(deflatedZip, "deflated.bin"));
+    }
+
+    @Test
+    public void findEntryStopsAtTheMatch() throws IOException {
+        Path apk = TestApks.writeSmall(temp.newFile("small.apk").toPath());
+        ZipCentralDirectory.Entry manifest =
+                ZipCentralDirectory.findEntry(apk, SdkConstants.FN_ANDROID_MANIFEST_XML);
+        assertNotNull(manifest);
+        assertEquals(0, manifest.getLocalHeaderOffset());
+        assertNull(ZipCentralDirectory.findEntry(apk, "missing"));
+    }
+
+    @Test
+    public void archiveComment() throws IOException {
+        Path zip = temp.newFile("comment.zip").toPath();
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(zip))) {
+            out.setComment("PK\u0005\u0006 looks like the end record");
+            out.putNextEntry(new ZipEntry("a"));
+            out.write(1);
+            out.closeEntry();
+        }
+        assertEquals("a", ZipCentralDirectory.read(zip).getEntries().get(0).getName());
+    }
+
+    @Test
+    public void truncatedRecord() throws IOException {
+        byte[] bytes = Files.readAllBytes(TestApks.writeSmall(temp.newFile("small.apk").toPath()));
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int cdOffset = buffer.getInt(bytes.length - EOCD_SIZE + 16);
+        // the name of the first record runs past the end of the central directory
+        buffer.putShort(cdOffset + 28, (short) 0xFFFF);
+        Path zip = write("truncated.zip", bytes);
+
+        expectZipException(() -> ZipCentralDirectory.read(zip), "Truncated central directory");
+        expectZipException(
+                () -> ZipCentralDirectory.findEntry(zip, "missing"),
+                "Truncated central directory");
+    }
+
+    @Test
+    public void centralDirectoryOutsideOfTheFile() throws IOException {
+        byte[] bytes = Files.readAllBytes(TestApks.writeSmall(temp.newFile("small.apk").toPath()));
+        ByteBuffer.wrap(bytes)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(bytes.length - EOCD_SIZE + 16, bytes.length);
+        Path zip = write("outside.zip", bytes);
+        expectZipException(() -> ZipCentralDirectory.read(zip), "lies outside of the file");
+    }
+
+    @Test
+    public void zip64LocatorOutsideOfTheFile() throws IOException {
+        byte[] bytes = Files.readAllBytes(TestApks.writeSmall(temp.newFile("small.apk").toPath()));
+        int eocd = bytes.length - EOCD_SIZE;
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 20).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(bytes, 0, eocd);
+        buffer.putInt(0x07064b50).putInt(0).putLong(Long.MAX_VALUE).putInt(1);
+        buffer.put(bytes, eocd, EOCD_SIZE);
+        Path zip = write("zip64.zip", buffer.array());
+        expectZipException(
+                () -> ZipCentralDirectory.read(zip),
+                "Zip64 end of central directory record lies outside");
+    }
+
+    @Test
+    public void notAZip() throws IOException {
+        byte[] noise = new byte[4096];
+        new Random(2).nextBytes(noise);
+        Path zip = write("noise.zip", noise);
+        expectZipException(() -> ZipCentralDirectory.read(zip), "record not found");
+
+        Path tiny = write("tiny.zip", new byte[EOCD_SIZE - 1]);
+        expectZipException(() -> ZipCentralDirectory.read(tiny), "too small");
+    }
+
+    @NonNull
+    private Path write(@NonNull String name, @NonNull byte[] bytes) throws IOException {
+        return Files.write(temp.newFile(name).toPath(), bytes);
+    }
+
+    @NonNull
+    private static byte[] readEntry(@NonNull Path zip, @NonNull String name) throws IOException {
+        try (FileChannel channel = FileChannel.open(zip, StandardOpenOption.READ)) {
+            ZipCentralDirectory.Entry entry = ZipCentralDirectory.read(channel).getEntry(name);
+            assertNotNull(name, entry);
+            try (InputStream in = ZipCentralDirectory.openEntry(channel, entry)) {
+                return ByteStreams.toByteArray(in);
+            }
+        }
+    }
+
+    private interface ZipAction {
+        void run() throws IOException;
+    }
+
+    private static void expectZipException(@NonNull ZipAction action, @NonNull String message)
+            throws IOException {
+        try {
+            action.run();
+            fail("Expected ZipException: " + message);
+        } catch (ZipException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.tools.apk.analyzer.ApkAnalyzerImpl;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/** User visible {@link ApkAnalyzerImpl} actions end to end, output discarded. */
+@State(Scope.Benchmark)
+public class ActionsBenchmark {
+    @Param({"small", "median", "huge"})
+    public String size;
+
+    private Path apk;
+    private Path other;
+    private Path snapshot;
+    private Map<String, Path> targets;
+    private ApkAnalyzerImpl impl;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = BenchmarkInputs.apk(size);
+        // diff against a different input, so that both manifests are decoded
+        other = BenchmarkInputs.apk(size.equals("small") ? "median" : "small");
+        snapshot = Files.createTempFile("benchmark", ".snapshot");
+        targets = new LinkedHashMap<>();
+        targets.put(size, apk);
+        targets.put("other", other);
+        impl = new ApkAnalyzerImpl(BenchmarkInputs.nullPrintStream());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(snapshot);
+    }
+
+    @Benchmark
+    public void apkSummary() {
+        impl.apkSummary(apk);
+    }
+
+    @Benchmark
+    public void manifestDiff() {
+        impl.manifestDiff(other, apk);
+    }
+
+    /** A first scan: every central directory is read and every manifest decoded */
+    @Benchmark
+    public void fleetRescanCold() throws IOException {
+        Files.deleteIfExists(snapshot);
+        impl.fleetRescan(snapshot, null, targets);
+    }
+
+    /** A scan where nothing changed: only the files are stat'ed */
+    @Benchmark
+    public void fleetRescanUnchanged() {
+        impl.fleetRescan(snapshot, null, targets);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.tools.apk.analyzer.ArchiveContext;
+import com.android.tools.apk.analyzer.Archives;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Opening and closing an APK as a zip file system, which reads its central directory. */
+@State(Scope.Benchmark)
+public class ArchiveBenchmark {
+    @Param({"small", "median", "huge"})
+    public String size;
+
+    private Path apk;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = BenchmarkInputs.apk(size);
+    }
+
+    @Benchmark
+    public Path open() throws IOException {
+        try (ArchiveContext context = Archives.open(apk)) {
+            return context.getArchive().getContentRoot();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import com.android.tools.apk.analyzer.internal.ZipCentralDirectory;
+import com.google.common.io.ByteStreams;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+
+/**
+ * Locates the benchmark input APKs: {@code small.apk}, {@code median.apk} and {@code huge.apk} in
+ * the directory named by the {@value #INPUTS_PROPERTY} system property. Missing inputs are
+ * generated by the {@link CorpusGenerator} with its default seed.
+ */
+final class BenchmarkInputs {
+    static final String INPUTS_PROPERTY = "apkanalyzer.benchmark.inputs";
+
+    private BenchmarkInputs() {}
+
+    @NonNull
+    static synchronized Path apk(@NonNull String size) throws IOException {
+        String dir = System.getProperty(INPUTS_PROPERTY);
+        if (dir == null) {
+            throw new IllegalStateException("System property " + INPUTS_PROPERTY + " not set");
+        }
+        Path apk = Paths.get(dir, size + SdkConstants.DOT_ANDROID_PACKAGE);
+        if (!Files.isRegularFile(apk)) {
+            CorpusGenerator.Spec spec =
+                    CorpusGenerator.Spec.STANDARD.stream()
+                            .filter(s -> s.getName().equals(size))
+                            .findFirst()
+                            .orElseThrow(
+                                    () ->
+                                            new IllegalStateException(
+                                                    "Missing benchmark input " + apk));
+            Files.createDirectories(apk.getParent());
+            new CorpusGenerator(CorpusGenerator.DEFAULT_SEED).writeApk(apk, spec);
+        }
+        return apk;
+    }
+
+    /** Returns the largest binary XML resource of {@code apk}, as a path within the archive. */
+    @NonNull
+    static String largestResourceXml(@NonNull Path apk) throws IOException {
+        return ZipCentralDirectory.read(apk).getEntries().stream()
+                .filter(e -> e.getName().startsWith(SdkConstants.FD_RES + '/'))
+                .filter(e -> !e.getName().startsWith(SdkConstants.FD_RES + "/raw"))
+                .filter(e -> e.getName().endsWith(SdkConstants.DOT_XML))
+                .max(Comparator.comparingLong(ZipCentralDirectory.Entry::getSize))
+                .orElseThrow(() -> new IOException("No XML resource in " + apk))
+                .getName();
+    }
+
+    /** A stream discarding everything written to it, to benchmark the printing actions */
+    @NonNull
+    static PrintStream nullPrintStream() {
+        return new PrintStream(ByteStreams.nullOutputStream());
+    }
+}
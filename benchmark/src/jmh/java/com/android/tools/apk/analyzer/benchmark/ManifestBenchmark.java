@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.SdkConstants;
+import com.android.ide.common.xml.AndroidManifestParser;
+import com.android.ide.common.xml.ManifestData;
+import com.android.tools.apk.analyzer.ApkAnalyzerImpl;
+import com.android.tools.apk.analyzer.ArchiveContext;
+import com.android.tools.apk.analyzer.Archives;
+import com.android.tools.apk.analyzer.BinaryXmlParser;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Manifest hot paths: the binary XML decode alone, the SAX parse of the decoded manifest into
+ * {@code ManifestData}, and the {@code manifest} actions end to end (open, inflate and decode;
+ * {@code application-id} stops reading after the root element, see {@code ManifestFields}).
+ */
+@State(Scope.Benchmark)
+public class ManifestBenchmark {
+    @Param({"small", "median", "huge"})
+    public String size;
+
+    private Path apk;
+    private byte[] manifest;
+    private byte[] decoded;
+    private ApkAnalyzerImpl impl;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = BenchmarkInputs.apk(size);
+        try (ArchiveContext context = Archives.open(apk)) {
+            manifest =
+                    Files.readAllBytes(
+                            context.getArchive()
+                                    .getContentRoot()
+                                    .resolve(SdkConstants.ANDROID_MANIFEST_XML));
+        }
+        decoded = BinaryXmlParser.decodeXml(SdkConstants.ANDROID_MANIFEST_XML, manifest);
+        impl = new ApkAnalyzerImpl(BenchmarkInputs.nullPrintStream());
+    }
+
+    @Benchmark
+    public byte[] decode() {
+        return BinaryXmlParser.decodeXml(SdkConstants.ANDROID_MANIFEST_XML, manifest);
+    }
+
+    /** The parse behind the actions that need the whole manifest, such as {@code apk summary} */
+    @Benchmark
+    public ManifestData manifestData() throws Exception {
+        return AndroidManifestParser.parse(new ByteArrayInputStream(decoded));
+    }
+
+    @Benchmark
+    public void appId() {
+        impl.manifestAppId(apk);
+    }
+
+    @Benchmark
+    public void print() {
+        impl.manifestPrint(apk);
+    }
+}
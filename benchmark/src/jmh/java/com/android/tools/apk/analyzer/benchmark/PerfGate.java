@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+/**
+ * Performance regression gate: runs a fixed subset of the benchmarks and compares their average
+ * time per operation against a baseline file committed with the sources.
+ *
+ * <pre>
+ * PerfGate &lt;baseline.tsv&gt; [--update]
+ * </pre>
+ *
+ * A benchmark regresses when its average time exceeds the baseline by more than the tolerance
+ * ({@value #TOLERANCE_PROPERTY}, 10% by default) plus the confidence half-width recorded with the
+ * baseline. That noise allowance is capped at the tolerance, so that a noisy baseline cannot
+ * disable the gate; results whose own error exceeds the tolerance are flagged as noisy. Until a
+ * baseline is recorded on the reference machine, benchmarks without a baseline line pass with a
+ * loud warning rather than failing every run; a baseline recorded in another unit fails. {@code
+ * --update} records the current results as the new baseline instead of comparing.
+ */
+public final class PerfGate {
+    static final String TOLERANCE_PROPERTY = "apkanalyzer.perf.tolerance";
+
+    /** The gated benchmarks: the open and decode kernels and the user visible actions */
+    private static final String[] INCLUDES = {
+        "ArchiveBenchmark\\.open$",
+        "ManifestBenchmark\\.",
+        "ResourcesXmlBenchmark\\.",
+        "ActionsBenchmark\\."
+    };
+
+    /** Inputs small enough to keep the gate within a few minutes */
+    private static final String[] SIZES = {"small", "median"};
+
+    /** Average time per operation of a benchmark and its 99.9% confidence half-width */
+    private static final class Score {
+        final double score;
+        final double error;
+        @NonNull final String unit;
+
+        Score(double score, double error, @NonNull String unit) {
+            this.score = score;
+            this.error = Double.isNaN(error) ? 0 : error;
+            this.unit = unit;
+        }
+    }
+
+    private PerfGate() {}
+
+    public static void main(String[] args) throws IOException, RunnerException {
+        if (args.length < 1
+                || args.length > 2
+                || (args.length == 2 && !"--update".equals(args[1]))) {
+            System.err.println("Usage: PerfGate <baseline.tsv> [--update]");
+            System.exit(1);
+        }
+        Path baselineFile = Paths.get(args[0]);
+        boolean update = args.length == 2;
+        double tolerance = Double.parseDouble(System.getProperty(TOLERANCE_PROPERTY, "0.10"));
+
+        Map<String, Score> current = run();
+        if (update) {
+            write(baselineFile, current);
+            System.out.println("Baseline written to " + baselineFile);
+            return;
+        }
+        if (!compare(read(baselineFile), current, tolerance, System.out)) {
+            System.exit(1);
+        }
+    }
+
+    @NonNull
+    private static Map<String, Score> run() throws RunnerException {
+        ChainedOptionsBuilder options =
+                new OptionsBuilder()
+                        .param("size", SIZES)
+                        .mode(Mode.AverageTime)
+                        .timeUnit(TimeUnit.MICROSECONDS)
+                        .forks(2)
+                        .warmupIterations(3)
+                        .warmupTime(TimeValue.seconds(1))
+                        .measurementIterations(5)
+                        .measurementTime(TimeValue.seconds(1));
+        for (String include : INCLUDES) {
+            options.include(include);
+        }
+        String inputs = System.getProperty(BenchmarkInputs.INPUTS_PROPERTY);
+        if (inputs != null) {
+            options.jvmArgsAppend("-D" + BenchmarkInputs.INPUTS_PROPERTY + "=" + inputs);
+        }
+
+        Map<String, Score> scores = new TreeMap<>();
+        Collection<RunResult> results = new Runner(options.build()).run();
+        for (RunResult result : results) {
+            Result<?> primary = result.getPrimaryResult();
+            scores.put(
+                    key(result.getParams()),
+                    new Score(primary.getScore(), primary.getScoreError(), primary.getScoreUnit()));
+        }
+        return scores;
+    }
+
+    /** Returns {@code benchmark<TAB>name=value,...}, the key of a result in the baseline */
+    @NonNull
+    private static String key(@NonNull BenchmarkParams params) {
+        StringBuilder sb = new StringBuilder(params.getBenchmark()).append('\t');
+        List<String> keys = new ArrayList<>(params.getParamsKeys());
+        keys.sort(null);
+        for (String key : keys) {
+            if (sb.charAt(sb.length() - 1) != '\t') {
+                sb.append(',');
+            }
+            sb.append(key).append('=').append(params.getParam(key));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints the comparison of {@code current} against {@code baseline} and returns {@code false}
+     * if any benchmark regressed.
+     */
+    private static boolean compare(
+            @NonNull Map<String, Score> baseline,
+            @NonNull Map<String, Score> current,
+            double tolerance,
+            @NonNull PrintStream out) {
+        boolean passed = true;
+        int missing = 0;
+        out.println(
+                String.format(
+                        Locale.US,
+                        "%-72s %12s %12s %8s  %s",
+                        "benchmark",
+                        "baseline",
+                        "current",
+                        "change",
+                        "verdict"));
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            String name = entry.getKey().replace('\t', ' ');
+            Score now = entry.getValue();
+            Score base = baseline.get(entry.getKey());
+            if (base == null || !base.unit.equals(now.unit)) {
+                if (base == null) {
+                    missing++;
+                } else {
+                    passed = false;
+                }
+                out.println(
+                        String.format(
+                                Locale.US,
+                                "%-72s %12s %12.3f %8s  %s",
+                                name,
+                                "-",
+                                now.score,
+                                "-",
+                                base == null ? "NO BASELINE" : "UNIT MISMATCH"));
+                continue;
+            }
+
+            double change = (now.score - base.score) / base.score;
+            double noise = Math.min(base.error, base.score * tolerance);
+            boolean slower = now.score > base.score * (1 + tolerance) + noise;
+            boolean faster = now.score < base.score * (1 - tolerance) - noise;
+            boolean noisy = now.error > now.score * tolerance;
+            passed &= !slower;
+            out.println(
+                    String.format(
+                            Locale.US,
+                            "%-72s %12.3f %12.3f %+7.1f%%  %s",
+                            name,
+                            base.score,
+                            now.score,
+                            change * 100,
+                            (slower ? "REGRESSION" : faster ? "faster" : "ok")
+                                    + (noisy ? " (noisy)" : "")));
+        }
+        out.println(
+                passed
+                        ? "No regression beyond " + Math.round(tolerance * 100) + "%"
+                        : "Performance regressed; if expected, re-record with --update");
+        if (missing > 0) {
+            // not fatal until a baseline is committed, but never silent
+            String warning =
+                    "WARNING: "
+                            + missing
+                            + " of "
+                            + current.size()
+                            + " gated benchmarks have no baseline and were NOT checked; record"
+                            + " one on the reference machine with -PperfUpdateBaseline";
+            char[] rule = new char[Math.min(warning.length(), 100)];
+            Arrays.fill(rule, '!');
+            out.println(rule);
+            out.println(warning);
+            out.println(rule);
+            System.err.println(warning);
+        }
+        return passed;
+    }
+
+    @NonNull
+    private static Map<String, Score> read(@NonNull Path file) throws IOException {
+        Map<String, Score> scores = new TreeMap<>();
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return scores;
+        }
+        for (String line : lines) {
+            Score score = parse(line);
+            if (score != null) {
+                int params = line.indexOf('\t', line.indexOf('\t') + 1);
+                scores.put(line.substring(0, params), score);
+            }
+        }
+        return scores;
+    }
+
+    /** Parses {@code benchmark, params, score, error, unit}, ignoring comments */
+    @Nullable
+    private static Score parse(@NonNull String line) throws IOException {
+        if (line.isEmpty() || line.startsWith("#")) {
+            return null;
+        }
+        String[] fields = line.split("\t", -1);
+        if (fields.length != 5) {
+            throw new IOException("Malformed baseline line: " + line);
+        }
+        try {
+            return new Score(
+                    Double.parseDouble(fields[2]), Double.parseDouble(fields[3]), fields[4]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed baseline line: " + line, e);
+        }
+    }
+
+    private static void write(@NonNull Path file, @NonNull Map<String, Score> scores)
+            throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("# benchmark\tparams\tscore\terror\tunit");
+        lines.add("# recorded with: ./gradlew :benchmark:perfTest -PperfUpdateBaseline");
+        for (Map.Entry<String, Score> entry : scores.entrySet()) {
+            Score score = entry.getValue();
+            lines.add(
+                    String.format(
+                            Locale.US,
+                            "%s\t%.3f\t%.3f\t%s",
+                            entry.getKey(),
+                            score.score,
+                            score.error,
+                            score.unit));
+        }
+        Files.write(file, lines, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.tools.apk.analyzer.ApkAnalyzerImpl;
+import java.io.IOException;
+import java.nio.file.Path;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** The {@code resources xml} action on the largest XML resource of each input. */
+@State(Scope.Benchmark)
+public class ResourcesXmlBenchmark {
+    @Param({"small", "median", "huge"})
+    public String size;
+
+    private Path apk;
+    private String file;
+    private ApkAnalyzerImpl impl;
+
+    @Setup
+    public void setUp() throws IOException {
+        apk = BenchmarkInputs.apk(size);
+        file = BenchmarkInputs.largestResourceXml(apk);
+        impl = new ApkAnalyzerImpl(BenchmarkInputs.nullPrintStream());
+    }
+
+    @Benchmark
+    public void resXml() {
+        impl.resXml(apk, file);
+    }
+}
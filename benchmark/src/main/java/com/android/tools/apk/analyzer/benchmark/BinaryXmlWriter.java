@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.annotations.NonNull;
+import com.android.annotations.Nullable;
+import com.google.common.io.LittleEndianDataOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes binary XML files, in the format produced by aapt for {@code AndroidManifest.xml} and
+ * compiled XML resources.
+ *
+ * <p>Elements are written in document order:
+ *
+ * <pre>
+ * BinaryXmlWriter writer = new BinaryXmlWriter(true);
+ * writer.startNamespace("android", SdkConstants.ANDROID_URI);
+ * writer.startElement("manifest");
+ * writer.attribute(null, "package", 0, "com.example");
+ * writer.endElement();
+ * writer.endNamespace();
+ * byte[] bytes = writer.toByteArray();
+ * </pre>
+ *
+ * Names of attributes with a resource id come first in the string pool, in the order of the
+ * resource map, and attributes are sorted by resource id as the framework expects.
+ */
+public final class BinaryXmlWriter {
+    public static final int TYPE_REFERENCE = 0x01;
+    public static final int TYPE_STRING = 0x03;
+    public static final int TYPE_INT_DEC = 0x10;
+    public static final int TYPE_INT_HEX = 0x11;
+    public static final int TYPE_INT_BOOLEAN = 0x12;
+
+    private static final int RES_STRING_POOL_TYPE = 0x0001;
+    private static final int RES_XML_TYPE = 0x0003;
+    private static final int RES_XML_START_NAMESPACE_TYPE = 0x0100;
+    private static final int RES_XML_END_NAMESPACE_TYPE = 0x0101;
+    private static final int RES_XML_START_ELEMENT_TYPE = 0x0102;
+    private static final int RES_XML_END_ELEMENT_TYPE = 0x0103;
+    private static final int RES_XML_RESOURCE_MAP_TYPE = 0x0180;
+
+    private static final int UTF8_FLAG = 1 << 8;
+    private static final int STRING_POOL_HEADER_SIZE = 28;
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int ATTRIBUTE_SIZE = 20;
+    private static final int NO_ENTRY = -1;
+
+    private static final class Attribute {
+        @Nullable final String uri;
+        @NonNull final String name;
+        final int resourceId;
+        @Nullable final String rawValue;
+        final int type;
+        final int data;
+
+        Attribute(
+                @Nullable String uri,
+                @NonNull String name,
+                int resourceId,
+                @Nullable String rawValue,
+                int type,
+                int data) {
+            this.uri = uri;
+            this.name = name;
+            this.resourceId = resourceId;
+            this.rawValue = rawValue;
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    private static final class Node {
+        final int type;
+        @Nullable final String first;
+        @Nullable final String second;
+        @NonNull final List<Attribute> attributes = new ArrayList<>();
+
+        Node(int type, @Nullable String first, @Nullable String second) {
+            this.type = type;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    private final boolean utf8;
+    private final List<Node> nodes = new ArrayList<>();
+    private final List<Node> open = new ArrayList<>();
+    private final List<String[]> namespaces = new ArrayList<>();
+    @Nullable private Node current;
+
+    /** @param utf8 whether to encode the string pool as UTF-8 rather than UTF-16 */
+    public BinaryXmlWriter(boolean utf8) {
+        this.utf8 = utf8;
+    }
+
+    public void startNamespace(@NonNull String prefix, @NonNull String uri) {
+        namespaces.add(new String[] {prefix, uri});
+        nodes.add(new Node(RES_XML_START_NAMESPACE_TYPE, prefix, uri));
+        current = null;
+    }
+
+    public void endNamespace() {
+        String[] namespace = namespaces.remove(namespaces.size() - 1);
+        nodes.add(new Node(RES_XML_END_NAMESPACE_TYPE, namespace[0], namespace[1]));
+        current = null;
+    }
+
+    public void startElement(@NonNull String name) {
+        current = new Node(RES_XML_START_ELEMENT_TYPE, null, name);
+        nodes.add(current);
+        open.add(current);
+    }
+
+    public void endElement() {
+        Node start = open.remove(open.size() - 1);
+        nodes.add(new Node(RES_XML_END_ELEMENT_TYPE, null, start.second));
+        current = null;
+    }
+
+    /**
+     * Adds a string attribute to the element just started.
+     *
+     * @param resourceId the framework resource id of the attribute, or 0 if it has none
+     */
+    public void attribute(
+            @Nullable String uri, @NonNull String name, int resourceId, @NonNull String value) {
+        addAttribute(new Attribute(uri, name, resourceId, value, TYPE_STRING, 0));
+    }
+
+    /** Adds a typed attribute, e.g. {@link #TYPE_INT_BOOLEAN}, to the element just started. */
+    public void attribute(
+            @Nullable String uri, @NonNull String name, int resourceId, int type, int data) {
+        addAttribute(new Attribute(uri, name, resourceId, null, type, data));
+    }
+
+    private void addAttribute(@NonNull Attribute attribute) {
+        if (current == null) {
+            throw new IllegalStateException("Attribute outside of a start tag");
+        }
+        current.attributes.add(attribute);
+    }
+
+    @NonNull
+    public byte[] toByteArray() {
+        if (!open.isEmpty() || !namespaces.isEmpty()) {
+            throw new IllegalStateException("Unbalanced elements or namespaces");
+        }
+
+        // attribute names with resource ids first, so that their index matches the resource map
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        List<Integer> resourceIds = new ArrayList<>();
+        for (Node node : nodes) {
+            for (Attribute attribute : node.attributes) {
+                if (attribute.resourceId != 0 && !strings.containsKey(attribute.name)) {
+                    strings.put(attribute.name, strings.size());
+                    resourceIds.add(attribute.resourceId);
+                }
+            }
+        }
+        for (Node node : nodes) {
+            intern(strings, node.first);
+            intern(strings, node.second);
+            for (Attribute attribute : node.attributes) {
+                intern(strings, attribute.uri);
+                intern(strings, attribute.name);
+                intern(strings, attribute.rawValue);
+            }
+        }
+
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(body);
+            writeStringPool(out, new ArrayList<>(strings.keySet()));
+            writeResourceMap(out, resourceIds);
+            int line = 1;
+            for (Node node : nodes) {
+                writeNode(out, strings, node, line++);
+            }
+            out.flush();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(body.size() + 8);
+            LittleEndianDataOutputStream header = new LittleEndianDataOutputStream(file);
+            writeChunkHeader(header, RES_XML_TYPE, 8, 8 + body.size());
+            header.flush();
+            body.writeTo(file);
+            return file.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void intern(@NonNull Map<String, Integer> strings, @Nullable String s) {
+        if (s != null && !strings.containsKey(s)) {
+            strings.put(s, strings.size());
+        }
+    }
+
+    private static int index(@NonNull Map<String, Integer> strings, @Nullable String s) {
+        return s == null ? NO_ENTRY : strings.get(s);
+    }
+
+    private static void writeChunkHeader(
+            @NonNull LittleEndianDataOutputStream out, int type, int headerSize, int size)
+            throws IOException {
+        out.writeShort(type);
+        out.writeShort(headerSize);
+        out.writeInt(size);
+    }
+
+    private void writeStringPool(
+            @NonNull LittleEndianDataOutputStream out, @NonNull List<String> strings)
+            throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        int[] offsets = new int[strings.size()];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = data.size();
+            if (utf8) {
+                writeUtf8(data, strings.get(i));
+            } else {
+                writeUtf16(data, strings.get(i));
+            }
+        }
+        while (data.size() % 4 != 0) {
+            data.write(0);
+        }
+
+        int stringsStart = STRING_POOL_HEADER_SIZE + 4 * offsets.length;
+        writeChunkHeader(
+                out, RES_STRING_POOL_TYPE, STRING_POOL_HEADER_SIZE, stringsStart + data.size());
+        out.writeInt(offsets.length);
+        out.writeInt(0); // styles
+        out.writeInt(utf8 ? UTF8_FLAG : 0);
+        out.writeInt(stringsStart);
+        out.writeInt(0); // styles start
+        for (int offset : offsets) {
+            out.writeInt(offset);
+        }
+        data.writeTo(out);
+    }
+
+    private static void writeUtf8(@NonNull ByteArrayOutputStream data, @NonNull String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeUtf8Length(data, s.length());
+        writeUtf8Length(data, bytes.length);
+        data.write(bytes, 0, bytes.length);
+        data.write(0);
+    }
+
+    private static void writeUtf8Length(@NonNull ByteArrayOutputStream data, int length) {
+        if (length > 0x7FFF) {
+            throw new IllegalArgumentException("UTF-8 pool string too long: " + length);
+        }
+        if (length > 0x7F) {
+            data.write(0x80 | (length >> 8));
+        }
+        data.write(length & 0xFF);
+    }
+
+    private static void writeUtf16(@NonNull ByteArrayOutputStream data, @NonNull String s) {
+        int length = s.length();
+        if (length > 0x7FFF) {
+            writeChar(data, 0x8000 | (length >> 16));
+        }
+        writeChar(data, length & 0xFFFF);
+        for (int i = 0; i < length; i++) {
+            writeChar(data, s.charAt(i));
+        }
+        writeChar(data, 0);
+    }
+
+    private static void writeChar(@NonNull ByteArrayOutputStream data, int c) {
+        data.write(c & 0xFF);
+        data.write((c >> 8) & 0xFF);
+    }
+
+    private static void writeResourceMap(
+            @NonNull LittleEndianDataOutputStream out, @NonNull List<Integer> resourceIds)
+            throws IOException {
+        if (resourceIds.isEmpty()) {
+            return;
+        }
+        writeChunkHeader(out, RES_XML_RESOURCE_MAP_TYPE, 8, 8 + 4 * resourceIds.size());
+        for (int id : resourceIds) {
+            out.writeInt(id);
+        }
+    }
+
+    private static void writeNode(
+            @NonNull LittleEndianDataOutputStream out,
+            @NonNull Map<String, Integer> strings,
+            @NonNull Node node,
+            int line)
+            throws IOException {
+        int extension =
+                node.type == RES_XML_START_ELEMENT_TYPE
+                        ? 20 + ATTRIBUTE_SIZE * node.attributes.size()
+                        : 8;
+        writeChunkHeader(out, node.type, NODE_HEADER_SIZE, NODE_HEADER_SIZE + extension);
+        out.writeInt(line);
+        out.writeInt(NO_ENTRY); // comment
+        out.writeInt(index(strings, node.first));
+        out.writeInt(index(strings, node.second));
+        if (node.type != RES_XML_START_ELEMENT_TYPE) {
+            return;
+        }
+
+        out.writeShort(20); // attribute start
+        out.writeShort(ATTRIBUTE_SIZE);
+        out.writeShort(node.attributes.size());
+        out.writeShort(0); // id index
+        out.writeShort(0); // class index
+        out.writeShort(0); // style index
+        List<Attribute> attributes = new ArrayList<>(node.attributes);
+        attributes.sort(
+                Comparator.comparingLong(
+                        a -> a.resourceId == 0 ? Long.MAX_VALUE : a.resourceId & 0xFFFFFFFFL));
+        for (Attribute attribute : attributes) {
+            out.writeInt(index(strings, attribute.uri));
+            out.writeInt(index(strings, attribute.name));
+            out.writeInt(index(strings, attribute.rawValue));
+            out.writeShort(8); // value size
+            out.writeByte(0);
+            out.writeByte(attribute.type);
+            out.writeInt(
+                    attribute.rawValue != null
+                            ? index(strings, attribute.rawValue)
+                            : attribute.data);
+        }
+    }
+}
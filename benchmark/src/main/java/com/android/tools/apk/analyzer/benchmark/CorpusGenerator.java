@@ -0,0 +1,452 @@
+/*
+ * Copyright (C) 2020 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tools.apk.analyzer.benchmark;
+
+import com.android.SdkConstants;
+import com.android.annotations.NonNull;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic, reproducible APKs for benchmarks and stress tests: manifests with many
+ * components and a large string pool, deeply nested layouts, UTF-8 or UTF-16 string pools and
+ * archives with tens of thousands of entries.
+ *
+ * <p>The same seed and {@link Spec} always produce the same bytes. Run as
+ *
+ * <pre>
+ * CorpusGenerator &lt;out-dir&gt; [seed]
+ * </pre>
+ *
+ * to write {@code small.apk}, {@code median.apk} and {@code huge.apk}.
+ */
+public final class CorpusGenerator {
+    public static final long DEFAULT_SEED = 0x5eed;
+
+    private static final int ATTR_LABEL = 0x01010001;
+    private static final int ATTR_ICON = 0x01010002;
+    private static final int ATTR_NAME = 0x01010003;
+    private static final int ATTR_PERMISSION = 0x01010006;
+    private static final int ATTR_EXPORTED = 0x01010010;
+    private static final int ATTR_AUTHORITIES = 0x01010018;
+    private static final int ATTR_VALUE = 0x01010024;
+    private static final int ATTR_SCHEME = 0x01010027;
+    private static final int ATTR_HOST = 0x01010028;
+    private static final int ATTR_ORIENTATION = 0x010100c4;
+    private static final int ATTR_ID = 0x010100d0;
+    private static final int ATTR_LAYOUT_WIDTH = 0x010100f4;
+    private static final int ATTR_LAYOUT_HEIGHT = 0x010100f5;
+    private static final int ATTR_TEXT = 0x0101014f;
+    private static final int ATTR_MIN_SDK_VERSION = 0x0101020c;
+    private static final int ATTR_VERSION_CODE = 0x0101021b;
+    private static final int ATTR_VERSION_NAME = 0x0101021c;
+    private static final int ATTR_TARGET_SDK_VERSION = 0x01010270;
+
+    private static final String[] COMPONENTS = {
+        SdkConstants.TAG_ACTIVITY,
+        SdkConstants.TAG_SERVICE,
+        SdkConstants.TAG_RECEIVER,
+        SdkConstants.TAG_PROVIDER
+    };
+
+    /** Shape of a generated APK */
+    public static final class Spec {
+        public static final Spec SMALL = new Spec("small", 10, 5, 10, 10, 4, 100, true);
+        public static final Spec MEDIAN = new Spec("median", 300, 40, 500, 200, 12, 2_000, true);
+        public static final Spec HUGE =
+                new Spec("huge", 5_000, 200, 20_000, 2_000, 64, 50_000, false);
+
+        /** The inputs expected by the benchmarks */
+        public static final List<Spec> STANDARD = Arrays.asList(SMALL, MEDIAN, HUGE);
+
+        @NonNull final String name;
+        final int components;
+        final int permissions;
+        final int metaData;
+        final int layouts;
+        final int layoutDepth;
+        final int entries;
+        final boolean utf8;
+
+        /**
+         * @param components number of activities, services, receivers and providers
+         * @param permissions number of {@code uses-permission} elements
+         * @param metaData number of {@code meta-data} elements, each with a distinct value
+         * @param layouts number of layout resources
+         * @param layoutDepth nesting depth of each layout
+         * @param entries total number of archive entries, padded with assets
+         * @param utf8 whether string pools are UTF-8 rather than UTF-16 encoded
+         */
+        public Spec(
+                @NonNull String name,
+                int components,
+                int permissions,
+                int metaData,
+                int layouts,
+                int layoutDepth,
+                int entries,
+                boolean utf8) {
+            this.name = name;
+            this.components = components;
+            this.permissions = permissions;
+            this.metaData = metaData;
+            this.layouts = layouts;
+            this.layoutDepth = layoutDepth;
+            this.entries = entries;
+            this.utf8 = utf8;
+        }
+
+        @NonNull
+        public String getName() {
+            return name;
+        }
+    }
+
+    @NonNull private final Random random;
+
+    public CorpusGenerator(long seed) {
+        random = new Random(seed);
+    }
+
+    /** Returns a binary {@code AndroidManifest.xml} shaped by {@code spec}. */
+    @NonNull
+    public byte[] manifest(@NonNull Spec spec) {
+        String pkg = "com.example.corpus." + spec.name;
+        BinaryXmlWriter w = new BinaryXmlWriter(spec.utf8);
+        w.startNamespace(SdkConstants.ANDROID_NS_NAME, SdkConstants.ANDROID_URI);
+        w.startElement(SdkConstants.TAG_MANIFEST);
+        w.attribute(null, SdkConstants.ATTR_PACKAGE, 0, pkg);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "versionCode",
+                ATTR_VERSION_CODE,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                1 + random.nextInt(100_000));
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "versionName",
+                ATTR_VERSION_NAME,
+                random.nextInt(10) + "." + random.nextInt(100));
+
+        w.startElement(SdkConstants.TAG_USES_SDK);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "minSdkVersion",
+                ATTR_MIN_SDK_VERSION,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                21);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "targetSdkVersion",
+                ATTR_TARGET_SDK_VERSION,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                30);
+        w.endElement();
+
+        for (int i = 0; i < spec.permissions; i++) {
+            w.startElement(SdkConstants.TAG_USES_PERMISSION);
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    SdkConstants.ATTR_NAME,
+                    ATTR_NAME,
+                    "android.permission.GENERATED_" + i);
+            w.endElement();
+        }
+
+        w.startElement(SdkConstants.TAG_APPLICATION);
+        w.attribute(SdkConstants.ANDROID_URI, "label", ATTR_LABEL, text(spec.utf8, 4, 24));
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "icon",
+                ATTR_ICON,
+                BinaryXmlWriter.TYPE_REFERENCE,
+                0x7f080000);
+        for (int i = 0; i < spec.components; i++) {
+            component(w, pkg, i);
+        }
+        for (int i = 0; i < spec.metaData; i++) {
+            w.startElement(SdkConstants.TAG_META_DATA);
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    SdkConstants.ATTR_NAME,
+                    ATTR_NAME,
+                    pkg + ".meta." + i);
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    SdkConstants.ATTR_VALUE,
+                    ATTR_VALUE,
+                    text(spec.utf8, 8, 64) + i);
+            w.endElement();
+        }
+        w.endElement();
+
+        w.endElement();
+        w.endNamespace();
+        return w.toByteArray();
+    }
+
+    private void component(@NonNull BinaryXmlWriter w, @NonNull String pkg, int i) {
+        String tag = COMPONENTS[i % COMPONENTS.length];
+        String name =
+                pkg
+                        + ".p"
+                        + (i / 100)
+                        + "."
+                        + Character.toUpperCase(tag.charAt(0))
+                        + tag.substring(1)
+                        + i;
+        boolean exported = random.nextBoolean();
+        w.startElement(tag);
+        w.attribute(SdkConstants.ANDROID_URI, SdkConstants.ATTR_NAME, ATTR_NAME, name);
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "exported",
+                ATTR_EXPORTED,
+                BinaryXmlWriter.TYPE_INT_BOOLEAN,
+                exported ? -1 : 0);
+        if (exported && random.nextInt(4) == 0) {
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    SdkConstants.ATTR_PERMISSION,
+                    ATTR_PERMISSION,
+                    pkg + ".permission.P" + random.nextInt(16));
+        }
+        if (tag.equals(SdkConstants.TAG_PROVIDER)) {
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    "authorities",
+                    ATTR_AUTHORITIES,
+                    name.toLowerCase(Locale.US));
+        } else if (random.nextBoolean()) {
+            w.startElement(SdkConstants.TAG_INTENT_FILTER);
+            for (int a = 1 + random.nextInt(3); a > 0; a--) {
+                w.startElement(SdkConstants.TAG_ACTION);
+                w.attribute(
+                        SdkConstants.ANDROID_URI,
+                        SdkConstants.ATTR_NAME,
+                        ATTR_NAME,
+                        pkg + ".action.A" + random.nextInt(64));
+                w.endElement();
+            }
+            w.startElement(SdkConstants.TAG_CATEGORY);
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    SdkConstants.ATTR_NAME,
+                    ATTR_NAME,
+                    "android.intent.category.DEFAULT");
+            w.endElement();
+            if (random.nextBoolean()) {
+                w.startElement(SdkConstants.TAG_DATA);
+                w.attribute(
+                        SdkConstants.ANDROID_URI,
+                        "scheme",
+                        ATTR_SCHEME,
+                        random.nextBoolean() ? "https" : "corpus" + random.nextInt(8));
+                w.attribute(
+                        SdkConstants.ANDROID_URI,
+                        "host",
+                        ATTR_HOST,
+                        "h" + random.nextInt(256) + ".example.com");
+                w.endElement();
+            }
+            w.endElement();
+        }
+        w.endElement();
+    }
+
+    /** Returns a binary layout nesting {@code depth} linear layouts, with a few views each. */
+    @NonNull
+    public byte[] layout(int depth, boolean utf8) {
+        BinaryXmlWriter w = new BinaryXmlWriter(utf8);
+        w.startNamespace(SdkConstants.ANDROID_NS_NAME, SdkConstants.ANDROID_URI);
+        for (int level = 0; level < depth; level++) {
+            w.startElement(SdkConstants.LINEAR_LAYOUT);
+            layoutSize(w);
+            w.attribute(
+                    SdkConstants.ANDROID_URI,
+                    "orientation",
+                    ATTR_ORIENTATION,
+                    BinaryXmlWriter.TYPE_INT_DEC,
+                    level % 2);
+            for (int v = random.nextInt(3); v > 0; v--) {
+                w.startElement(SdkConstants.TEXT_VIEW);
+                layoutSize(w);
+                w.attribute(
+                        SdkConstants.ANDROID_URI,
+                        "id",
+                        ATTR_ID,
+                        BinaryXmlWriter.TYPE_REFERENCE,
+                        0x7f0b0000 + random.nextInt(0x10000));
+                w.attribute(SdkConstants.ANDROID_URI, "text", ATTR_TEXT, text(utf8, 1, 40));
+                w.endElement();
+            }
+        }
+        for (int level = 0; level < depth; level++) {
+            w.endElement();
+        }
+        w.endNamespace();
+        return w.toByteArray();
+    }
+
+    private static void layoutSize(@NonNull BinaryXmlWriter w) {
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "layout_width",
+                ATTR_LAYOUT_WIDTH,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                -1); // match_parent
+        w.attribute(
+                SdkConstants.ANDROID_URI,
+                "layout_height",
+                ATTR_LAYOUT_HEIGHT,
+                BinaryXmlWriter.TYPE_INT_DEC,
+                -2); // wrap_content
+    }
+
+    /**
+     * Returns random text between {@code min} and {@code max} characters. UTF-16 pools get CJK
+     * characters and UTF-8 pools accented ones, so that both encodings need multi-byte sequences.
+     */
+    @NonNull
+    private String text(boolean utf8, int min, int max) {
+        int length = min + random.nextInt(max - min + 1);
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            int pick = random.nextInt(16);
+            if (pick == 0) {
+                sb.append(
+                        utf8
+                                ? (char) (0xC0 + random.nextInt(0x40))
+                                : (char) (0x4E00 + random.nextInt(0x5000)));
+            } else if (pick == 1) {
+                sb.append(' ');
+            } else {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes an APK shaped by {@code spec} to {@code file}: the manifest, layouts, text XML files
+     * under {@code res/raw} (which are not binary XML) and stored or deflated assets up to {@code
+     * spec.entries} entries.
+     */
+    public void writeApk(@NonNull Path file, @NonNull Spec spec) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (ZipOutputStream zip =
+                new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            int entries = 0;
+            entries += put(zip, SdkConstants.FN_ANDROID_MANIFEST_XML, manifest(spec), false);
+            for (int i = 0; i < spec.layouts && entries < spec.entries; i++) {
+                int depth = 1 + random.nextInt(spec.layoutDepth);
+                entries +=
+                        put(
+                                zip,
+                                "res/layout/layout_" + i + ".xml",
+                                layout(depth, spec.utf8),
+                                false);
+            }
+            for (int i = 0; i < spec.layouts / 10 && entries < spec.entries; i++) {
+                String xml =
+                        "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<raw index=\""
+                                + i
+                                + "\">"
+                                + text(true, 16, 256)
+                                + "</raw>\n";
+                entries +=
+                        put(
+                                zip,
+                                "res/raw/raw_" + i + ".xml",
+                                xml.getBytes(StandardCharsets.UTF_8),
+                                true);
+            }
+            for (int i = 0; entries < spec.entries; i++) {
+                // mostly small files, with the occasional large one
+                int size =
+                        random.nextInt(500) == 0
+                                ? 64 * 1024 + random.nextInt(192 * 1024)
+                                : 16 + random.nextInt(512);
+                byte[] content = new byte[size];
+                if (random.nextBoolean()) {
+                    random.nextBytes(content); // incompressible
+                } else {
+                    Arrays.fill(content, (byte) random.nextInt(8));
+                }
+                entries +=
+                        put(
+                                zip,
+                                "assets/" + (i / 1000) + "/blob_" + i + ".bin",
+                                content,
+                                random.nextInt(3) == 0);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int put(
+            @NonNull ZipOutputStream zip,
+            @NonNull String name,
+            @NonNull byte[] content,
+            boolean stored)
+            throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setTime(0);
+        if (stored) {
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        zip.putNextEntry(entry);
+        zip.write(content);
+        zip.closeEntry();
+        return 1;
+    }
+
+    /** Writes the {@link Spec#STANDARD} APKs to {@code dir}, each from its own seeded generator. */
+    public static void writeStandard(@NonNull Path dir, long seed) throws IOException {
+        Files.createDirectories(dir);
+        for (Spec spec : Spec.STANDARD) {
+            new CorpusGenerator(seed)
+                    .writeApk(dir.resolve(spec.getName() + SdkConstants.DOT_ANDROID_PACKAGE), spec);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CorpusGenerator <out-dir> [seed]");
+            System.exit(1);
+        }
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_SEED;
+        writeStandard(Paths.get(args[0]), seed);
+    }
+}